@@ -0,0 +1,79 @@
+package com.okta.scim.server.LDAP.connector.benchmarks;
+
+import com.okta.scim.server.LDAP.connector.FilterCompiler;
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+import com.okta.scim.util.model.SCIMFilterType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning the filters Okta sends into LDAP filters. userNameEquals is the lookup Okta makes before every create,
+ * emailsOr an OR over several values. Both hit the compiled template cache after the first call, as they do in
+ * the connector; newCompiler includes building the compiler and the template.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+	private static final String USER_FILTER = "(objectClass=inetOrgPerson)";
+
+	private FilterCompiler compiler;
+	private SCIMFilter userNameEquals;
+	private SCIMFilter emailsOr;
+
+	@Setup
+	public void setUp() {
+		compiler = new FilterCompiler(Fixtures.userCore(), Fixtures.userCustom(10), Fixtures.CUSTOM_URN, USER_FILTER);
+		userNameEquals = equals("userName", null, "john.doe(contractor)@example.com");
+		List<SCIMFilter> emails = new ArrayList<SCIMFilter>();
+		for(int i = 0; i < 5; i++) emails.add(equals("emails", "value", "user" + i + "@example.com"));
+		emailsOr = new SCIMFilter();
+		emailsOr.setFilterType(SCIMFilterType.OR);
+		emailsOr.setFilterExpressions(emails);
+	}
+
+	@Benchmark
+	public String userNameEquals() {
+		return compiler.compile(userNameEquals);
+	}
+
+	@Benchmark
+	public String emailsOr() {
+		return compiler.compile(emailsOr);
+	}
+
+	@Benchmark
+	public String newCompiler() {
+		FilterCompiler fresh = new FilterCompiler(Fixtures.userCore(), Collections.<String, String[]>emptyMap(), Fixtures.CUSTOM_URN, USER_FILTER);
+		return fresh.compile(userNameEquals);
+	}
+
+	private static SCIMFilter equals(String attr, String subAttr, String value) {
+		SCIMFilterAttribute attribute = new SCIMFilterAttribute();
+		attribute.setAttributeName(attr);
+		attribute.setSubAttributeName(subAttr);
+		SCIMFilter filter = new SCIMFilter();
+		filter.setFilterType(SCIMFilterType.EQUALS);
+		filter.setFilterAttribute(attribute);
+		filter.setFilterValue(value);
+		return filter;
+	}
+}
@@ -0,0 +1,140 @@
+package com.okta.scim.server.LDAP.connector.benchmarks;
+
+import com.okta.scim.server.LDAP.connector.GroupCodec;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.SCIMGroup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+/**
+ * Synthetic mappings and directory entries shaped like the ones in connector.properties.example, but with as many
+ * custom attributes and group members as needed.
+ */
+public final class Fixtures {
+	public static final String CUSTOM_URN = "urn:okta:onprem_app:1.0:user:custom";
+	public static final String BASE_DN = "dc=example,dc=com";
+	public static final String USER_DN = "ou=People,";
+	public static final String USER_PRE = "uid=";
+	public static final String[] USER_CLASSES = {"top", "person", "organizationalPerson", "inetOrgPerson"};
+	public static final String[] GROUP_CLASSES = {"top", "groupOfNames"};
+	private static final String[] CUSTOM_TYPES = {"string", "int", "boolean", "double"};
+
+	private Fixtures() {
+	}
+
+	/**
+	 * @return OPP.userCoreMap as in connector.properties.example
+	 */
+	public static Map<String, String> userCore() {
+		Map<String, String> core = new HashMap<String, String>();
+		core.put("userName", "uid");
+		core.put("familyName", "sn");
+		core.put("givenName", "givenName");
+		core.put("formatted", "displayName");
+		core.put("id", "description");
+		core.put("password", "userPassword");
+		core.put("phoneNumbers", "telephoneNumber");
+		core.put("primaryEmail", "mail");
+		core.put("secondaryEmail", "otherMailbox");
+		return core;
+	}
+
+	/**
+	 * @param count - number of custom attributes, cycling through the custom types. Every fourth one is nested
+	 * @return OPP.userCustomMap, LDAP attr -> [type, schema, field name, parent names...]
+	 */
+	public static Map<String, String[]> userCustom(int count) {
+		Map<String, String[]> custom = new HashMap<String, String[]>();
+		for(int i = 0; i < count; i++) {
+			String type = CUSTOM_TYPES[i % CUSTOM_TYPES.length];
+			if(i % 4 == 3) custom.put(customAttr(i), new String[]{type, CUSTOM_URN, "field" + i, "parent" + (i % 3)});
+			else custom.put(customAttr(i), new String[]{type, CUSTOM_URN, "field" + i});
+		}
+		return custom;
+	}
+
+	/**
+	 * @return OPP.groupCoreMap as in connector.properties.example
+	 */
+	public static Map<String, String> groupCore() {
+		Map<String, String> core = new HashMap<String, String>();
+		core.put("id", "description");
+		core.put("members", "member");
+		return core;
+	}
+
+	/**
+	 * @param n - which user, makes the values unique
+	 * @param customCount - number of custom attributes, as passed to userCustom()
+	 * @return the attributes of a user entry as a search returns them
+	 */
+	public static Attributes userEntry(int n, int customCount) {
+		Attributes attrs = new BasicAttributes(true);
+		attrs.put("uid", "user" + n + "@example.com");
+		attrs.put("sn", "Lastname" + n);
+		attrs.put("givenName", "Firstname" + n);
+		attrs.put("displayName", "Firstname" + n + " Lastname" + n);
+		attrs.put("description", String.valueOf(100 + n));
+		attrs.put("mail", "user" + n + "@example.com");
+		attrs.put("otherMailbox", "user" + n + "@example.org");
+		Attribute phones = new BasicAttribute("telephoneNumber");
+		phones.add("+1 415 555 " + (1000 + n % 9000));
+		phones.add("+1 650 555 " + (1000 + n % 9000));
+		attrs.put(phones);
+		for(int i = 0; i < customCount; i++) {
+			switch(CUSTOM_TYPES[i % CUSTOM_TYPES.length]) {
+				case "string": attrs.put(customAttr(i), "value " + i + " of user " + n); break;
+				case "int": attrs.put(customAttr(i), String.valueOf(n * 31 + i)); break;
+				case "boolean": attrs.put(customAttr(i), String.valueOf((n + i) % 2 == 0)); break;
+				default: attrs.put(customAttr(i), String.valueOf((n + i) / 7.0));
+			}
+		}
+		return attrs;
+	}
+
+	/**
+	 * @param members - number of member DNs
+	 * @return the attributes of a group entry as a search returns them
+	 */
+	public static Attributes groupEntry(int members) {
+		Attributes attrs = new BasicAttributes(true);
+		attrs.put("cn", "group" + members);
+		attrs.put("description", String.valueOf(1000 + members));
+		Attribute member = new BasicAttribute("member");
+		for(int i = 0; i < members; i++) member.add(GroupCodec.memberDn(USER_PRE, userRdnValue(i), USER_DN + BASE_DN));
+		attrs.put(member);
+		return attrs;
+	}
+
+	/**
+	 * @param members - number of members
+	 * @return a group as Okta pushes it
+	 */
+	public static SCIMGroup group(int members) {
+		SCIMGroup group = new SCIMGroup();
+		group.setDisplayName("group" + members);
+		group.setId(String.valueOf(1000 + members));
+		List<Membership> memberList = new ArrayList<Membership>(members);
+		for(int i = 0; i < members; i++) memberList.add(new Membership(String.valueOf(100 + i), "user" + i + "@example.com"));
+		group.setMembers(memberList);
+		return group;
+	}
+
+	/**
+	 * @return the rdn value of a user
+	 */
+	public static String userRdnValue(int n) {
+		return "user" + n;
+	}
+
+	private static String customAttr(int i) {
+		return "customAttr" + i;
+	}
+}
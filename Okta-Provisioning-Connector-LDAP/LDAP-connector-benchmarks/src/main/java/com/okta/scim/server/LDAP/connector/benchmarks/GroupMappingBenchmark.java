@@ -0,0 +1,81 @@
+package com.okta.scim.server.LDAP.connector.benchmarks;
+
+import com.okta.scim.server.LDAP.connector.GroupCodec;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.SCIMGroup;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+
+/**
+ * The CPU side of converting large groups, without the member lookups and validation searches that need a
+ * directory. entryToGroup reads a group entry and the rdn value of every member DN, as constructGroupFromAttrs does
+ * before resolving members. groupToEntry builds the entry and a DN for every member, as constructAttrsFromGroup does
+ * once the members have been validated.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupMappingBenchmark {
+	private static final String RDN_ATTR = "uid";
+
+	@Param({"10000", "100000"})
+	public int members;
+
+	private GroupCodec codec;
+	private Attributes entry;
+	private SCIMGroup group;
+
+	@Setup
+	public void setUp() throws Exception {
+		codec = GroupCodec.compile(Fixtures.groupCore(), Fixtures.GROUP_CLASSES);
+		entry = Fixtures.groupEntry(members);
+		group = Fixtures.group(members);
+	}
+
+	@Benchmark
+	public List<String> entryToGroup() throws NamingException {
+		SCIMGroup converted = codec.toGroup(entry);
+		Attribute memberAttr = entry.get(codec.getMemberAttr());
+		List<String> memberCns = new ArrayList<String>(memberAttr.size());
+		for(int i = 0; i < memberAttr.size(); i++) {
+			String memberCn = GroupCodec.memberRdnValue(memberAttr.get(i).toString(), RDN_ATTR);
+			if(memberCn != null) memberCns.add(memberCn);
+		}
+		memberCns.add(converted.getDisplayName());
+		return memberCns;
+	}
+
+	@Benchmark
+	public Attributes groupToEntry() {
+		Attributes attrs = codec.toAttrs(group);
+		Attribute member = new BasicAttribute(codec.getMemberAttr());
+		String usersDn = Fixtures.USER_DN + Fixtures.BASE_DN;
+		for(Membership mem : group.getMembers()) {
+			String userName = mem.getDisplayName();
+			member.add(GroupCodec.memberDn(Fixtures.USER_PRE, userName.substring(0, userName.indexOf('@')), usersDn));
+		}
+		attrs.put(member);
+		return attrs;
+	}
+}
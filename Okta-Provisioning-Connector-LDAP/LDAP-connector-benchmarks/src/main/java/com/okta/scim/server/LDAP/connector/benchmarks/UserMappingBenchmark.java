@@ -0,0 +1,62 @@
+package com.okta.scim.server.LDAP.connector.benchmarks;
+
+import com.okta.scim.server.LDAP.connector.UserCodec;
+import com.okta.scim.util.model.SCIMUser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+
+/**
+ * Converting users between directory entries and SCIM, what constructUserFromAttrs and constructAttrsFromUser do
+ * for every user listed, fetched, created or updated. The custom attribute codecs are exercised through
+ * customAttrs, which cycles through the string, int, boolean and double types.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserMappingBenchmark {
+	@Param({"0", "10", "50"})
+	public int customAttrs;
+
+	private UserCodec codec;
+	private Attributes entry;
+	private SCIMUser user;
+
+	@Setup
+	public void setUp() throws Exception {
+		codec = UserCodec.compile(Fixtures.userCore(), Fixtures.userCustom(customAttrs), Fixtures.USER_CLASSES);
+		entry = Fixtures.userEntry(42, customAttrs);
+		user = codec.toUser(entry);
+	}
+
+	@Benchmark
+	public SCIMUser entryToUser() throws NamingException {
+		return codec.toUser(entry);
+	}
+
+	@Benchmark
+	public Attributes userToEntryForCreate() throws Exception {
+		return codec.toAttrs(user, false);
+	}
+
+	@Benchmark
+	public Attributes userToEntryForUpdate() throws Exception {
+		return codec.toAttrs(user, true);
+	}
+}
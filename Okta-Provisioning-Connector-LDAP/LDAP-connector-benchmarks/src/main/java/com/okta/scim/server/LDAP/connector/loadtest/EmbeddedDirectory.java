@@ -0,0 +1,121 @@
+package com.okta.scim.server.LDAP.connector.loadtest;
+
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.LDAPException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * An UnboundID in-memory directory for the connector to run against, seeded with synthetic users and groups laid
+ * out the way loadtest/connector.properties maps them: inetOrgPerson users under ou=People and groupOfNames groups
+ * under ou=Groups, named by cn.
+ */
+public class EmbeddedDirectory {
+	public static final String BIND_DN = "cn=Directory Manager";
+	public static final String BIND_PASSWORD = "password";
+	private static final String[] USER_CLASSES = {"top", "person", "organizationalPerson", "inetOrgPerson"};
+	private static final String[] GROUP_CLASSES = {"top", "groupOfNames"};
+
+	private final InMemoryDirectoryServer server;
+
+	private EmbeddedDirectory(InMemoryDirectoryServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Starts an empty directory for dc=example,dc=com.
+	 *
+	 * @param port - port to listen on
+	 * @return the running directory
+	 * @throws LDAPException
+	 */
+	public static EmbeddedDirectory start(int port) throws LDAPException {
+		InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(Population.BASE_DN);
+		config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+		config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("default", port));
+		InMemoryDirectoryServer server = new InMemoryDirectoryServer(config);
+		server.startListening();
+		return new EmbeddedDirectory(server);
+	}
+
+	/**
+	 * Adds the users and groups. Regular groups get groupSize members picked at random, huge groups the first
+	 * hugeGroupSize users.
+	 *
+	 * @param users - number of users
+	 * @param groups - number of regular groups
+	 * @param groupSize - members of every regular group
+	 * @param hugeGroups - number of huge groups
+	 * @param hugeGroupSize - members of every huge group
+	 * @param seed - seed of the member picks, so runs are repeatable
+	 * @return what was added
+	 * @throws LDAPException
+	 */
+	public Population seed(int users, int groups, int groupSize, int hugeGroups, int hugeGroupSize, long seed) throws LDAPException {
+		server.add(new Entry(Population.BASE_DN, new Attribute("objectClass", "top", "domain"), new Attribute("dc", "example")));
+		server.add(new Entry(Population.USERS_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "People")));
+		server.add(new Entry(Population.GROUPS_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "Groups")));
+		for(int i = 0; i < users; i++) {
+			server.add(new Entry(Population.userDn(i),
+					new Attribute("objectClass", USER_CLASSES),
+					new Attribute("cn", Population.userName(i)),
+					new Attribute("sn", "Lastname" + i),
+					new Attribute("givenName", "Firstname" + i),
+					new Attribute("displayName", "Firstname" + i + " Lastname" + i),
+					new Attribute("employeeNumber", Population.userId(i)),
+					new Attribute("mail", Population.userName(i)),
+					new Attribute("telephoneNumber", "+1 415 555 " + (1000 + i % 9000)),
+					new Attribute("userPassword", "Passw0rd" + i)));
+		}
+		Population population = new Population(users, groups);
+		Random random = new Random(seed);
+		for(int j = 0; j < groups + hugeGroups; j++) {
+			int size = Math.min(users, j < groups ? groupSize : hugeGroupSize);
+			int[] members = new int[size];
+			if(j < groups) {
+				//distinct random users, from a random start with a random odd step
+				int start = random.nextInt(Math.max(1, users));
+				int step = users <= 1 ? 1 : 1 + 2 * random.nextInt(Math.max(1, users / 2));
+				for(int i = 0; i < size; i++) members[i] = (int) ((start + (long) i * step) % users);
+				members = distinct(members);
+			} else {
+				for(int i = 0; i < size; i++) members[i] = i;
+			}
+			population.addGroup(members);
+			List<String> memberDns = new ArrayList<String>(members.length);
+			for(int i = 0; i < members.length; i++) memberDns.add(Population.userDn(members[i]));
+			server.add(new Entry(population.groupDn(j),
+					new Attribute("objectClass", GROUP_CLASSES),
+					new Attribute("cn", population.groupName(j)),
+					new Attribute("description", Population.groupId(j)),
+					new Attribute("member", memberDns)));
+		}
+		return population;
+	}
+
+	/**
+	 * Stops listening and drops the data.
+	 */
+	public void close() {
+		server.shutDown(true);
+	}
+
+	//an odd step is not always coprime with the number of users, drop the repeats
+	private static int[] distinct(int[] members) {
+		Set<Integer> seen = new LinkedHashSet<Integer>();
+		for(int i = 0; i < members.length; i++) seen.add(members[i]);
+		if(seen.size() == members.length) return members;
+		int[] unique = new int[seen.size()];
+		int i = 0;
+		for(Integer member : seen) unique[i++] = member;
+		return unique;
+	}
+}
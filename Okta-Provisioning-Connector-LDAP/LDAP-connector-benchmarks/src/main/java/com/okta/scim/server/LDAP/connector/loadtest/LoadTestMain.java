@@ -0,0 +1,103 @@
+package com.okta.scim.server.LDAP.connector.loadtest;
+
+import com.okta.scim.server.LDAP.connector.ConnectorMetrics;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Capacity test of a deployed connector: starts an embedded directory, seeds it, waits for the connector at --url
+ * to answer, sends concurrent SCIM traffic and prints ops/s and latency percentiles per endpoint.
+ * <p/>
+ * The connector has to be configured for the embedded directory, see loadtest/connector.properties and README.txt.
+ * Options are given as --name=value, see DEFAULTS.
+ */
+public class LoadTestMain {
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+	static {
+		DEFAULTS.put("ldapPort", "1389");
+		DEFAULTS.put("users", "100000");
+		DEFAULTS.put("groups", "2000");
+		DEFAULTS.put("groupSize", "50");
+		DEFAULTS.put("hugeGroups", "3");
+		DEFAULTS.put("hugeGroupSize", "50000");
+		DEFAULTS.put("seed", "42");
+		DEFAULTS.put("url", "http://localhost:2081/scim");
+		DEFAULTS.put("waitSeconds", "600");
+		DEFAULTS.put("threads", "32");
+		DEFAULTS.put("warmupSeconds", "30");
+		DEFAULTS.put("seconds", "120");
+		DEFAULTS.put("mix", "getUser=30,filterUser=25,listUsers=10,createUser=8,updateUser=8,getGroup=10,getHugeGroup=1,listGroups=3,updateGroup=5");
+		//only run the directory, for driving the connector by hand
+		DEFAULTS.put("directoryOnly", "false");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parse(args);
+		long start = System.currentTimeMillis();
+		EmbeddedDirectory directory = EmbeddedDirectory.start(Integer.parseInt(options.get("ldapPort")));
+		try {
+			Population population = directory.seed(Integer.parseInt(options.get("users")), Integer.parseInt(options.get("groups")),
+					Integer.parseInt(options.get("groupSize")), Integer.parseInt(options.get("hugeGroups")),
+					Integer.parseInt(options.get("hugeGroupSize")), Long.parseLong(options.get("seed")));
+			System.out.println("Seeded " + population.getUserCount() + " users and " + population.getGroupCount() + " groups on port "
+					+ options.get("ldapPort") + " in " + (System.currentTimeMillis() - start) + "ms.");
+			if(Boolean.parseBoolean(options.get("directoryOnly"))) {
+				System.out.println("Directory running, stop with Ctrl-C.");
+				Thread.sleep(Long.MAX_VALUE);
+			}
+			ScimLoadDriver driver = new ScimLoadDriver(options.get("url"), population, parseMix(options.get("mix")));
+			System.out.println("Waiting for the connector at " + options.get("url") + "...");
+			if(!driver.awaitConnector(Long.parseLong(options.get("waitSeconds")) * 1000L)) {
+				System.err.println("The connector did not answer within " + options.get("waitSeconds") + "s.");
+				System.exit(1);
+			}
+			long warmupMillis = Long.parseLong(options.get("warmupSeconds")) * 1000L;
+			long durationMillis = Long.parseLong(options.get("seconds")) * 1000L;
+			int threads = Integer.parseInt(options.get("threads"));
+			System.out.println("Running " + threads + " clients, " + options.get("warmupSeconds") + "s warmup then "
+					+ options.get("seconds") + "s measured.");
+			ConnectorMetrics metrics = driver.run(threads, warmupMillis, durationMillis);
+			report(metrics, durationMillis);
+		} finally {
+			directory.close();
+		}
+	}
+
+	private static void report(ConnectorMetrics metrics, long durationMillis) {
+		System.out.println(String.format("%-32s %9s %9s %8s %9s %9s %9s", "endpoint", "ops", "ops/s", "errors", "p50 ms", "p99 ms", "max ms"));
+		long totalOps = 0;
+		List<ConnectorMetrics.StatMXBean> stats = metrics.getStats();
+		for(int i = 0; i < stats.size(); i++) {
+			ConnectorMetrics.StatMXBean stat = stats.get(i);
+			totalOps += stat.getCount();
+			System.out.println(String.format("%-32s %9d %9.1f %8d %9.1f %9.1f %9.1f", stat.getName(), stat.getCount(),
+					stat.getCount() * 1000.0 / durationMillis, stat.getErrorCount(), stat.getP50(), stat.getP99(), stat.getMax()));
+		}
+		System.out.println(String.format("%-32s %9d %9.1f", "total", totalOps, totalOps * 1000.0 / durationMillis));
+	}
+
+	private static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new LinkedHashMap<String, String>(DEFAULTS);
+		for(int i = 0; i < args.length; i++) {
+			int eq = args[i].indexOf('=');
+			String name = args[i].startsWith("--") && eq > 2 ? args[i].substring(2, eq) : null;
+			if(name == null || !DEFAULTS.containsKey(name)) {
+				throw new IllegalArgumentException("Unknown option " + args[i] + ", expected --name=value with a name from " + DEFAULTS.keySet());
+			}
+			options.put(name, args[i].substring(eq + 1));
+		}
+		return options;
+	}
+
+	private static Map<ScimLoadDriver.Operation, Integer> parseMix(String mix) {
+		Map<ScimLoadDriver.Operation, Integer> weights = new EnumMap<ScimLoadDriver.Operation, Integer>(ScimLoadDriver.Operation.class);
+		for(String part : mix.split(",")) {
+			String[] weight = part.trim().split("=");
+			weights.put(ScimLoadDriver.Operation.valueOf(weight[0].trim()), Integer.parseInt(weight[1].trim()));
+		}
+		return weights;
+	}
+}
@@ -0,0 +1,81 @@
+package com.okta.scim.server.LDAP.connector.loadtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What EmbeddedDirectory seeded, so the load can address users and groups that exist. Users and groups are
+ * numbered, and their ids, names and DNs are derived from the number.
+ * <p/>
+ * The huge groups come after the regular ones.
+ */
+public class Population {
+	public static final String BASE_DN = "dc=example,dc=com";
+	public static final String USERS_DN = "ou=People," + BASE_DN;
+	public static final String GROUPS_DN = "ou=Groups," + BASE_DN;
+
+	private final int users;
+	private final int regularGroups;
+	//members of every group, as user numbers
+	private final List<int[]> members = new ArrayList<int[]>();
+
+	Population(int users, int regularGroups) {
+		this.users = users;
+		this.regularGroups = regularGroups;
+	}
+
+	void addGroup(int[] groupMembers) {
+		members.add(groupMembers);
+	}
+
+	public int getUserCount() {
+		return users;
+	}
+
+	public int getGroupCount() {
+		return members.size();
+	}
+
+	public int getRegularGroupCount() {
+		return regularGroups;
+	}
+
+	public boolean isHuge(int group) {
+		return group >= regularGroups;
+	}
+
+	/**
+	 * @return user numbers of the group's members
+	 */
+	public List<Integer> getMembers(int group) {
+		int[] groupMembers = members.get(group);
+		List<Integer> list = new ArrayList<Integer>(groupMembers.length);
+		for(int i = 0; i < groupMembers.length; i++) list.add(groupMembers[i]);
+		return Collections.unmodifiableList(list);
+	}
+
+	public static String userId(int user) {
+		return "u" + user;
+	}
+
+	public static String userName(int user) {
+		return "user" + user + "@example.com";
+	}
+
+	public static String userDn(int user) {
+		return "cn=" + userName(user) + "," + USERS_DN;
+	}
+
+	public static String groupId(int group) {
+		return "g" + group;
+	}
+
+	public String groupName(int group) {
+		return isHuge(group) ? "huge-group" + (group - regularGroups) : "group" + group;
+	}
+
+	public String groupDn(int group) {
+		return "cn=" + groupName(group) + "," + GROUPS_DN;
+	}
+}
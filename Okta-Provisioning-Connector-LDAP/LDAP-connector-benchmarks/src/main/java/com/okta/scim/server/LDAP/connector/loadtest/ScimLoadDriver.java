@@ -0,0 +1,248 @@
+package com.okta.scim.server.LDAP.connector.loadtest;
+
+import com.okta.scim.server.LDAP.connector.ConnectorMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a weighted mix of SCIM requests from a number of threads, as fast as the connector answers, and times each
+ * request with ConnectorMetrics under the name of its endpoint. Users and groups are picked at random from what
+ * EmbeddedDirectory seeded, users that are created get new names.
+ */
+public class ScimLoadDriver {
+	private static final String CORE_SCHEMA = "urn:scim:schemas:core:1.0";
+	private static final int TIMEOUT_MILLIS = 120000;
+	private static final int PAGE_SIZE = 100;
+
+	/**
+	 * The requests, named by endpoint in the report.
+	 */
+	public enum Operation {
+		getUser("GET /Users/{id}"),
+		filterUser("GET /Users?filter=userName eq"),
+		listUsers("GET /Users?startIndex"),
+		createUser("POST /Users"),
+		updateUser("PUT /Users/{id}"),
+		getGroup("GET /Groups/{id}"),
+		getHugeGroup("GET /Groups/{id} huge"),
+		listGroups("GET /Groups?startIndex"),
+		updateGroup("PUT /Groups/{id}");
+
+		private final String endpoint;
+
+		Operation(String endpoint) {
+			this.endpoint = endpoint;
+		}
+
+		public String getEndpoint() {
+			return endpoint;
+		}
+	}
+
+	private final String baseUrl;
+	private final Population population;
+	private final Operation[] operations;
+	//cumulative weights, same order as operations
+	private final int[] cumulative;
+	private final String runId = Long.toString(System.currentTimeMillis(), 36);
+	private final AtomicLong created = new AtomicLong();
+	private volatile ConnectorMetrics metrics = new ConnectorMetrics(false);
+
+	/**
+	 * @param baseUrl - URL of the connector, e.g. http://localhost:2081/scim
+	 * @param population - the seeded directory
+	 * @param mix - relative weight of every operation, operations left out are not sent
+	 */
+	public ScimLoadDriver(String baseUrl, Population population, Map<Operation, Integer> mix) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+		this.population = population;
+		List<Operation> ops = new ArrayList<Operation>();
+		List<Integer> weights = new ArrayList<Integer>();
+		int total = 0;
+		for(Map.Entry<Operation, Integer> entry : new EnumMap<Operation, Integer>(mix).entrySet()) {
+			if(entry.getValue() <= 0) continue;
+			if(entry.getKey() == Operation.getHugeGroup && population.getGroupCount() == population.getRegularGroupCount()) continue;
+			total += entry.getValue();
+			ops.add(entry.getKey());
+			weights.add(total);
+		}
+		if(ops.isEmpty()) throw new IllegalArgumentException("The mix has no operations.");
+		this.operations = ops.toArray(new Operation[ops.size()]);
+		this.cumulative = new int[weights.size()];
+		for(int i = 0; i < cumulative.length; i++) cumulative[i] = weights.get(i);
+	}
+
+	/**
+	 * Waits until the connector answers a user listing.
+	 *
+	 * @param timeoutMillis - how long to wait
+	 * @return true if it answered in time
+	 * @throws InterruptedException
+	 */
+	public boolean awaitConnector(long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while(System.currentTimeMillis() < deadline) {
+			try {
+				if(request("GET", "/Users?startIndex=1&count=1", null) < 400) return true;
+			} catch (IOException e) {
+				//not deployed yet
+			}
+			Thread.sleep(2000);
+		}
+		return false;
+	}
+
+	/**
+	 * Sends load for warmupMillis, then measures for durationMillis.
+	 *
+	 * @param threads - number of concurrent clients
+	 * @param warmupMillis - load that is not measured, while the JIT and the connector's caches warm up
+	 * @param durationMillis - measured load
+	 * @return the timings of the measured load
+	 * @throws InterruptedException
+	 */
+	public ConnectorMetrics run(int threads, long warmupMillis, long durationMillis) throws InterruptedException {
+		final long end = System.currentTimeMillis() + warmupMillis + durationMillis;
+		List<Thread> clients = new ArrayList<Thread>(threads);
+		for(int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			Thread client = new Thread(new Runnable() {
+				public void run() {
+					while(System.currentTimeMillis() < end) send(pick(random), random);
+				}
+			}, "scim-load-" + t);
+			client.setDaemon(true);
+			clients.add(client);
+			client.start();
+		}
+		Thread.sleep(warmupMillis);
+		metrics = new ConnectorMetrics(false);
+		for(int t = 0; t < clients.size(); t++) clients.get(t).join();
+		return metrics;
+	}
+
+	private Operation pick(Random random) {
+		int r = random.nextInt(cumulative[cumulative.length - 1]);
+		for(int i = 0; i < cumulative.length; i++) {
+			if(r < cumulative[i]) return operations[i];
+		}
+		return operations[operations.length - 1];
+	}
+
+	private void send(Operation op, Random random) {
+		ConnectorMetrics.Timer timer = metrics.time(op.getEndpoint());
+		try {
+			int status = execute(op, random);
+			if(status >= 400) timer.fail(new IOException("HTTP " + status));
+		} catch (IOException e) {
+			timer.fail(e);
+		} finally {
+			timer.stop();
+		}
+	}
+
+	private int execute(Operation op, Random random) throws IOException {
+		int user = random.nextInt(population.getUserCount());
+		switch(op) {
+			case getUser:
+				return request("GET", "/Users/" + Population.userId(user), null);
+			case filterUser:
+				String filter = "userName eq \"" + Population.userName(user) + "\"";
+				return request("GET", "/Users?filter=" + URLEncoder.encode(filter, "UTF-8"), null);
+			case listUsers:
+				return request("GET", "/Users?startIndex=" + (1 + random.nextInt(Math.max(1, population.getUserCount() - PAGE_SIZE))) + "&count=" + PAGE_SIZE, null);
+			case createUser:
+				String userName = "load-" + runId + "-" + created.incrementAndGet() + "@example.com";
+				return request("POST", "/Users", userJson(null, userName, "Created"));
+			case updateUser:
+				return request("PUT", "/Users/" + Population.userId(user), userJson(Population.userId(user), Population.userName(user), "Updated" + random.nextInt(1000)));
+			case getGroup:
+				return request("GET", "/Groups/" + Population.groupId(random.nextInt(population.getRegularGroupCount())), null);
+			case getHugeGroup:
+				int huge = population.getRegularGroupCount() + random.nextInt(population.getGroupCount() - population.getRegularGroupCount());
+				return request("GET", "/Groups/" + Population.groupId(huge), null);
+			case listGroups:
+				return request("GET", "/Groups?startIndex=" + (1 + random.nextInt(Math.max(1, population.getRegularGroupCount() - PAGE_SIZE))) + "&count=" + PAGE_SIZE, null);
+			case updateGroup:
+				int group = random.nextInt(population.getRegularGroupCount());
+				List<Integer> members = new ArrayList<Integer>(population.getMembers(group));
+				//one member more or less than seeded
+				if(random.nextBoolean() && !members.isEmpty()) members.remove(0);
+				else if(!members.contains(user)) members.add(user);
+				return request("PUT", "/Groups/" + Population.groupId(group), groupJson(group, members));
+			default:
+				throw new IllegalStateException(op.name());
+		}
+	}
+
+	private String userJson(String id, String userName, String givenName) {
+		StringBuilder json = new StringBuilder("{\"schemas\":[\"").append(CORE_SCHEMA).append("\"],");
+		if(id != null) json.append("\"id\":\"").append(id).append("\",");
+		json.append("\"userName\":\"").append(userName).append("\",")
+				.append("\"name\":{\"givenName\":\"").append(givenName).append("\",\"familyName\":\"Load\",\"formatted\":\"")
+				.append(givenName).append(" Load\"},")
+				.append("\"emails\":[{\"value\":\"").append(userName).append("\",\"type\":\"work\",\"primary\":true}],")
+				.append("\"phoneNumbers\":[{\"value\":\"+1 415 555 0100\",\"type\":\"mobile\"}],")
+				.append("\"password\":\"Passw0rd!\",\"active\":true}");
+		return json.toString();
+	}
+
+	private String groupJson(int group, List<Integer> members) {
+		StringBuilder json = new StringBuilder("{\"schemas\":[\"").append(CORE_SCHEMA).append("\"],")
+				.append("\"id\":\"").append(Population.groupId(group)).append("\",")
+				.append("\"displayName\":\"").append(population.groupName(group)).append("\",\"members\":[");
+		for(int i = 0; i < members.size(); i++) {
+			if(i > 0) json.append(',');
+			json.append("{\"value\":\"").append(Population.userId(members.get(i)))
+					.append("\",\"display\":\"").append(Population.userName(members.get(i))).append("\"}");
+		}
+		return json.append("]}").toString();
+	}
+
+	/**
+	 * Sends a request and reads the whole response, so the connection can be kept alive for the next one.
+	 *
+	 * @return the HTTP status
+	 */
+	private int request(String method, String path, String body) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		conn.setRequestMethod(method);
+		conn.setConnectTimeout(TIMEOUT_MILLIS);
+		conn.setReadTimeout(TIMEOUT_MILLIS);
+		conn.setRequestProperty("Accept", "application/json");
+		if(body != null) {
+			conn.setDoOutput(true);
+			conn.setRequestProperty("Content-Type", "application/json");
+			OutputStream out = conn.getOutputStream();
+			try {
+				out.write(body.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+		}
+		int status = conn.getResponseCode();
+		InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+		if(in != null) {
+			byte[] buffer = new byte[8192];
+			try {
+				while(in.read(buffer) >= 0) {
+					//drain
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return status;
+	}
+}
@@ -0,0 +1,162 @@
+package com.okta.scim.server.LDAP.connector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+/**
+ * Works out the smallest set of modifications that turns the attributes an entry has into the attributes it should
+ * have, so an update is a single modifyAttributes call that only touches what changed.
+ */
+public class AttributeDiff {
+
+	private AttributeDiff() {
+	}
+
+	/**
+	 * Compares desired against current, attribute by attribute.
+	 * <ul>
+	 * <li>an attribute with values that current does not have is ADDed</li>
+	 * <li>an attribute whose values differ from current, ignoring order, is REPLACEd</li>
+	 * <li>an attribute with no values that current has is REMOVEd, unless it is one of the kept attributes</li>
+	 * </ul>
+	 * Attributes current has but desired does not mention are left alone.
+	 * The kept attributes are the ones an entry is found by, its id, userName and RDN, an empty value for them never
+	 * removes them.
+	 *
+	 * @param current - attributes read from the entry
+	 * @param desired - attributes the entry should end up with, empty ones mean remove
+	 * @param ignored - attribute ids never modified, e.g. objectClass
+	 * @param alwaysReplaced - attribute ids that cannot be compared because they are not read back, e.g. the password.
+	 *                       They are REPLACEd whenever desired has values for them
+	 * @param kept - attribute ids never REMOVEd
+	 * @return the modifications, empty if the entry is already up to date
+	 * @throws NamingException
+	 */
+	public static List<ModificationItem> diff(Attributes current, Attributes desired, Collection<String> ignored,
+											  Collection<String> alwaysReplaced, Collection<String> kept) throws NamingException {
+		List<ModificationItem> mods = new ArrayList<ModificationItem>();
+		NamingEnumeration<? extends Attribute> desiredAttrs = desired.getAll();
+		try {
+			while(desiredAttrs.hasMore()) {
+				Attribute want = desiredAttrs.next();
+				String id = want.getID();
+				if(containsIgnoreCase(ignored, id)) continue;
+				Attribute have = current.get(id);
+				if(containsIgnoreCase(alwaysReplaced, id)) {
+					if(want.size() > 0) mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, want));
+				} else if(want.size() == 0) {
+					if(containsIgnoreCase(kept, id)) continue;
+					if(have != null && have.size() > 0) mods.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(id)));
+				} else if(have == null || have.size() == 0) {
+					mods.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, want));
+				} else if(!sameValues(have, want)) {
+					mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, want));
+				}
+			}
+		} finally {
+			desiredAttrs.close();
+		}
+		return mods;
+	}
+
+	/**
+	 * Splits a long list of values into modifications of the same kind with at most chunkSize values each, so a
+	 * large membership change does not go out as one huge request.
+	 *
+	 * @param op - DirContext.ADD_ATTRIBUTE or DirContext.REMOVE_ATTRIBUTE
+	 * @param attrId - the attribute
+	 * @param values - values to add or remove
+	 * @param chunkSize - most values in one modification
+	 * @return the modifications, empty if there are no values
+	 */
+	public static List<ModificationItem> chunk(int op, String attrId, List<String> values, int chunkSize) {
+		List<ModificationItem> mods = new ArrayList<ModificationItem>();
+		for(int start = 0; start < values.size(); start += chunkSize) {
+			Attribute attr = new BasicAttribute(attrId);
+			for(int i = start; i < Math.min(start + chunkSize, values.size()); i++) attr.add(values.get(i));
+			mods.add(new ModificationItem(op, attr));
+		}
+		return mods;
+	}
+
+	/**
+	 * Groups modifications into modify operations, keeping their order, so that no operation carries more than
+	 * maxValues values. A small change therefore goes out as a single atomic modify.
+	 *
+	 * @param mods - the modifications
+	 * @param maxValues - most values in one operation, a single modification with more values gets its own operation
+	 * @return the operations, each a list of modifications
+	 */
+	public static List<List<ModificationItem>> batch(List<ModificationItem> mods, int maxValues) {
+		List<List<ModificationItem>> batches = new ArrayList<List<ModificationItem>>();
+		List<ModificationItem> batch = new ArrayList<ModificationItem>();
+		int values = 0;
+		for(int i = 0; i < mods.size(); i++) {
+			int size = Math.max(1, mods.get(i).getAttribute().size());
+			if(!batch.isEmpty() && values + size > maxValues) {
+				batches.add(batch);
+				batch = new ArrayList<ModificationItem>();
+				values = 0;
+			}
+			batch.add(mods.get(i));
+			values += size;
+		}
+		if(!batch.isEmpty()) batches.add(batch);
+		return batches;
+	}
+
+	/**
+	 * Describes modifications for logging, e.g. "REPLACE sn, ADD mobile".
+	 *
+	 * @param mods - the modifications
+	 * @return a short description
+	 */
+	public static String describe(List<ModificationItem> mods) {
+		StringBuilder description = new StringBuilder();
+		for(int i = 0; i < mods.size(); i++) {
+			if(i > 0) description.append(", ");
+			switch(mods.get(i).getModificationOp()) {
+				case DirContext.ADD_ATTRIBUTE: description.append("ADD "); break;
+				case DirContext.REMOVE_ATTRIBUTE: description.append("REMOVE "); break;
+				default: description.append("REPLACE ");
+			}
+			description.append(mods.get(i).getAttribute().getID());
+		}
+		return description.toString();
+	}
+
+	private static boolean sameValues(Attribute have, Attribute want) throws NamingException {
+		if(have.size() != want.size()) return false;
+		Set<Object> haveValues = new HashSet<Object>(have.size());
+		for(int i = 0; i < have.size(); i++) haveValues.add(comparable(have.get(i)));
+		for(int i = 0; i < want.size(); i++) {
+			if(!haveValues.contains(comparable(want.get(i)))) return false;
+		}
+		return true;
+	}
+
+	//binary values come back as byte[], compare their contents
+	private static Object comparable(Object value) {
+		if(value instanceof byte[]) return Arrays.toString((byte[]) value);
+		return value == null ? null : value.toString();
+	}
+
+	private static boolean containsIgnoreCase(Collection<String> ids, String id) {
+		if(ids == null) return false;
+		for(String candidate : ids) {
+			if(candidate.equalsIgnoreCase(id)) return true;
+		}
+		return false;
+	}
+}
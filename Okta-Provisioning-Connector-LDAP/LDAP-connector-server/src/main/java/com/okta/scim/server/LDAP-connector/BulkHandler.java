@@ -0,0 +1,636 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.server.exception.DuplicateGroupException;
+import com.okta.scim.server.exception.EntityNotFoundException;
+import com.okta.scim.util.model.Email;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.PhoneNumber;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMResource;
+import com.okta.scim.util.model.SCIMUser;
+
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.ObjectNode;
+import org.codehaus.jackson.node.TextNode;
+import org.springframework.web.HttpRequestHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves POST /Bulk: many user and group creates, updates and deletes in one SCIM bulk request, answered with the
+ * result of each operation. Both SCIM 1.1 requests and SCIM 2.0 BulkRequest messages are accepted, the response is
+ * written in the version of the request.
+ * <p/>
+ * Every operation goes through the same SCIMServiceImpl methods as the SDK's /Users and /Groups, so whitelisting,
+ * the journal, the directory cache and the indexes behave as for single requests. The operations run on the bulk
+ * executor, OPP.bulk.threads at once across all bulk requests, each on a connection borrowed from the pool. An
+ * operation waits for the operations it references through "bulkId:" values and for the earlier operations on the
+ * same user or group; operations that are independent of each other may finish in any order. A reference to an
+ * operation that failed, and circular references, fail with 409. After failOnErrors errors, the operations not
+ * started yet are skipped and left out of the response.
+ * <p/>
+ * DELETE /Users/{id} deactivates the user, which deletes its entry the same way Okta's deactivation does. PATCH is
+ * not supported and fails with 405.
+ * <p/>
+ * Served by the dispatcher through the bulkHandler bean in dispatcher-servlet.xml, named /Bulk.
+ * Off unless OPP.bulk.enabled is true.
+ */
+public class BulkHandler implements HttpRequestHandler {
+	private static final Logger LOGGER = Logger.getLogger(BulkHandler.class);
+	private static final String CORE_SCHEMA = "urn:scim:schemas:core:1.0";
+	private static final String BULK_REQUEST_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:BulkRequest";
+	private static final String BULK_RESPONSE_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:BulkResponse";
+	private static final String ERROR_SCHEMA = "urn:ietf:params:scim:api:messages:2.0:Error";
+	//schemas of the core attributes, every other schema urn in a resource holds custom attributes
+	private static final String CORE_SCHEMA_PREFIX_1 = "urn:scim:schemas:core:";
+	private static final String CORE_SCHEMA_PREFIX_2 = "urn:ietf:params:scim:schemas:core:";
+	private static final String BULK_ID_PREFIX = "bulkId:";
+	private static final String USERS = "Users";
+	private static final String GROUPS = "Groups";
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final JsonFactory jsonFactory = mapper.getJsonFactory();
+	private SCIMServiceImpl service;
+
+	public void setService(SCIMServiceImpl service) {
+		this.service = service;
+	}
+
+	/**
+	 * One operation of a bulk request and, once it ran, its result.
+	 */
+	static class Operation {
+		final String method;
+		final String bulkId;
+		//"Users" or "Groups"
+		String resource;
+		//id from the path, may still be a "bulkId:" reference, null for POST
+		String target;
+		final JsonNode data;
+		//operations that have to be done before this one starts
+		final Set<Operation> dependsOn = new LinkedHashSet<Operation>();
+		final CountDownLatch done = new CountDownLatch(1);
+		//false if the operation was skipped after failOnErrors errors
+		volatile boolean processed = false;
+		volatile int status;
+		//id of the user or group the operation created or changed
+		volatile String id;
+		volatile String scimType;
+		volatile String detail;
+
+		Operation(String method, String bulkId, JsonNode data) {
+			this.method = method;
+			this.bulkId = bulkId;
+			this.data = data;
+		}
+
+		boolean failed() {
+			return status >= 400;
+		}
+
+		void fail(int status, String scimType, String detail) {
+			this.processed = true;
+			this.status = status;
+			this.scimType = scimType;
+			this.detail = detail;
+		}
+	}
+
+	/**
+	 * An operation that can't be done, with the status it gets in the response.
+	 */
+	static class OperationException extends Exception {
+		final int status;
+		private final String scimType;
+
+		private OperationException(int status, String scimType, String message) {
+			super(message);
+			this.status = status;
+			this.scimType = scimType;
+		}
+	}
+
+	@Override
+	public void handleRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if(!service.isBulkEnabled()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if(!"POST".equals(request.getMethod())) {
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		int maxBytes = service.getBulkMaxPayloadBytes();
+		byte[] body = request.getContentLength() > maxBytes ? null : readBody(request.getInputStream(), maxBytes);
+		if(body == null) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Bulk requests are limited to " + maxBytes + " bytes.");
+			return;
+		}
+		JsonNode root;
+		try {
+			root = mapper.readTree(new ByteArrayInputStream(body));
+		} catch (JsonProcessingException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid JSON: " + e.getMessage());
+			return;
+		}
+		JsonNode operationNodes = root == null ? null : root.get("Operations");
+		if(operationNodes == null || !operationNodes.isArray()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bulk request without Operations.");
+			return;
+		}
+		int maxOperations = service.getBulkMaxOperations();
+		if(operationNodes.size() > maxOperations) {
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Bulk requests are limited to " + maxOperations + " operations.");
+			return;
+		}
+		boolean scim2 = hasSchema(root, BULK_REQUEST_SCHEMA);
+		JsonNode failOnErrorsNode = root.get("failOnErrors");
+		int failOnErrors = failOnErrorsNode != null && failOnErrorsNode.isIntegralNumber() && failOnErrorsNode.getIntValue() > 0
+				? failOnErrorsNode.getIntValue() : Integer.MAX_VALUE;
+		ConnectorMetrics metrics = service.getMetrics();
+		ConnectorMetrics.Timer timer = metrics.time("scim.bulk");
+		try {
+			LogSF.info(LOGGER, "[handleRequest] Running a bulk request of {} operations.", operationNodes.size());
+			metrics.record("bulk.operations", "operations", operationNodes.size());
+			AtomicInteger errors = new AtomicInteger();
+			Map<String, Operation> byBulkId = new HashMap<String, Operation>();
+			List<Operation> operations = plan(operationNodes, byBulkId, errors);
+			List<Operation> order = schedule(operations, errors);
+			run(operations, order, byBulkId, errors, failOnErrors);
+			for(int i = 0; i < operations.size(); i++) {
+				operations.get(i).done.await();
+			}
+			String url = request.getRequestURL().toString();
+			String base = url.substring(0, url.length() - request.getServletPath().length());
+			writeResponse(response, operations, scim2, base);
+			LogSF.info(LOGGER, "[handleRequest] Bulk request done, {} of {} operations failed.", errors.get(), operations.size());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			timer.fail(e);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Interrupted while waiting for the bulk operations.");
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Reads the operations and links each to the operations it has to wait for. Operations that are invalid on
+	 * their own are failed here.
+	 *
+	 * @param operationNodes - Operations of the request
+	 * @param byBulkId - filled with the POST operations by their bulkId
+	 * @param errors - counts the operations failed here
+	 * @return the operations, in request order
+	 */
+	List<Operation> plan(JsonNode operationNodes, Map<String, Operation> byBulkId, AtomicInteger errors) {
+		List<Operation> operations = new ArrayList<Operation>(operationNodes.size());
+		for(int i = 0; i < operationNodes.size(); i++) {
+			JsonNode node = operationNodes.get(i);
+			String method = text(node, "method");
+			Operation op = new Operation(method == null ? null : method.toUpperCase(), text(node, "bulkId"), node.get("data"));
+			operations.add(op);
+			try {
+				parsePath(op, text(node, "path"));
+			} catch (OperationException e) {
+				op.fail(e.status, e.scimType, e.getMessage());
+				continue;
+			}
+			if(op.bulkId != null && "POST".equals(op.method)) {
+				if(byBulkId.containsKey(op.bulkId)) {
+					op.fail(HttpServletResponse.SC_BAD_REQUEST, "invalidValue", "bulkId " + op.bulkId + " is used by more than one operation.");
+					continue;
+				}
+				byBulkId.put(op.bulkId, op);
+			}
+		}
+		//the last operation seen on every user or group, later operations on it wait for it
+		Map<String, Operation> lastOnTarget = new HashMap<String, Operation>();
+		for(int i = 0; i < operations.size(); i++) {
+			Operation op = operations.get(i);
+			if(op.processed) {
+				errors.incrementAndGet();
+				continue;
+			}
+			Set<String> references = new LinkedHashSet<String>();
+			if(op.target != null && op.target.startsWith(BULK_ID_PREFIX)) references.add(op.target.substring(BULK_ID_PREFIX.length()));
+			collectReferences(op.data, references);
+			for(String reference : references) {
+				Operation referenced = byBulkId.get(reference);
+				if(referenced == null) {
+					op.fail(HttpServletResponse.SC_CONFLICT, "invalidValue", "bulkId " + reference + " is not defined by any POST operation.");
+					break;
+				}
+				if(referenced != op) op.dependsOn.add(referenced);
+			}
+			if(op.processed) {
+				errors.incrementAndGet();
+				continue;
+			}
+			if(op.target != null) {
+				Operation previous = lastOnTarget.put(op.resource + "/" + op.target, op);
+				if(previous != null) op.dependsOn.add(previous);
+			}
+		}
+		return operations;
+	}
+
+	/**
+	 * Orders the operations so every one comes after the operations it waits for, keeping the request order
+	 * otherwise. Operations in a circle of references are failed.
+	 *
+	 * @param operations - the planned operations, in request order
+	 * @param errors - counts the operations failed here
+	 * @return the operations that can run, in the order to submit them
+	 */
+	List<Operation> schedule(List<Operation> operations, AtomicInteger errors) {
+		Set<Operation> scheduled = new LinkedHashSet<Operation>(operations.size() * 2);
+		boolean progress = true;
+		while(progress) {
+			progress = false;
+			for(int i = 0; i < operations.size(); i++) {
+				Operation op = operations.get(i);
+				if(op.processed || scheduled.contains(op)) continue;
+				boolean ready = true;
+				for(Operation dependency : op.dependsOn) {
+					if(!dependency.processed && !scheduled.contains(dependency)) {
+						ready = false;
+						break;
+					}
+				}
+				if(ready) {
+					scheduled.add(op);
+					progress = true;
+				}
+			}
+		}
+		for(int i = 0; i < operations.size(); i++) {
+			Operation op = operations.get(i);
+			if(op.processed || scheduled.contains(op)) continue;
+			op.fail(HttpServletResponse.SC_CONFLICT, "invalidValue", "Circular bulkId reference.");
+			errors.incrementAndGet();
+		}
+		return new ArrayList<Operation>(scheduled);
+	}
+
+	/**
+	 * Submits the operations to the bulk executor. An operation only waits for operations submitted before it,
+	 * and the executor starts them in submission order, so the waits can't deadlock however few threads it has.
+	 *
+	 * @param operations - all operations, in request order
+	 * @param order - the operations that can run, in the order returned by schedule
+	 * @param byBulkId - the POST operations by their bulkId
+	 * @param errors - errors so far
+	 * @param failOnErrors - errors after which the operations not started yet are skipped
+	 */
+	private void run(List<Operation> operations, List<Operation> order, final Map<String, Operation> byBulkId, final AtomicInteger errors,
+			final int failOnErrors) {
+		//every operation that wasn't scheduled has already failed, nothing needs to wait for it
+		for(int i = 0; i < operations.size(); i++) {
+			Operation op = operations.get(i);
+			if(op.processed) op.done.countDown();
+		}
+		ExecutorService executor = service.getBulkExecutor();
+		for(int i = 0; i < order.size(); i++) {
+			final Operation op = order.get(i);
+			try {
+				executor.submit(new Runnable() {
+					public void run() {
+						execute(op, byBulkId, errors, failOnErrors);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				op.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, null, "The connector is shutting down.");
+				errors.incrementAndGet();
+				op.done.countDown();
+			}
+		}
+	}
+
+	void execute(Operation op, Map<String, Operation> byBulkId, AtomicInteger errors, int failOnErrors) {
+		try {
+			for(Operation dependency : op.dependsOn) {
+				dependency.done.await();
+			}
+			if(errors.get() >= failOnErrors) return;
+			perform(op, byBulkId);
+		} catch (OperationException e) {
+			op.fail(e.status, e.scimType, e.getMessage());
+		} catch (EntityNotFoundException e) {
+			op.fail(HttpServletResponse.SC_NOT_FOUND, null, op.resource + " " + op.target + " not found.");
+		} catch (DuplicateGroupException e) {
+			op.fail(HttpServletResponse.SC_CONFLICT, "uniqueness", "A group with this displayName already exists.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			op.fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE, null, "The connector is shutting down.");
+		} catch (RuntimeException e) {
+			LOGGER.error("[execute] Bulk " + op.method + " of " + op.resource + " failed: " + e.getMessage());
+			op.fail(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null, e.getMessage());
+		} finally {
+			if(op.failed()) errors.incrementAndGet();
+			op.done.countDown();
+		}
+	}
+
+	private void perform(Operation op, Map<String, Operation> byBulkId) throws OperationException {
+		String id = op.target == null ? null : resolve(op.target, byBulkId);
+		if(op.data != null) resolveReferences(op.data, byBulkId);
+		boolean users = USERS.equals(op.resource);
+		if("POST".equals(op.method)) {
+			if(users) {
+				op.id = service.createUser(readUser(op.data)).getId();
+			} else {
+				op.id = service.createGroup(readGroup(op.data)).getId();
+			}
+			op.status = HttpServletResponse.SC_CREATED;
+		} else if("PUT".equals(op.method)) {
+			if(users) {
+				SCIMUser user = readUser(op.data);
+				user.setId(id);
+				service.updateUser(id, user);
+			} else {
+				SCIMGroup group = readGroup(op.data);
+				group.setId(id);
+				service.updateGroup(id, group);
+			}
+			op.id = id;
+			op.status = HttpServletResponse.SC_OK;
+		} else {
+			if(users) {
+				SCIMUser user = service.getUser(id);
+				user.setActive(false);
+				service.updateUser(id, user);
+			} else {
+				service.deleteGroup(id);
+			}
+			op.id = id;
+			op.status = HttpServletResponse.SC_NO_CONTENT;
+		}
+		op.processed = true;
+	}
+
+	/**
+	 * Reads the method and path of an operation.
+	 *
+	 * @param op - the operation
+	 * @param path - "/Users", "/Users/{id}", "/Groups" or "/Groups/{id}"
+	 * @throws OperationException if the method or path is not supported
+	 */
+	private void parsePath(Operation op, String path) throws OperationException {
+		if(op.method == null || path == null) {
+			throw new OperationException(HttpServletResponse.SC_BAD_REQUEST, "invalidSyntax", "Operation without method or path.");
+		}
+		if(!"POST".equals(op.method) && !"PUT".equals(op.method) && !"DELETE".equals(op.method)) {
+			throw new OperationException(HttpServletResponse.SC_METHOD_NOT_ALLOWED, null, op.method + " is not supported.");
+		}
+		String[] parts = (path.startsWith("/") ? path.substring(1) : path).split("/", 2);
+		if(!USERS.equals(parts[0]) && !GROUPS.equals(parts[0])) {
+			throw new OperationException(HttpServletResponse.SC_NOT_FOUND, "invalidPath", "Unknown path " + path + ".");
+		}
+		op.resource = parts[0];
+		op.target = parts.length == 2 && parts[1].length() > 0 ? parts[1] : null;
+		if("POST".equals(op.method) != (op.target == null)) {
+			throw new OperationException(HttpServletResponse.SC_BAD_REQUEST, "invalidPath", op.method + " is not supported on " + path + ".");
+		}
+		if(!"DELETE".equals(op.method) && (op.data == null || !op.data.isObject())) {
+			throw new OperationException(HttpServletResponse.SC_BAD_REQUEST, "invalidSyntax", op.method + " without data.");
+		}
+	}
+
+	String resolve(String value, Map<String, Operation> byBulkId) throws OperationException {
+		if(!value.startsWith(BULK_ID_PREFIX)) return value;
+		String bulkId = value.substring(BULK_ID_PREFIX.length());
+		Operation referenced = byBulkId.get(bulkId);
+		if(referenced == null || referenced.failed() || referenced.id == null) {
+			throw new OperationException(HttpServletResponse.SC_CONFLICT, "invalidValue", "bulkId " + bulkId + " refers to an operation that failed.");
+		}
+		return referenced.id;
+	}
+
+	private void collectReferences(JsonNode node, Set<String> references) {
+		if(node == null) return;
+		if(node.isTextual()) {
+			String value = node.getTextValue();
+			if(value.startsWith(BULK_ID_PREFIX)) references.add(value.substring(BULK_ID_PREFIX.length()));
+		} else if(node.isContainerNode()) {
+			for(JsonNode child : node) {
+				collectReferences(child, references);
+			}
+		}
+	}
+
+	/**
+	 * Replaces every "bulkId:" string in the data of an operation with the id its operation created.
+	 */
+	private void resolveReferences(JsonNode node, Map<String, Operation> byBulkId) throws OperationException {
+		if(node.isObject()) {
+			List<String> fields = new ArrayList<String>();
+			Iterator<String> it = node.getFieldNames();
+			while(it.hasNext()) fields.add(it.next());
+			for(int i = 0; i < fields.size(); i++) {
+				JsonNode child = node.get(fields.get(i));
+				if(child.isTextual()) {
+					((ObjectNode) node).put(fields.get(i), resolve(child.getTextValue(), byBulkId));
+				} else {
+					resolveReferences(child, byBulkId);
+				}
+			}
+		} else if(node.isArray()) {
+			for(int i = 0; i < node.size(); i++) {
+				JsonNode child = node.get(i);
+				if(child.isTextual()) {
+					((ArrayNode) node).set(i, TextNode.valueOf(resolve(child.getTextValue(), byBulkId)));
+				} else {
+					resolveReferences(child, byBulkId);
+				}
+			}
+		}
+	}
+
+	private SCIMUser readUser(JsonNode data) throws OperationException {
+		SCIMUser user = new SCIMUser();
+		String userName = text(data, "userName");
+		if(userName == null) {
+			throw new OperationException(HttpServletResponse.SC_BAD_REQUEST, "invalidValue", "userName is required.");
+		}
+		user.setUserName(userName);
+		//an absent name stays null, so an update leaves the name attributes of the entry alone
+		JsonNode nameNode = data.get("name");
+		if(nameNode != null && nameNode.isObject()) {
+			user.setName(new Name(text(nameNode, "formatted"), text(nameNode, "familyName"), text(nameNode, "givenName")));
+		}
+		JsonNode active = data.get("active");
+		user.setActive(active == null || active.isNull() || active.asBoolean());
+		user.setPassword(text(data, "password"));
+		JsonNode emailNodes = data.get("emails");
+		if(emailNodes != null && emailNodes.isArray()) {
+			List<Email> emails = new ArrayList<Email>(emailNodes.size());
+			for(JsonNode email : emailNodes) {
+				boolean primary = email.path("primary").asBoolean();
+				String type = text(email, "type");
+				emails.add(new Email(text(email, "value"), type == null ? (primary ? "primary" : "secondary") : type, primary));
+			}
+			user.setEmails(emails);
+		}
+		JsonNode phoneNodes = data.get("phoneNumbers");
+		if(phoneNodes != null && phoneNodes.isArray()) {
+			List<PhoneNumber> phoneNumbers = new ArrayList<PhoneNumber>(phoneNodes.size());
+			for(JsonNode phoneNumber : phoneNodes) {
+				phoneNumbers.add(new PhoneNumber(text(phoneNumber, "value"), phoneType(text(phoneNumber, "type")),
+						phoneNumber.path("primary").asBoolean()));
+			}
+			user.setPhoneNumbers(phoneNumbers);
+		}
+		readCustom(data, user);
+		return user;
+	}
+
+	private SCIMGroup readGroup(JsonNode data) throws OperationException {
+		SCIMGroup group = new SCIMGroup();
+		String displayName = text(data, "displayName");
+		if(displayName == null) {
+			throw new OperationException(HttpServletResponse.SC_BAD_REQUEST, "invalidValue", "displayName is required.");
+		}
+		group.setDisplayName(displayName);
+		List<Membership> members = new ArrayList<Membership>();
+		JsonNode memberNodes = data.get("members");
+		if(memberNodes != null && memberNodes.isArray()) {
+			for(JsonNode member : memberNodes) {
+				String value = text(member, "value");
+				if(value == null) continue;
+				//members are matched to their entries by userName, which SCIM sends as display
+				String display = text(member, "display");
+				if(display == null) {
+					throw new OperationException(HttpServletResponse.SC_BAD_REQUEST, "invalidValue", "Member " + value + " has no display.");
+				}
+				members.add(new Membership(value, display));
+			}
+		}
+		group.setMembers(members);
+		readCustom(data, group);
+		return group;
+	}
+
+	private void readCustom(JsonNode data, SCIMResource resource) {
+		Map<String, JsonNode> custom = new HashMap<String, JsonNode>();
+		Iterator<Map.Entry<String, JsonNode>> fields = data.getFields();
+		while(fields.hasNext()) {
+			Map.Entry<String, JsonNode> field = fields.next();
+			String key = field.getKey();
+			if(key.startsWith("urn:") && !key.startsWith(CORE_SCHEMA_PREFIX_1) && !key.startsWith(CORE_SCHEMA_PREFIX_2)) {
+				custom.put(key, field.getValue());
+			}
+		}
+		if(!custom.isEmpty()) resource.setCustomPropertiesMap(custom);
+	}
+
+	private static PhoneNumber.PhoneNumberType phoneType(String type) {
+		if(type == null) return null;
+		try {
+			return PhoneNumber.PhoneNumberType.valueOf(type.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private void writeResponse(HttpServletResponse response, List<Operation> operations, boolean scim2, String base) throws IOException {
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		JsonGenerator gen = jsonFactory.createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+		try {
+			gen.writeStartObject();
+			gen.writeArrayFieldStart("schemas");
+			gen.writeString(scim2 ? BULK_RESPONSE_SCHEMA : CORE_SCHEMA);
+			gen.writeEndArray();
+			gen.writeArrayFieldStart("Operations");
+			for(int i = 0; i < operations.size(); i++) {
+				Operation op = operations.get(i);
+				if(!op.processed) continue;
+				gen.writeStartObject();
+				if(op.method != null) gen.writeStringField("method", op.method);
+				if(op.bulkId != null) gen.writeStringField("bulkId", op.bulkId);
+				if(op.id != null) gen.writeStringField("location", base + "/" + op.resource + "/" + op.id);
+				String status = String.valueOf(op.status);
+				if(scim2) {
+					gen.writeStringField("status", status);
+					if(op.failed()) {
+						gen.writeObjectFieldStart("response");
+						gen.writeArrayFieldStart("schemas");
+						gen.writeString(ERROR_SCHEMA);
+						gen.writeEndArray();
+						if(op.scimType != null) gen.writeStringField("scimType", op.scimType);
+						if(op.detail != null) gen.writeStringField("detail", op.detail);
+						gen.writeStringField("status", status);
+						gen.writeEndObject();
+					}
+				} else {
+					gen.writeObjectFieldStart("status");
+					gen.writeStringField("code", status);
+					if(op.failed() && op.detail != null) gen.writeStringField("description", op.detail);
+					gen.writeEndObject();
+				}
+				gen.writeEndObject();
+			}
+			gen.writeEndArray();
+			gen.writeEndObject();
+		} finally {
+			gen.close();
+		}
+	}
+
+	/**
+	 * @return the request body, null if it is longer than maxBytes
+	 */
+	private static byte[] readBody(InputStream in, int maxBytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while((read = in.read(buffer)) != -1) {
+			if(out.size() + read > maxBytes) return null;
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static boolean hasSchema(JsonNode root, String schema) {
+		JsonNode schemas = root.get("schemas");
+		if(schemas == null || !schemas.isArray()) return false;
+		for(JsonNode value : schemas) {
+			if(schema.equals(value.getTextValue())) return true;
+		}
+		return false;
+	}
+
+	private static String text(JsonNode node, String field) {
+		JsonNode value = node == null ? null : node.get(field);
+		return value == null || !value.isTextual() ? null : value.getTextValue();
+	}
+}
@@ -0,0 +1,435 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.server.service.SCIMOktaConstants;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import javax.naming.Context;
+
+/**
+ * One reading of connector.properties, with the mappings compiled and checked. Never changes once built: a reload
+ * builds a new one and SCIMServiceImpl swaps it in, so a request sees the same settings from start to end.
+ * <p/>
+ * The settings are grouped by what it takes to apply a change to them. Connection settings need new connection
+ * pools, directory cache settings a reload of the cache, and restart settings size thread pools and files that are
+ * only set up when the connector starts. Everything else applies to the next request.
+ */
+public class ConnectorConfig {
+	private static final Logger LOGGER = Logger.getLogger(ConnectorConfig.class);
+
+	final String appName;
+	final String ldapBaseDn;
+	final String ldapGroupDn;
+	final String ldapUserDn;
+	final String ldapUserPre;
+	final String ldapGroupPre;
+	final String ldapUserFilter;
+	final String ldapGroupFilter;
+	final String ldapInitialContextFactory;
+	final String ldapUrl;
+	final String ldapSecurityAuthentication;
+	final String ldapSecurityPrincipal;
+	final String ldapSecurityCredentials;
+	final String[] ldapUserClass;
+	final String[] ldapGroupClass;
+	final List<String> usernameWhitelist;
+	final boolean useWhitelist;
+	final boolean useEntireUsername;
+	//Connection pool settings
+	final int ldapPoolMinSize;
+	final int ldapPoolMaxSize;
+	final long ldapPoolMaxIdleMillis;
+	final long ldapPoolBorrowTimeoutMillis;
+	final long ldapPoolEvictionIntervalMillis;
+	final boolean ldapPoolValidateOnBorrow;
+	final String ldapConnectTimeoutMillis;
+	final String ldapReadTimeoutMillis;
+	//Paged results settings
+	final boolean ldapPagedResults;
+	final long ldapPagedResultsCursorTimeoutMillis;
+	final int ldapPagedResultsMaxCursors;
+	final boolean ldapPagedResultsCountTotal;
+	//Servers from ldap.servers.*, or ldap.url alone
+	final String primaryUrl;
+	final List<String> replicaUrls;
+	final long ldapReadYourWritesMillis;
+	final long ldapReplicaRetryMillis;
+	//How many member DNs are resolved with a single (|(cn=a)(cn=b)...) search
+	final int ldapMemberLookupBatchSize;
+	//How many of those searches may run at once when validating the members of a group being written
+	final int ldapMemberValidationThreads;
+	//Threads converting large result sets, and how many member lookup searches they may run at once
+	final int ldapConversionThreads;
+	final int ldapConversionMinChunkSize;
+	final int ldapMemberLookupConcurrency;
+	//Most member values sent in one modify when updating a group
+	final int ldapMemberModifyChunkSize;
+	//Most user and group DNs remembered by id, so reads and writes by id don't search for it
+	final int ldapDnCacheSize;
+	//Attribute listing the groups of a user, like memberOf, null if the server has none
+	final String ldapMemberOfAttr;
+	//Whether deleting a user also removes it from the groups it is a member of
+	final boolean ldapRemoveMembershipsOnDelete;
+	//How long the membership index is trusted for every user after every group was read
+	final long ldapMembershipIndexTtlMinutes;
+	//Directory cache settings
+	final boolean ldapCacheEnabled;
+	final String ldapCacheSync;
+	final long ldapCachePollIntervalSeconds;
+	final long ldapCacheFullResyncMinutes;
+	//full or index, and whether the index lives outside the heap
+	final String ldapCacheMode;
+	final boolean ldapCacheOffHeap;
+	//Where the directory cache is saved between restarts, null to load it from LDAP every time
+	final String ldapCacheSnapshotPath;
+	final long ldapCacheSnapshotIntervalMinutes;
+	//Streaming /stream/Users and /stream/Groups settings
+	final boolean streamingEnabled;
+	final int ldapStreamingPageSize;
+	//Bulk /Bulk settings
+	final boolean bulkEnabled;
+	final int bulkMaxOperations;
+	final int bulkMaxPayloadBytes;
+	final int bulkThreads;
+	//Write journal settings
+	final boolean ldapJournalEnabled;
+	final String ldapJournalPath;
+	final int ldapJournalSizeMB;
+	final long ldapJournalReplayIntervalSeconds;
+	//Metrics settings
+	final boolean metricsJmx;
+	final boolean metricsLocalOnly;
+	//Password hashing settings
+	final String ldapPasswordScheme;
+	final int ldapPasswordSaltBytes;
+	final int ldapPasswordPbkdf2Iterations;
+	final int ldapPasswordHashThreads;
+	final int ldapPasswordHashQueueSize;
+	//Logging settings
+	final int payloadSampleRate;
+	//How often connector.properties is checked for changes, 0 never
+	final long configReloadIntervalSeconds;
+	final Map<String, String> ldapUserCore;
+	final Map<String, String[]> ldapUserCustom;
+	final Map<String, String> ldapGroupCore;
+	//the mappings above compiled, and what they need from LDAP
+	final UserCodec userCodec;
+	final GroupCodec groupCodec;
+	final String userCustomUrn;
+	final FilterCompiler filterCompiler;
+	final String[] userReturningAttrs;
+	final String[] groupReturningAttrs;
+	final String[] memberReturningAttrs;
+	//attributes an entry is found by, an update never removes them
+	final List<String> userKeyAttrs;
+	final List<String> groupKeyAttrs;
+	//what the directory cache reads in index mode, the attributes of the id and name
+	final String[] groupIndexAttrs;
+
+	//property name -> value, for telling what a reload changed
+	private final Map<String, Object> connectionSettings = new LinkedHashMap<String, Object>();
+	private final Map<String, Object> cacheSettings = new LinkedHashMap<String, Object>();
+	private final Map<String, Object> restartSettings = new LinkedHashMap<String, Object>();
+
+	/**
+	 * Reads and checks the settings.
+	 *
+	 * @param config - connector.properties
+	 * @param customSchemaName - name of the Universal Directory schema of the custom user attributes
+	 * @throws ConfigurationException if a setting is missing or cannot be understood
+	 */
+	public ConnectorConfig(Configuration config, String customSchemaName) throws ConfigurationException {
+		//TODO: Better way to do this mapping would be unidirectional mappings vs bidirectional
+		//Connector -> LDAP and LDAP -> Connector would solve problem of changing mappings while
+		//entries still exist in LDAP
+		try {
+			appName = config.getString("OPP.appName");
+			ldapBaseDn = required(config, "ldap.baseDn");
+			ldapGroupDn = required(config, "ldap.groupDn");
+			ldapUserDn = required(config, "ldap.userDn");
+			ldapGroupPre = required(config, "ldap.groupPre");
+			ldapUserPre = required(config, "ldap.userPre");
+			ldapUserFilter = required(config, "ldap.userFilter");
+			ldapGroupFilter = required(config, "ldap.groupFilter");
+			ldapInitialContextFactory = required(config, "ldap.initialContextFactory");
+			ldapUrl = config.getString("ldap.url");
+			ldapSecurityAuthentication = config.getString("ldap.securityAuthentication");
+			ldapSecurityPrincipal = config.getString("ldap.securityPrincipal");
+			ldapSecurityCredentials = config.getString("ldap.securityCredentials");
+			ldapUserClass = config.getStringArray("ldap.userClass");
+			ldapGroupClass = config.getStringArray("ldap.groupClass");
+			usernameWhitelist = Collections.unmodifiableList(Arrays.asList(config.getStringArray("OPP.whitelistForUsernames")));
+			useWhitelist = Boolean.parseBoolean(config.getString("OPP.whitelist"));//false
+			useEntireUsername = Boolean.parseBoolean(config.getString("ldap.useEntireUsername"));//true
+			ldapPoolMinSize = config.getInt("ldap.pool.minSize", 2);
+			ldapPoolMaxSize = config.getInt("ldap.pool.maxSize", 20);
+			ldapPoolMaxIdleMillis = config.getLong("ldap.pool.maxIdleMillis", 300000L);
+			ldapPoolBorrowTimeoutMillis = config.getLong("ldap.pool.borrowTimeoutMillis", 30000L);
+			ldapPoolEvictionIntervalMillis = config.getLong("ldap.pool.evictionIntervalMillis", 60000L);
+			ldapPoolValidateOnBorrow = config.getBoolean("ldap.pool.validateOnBorrow", true);
+			ldapConnectTimeoutMillis = config.getString("ldap.connectTimeoutMillis", null);
+			ldapReadTimeoutMillis = config.getString("ldap.readTimeoutMillis", null);
+			ldapPagedResults = config.getBoolean("ldap.pagedResults", false);
+			ldapPagedResultsCursorTimeoutMillis = config.getLong("ldap.pagedResults.cursorTimeoutMillis", 60000L);
+			//every kept cursor holds a connection, leave at least one for everything else
+			ldapPagedResultsMaxCursors = Math.max(0, Math.min(config.getInt("ldap.pagedResults.maxCursors", 4), ldapPoolMaxSize - 1));
+			ldapPagedResultsCountTotal = config.getBoolean("ldap.pagedResults.countTotal", true);
+			ldapMemberLookupBatchSize = Math.max(1, config.getInt("ldap.memberLookupBatchSize", 100));
+			ldapMemberValidationThreads = Math.max(1, config.getInt("ldap.memberValidationThreads", 4));
+			ldapConversionThreads = Math.max(1, config.getInt("ldap.conversionThreads", Runtime.getRuntime().availableProcessors()));
+			ldapConversionMinChunkSize = Math.max(1, config.getInt("ldap.conversionMinChunkSize", 50));
+			ldapMemberLookupConcurrency = Math.max(1, config.getInt("ldap.memberLookupConcurrency", 4));
+			ldapMemberModifyChunkSize = Math.max(1, config.getInt("ldap.memberModifyChunkSize", 1000));
+			ldapDnCacheSize = Math.max(0, config.getInt("ldap.dnCache.size", 50000));
+			String memberOfAttr = config.getString("ldap.memberOfAttr", null);
+			ldapMemberOfAttr = memberOfAttr == null || memberOfAttr.trim().isEmpty() ? null : memberOfAttr.trim();
+			ldapRemoveMembershipsOnDelete = config.getBoolean("ldap.removeMembershipsOnDelete", true);
+			ldapMembershipIndexTtlMinutes = Math.max(0L, config.getLong("ldap.membershipIndex.ttlMinutes", 60L));
+			ldapCacheEnabled = config.getBoolean("ldap.cache.enabled", false);
+			ldapCacheSync = config.getString("ldap.cache.sync", "persistentSearch");
+			ldapCachePollIntervalSeconds = config.getLong("ldap.cache.pollIntervalSeconds", 60L);
+			ldapCacheFullResyncMinutes = config.getLong("ldap.cache.fullResyncMinutes", 60L);
+			ldapCacheMode = config.getString("ldap.cache.mode", "full");
+			ldapCacheOffHeap = config.getBoolean("ldap.cache.offHeap", false);
+			ldapCacheSnapshotPath = config.getString("ldap.cache.snapshotPath", null);
+			ldapCacheSnapshotIntervalMinutes = Math.max(1L, config.getLong("ldap.cache.snapshotIntervalMinutes", 10L));
+			streamingEnabled = config.getBoolean("OPP.streaming.enabled", false);
+			ldapStreamingPageSize = Math.max(1, config.getInt("ldap.streaming.pageSize", 500));
+			bulkEnabled = config.getBoolean("OPP.bulk.enabled", false);
+			bulkMaxOperations = Math.max(1, config.getInt("OPP.bulk.maxOperations", 1000));
+			bulkMaxPayloadBytes = Math.max(1, config.getInt("OPP.bulk.maxPayloadBytes", 1048576));
+			bulkThreads = Math.max(1, config.getInt("OPP.bulk.threads", 4));
+			ldapJournalEnabled = config.getBoolean("ldap.journal.enabled", false);
+			ldapJournalPath = config.getString("ldap.journal.path", "ldap-writes.journal");
+			ldapJournalSizeMB = Math.max(1, config.getInt("ldap.journal.sizeMB", 64));
+			ldapJournalReplayIntervalSeconds = config.getLong("ldap.journal.replayIntervalSeconds", 10L);
+			metricsJmx = config.getBoolean("OPP.metrics.jmx", true);
+			metricsLocalOnly = config.getBoolean("OPP.metrics.localOnly", true);
+			payloadSampleRate = Math.max(0, config.getInt("OPP.logging.payloadSampleRate", 100));
+			ldapPasswordScheme = config.getString("ldap.password.scheme", "plain");
+			ldapPasswordSaltBytes = config.getInt("ldap.password.saltBytes", 16);
+			ldapPasswordPbkdf2Iterations = config.getInt("ldap.password.pbkdf2Iterations", 10000);
+			ldapPasswordHashThreads = config.getInt("ldap.password.hashThreads", 2);
+			ldapPasswordHashQueueSize = config.getInt("ldap.password.hashQueueSize", 64);
+			ldapReadYourWritesMillis = config.getLong("ldap.readYourWritesMillis", 10000L);
+			ldapReplicaRetryMillis = config.getLong("ldap.replicaRetryMillis", 30000L);
+			configReloadIntervalSeconds = Math.max(0L, config.getLong("OPP.config.reloadIntervalSeconds", 30L));
+			Map<String, String> ldapServers = new LinkedHashMap<String, String>();
+			Iterator<String> serverIt = config.getKeys("ldap.servers");
+			while(serverIt.hasNext()) {
+				String[] server = config.getStringArray(serverIt.next());
+				ldapServers.put(server[0].trim(), server.length > 1 ? server[1].trim().toLowerCase() : "replica");
+			}
+			String primary = ldapServers.isEmpty() ? ldapUrl : null;
+			List<String> replicas = new ArrayList<String>();
+			for(Map.Entry<String, String> server : ldapServers.entrySet()) {
+				if(server.getValue().equals("primary")) {
+					if(primary != null) throw new ConfigurationException("ldap.servers has more than one primary: " + primary + ", " + server.getKey());
+					primary = server.getKey();
+				} else if(server.getValue().equals("replica")) {
+					replicas.add(server.getKey());
+				} else {
+					throw new ConfigurationException("Unknown role " + server.getValue() + " for " + server.getKey() + " in ldap.servers, expected primary or replica.");
+				}
+			}
+			if(primary == null) throw new ConfigurationException(ldapServers.isEmpty() ? "ldap.url is not set." : "ldap.servers has no primary.");
+			primaryUrl = primary;
+			replicaUrls = Collections.unmodifiableList(replicas);
+			Map<String, String[]> userCustom = new HashMap<String, String[]>();
+			Iterator<String> userCustomIt = config.getKeys("OPP.userCustomMap");
+			while(userCustomIt.hasNext()) {
+				String[] userCustomMapHolder = config.getStringArray(userCustomIt.next());
+				userCustom.put(userCustomMapHolder[0].trim(), Arrays.copyOfRange(userCustomMapHolder, 1, userCustomMapHolder.length));
+			}
+			ldapUserCustom = Collections.unmodifiableMap(userCustom);
+			ldapUserCore = Collections.unmodifiableMap(readCoreMap(config, "OPP.userCoreMap"));
+			ldapGroupCore = Collections.unmodifiableMap(readCoreMap(config, "OPP.groupCoreMap"));
+			//mistakes in the mappings fail here rather than on the first request that converts an entry
+			userCodec = UserCodec.compile(ldapUserCore, ldapUserCustom, ldapUserClass);
+			groupCodec = GroupCodec.compile(ldapGroupCore, ldapGroupClass);
+		} catch (NoSuchElementException | ArrayIndexOutOfBoundsException e) {
+			throw new ConfigurationException("connector.properties could not be read: " + e.getMessage(), e);
+		}
+		userCustomUrn = SCIMOktaConstants.CUSTOM_URN_PREFIX + appName + SCIMOktaConstants.CUSTOM_URN_SUFFIX + customSchemaName;
+		filterCompiler = new FilterCompiler(ldapUserCore, ldapUserCustom, userCustomUrn, ldapUserFilter);
+		String userRdnAttr = ldapUserPre.split("=")[0].trim();
+		String groupRdnAttr = ldapGroupPre.split("=")[0].trim();
+		Set<String> userAttrs = new LinkedHashSet<String>();
+		for(Map.Entry<String, String> entry : ldapUserCore.entrySet()) {
+			//passwords are never read back from LDAP
+			if(!entry.getKey().equals("password")) userAttrs.add(entry.getValue());
+		}
+		userAttrs.addAll(ldapUserCustom.keySet());
+		//group member DNs are matched on the user rdn
+		userAttrs.add(userRdnAttr);
+		//operational on most servers, it has to be asked for by name
+		if(ldapMemberOfAttr != null) userAttrs.add(ldapMemberOfAttr);
+		userReturningAttrs = userAttrs.toArray(new String[userAttrs.size()]);
+		Set<String> groupAttrs = new LinkedHashSet<String>(ldapGroupCore.values());
+		groupAttrs.add("cn");
+		groupAttrs.add(groupRdnAttr);
+		groupReturningAttrs = groupAttrs.toArray(new String[groupAttrs.size()]);
+		Set<String> memberAttrs = new LinkedHashSet<String>();
+		if(ldapUserCore.get("id") != null) memberAttrs.add(ldapUserCore.get("id"));
+		if(ldapUserCore.get("userName") != null) memberAttrs.add(ldapUserCore.get("userName"));
+		memberAttrs.add(userRdnAttr);
+		memberReturningAttrs = memberAttrs.toArray(new String[memberAttrs.size()]);
+		userKeyAttrs = Collections.unmodifiableList(new ArrayList<String>(memberAttrs));
+		Set<String> groupKeys = new LinkedHashSet<String>();
+		if(ldapGroupCore.get("id") != null) groupKeys.add(ldapGroupCore.get("id"));
+		groupKeys.add(groupRdnAttr);
+		groupKeyAttrs = Collections.unmodifiableList(new ArrayList<String>(groupKeys));
+		Set<String> groupIndex = new LinkedHashSet<String>();
+		if(ldapGroupCore.get("id") != null) groupIndex.add(ldapGroupCore.get("id"));
+		groupIndex.add("cn");
+		groupIndexAttrs = groupIndex.toArray(new String[groupIndex.size()]);
+		LogSF.debug(LOGGER, "[ConnectorConfig] User attrs: {}, group attrs: {}, member attrs: {}", userAttrs, groupAttrs, memberAttrs);
+
+		connectionSettings.put("ldap.initialContextFactory", ldapInitialContextFactory);
+		connectionSettings.put("ldap.url / ldap.servers", Arrays.asList(primaryUrl, replicaUrls));
+		connectionSettings.put("ldap.securityAuthentication", ldapSecurityAuthentication);
+		connectionSettings.put("ldap.securityPrincipal", ldapSecurityPrincipal);
+		connectionSettings.put("ldap.securityCredentials", ldapSecurityCredentials);
+		connectionSettings.put("ldap.connectTimeoutMillis", ldapConnectTimeoutMillis);
+		connectionSettings.put("ldap.readTimeoutMillis", ldapReadTimeoutMillis);
+		connectionSettings.put("ldap.pool.minSize", ldapPoolMinSize);
+		connectionSettings.put("ldap.pool.maxSize", ldapPoolMaxSize);
+		connectionSettings.put("ldap.pool.maxIdleMillis", ldapPoolMaxIdleMillis);
+		connectionSettings.put("ldap.pool.borrowTimeoutMillis", ldapPoolBorrowTimeoutMillis);
+		connectionSettings.put("ldap.pool.evictionIntervalMillis", ldapPoolEvictionIntervalMillis);
+		connectionSettings.put("ldap.pool.validateOnBorrow", ldapPoolValidateOnBorrow);
+		connectionSettings.put("ldap.readYourWritesMillis", ldapReadYourWritesMillis);
+		connectionSettings.put("ldap.replicaRetryMillis", ldapReplicaRetryMillis);
+		connectionSettings.put("ldap.pagedResults.cursorTimeoutMillis", ldapPagedResultsCursorTimeoutMillis);
+		connectionSettings.put("ldap.pagedResults.maxCursors", ldapPagedResultsMaxCursors);
+		connectionSettings.put("ldap.pagedResults.countTotal", ldapPagedResultsCountTotal);
+		cacheSettings.put("ldap.baseDn", ldapBaseDn);
+		cacheSettings.put("ldap.userDn", ldapUserDn);
+		cacheSettings.put("ldap.groupDn", ldapGroupDn);
+		cacheSettings.put("ldap.userPre", ldapUserPre);
+		cacheSettings.put("ldap.groupPre", ldapGroupPre);
+		cacheSettings.put("ldap.userFilter", ldapUserFilter);
+		cacheSettings.put("ldap.groupFilter", ldapGroupFilter);
+		cacheSettings.put("OPP.appName", appName);
+		cacheSettings.put("OPP.userCoreMap", ldapUserCore);
+		cacheSettings.put("OPP.userCustomMap", comparable(ldapUserCustom));
+		cacheSettings.put("OPP.groupCoreMap", ldapGroupCore);
+		cacheSettings.put("ldap.memberLookupBatchSize", ldapMemberLookupBatchSize);
+		cacheSettings.put("ldap.memberOfAttr", ldapMemberOfAttr);
+		cacheSettings.put("ldap.membershipIndex.ttlMinutes", ldapMembershipIndexTtlMinutes);
+		cacheSettings.put("ldap.cache.enabled", ldapCacheEnabled);
+		cacheSettings.put("ldap.cache.sync", ldapCacheSync);
+		cacheSettings.put("ldap.cache.pollIntervalSeconds", ldapCachePollIntervalSeconds);
+		cacheSettings.put("ldap.cache.fullResyncMinutes", ldapCacheFullResyncMinutes);
+		cacheSettings.put("ldap.cache.mode", ldapCacheMode);
+		cacheSettings.put("ldap.cache.offHeap", ldapCacheOffHeap);
+		cacheSettings.put("ldap.cache.snapshotPath", ldapCacheSnapshotPath);
+		cacheSettings.put("ldap.cache.snapshotIntervalMinutes", ldapCacheSnapshotIntervalMinutes);
+		restartSettings.put("ldap.memberValidationThreads", ldapMemberValidationThreads);
+		restartSettings.put("ldap.conversionThreads", ldapConversionThreads);
+		restartSettings.put("ldap.conversionMinChunkSize", ldapConversionMinChunkSize);
+		restartSettings.put("ldap.memberLookupConcurrency", ldapMemberLookupConcurrency);
+		restartSettings.put("ldap.journal.enabled", ldapJournalEnabled);
+		restartSettings.put("ldap.journal.path", ldapJournalPath);
+		restartSettings.put("ldap.journal.sizeMB", ldapJournalSizeMB);
+		restartSettings.put("ldap.journal.replayIntervalSeconds", ldapJournalReplayIntervalSeconds);
+		restartSettings.put("OPP.bulk.threads", bulkThreads);
+		restartSettings.put("OPP.metrics.jmx", metricsJmx);
+		restartSettings.put("ldap.password.scheme", ldapPasswordScheme);
+		restartSettings.put("ldap.password.saltBytes", ldapPasswordSaltBytes);
+		restartSettings.put("ldap.password.pbkdf2Iterations", ldapPasswordPbkdf2Iterations);
+		restartSettings.put("ldap.password.hashThreads", ldapPasswordHashThreads);
+		restartSettings.put("ldap.password.hashQueueSize", ldapPasswordHashQueueSize);
+		restartSettings.put("OPP.config.reloadIntervalSeconds", configReloadIntervalSeconds);
+	}
+
+	/**
+	 * JNDI environment for connections to one of the servers.
+	 *
+	 * @param url - ldap url of the server
+	 * @return a new environment
+	 */
+	public Hashtable ldapEnv(String url) {
+		Hashtable env = new Hashtable(11);
+		env.put(Context.INITIAL_CONTEXT_FACTORY, ldapInitialContextFactory);
+		if(ldapSecurityAuthentication != null) env.put(Context.SECURITY_AUTHENTICATION, ldapSecurityAuthentication);
+		if(ldapSecurityPrincipal != null) env.put(Context.SECURITY_PRINCIPAL, ldapSecurityPrincipal);
+		if(ldapSecurityCredentials != null) env.put(Context.SECURITY_CREDENTIALS, ldapSecurityCredentials);
+		if(ldapConnectTimeoutMillis != null) env.put("com.sun.jndi.ldap.connect.timeout", ldapConnectTimeoutMillis);
+		if(ldapReadTimeoutMillis != null) env.put("com.sun.jndi.ldap.read.timeout", ldapReadTimeoutMillis);
+		env.put(Context.PROVIDER_URL, url);
+		return env;
+	}
+
+	/**
+	 * @param other - the settings in use
+	 * @return the connection settings that differ, the pools can be kept if there are none
+	 */
+	public List<String> changedConnectionSettings(ConnectorConfig other) {
+		return changed(connectionSettings, other.connectionSettings);
+	}
+
+	/**
+	 * @param other - the settings in use
+	 * @return the settings the directory cache depends on that differ, not counting connection settings
+	 */
+	public List<String> changedCacheSettings(ConnectorConfig other) {
+		return changed(cacheSettings, other.cacheSettings);
+	}
+
+	/**
+	 * @param other - the settings in use
+	 * @return the settings that differ but only take effect when the connector restarts
+	 */
+	public List<String> changedRestartSettings(ConnectorConfig other) {
+		return changed(restartSettings, other.restartSettings);
+	}
+
+	private static List<String> changed(Map<String, Object> mine, Map<String, Object> theirs) {
+		List<String> changed = new ArrayList<String>();
+		for(Map.Entry<String, Object> entry : mine.entrySet()) {
+			Object value = entry.getValue();
+			Object other = theirs.get(entry.getKey());
+			if(value == null ? other != null : !value.equals(other)) changed.add(entry.getKey());
+		}
+		return changed;
+	}
+
+	private static String required(Configuration config, String key) throws ConfigurationException {
+		String value = config.getString(key);
+		if(value == null) throw new ConfigurationException(key + " is not set.");
+		return value;
+	}
+
+	private static Map<String, String> readCoreMap(Configuration config, String prefix) {
+		Map<String, String> map = new HashMap<String, String>();
+		Iterator<String> it = config.getKeys(prefix);
+		while(it.hasNext()) {
+			String[] mapHolder = config.getStringArray(it.next());
+			map.put(mapHolder[0].trim(), mapHolder[1].trim());
+		}
+		return map;
+	}
+
+	//String[] values don't compare by content
+	private static Map<String, List<String>> comparable(Map<String, String[]> map) {
+		Map<String, List<String>> lists = new HashMap<String, List<String>>();
+		for(Map.Entry<String, String[]> entry : map.entrySet()) lists.put(entry.getKey(), Arrays.asList(entry.getValue()));
+		return lists;
+	}
+}
@@ -0,0 +1,338 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency and size statistics for the connector: the SCIMService operations, the LDAP operations and the mapping
+ * between entries and SCIM resources. Comparing them shows whether time goes to the directory or to the connector,
+ * and what a SCIM operation costs beyond that is the SDK reading and writing JSON.
+ * <p/>
+ * Every statistic is published as a platform MXBean named com.okta.scim.server.LDAP.connector:type=Metrics,name=...
+ * when JMX is enabled, and in the JSON served by MetricsHandler. If the name is taken, by another deployment of the
+ * webapp in the same JVM, ",instance=2" (3, ...) is added to it rather than replacing the other one's MXBean. Histograms have 8 buckets per power of two, so
+ * percentiles are within 12.5% of the real value, and recording is a few atomic increments without locking.
+ */
+public class ConnectorMetrics {
+	private static final Logger LOGGER = Logger.getLogger(ConnectorMetrics.class);
+	public static final String JMX_DOMAIN = "com.okta.scim.server.LDAP.connector";
+	//throughput is measured over windows of this length
+	private static final long RATE_WINDOW_MILLIS = 60000L;
+	//names tried with an instance number before a statistic is left off JMX
+	private static final int MAX_INSTANCES = 100;
+
+	private final ConcurrentMap<String, Stat> stats = new ConcurrentHashMap<String, Stat>();
+	private final MBeanServer mbeanServer;
+	private final long startMillis = System.currentTimeMillis();
+
+	/**
+	 * What a statistic looks like over JMX.
+	 */
+	public interface StatMXBean {
+		String getName();
+
+		/**
+		 * @return ms for timings, otherwise what the values count
+		 */
+		String getUnit();
+
+		long getCount();
+
+		long getErrorCount();
+
+		double getMean();
+
+		double getP50();
+
+		double getP99();
+
+		double getMax();
+
+		/**
+		 * @return records per second over the last minute
+		 */
+		double getRatePerSecond();
+	}
+
+	/**
+	 * @param registerMBeans - publish every statistic as a platform MXBean
+	 */
+	public ConnectorMetrics(boolean registerMBeans) {
+		this.mbeanServer = registerMBeans ? ManagementFactory.getPlatformMBeanServer() : null;
+	}
+
+	/**
+	 * Starts timing an operation. Callers stop the timer in a finally block, and pass exceptions through fail()
+	 * so they count as errors:
+	 * <pre>
+	 * ConnectorMetrics.Timer timer = metrics.time("scim.getUser");
+	 * try {
+	 *     ...
+	 * } catch (RuntimeException e) {
+	 *     throw timer.fail(e);
+	 * } finally {
+	 *     timer.stop();
+	 * }
+	 * </pre>
+	 *
+	 * @param name - name of the operation
+	 * @return the running timer
+	 */
+	public Timer time(String name) {
+		return new Timer(stat(name, "ms", 1000.0));
+	}
+
+	/**
+	 * Records a value, like the number of entries a search returned.
+	 *
+	 * @param name - name of the statistic
+	 * @param unit - what the value counts
+	 * @param value - the value
+	 */
+	public void record(String name, String unit, long value) {
+		stat(name, unit, 1.0).record(value, false);
+	}
+
+	/**
+	 * @return every statistic recorded so far, by name
+	 */
+	public List<StatMXBean> getStats() {
+		List<StatMXBean> sorted = new ArrayList<StatMXBean>(stats.values());
+		Collections.sort(sorted, new Comparator<StatMXBean>() {
+			public int compare(StatMXBean a, StatMXBean b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * @return milliseconds since the metrics were created
+	 */
+	public long getUptimeMillis() {
+		return System.currentTimeMillis() - startMillis;
+	}
+
+	/**
+	 * Unregisters the MXBeans.
+	 */
+	public void close() {
+		if(mbeanServer == null) return;
+		for(Stat stat : stats.values()) {
+			if(stat.objectName == null) continue;
+			try {
+				if(mbeanServer.isRegistered(stat.objectName)) mbeanServer.unregisterMBean(stat.objectName);
+			} catch (JMException e) {
+				LogSF.debug(LOGGER, "[close] Could not unregister {}: {}", stat.name, e.getMessage());
+			}
+		}
+	}
+
+	private Stat stat(String name, String unit, double scale) {
+		Stat stat = stats.get(name);
+		if(stat != null) return stat;
+		Stat created = new Stat(name, unit, scale);
+		stat = stats.putIfAbsent(name, created);
+		if(stat != null) return stat;
+		register(created);
+		return created;
+	}
+
+	private void register(Stat stat) {
+		if(mbeanServer == null) return;
+		try {
+			for(int instance = 1; instance <= MAX_INSTANCES; instance++) {
+				ObjectName objectName = objectName(stat.name, instance);
+				try {
+					mbeanServer.registerMBean(stat, objectName);
+					stat.objectName = objectName;
+					if(instance > 1) LOGGER.warn("[register] " + stat.name + " is already published over JMX, published as " + objectName);
+					return;
+				} catch (InstanceAlreadyExistsException e) {
+					//another deployment of the webapp has it, never unregister someone else's MXBean
+				}
+			}
+			LOGGER.warn("[register] Could not publish " + stat.name + " over JMX, " + MAX_INSTANCES + " instances are already published.");
+		} catch (JMException e) {
+			LOGGER.warn("[register] Could not publish " + stat.name + " over JMX: " + e.getMessage());
+		}
+	}
+
+	private static ObjectName objectName(String name, int instance) throws JMException {
+		String objectName = JMX_DOMAIN + ":type=Metrics,name=" + ObjectName.quote(name);
+		if(instance > 1) objectName += ",instance=" + instance;
+		return new ObjectName(objectName);
+	}
+
+	/**
+	 * A running timer, see time().
+	 */
+	public static class Timer {
+		private final Stat stat;
+		private final long start = System.nanoTime();
+		private boolean failed = false;
+
+		private Timer(Stat stat) {
+			this.stat = stat;
+		}
+
+		/**
+		 * Marks the operation as failed.
+		 *
+		 * @param e - the failure
+		 * @return e, to be thrown
+		 */
+		public <E extends Throwable> E fail(E e) {
+			failed = true;
+			return e;
+		}
+
+		/**
+		 * Records the time since the timer was started.
+		 */
+		public void stop() {
+			stat.record((System.nanoTime() - start) / 1000L, failed);
+		}
+	}
+
+	/**
+	 * Count, errors, histogram and throughput of one statistic. Timings are recorded in microseconds and reported
+	 * in milliseconds.
+	 */
+	private static class Stat implements StatMXBean {
+		//values below this get a bucket each
+		private static final int LINEAR_BUCKETS = 16;
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int BUCKETS = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+		private final String name;
+		private final String unit;
+		//divides recorded values into reported ones
+		private final double scale;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+		private final AtomicLong windowCount = new AtomicLong();
+		private volatile long windowStart = System.currentTimeMillis();
+		private volatile double lastRate = 0;
+		//what it is published as, null if it is not
+		private volatile ObjectName objectName;
+
+		private Stat(String name, String unit, double scale) {
+			this.name = name;
+			this.unit = unit;
+			this.scale = scale;
+		}
+
+		private void record(long value, boolean failed) {
+			if(value < 0) value = 0;
+			buckets.incrementAndGet(bucket(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			if(failed) errors.incrementAndGet();
+			long seen = max.get();
+			while(value > seen && !max.compareAndSet(seen, value)) seen = max.get();
+			rollWindow(System.currentTimeMillis());
+			windowCount.incrementAndGet();
+		}
+
+		private void rollWindow(long now) {
+			long start = windowStart;
+			if(now - start < RATE_WINDOW_MILLIS) return;
+			synchronized(this) {
+				if(windowStart != start) return;
+				lastRate = windowCount.getAndSet(0) * 1000.0 / (now - start);
+				windowStart = now;
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getUnit() {
+			return unit;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getErrorCount() {
+			return errors.get();
+		}
+
+		public double getMean() {
+			long n = count.get();
+			return n == 0 ? 0 : sum.get() / scale / n;
+		}
+
+		public double getP50() {
+			return percentile(0.50);
+		}
+
+		public double getP99() {
+			return percentile(0.99);
+		}
+
+		public double getMax() {
+			return max.get() / scale;
+		}
+
+		public double getRatePerSecond() {
+			long now = System.currentTimeMillis();
+			rollWindow(now);
+			//nothing recorded for a whole window means the last rate is stale
+			return now - windowStart >= RATE_WINDOW_MILLIS ? 0 : lastRate;
+		}
+
+		private double percentile(double p) {
+			long[] snapshot = new long[BUCKETS];
+			long total = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = buckets.get(i);
+				total += snapshot[i];
+			}
+			if(total == 0) return 0;
+			long rank = (long) Math.ceil(p * total);
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; i++) {
+				seen += snapshot[i];
+				if(seen >= rank) return Math.min(midpoint(i), max.get()) / scale;
+			}
+			return max.get() / scale;
+		}
+
+		private static int bucket(long value) {
+			if(value < LINEAR_BUCKETS) return (int) value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+		}
+
+		private static double midpoint(int bucket) {
+			if(bucket < LINEAR_BUCKETS) return bucket;
+			int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+			int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+			double width = Math.pow(2, exponent - SUB_BUCKET_BITS);
+			return Math.pow(2, exponent) + sub * width + width / 2;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package com.okta.scim.server.LDAP.connector;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for the connector's background executors, so they never keep Tomcat from
+ * shutting down and show up with a recognizable name in thread dumps.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+	private final String namePrefix;
+	private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+	/**
+	 * @param namePrefix - prefix for the thread names, a sequence number is appended
+	 */
+	public DaemonThreadFactory(String namePrefix) {
+		this.namePrefix = namePrefix;
+	}
+
+	public Thread newThread(Runnable r) {
+		Thread t = new Thread(r, namePrefix + "-" + threadNumber.getAndIncrement());
+		t.setDaemon(true);
+		return t;
+	}
+}
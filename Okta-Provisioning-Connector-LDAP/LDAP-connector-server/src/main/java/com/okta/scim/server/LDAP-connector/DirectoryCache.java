@@ -0,0 +1,1242 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.util.model.Email;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.PhoneNumber;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMResource;
+import com.okta.scim.util.model.SCIMUser;
+
+import org.codehaus.jackson.JsonNode;
+
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+/**
+ * In-memory mirror of the users and groups under ldap.userDn/ldap.groupDn that match ldap.userFilter/ldap.groupFilter.
+ * <p/>
+ * The mirror is loaded in the background at startup and then kept current either with a persistent search
+ * (draft-ietf-ldapext-psearch, supported by OpenLDAP, 389/RHDS, Sun/Oracle DS and others) or, if the server does
+ * not support it, by polling for entries with a newer modifyTimestamp. Polling cannot see deletes, so the whole
+ * directory is re-read every fullResyncMinutes to drop them. Writes made by the connector are refreshed right
+ * away with a base object read so the connector always sees its own changes.
+ * <p/>
+ * The persistent searches are issued before the load. Entries they report changed while a section loads, and entries
+ * the connector writes meanwhile, are read again once the section is loaded, since the load may have read them before
+ * the change.
+ * <p/>
+ * Until a section has finished loading, usersReady()/groupsReady() return false and callers should go to LDAP.
+ * The users and groups handed out are copies, callers may change them without changing the cache. The display of a
+ * group's members is their userName as cached when the group is handed out, so renamed users show up renamed.
+ * <p/>
+ * In INDEX mode only the DN, id and name of every entry are kept, in an EntryIndex, for directories too big to
+ * hold the SCIM resources of. The resources are then always read from LDAP, but by DN rather than with a search.
+ * <p/>
+ * With a DirectorySnapshot the cache is written to disk every so often and when it stops, and restored from there
+ * when it starts. A restored section is ready right away and then caught up in the background: nothing is read if
+ * the directory's contextCSN hasn't moved since the snapshot, otherwise the entries with a newer modifyTimestamp
+ * are read and a DN-only search drops the entries deleted meanwhile. Until the catch-up is done the restored
+ * section can serve entries as they were when the snapshot was written.
+ */
+public class DirectoryCache {
+	private static final Logger LOGGER = Logger.getLogger(DirectoryCache.class);
+	private static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+	private static final String ENTRY_CHANGE_NOTIFICATION_OID = "2.16.840.1.113730.3.4.7";
+	//SEQUENCE { changeTypes INTEGER 15 (add|delete|modify|modDN), changesOnly TRUE, returnECs TRUE }
+	private static final byte[] PERSISTENT_SEARCH_VALUE = {0x30, 0x09, 0x02, 0x01, 0x0F, 0x01, 0x01, (byte) 0xFF, 0x01, 0x01, (byte) 0xFF};
+	private static final int CHANGE_DELETE = 2;
+	private static final int CHANGE_MODDN = 8;
+	private static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+	private static final String CONTEXT_CSN = "contextCSN";
+	//what INDEX mode saves of an entry in the snapshot
+	private static final String INDEX_ID_ATTR = "id";
+	private static final String INDEX_NAME_ATTR = "name";
+	//asks for no attributes, only the DNs
+	private static final String[] NO_ATTRS = {"1.1"};
+	private static final int LOAD_PAGE_SIZE = 1000;
+	private static final long RECONNECT_DELAY_MILLIS = 30000L;
+	//how long the load waits for the persistent searches to be issued
+	private static final long LISTENER_START_TIMEOUT_MILLIS = 30000L;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * How the cache follows changes made to the directory by others.
+	 */
+	public enum SyncMode {
+		PERSISTENT_SEARCH, POLL, NONE;
+
+		/**
+		 * @param value - persistentSearch, poll or none, as written in connector.properties
+		 * @return the matching mode
+		 */
+		public static SyncMode fromConfig(String value) {
+			if(value == null || value.equalsIgnoreCase("persistentSearch")) return PERSISTENT_SEARCH;
+			if(value.equalsIgnoreCase("poll")) return POLL;
+			if(value.equalsIgnoreCase("none")) return NONE;
+			throw new IllegalArgumentException("Unknown ldap.cache.sync value: " + value);
+		}
+	}
+
+	/**
+	 * What the cache keeps of every entry.
+	 */
+	public enum Mode {
+		//the SCIM resources, served instead of reading LDAP
+		FULL,
+		//only DN, id and name in an EntryIndex, for directories too big to keep the resources of
+		INDEX;
+
+		/**
+		 * @param value - full or index, as written in connector.properties
+		 * @return the matching mode
+		 */
+		public static Mode fromConfig(String value) {
+			if(value == null || value.equalsIgnoreCase("full")) return FULL;
+			if(value.equalsIgnoreCase("index")) return INDEX;
+			throw new IllegalArgumentException("Unknown ldap.cache.mode value: " + value);
+		}
+	}
+
+	/**
+	 * Turns directory entries into SCIM resources, implemented by the service with its attribute mappings.
+	 */
+	public interface EntryConverter {
+		SCIMUser toUser(Attributes attrs) throws NamingException;
+
+		SCIMGroup toGroup(Attributes attrs) throws NamingException;
+	}
+
+	private final Hashtable env;
+	private final LdapContextPool contextPool;
+	private final EntryConverter converter;
+	private final SyncMode syncMode;
+	private final Mode mode;
+	private final boolean offHeap;
+	private final long pollIntervalMillis;
+	private final long fullResyncMillis;
+	private final Section<SCIMUser> users;
+	private final Section<SCIMGroup> groups;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("directory-cache"));
+	private final List<Thread> listeners = new ArrayList<Thread>();
+	//open persistent search connections, closed on stop() to unblock the listeners
+	private final Set<LdapContext> listenerContexts = Collections.synchronizedSet(new HashSet<LdapContext>());
+	private volatile boolean running = true;
+	private boolean pollingStarted = false;
+	//on-disk copy of the cache, null if there is none
+	private final DirectorySnapshot snapshot;
+	//puts and removes so far, the snapshot is only written again if it moved
+	private final AtomicLong changes = new AtomicLong();
+	private long savedChanges = -1;
+	private String savedCsn;
+	private final Object saveLock = new Object();
+	//contextCSN read before the last time every section was read in full or caught up, saved with the snapshot
+	private volatile String syncedCsn;
+
+	/**
+	 * @param env - JNDI environment, used for the dedicated persistent search connections
+	 * @param contextPool - pool used for loading, polling and refreshes
+	 * @param converter - converts entries into SCIM resources
+	 * @param userBase - DN users live under
+	 * @param userFilter - filter matching users
+	 * @param userAttrs - attributes the user conversion reads
+	 * @param groupBase - DN groups live under
+	 * @param groupFilter - filter matching groups
+	 * @param groupAttrs - attributes the group conversion reads
+	 * @param syncMode - how to follow changes made by others
+	 * @param pollIntervalMillis - time between modifyTimestamp polls
+	 * @param fullResyncMillis - time between full re-reads when polling, 0 disables them
+	 * @param mode - what to keep of every entry. In INDEX mode userAttrs and groupAttrs only need the id and name
+	 * @param offHeap - keep the index records outside the heap
+	 * @param snapshot - where the cache is saved between restarts, null to load it from LDAP every time
+	 */
+	public DirectoryCache(Hashtable env, LdapContextPool contextPool, EntryConverter converter,
+						  String userBase, String userFilter, String[] userAttrs,
+						  String groupBase, String groupFilter, String[] groupAttrs,
+						  SyncMode syncMode, long pollIntervalMillis, long fullResyncMillis, Mode mode, boolean offHeap,
+						  DirectorySnapshot snapshot) {
+		this.env = env;
+		this.mode = mode;
+		this.offHeap = offHeap;
+		this.snapshot = snapshot;
+		this.contextPool = contextPool;
+		this.converter = converter;
+		this.syncMode = syncMode;
+		this.pollIntervalMillis = pollIntervalMillis;
+		this.fullResyncMillis = fullResyncMillis;
+		this.users = new Section<SCIMUser>("users", userBase, userFilter, userAttrs) {
+			SCIMUser convert(Attributes attrs) throws NamingException {
+				return DirectoryCache.this.converter.toUser(attrs);
+			}
+
+			String idOf(SCIMUser user) {
+				return user.getId();
+			}
+
+			String nameOf(SCIMUser user) {
+				return user.getUserName();
+			}
+
+			SCIMUser copy(SCIMUser user) {
+				return copyUser(user);
+			}
+		};
+		this.groups = new Section<SCIMGroup>("groups", groupBase, groupFilter, groupAttrs) {
+			SCIMGroup convert(Attributes attrs) throws NamingException {
+				return DirectoryCache.this.converter.toGroup(attrs);
+			}
+
+			String idOf(SCIMGroup group) {
+				return group.getId();
+			}
+
+			String nameOf(SCIMGroup group) {
+				return group.getDisplayName();
+			}
+
+			SCIMGroup copy(SCIMGroup group) {
+				return copyGroup(group);
+			}
+		};
+	}
+
+	/**
+	 * Loads users, then groups, in the background and starts following changes. Restores them from the snapshot
+	 * first if there is one.
+	 */
+	public void start() {
+		scheduler.execute(new Runnable() {
+			public void run() {
+				try {
+					String csn = readContextCsn();
+					List<Section<?>> restored = restore();
+					//follow changes before loading, the entries changed during the load are read again after it
+					startListeners();
+					if(!users.ready) resync(users);
+					markReady(users);
+					//groups are converted after users so their members resolve from the cache
+					if(!groups.ready) resync(groups);
+					markReady(groups);
+					catchUp(csn, restored);
+					syncedCsn = csn;
+					if(syncMode == SyncMode.POLL) startPolling();
+					startSaving();
+				} catch (NamingException | RuntimeException e) {
+					LOGGER.error("[start] Could not load the directory cache, reads will go to LDAP: " + e.getMessage(), e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops syncing. The cached entries are left as they are.
+	 *
+	 * @param save - write the snapshot one last time
+	 */
+	public void stop(boolean save) {
+		running = false;
+		scheduler.shutdownNow();
+		if(save) save();
+		synchronized (listeners) {
+			for(Thread listener : listeners) listener.interrupt();
+		}
+		synchronized (listenerContexts) {
+			for(LdapContext ctx : listenerContexts) {
+				try {
+					ctx.close();
+				} catch (NamingException e) {
+					LOGGER.debug("[stop] Error while closing persistent search connection: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if users can be served from the cache, never in INDEX mode
+	 */
+	public boolean usersReady() {
+		return users.ready && mode == Mode.FULL;
+	}
+
+	/**
+	 * @return true if groups can be served from the cache, never in INDEX mode
+	 */
+	public boolean groupsReady() {
+		return groups.ready && mode == Mode.FULL;
+	}
+
+	/**
+	 * @return true if user DNs, ids and userNames can be looked up, in either mode
+	 */
+	public boolean userIndexReady() {
+		return users.ready;
+	}
+
+	/**
+	 * @return true if group DNs, ids and names can be looked up, in either mode
+	 */
+	public boolean groupIndexReady() {
+		return groups.ready;
+	}
+
+	public SCIMUser getUserById(String id) {
+		return users.copyOf(users.getById(id));
+	}
+
+	public SCIMUser getUserByUserName(String userName) {
+		return users.copyOf(users.getByName(userName));
+	}
+
+	public SCIMUser getUserByDn(String dn) {
+		return users.copyOf(users.getByDn(dn));
+	}
+
+	public SCIMGroup getGroupById(String id) {
+		return groups.copyOf(groups.getById(id));
+	}
+
+	/**
+	 * @return DN of the user with this id, or null
+	 */
+	public String getUserDnById(String id) {
+		return users.dnById(id);
+	}
+
+	/**
+	 * @return DN of the group with this id, or null
+	 */
+	public String getGroupDnById(String id) {
+		return groups.dnById(id);
+	}
+
+	/**
+	 * @return DN of the user with this userName, or null
+	 */
+	public String getUserDnByUserName(String userName) {
+		return users.dnByName(userName);
+	}
+
+	/**
+	 * @return id of the user with this DN, or null
+	 */
+	public String getUserIdByDn(String dn) {
+		return users.idByDn(dn);
+	}
+
+	/**
+	 * @return id of the group with this DN, or null
+	 */
+	public String getGroupIdByDn(String dn) {
+		return groups.idByDn(dn);
+	}
+
+	public int getUserCount() {
+		return users.size();
+	}
+
+	public int getGroupCount() {
+		return groups.size();
+	}
+
+	/**
+	 * Users in DN order, which stays stable between pages.
+	 *
+	 * @param startIndex - 1-based SCIM start index
+	 * @param count - maximum number of users, 0 or less for all of them
+	 * @return the page of users
+	 */
+	public List<SCIMUser> getUsers(long startIndex, int count) {
+		return users.page(startIndex, count);
+	}
+
+	/**
+	 * Groups in DN order, which stays stable between pages.
+	 *
+	 * @param startIndex - 1-based SCIM start index
+	 * @param count - maximum number of groups, 0 or less for all of them
+	 * @return the page of groups
+	 */
+	public List<SCIMGroup> getGroups(long startIndex, int count) {
+		return groups.page(startIndex, count);
+	}
+
+	/**
+	 * Hands a copy of every user to the handler in DN order, one at a time, without building a list of all of them.
+	 *
+	 * @param handler - called for every user
+	 * @return the number of users handled
+	 * @throws NamingException if the handler throws it
+	 */
+	public long forEachUser(SCIMServiceImpl.ResourceHandler<SCIMUser> handler) throws NamingException {
+		return users.forEach(handler);
+	}
+
+	/**
+	 * Hands a copy of every group to the handler in DN order, one at a time, without building a list of all of them.
+	 *
+	 * @param handler - called for every group
+	 * @return the number of groups handled
+	 * @throws NamingException if the handler throws it
+	 */
+	public long forEachGroup(SCIMServiceImpl.ResourceHandler<SCIMGroup> handler) throws NamingException {
+		return groups.forEach(handler);
+	}
+
+	/**
+	 * Re-reads a user the connector just wrote so the cache reflects it immediately.
+	 *
+	 * @param dn - DN of the user
+	 */
+	public void refreshUser(String dn) {
+		refresh(users, dn);
+	}
+
+	public void removeUser(String dn) {
+		users.remove(dn);
+	}
+
+	/**
+	 * Re-reads a group the connector just wrote so the cache reflects it immediately.
+	 *
+	 * @param dn - DN of the group
+	 */
+	public void refreshGroup(String dn) {
+		refresh(groups, dn);
+	}
+
+	public void removeGroup(String dn) {
+		groups.remove(dn);
+	}
+
+	/**
+	 * Normalizes a DN so differently spaced or cased spellings of the same DN compare equal.
+	 *
+	 * @param dn - the DN
+	 * @return the normalized DN
+	 */
+	static String normalizeDn(String dn) {
+		try {
+			List<Rdn> rdns = new LdapName(dn).getRdns();
+			StringBuilder normalized = new StringBuilder(dn.length());
+			for(int i = rdns.size() - 1; i >= 0; i--) {
+				Rdn rdn = rdns.get(i);
+				if(normalized.length() > 0) normalized.append(',');
+				if(rdn.size() == 1) {
+					normalized.append(rdn.getType().toLowerCase()).append('=').append(Rdn.escapeValue(rdn.getValue()).toLowerCase());
+				} else {
+					normalized.append(rdn.toString().toLowerCase());
+				}
+			}
+			return normalized.toString();
+		} catch (InvalidNameException e) {
+			return dn.trim().toLowerCase();
+		}
+	}
+
+	/**
+	 * Marks a section ready and reads again the entries that changed or were written while it was loading.
+	 */
+	private void markReady(Section<?> section) {
+		List<String> pending = section.markReady();
+		for(int i = 0; i < pending.size(); i++) refresh(section, pending.get(i));
+		if(!pending.isEmpty()) {
+			LogSF.info(LOGGER, "[markReady] Read {} {} again that changed while they were loading.", pending.size(), section.name);
+		}
+	}
+
+	private void refresh(Section<?> section, String dn) {
+		//still loading, the load may have read the entry before the change
+		if(section.deferRefresh(dn, null)) return;
+		SearchControls controls = new SearchControls();
+		controls.setSearchScope(SearchControls.OBJECT_SCOPE);
+		controls.setReturningAttributes(section.returningAttrs);
+		try {
+			LdapContext ctx = contextPool.borrow();
+			NamingException failure = null;
+			try {
+				NamingEnumeration<SearchResult> results = ctx.search(dn, section.filter, controls);
+				boolean found = false;
+				try {
+					while(results.hasMore()) {
+						SearchResult result = results.next();
+						section.put(result.getNameInNamespace(), result.getAttributes());
+						found = true;
+					}
+				} finally {
+					results.close();
+				}
+				//entry no longer matches the filter
+				if(!found) section.remove(dn);
+			} catch (NamingException e) {
+				failure = e;
+				throw e;
+			} finally {
+				contextPool.release(ctx, failure);
+			}
+		} catch (NameNotFoundException e) {
+			section.remove(dn);
+		} catch (NamingException | RuntimeException e) {
+			LOGGER.warn("[refresh] Could not refresh " + dn + " in the directory cache, it will be picked up by the next sync: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Re-reads every entry of a section, replacing what is cached and dropping entries that are gone.
+	 */
+	private void resync(final Section<?> section) throws NamingException {
+		long start = System.currentTimeMillis();
+		final Set<String> seen = new HashSet<String>();
+		PagedSearchCursors.scan(contextPool, section.base, section.filter, section.returningAttrs, LOAD_PAGE_SIZE,
+				new PagedSearchCursors.EntryHandler() {
+					public void handle(SearchResult entry) throws NamingException {
+						seen.add(section.put(entry.getNameInNamespace(), entry.getAttributes()));
+					}
+				});
+		int removed = section.retainDns(seen);
+		LOGGER.info("[resync] Loaded " + seen.size() + " " + section.name + " into the directory cache in "
+				+ (System.currentTimeMillis() - start) + "ms, dropped " + removed + ", index " + section.index.bytes() / 1024 + "KB.");
+	}
+
+	/**
+	 * Reads the entries of a section that changed since the newest modifyTimestamp seen so far.
+	 */
+	private void poll(final Section<?> section) throws NamingException {
+		String since = section.highestModifyTimestamp;
+		if(since == null) {
+			resync(section);
+			return;
+		}
+		String filter = "(&" + section.filter + "(" + MODIFY_TIMESTAMP + ">=" + since + "))";
+		long changed = PagedSearchCursors.scan(contextPool, section.base, filter, section.returningAttrs, LOAD_PAGE_SIZE,
+				new PagedSearchCursors.EntryHandler() {
+					public void handle(SearchResult entry) throws NamingException {
+						section.put(entry.getNameInNamespace(), entry.getAttributes());
+					}
+				});
+		if(LOGGER.isDebugEnabled()) {
+			LogSF.debug(LOGGER, "[poll] {} {} changed since {}.", changed, section.name, since);
+		}
+	}
+
+	/**
+	 * Reads the snapshot into the cache. Sections read with other settings than the current ones are skipped and
+	 * stay not ready.
+	 *
+	 * @return the sections restored, ready to serve
+	 */
+	private List<Section<?>> restore() throws NamingException {
+		final List<Section<?>> restored = new ArrayList<Section<?>>();
+		if(snapshot == null) return restored;
+		long start = System.currentTimeMillis();
+		final String[] loadedCsn = new String[1];
+		try {
+			boolean found = snapshot.load(new DirectorySnapshot.Loader() {
+				private Section<?> section;
+
+				public void begin(String contextCsn, long savedAt) {
+					loadedCsn[0] = contextCsn;
+					LogSF.info(LOGGER, "[restore] Restoring the directory cache from {}, saved {}s ago.", snapshot.getFile(),
+							(System.currentTimeMillis() - savedAt) / 1000);
+				}
+
+				public boolean section(String name, String fingerprint, String highestModifyTimestamp) {
+					//users are ready before the groups are converted, so members resolve from the cache
+					for(int i = 0; i < restored.size(); i++) markReady(restored.get(i));
+					section = name.equals(users.name) ? users : name.equals(groups.name) ? groups : null;
+					if(section == null || !section.fingerprint().equals(fingerprint)) {
+						LOGGER.info("[restore] The " + name + " in the snapshot were read with other settings, reading them again.");
+						section = null;
+						return false;
+					}
+					section.highestModifyTimestamp = highestModifyTimestamp;
+					restored.add(section);
+					return true;
+				}
+
+				public void entry(String dn, byte[] entry) throws NamingException {
+					section.restore(dn, entry);
+				}
+			});
+			if(!found) return restored;
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("[restore] Could not read directory snapshot " + snapshot.getFile() + ", reading everything from LDAP: " + e.getMessage());
+			users.clear();
+			groups.clear();
+			restored.clear();
+			return restored;
+		}
+		for(int i = 0; i < restored.size(); i++) markReady(restored.get(i));
+		syncedCsn = loadedCsn[0];
+		synchronized (saveLock) {
+			savedChanges = changes.get();
+			savedCsn = syncedCsn;
+		}
+		LogSF.info(LOGGER, "[restore] Restored {} users and {} groups in {}ms.", users.size(), groups.size(), System.currentTimeMillis() - start);
+		return restored;
+	}
+
+	/**
+	 * Brings the sections restored from the snapshot up to date with what changed in LDAP since it was written.
+	 *
+	 * @param csn - contextCSN of the directory now
+	 * @param restored - the sections restored
+	 */
+	private void catchUp(String csn, List<Section<?>> restored) throws NamingException {
+		if(restored.isEmpty()) return;
+		if(csn != null && csn.equals(syncedCsn)) {
+			LOGGER.info("[catchUp] contextCSN unchanged since the snapshot, nothing to catch up.");
+			return;
+		}
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < restored.size(); i++) {
+			poll(restored.get(i));
+			prune(restored.get(i));
+		}
+		LOGGER.info("[catchUp] Caught up with LDAP in " + (System.currentTimeMillis() - start) + "ms.");
+	}
+
+	/**
+	 * Drops the entries of a section that are no longer in LDAP, reading only their DNs.
+	 */
+	private void prune(Section<?> section) throws NamingException {
+		final Set<String> seen = new HashSet<String>();
+		PagedSearchCursors.scan(contextPool, section.base, section.filter, NO_ATTRS, LOAD_PAGE_SIZE,
+				new PagedSearchCursors.EntryHandler() {
+					public void handle(SearchResult entry) {
+						seen.add(normalizeDn(entry.getNameInNamespace()));
+					}
+				});
+		int removed = section.retainDns(seen);
+		LogSF.info(LOGGER, "[prune] {} {} deleted from LDAP since the snapshot.", removed, section.name);
+	}
+
+	/**
+	 * @return contextCSN of the naming context, its values sorted and joined for multi-master directories, or null
+	 * if there is no snapshot or the directory doesn't keep one
+	 */
+	private String readContextCsn() {
+		if(snapshot == null || snapshot.getContextCsnDn() == null) return null;
+		try {
+			LdapContext ctx = contextPool.borrow();
+			NamingException failure = null;
+			try {
+				Attribute csn = ctx.getAttributes(snapshot.getContextCsnDn(), new String[]{CONTEXT_CSN}).get(CONTEXT_CSN);
+				if(csn == null || csn.size() == 0) return null;
+				List<String> values = new ArrayList<String>(csn.size());
+				for(int i = 0; i < csn.size(); i++) values.add(String.valueOf(csn.get(i)));
+				Collections.sort(values);
+				return values.toString();
+			} catch (NamingException e) {
+				failure = e;
+				throw e;
+			} finally {
+				contextPool.release(ctx, failure);
+			}
+		} catch (NamingException | RuntimeException e) {
+			LOGGER.debug("[readContextCsn] No contextCSN on " + snapshot.getContextCsnDn() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void startSaving() {
+		if(snapshot == null) return;
+		save();
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				save();
+			}
+		}, snapshot.getSaveIntervalMillis(), snapshot.getSaveIntervalMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Writes the snapshot if anything changed since the last one. Sections that are not loaded yet are left out.
+	 */
+	private void save() {
+		if(snapshot == null || !users.ready) return;
+		synchronized (saveLock) {
+			long changed = changes.get();
+			String csn = syncedCsn;
+			if(changed == savedChanges && (csn == null ? savedCsn == null : csn.equals(savedCsn))) return;
+			long start = System.currentTimeMillis();
+			DirectorySnapshot.Writer writer = null;
+			try {
+				writer = snapshot.writer(csn);
+				int saved = users.save(writer);
+				if(groups.ready) saved += groups.save(writer);
+				writer.commit();
+				savedChanges = changed;
+				savedCsn = csn;
+				LogSF.info(LOGGER, "[save] Saved {} entries to {} in {}ms.", saved, snapshot.getFile(), System.currentTimeMillis() - start);
+			} catch (IOException | RuntimeException e) {
+				if(writer != null) writer.abort();
+				LOGGER.warn("[save] Could not save the directory snapshot to " + snapshot.getFile() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Starts a persistent search per section when following changes that way, and waits until both are issued so
+	 * the changes made during the load are seen.
+	 */
+	private void startListeners() {
+		if(syncMode != SyncMode.PERSISTENT_SEARCH) return;
+		CountDownLatch usersIssued = startListener(users);
+		CountDownLatch groupsIssued = startListener(groups);
+		try {
+			long deadline = System.currentTimeMillis() + LISTENER_START_TIMEOUT_MILLIS;
+			if(!usersIssued.await(LISTENER_START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+					|| !groupsIssued.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				LOGGER.warn("[startListeners] Persistent searches not issued after " + LISTENER_START_TIMEOUT_MILLIS
+						+ "ms, loading anyway. They re-read their section when they connect.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void startPolling() {
+		final long[] lastFullResync = {System.currentTimeMillis()};
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					boolean full = fullResyncMillis > 0 && System.currentTimeMillis() - lastFullResync[0] >= fullResyncMillis;
+					if(full) {
+						String csn = readContextCsn();
+						resync(users);
+						resync(groups);
+						syncedCsn = csn;
+						lastFullResync[0] = System.currentTimeMillis();
+					} else {
+						poll(users);
+						poll(groups);
+					}
+				} catch (NamingException | RuntimeException e) {
+					LOGGER.warn("[startPolling] Directory cache poll failed, retrying next interval: " + e.getMessage());
+				}
+			}
+		}, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return counted down once the first persistent search is issued or given up on
+	 */
+	private CountDownLatch startListener(final Section<?> section) {
+		final CountDownLatch issued = new CountDownLatch(1);
+		Thread listener = new DaemonThreadFactory("directory-cache-" + section.name).newThread(new Runnable() {
+			public void run() {
+				try {
+					listen(section, issued);
+				} finally {
+					issued.countDown();
+				}
+			}
+		});
+		synchronized (listeners) {
+			listeners.add(listener);
+		}
+		listener.start();
+		return issued;
+	}
+
+	/**
+	 * Follows a section with a persistent search on a dedicated connection, reconnecting (and re-reading the
+	 * section to catch up) when the connection drops. Falls back to polling if the server does not support it.
+	 *
+	 * @param section - the section to follow
+	 * @param issued - counted down when the first search is sent or fails
+	 */
+	private void listen(Section<?> section, CountDownLatch issued) {
+		Hashtable listenEnv = new Hashtable(env);
+		//the search blocks until something changes, a read timeout would keep tearing it down
+		listenEnv.remove("com.sun.jndi.ldap.read.timeout");
+		SearchControls controls = new SearchControls();
+		controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		controls.setReturningAttributes(section.returningAttrs);
+		boolean catchUp = false;
+		while(running) {
+			LdapContext ctx = null;
+			try {
+				if(catchUp) resync(section);
+				ctx = new InitialLdapContext(listenEnv, null);
+				listenerContexts.add(ctx);
+				ctx.setRequestControls(new Control[]{new BasicControl(PERSISTENT_SEARCH_OID, true, PERSISTENT_SEARCH_VALUE)});
+				LOGGER.info("[listen] Following changes to " + section.name + " with a persistent search.");
+				//the search only returns once something changes, it is issued as far as the load is concerned
+				issued.countDown();
+				NamingEnumeration<SearchResult> changes = ctx.search(section.base, section.filter, controls);
+				while(running && changes.hasMore()) {
+					applyChange(section, changes.next());
+				}
+			} catch (OperationNotSupportedException e) {
+				LOGGER.warn("[listen] Server does not support persistent search, polling " + section.name + " instead: " + e.getMessage());
+				synchronized (this) {
+					if(!pollingStarted) {
+						pollingStarted = true;
+						startPolling();
+					}
+				}
+				return;
+			} catch (NamingException | RuntimeException e) {
+				issued.countDown();
+				if(!running) return;
+				LOGGER.warn("[listen] Persistent search on " + section.name + " ended, reconnecting in " + RECONNECT_DELAY_MILLIS + "ms: " + e.getMessage());
+				try {
+					Thread.sleep(RECONNECT_DELAY_MILLIS);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			} finally {
+				if(ctx != null) {
+					listenerContexts.remove(ctx);
+					try {
+						ctx.close();
+					} catch (NamingException e) {
+						LOGGER.debug("[listen] Error while closing persistent search connection: " + e.getMessage());
+					}
+				}
+			}
+			//changes made while disconnected were missed
+			catchUp = true;
+		}
+	}
+
+	private void applyChange(Section<?> section, SearchResult change) throws NamingException {
+		String dn = change.getNameInNamespace();
+		byte[] notification = null;
+		if(change instanceof HasControls) {
+			Control[] controls = ((HasControls) change).getControls();
+			if(controls != null) {
+				for(int i = 0; i < controls.length; i++) {
+					if(ENTRY_CHANGE_NOTIFICATION_OID.equals(controls[i].getID())) notification = controls[i].getEncodedValue();
+				}
+			}
+		}
+		int changeType = 0;
+		String[] previousDn = new String[1];
+		if(notification != null) {
+			try {
+				changeType = parseEntryChange(notification, previousDn);
+			} catch (NamingException e) {
+				//what changed is unknown, read the entry again: gone or no longer matching removes it
+				LOGGER.warn("[applyChange] Unreadable entry change notification for " + dn + ", re-reading it: " + e.getMessage());
+				refresh(section, dn);
+				return;
+			}
+		}
+		if(LOGGER.isDebugEnabled()) {
+			LogSF.debug(LOGGER, "[applyChange] {} change type {} for {}", section.name, changeType, dn);
+		}
+		//still loading, the load may have read the entry before the change, read it again once the section is ready
+		if(section.deferRefresh(dn, changeType == CHANGE_MODDN ? previousDn[0] : null)) return;
+		if(changeType == CHANGE_DELETE) {
+			section.remove(dn);
+			return;
+		}
+		if(changeType == CHANGE_MODDN && previousDn[0] != null) {
+			section.remove(previousDn[0]);
+		}
+		section.put(dn, change.getAttributes());
+	}
+
+	/**
+	 * @param end - where the enclosing element ends, the element must fit before it
+	 * @return {tag, content length, content offset} of the BER element at pos
+	 * @throws NamingException if the element is cut off or its length can't be right
+	 */
+	static int[] berHeader(byte[] ber, int pos, int end) throws NamingException {
+		if(pos < 0 || end > ber.length || pos + 2 > end) throw new NamingException("Malformed BER element at " + pos);
+		int tag = ber[pos] & 0xFF;
+		int length = ber[pos + 1] & 0xFF;
+		int offset = pos + 2;
+		if(length > 0x7F) {
+			int lengthBytes = length & 0x7F;
+			if(lengthBytes == 0 || lengthBytes > 3 || offset + lengthBytes > end) throw new NamingException("Malformed BER length at " + pos);
+			length = 0;
+			for(int i = 0; i < lengthBytes; i++) length = (length << 8) | (ber[offset + i] & 0xFF);
+			offset += lengthBytes;
+		}
+		if(length > end - offset) throw new NamingException("BER element at " + pos + " runs past the end");
+		return new int[]{tag, length, offset};
+	}
+
+	/**
+	 * Reads an Entry Change Notification control value,
+	 * SEQUENCE { changeType ENUMERATED, previousDN LDAPDN OPTIONAL, changeNumber INTEGER OPTIONAL }.
+	 *
+	 * @param notification - the encoded control value
+	 * @param previousDn - set to the previous DN of a moddn, if there is one
+	 * @return the change type
+	 * @throws NamingException if the value is malformed
+	 */
+	static int parseEntryChange(byte[] notification, String[] previousDn) throws NamingException {
+		int[] seq = berHeader(notification, 0, notification.length);
+		int seqEnd = seq[2] + seq[1];
+		int[] type = berHeader(notification, seq[2], seqEnd);
+		if(type[1] < 1 || type[1] > 4) throw new NamingException("Malformed changeType of length " + type[1]);
+		int changeType = 0;
+		for(int i = 0; i < type[1]; i++) changeType = (changeType << 8) | (notification[type[2] + i] & 0xFF);
+		int next = type[2] + type[1];
+		if(next < seqEnd && notification[next] == 0x04) {
+			int[] prev = berHeader(notification, next, seqEnd);
+			previousDn[0] = new String(notification, prev[2], prev[1], UTF8);
+		}
+		return changeType;
+	}
+
+	/**
+	 * Cached entries of one kind, indexed by DN, id and name.
+	 */
+	private abstract class Section<T extends SCIMResource> {
+		private final String name;
+		private final String base;
+		private final String filter;
+		private final String[] returningAttrs;
+		//DN, id and name of every entry
+		private final EntryIndex index = new EntryIndex(offHeap);
+		//the resources, sorted so paging through the cache is stable. Null in INDEX mode
+		private final ConcurrentSkipListMap<String, T> byDn = mode == Mode.FULL ? new ConcurrentSkipListMap<String, T>() : null;
+		//encoded attributes of every entry for the snapshot, null without one or in INDEX mode, which saves the index
+		private final Map<String, byte[]> rawByDn = snapshot == null || mode != Mode.FULL ? null : new ConcurrentHashMap<String, byte[]>();
+		private volatile boolean ready = false;
+		//DNs changed or written while the section was loading, read again once it is ready
+		private final Set<String> pendingDns = new LinkedHashSet<String>();
+		private volatile String highestModifyTimestamp;
+		//bumped when an entry is added or removed, not when one is replaced
+		private long structureVersion = 0;
+		//the DNs of byDn in order, for paging by position, rebuilt after the structure changed
+		private String[] sortedDns;
+		private long sortedDnsVersion = -1;
+
+		private Section(String name, String base, String filter, String[] attrs) {
+			this.name = name;
+			this.base = base;
+			this.filter = filter;
+			String[] withTimestamp = new String[attrs.length + 1];
+			System.arraycopy(attrs, 0, withTimestamp, 0, attrs.length);
+			withTimestamp[attrs.length] = MODIFY_TIMESTAMP;
+			this.returningAttrs = withTimestamp;
+		}
+
+		abstract T convert(Attributes attrs) throws NamingException;
+
+		abstract String idOf(T resource);
+
+		abstract String nameOf(T resource);
+
+		/**
+		 * @return a copy of a cached resource that can be handed out
+		 */
+		abstract T copy(T resource);
+
+		private T copyOf(T resource) {
+			return resource == null ? null : copy(resource);
+		}
+
+		/**
+		 * @return the normalized DN the entry was cached under
+		 */
+		private String put(String dn, Attributes attrs) throws NamingException {
+			return store(dn, attrs, rawByDn == null ? null : DirectorySnapshot.encode(attrs));
+		}
+
+		/**
+		 * @param raw - the attributes encoded for the snapshot, null without one
+		 * @return the normalized DN the entry was cached under
+		 */
+		private String store(String dn, Attributes attrs, byte[] raw) throws NamingException {
+			String dnKey = normalizeDn(dn);
+			T resource = convert(attrs);
+			synchronized (this) {
+				if(byDn != null && byDn.put(dnKey, resource) == null) structureVersion++;
+				index.put(dnKey, idOf(resource), nameOf(resource) == null ? null : nameOf(resource).toLowerCase());
+				if(raw != null) rawByDn.put(dnKey, raw);
+			}
+			changes.incrementAndGet();
+			Attribute timestamp = attrs.get(MODIFY_TIMESTAMP);
+			if(timestamp != null && timestamp.size() > 0) {
+				String value = timestamp.get().toString();
+				synchronized (this) {
+					if(highestModifyTimestamp == null || value.compareTo(highestModifyTimestamp) > 0) highestModifyTimestamp = value;
+				}
+			}
+			return dnKey;
+		}
+
+		/**
+		 * Puts an entry read back from the snapshot.
+		 *
+		 * @param dnKey - normalized DN
+		 * @param entry - what save() wrote for it
+		 */
+		private void restore(String dnKey, byte[] entry) throws NamingException {
+			Attributes attrs = DirectorySnapshot.decode(entry);
+			if(mode == Mode.FULL) {
+				store(dnKey, attrs, entry);
+				return;
+			}
+			index.put(dnKey, valueOf(attrs, INDEX_ID_ATTR), valueOf(attrs, INDEX_NAME_ATTR));
+			changes.incrementAndGet();
+		}
+
+		private synchronized void remove(String dn) {
+			String dnKey = normalizeDn(dn);
+			if(byDn != null && byDn.remove(dnKey) != null) structureVersion++;
+			index.remove(dnKey);
+			if(rawByDn != null) rawByDn.remove(dnKey);
+			changes.incrementAndGet();
+		}
+
+		private synchronized int retainDns(Set<String> dnKeys) {
+			int removed = index.retainDns(dnKeys);
+			if(byDn != null && byDn.keySet().retainAll(dnKeys)) structureVersion++;
+			if(rawByDn != null) rawByDn.keySet().retainAll(dnKeys);
+			if(removed > 0) changes.incrementAndGet();
+			return removed;
+		}
+
+		private synchronized void clear() {
+			if(byDn != null) byDn.clear();
+			index.clear();
+			if(rawByDn != null) rawByDn.clear();
+			structureVersion++;
+			highestModifyTimestamp = null;
+			ready = false;
+		}
+
+		private int size() {
+			return index.size();
+		}
+
+		/**
+		 * Remembers DNs to read again once the section is ready, if it isn't yet.
+		 *
+		 * @param dn - the changed entry
+		 * @param previousDn - where it was before a rename, or null
+		 * @return true if the section isn't ready and the DNs were remembered
+		 */
+		private synchronized boolean deferRefresh(String dn, String previousDn) {
+			if(ready) return false;
+			pendingDns.add(dn);
+			if(previousDn != null) pendingDns.add(previousDn);
+			return true;
+		}
+
+		/**
+		 * @return the DNs remembered while the section was loading, to read again
+		 */
+		private synchronized List<String> markReady() {
+			ready = true;
+			List<String> pending = new ArrayList<String>(pendingDns);
+			pendingDns.clear();
+			return pending;
+		}
+
+		/**
+		 * @return what the section is read with, a snapshot taken with other settings doesn't fit it
+		 */
+		private String fingerprint() {
+			String[] attrs = returningAttrs.clone();
+			Arrays.sort(attrs, String.CASE_INSENSITIVE_ORDER);
+			return mode + "|" + normalizeDn(base) + "|" + filter + "|" + Arrays.toString(attrs).toLowerCase();
+		}
+
+		/**
+		 * Writes the section to the snapshot, the attributes of every entry in FULL mode or its id and name in
+		 * INDEX mode.
+		 *
+		 * @return number of entries written
+		 */
+		private int save(final DirectorySnapshot.Writer writer) throws IOException {
+			//the timestamp is taken first, entries changed while writing are read again by the catch-up
+			writer.section(name, fingerprint(), highestModifyTimestamp);
+			if(rawByDn == null) {
+				return index.visit(new EntryIndex.Visitor() {
+					public void visit(String dn, String id, String name) throws IOException {
+						Attributes attrs = new BasicAttributes(true);
+						if(id != null) attrs.put(INDEX_ID_ATTR, id);
+						if(name != null) attrs.put(INDEX_NAME_ATTR, name);
+						try {
+							writer.entry(dn, DirectorySnapshot.encode(attrs));
+						} catch (NamingException e) {
+							throw new IOException(e);
+						}
+					}
+				});
+			}
+			int saved = 0;
+			for(Map.Entry<String, byte[]> entry : rawByDn.entrySet()) {
+				writer.entry(entry.getKey(), entry.getValue());
+				saved++;
+			}
+			return saved;
+		}
+
+		private T getByDn(String dn) {
+			return byDn == null ? null : byDn.get(normalizeDn(dn));
+		}
+
+		private T getById(String id) {
+			String dnKey = index.dnById(id);
+			return dnKey == null || byDn == null ? null : byDn.get(dnKey);
+		}
+
+		private String dnById(String id) {
+			return index.dnById(id);
+		}
+
+		private String idByDn(String dn) {
+			return index.idByDn(normalizeDn(dn));
+		}
+
+		private T getByName(String resourceName) {
+			String dnKey = resourceName == null ? null : index.dnByName(resourceName.toLowerCase());
+			return dnKey == null || byDn == null ? null : byDn.get(dnKey);
+		}
+
+		private String dnByName(String resourceName) {
+			return resourceName == null ? null : index.dnByName(resourceName.toLowerCase());
+		}
+
+		/**
+		 * @return copies of the resources from startIndex on, all of them if count is 0 or less
+		 */
+		private List<T> page(long startIndex, int count) {
+			if(byDn == null) return new ArrayList<T>();
+			String[] dns = sortedDns();
+			int from = (int) Math.min(Math.max(startIndex - 1, 0L), (long) dns.length);
+			int to = count <= 0 ? dns.length : (int) Math.min((long) from + count, (long) dns.length);
+			List<T> page = new ArrayList<T>(to - from);
+			for(int i = from; i < to; i++) {
+				//removed since the DNs were listed
+				T resource = byDn.get(dns[i]);
+				if(resource != null) page.add(copy(resource));
+			}
+			return page;
+		}
+
+		//the map iterates weakly consistent, entries changed during the walk may or may not be seen
+		private long forEach(SCIMServiceImpl.ResourceHandler<T> handler) throws NamingException {
+			if(byDn == null) return 0;
+			long handled = 0;
+			for(T resource : byDn.values()) {
+				handler.handle(copy(resource));
+				handled++;
+			}
+			return handled;
+		}
+
+		private synchronized String[] sortedDns() {
+			if(sortedDns == null || sortedDnsVersion != structureVersion) {
+				sortedDns = byDn.keySet().toArray(new String[0]);
+				sortedDnsVersion = structureVersion;
+			}
+			return sortedDns;
+		}
+	}
+
+	private static SCIMUser copyUser(SCIMUser user) {
+		SCIMUser copy = new SCIMUser();
+		copy.setId(user.getId());
+		copy.setUserName(user.getUserName());
+		Name name = user.getName();
+		if(name != null) {
+			Name nameCopy = new Name("", "", "");
+			nameCopy.setFormattedName(name.getFormattedName());
+			nameCopy.setLastName(name.getLastName());
+			nameCopy.setFirstName(name.getFirstName());
+			copy.setName(nameCopy);
+		}
+		copy.setActive(user.isActive());
+		copy.setPassword(user.getPassword());
+		if(user.getEmails() != null) {
+			List<Email> emails = new ArrayList<Email>(user.getEmails().size());
+			for(Email email : user.getEmails()) emails.add(new Email(email.getValue(), email.getType(), email.isPrimary()));
+			copy.setEmails(emails);
+		}
+		if(user.getPhoneNumbers() != null) {
+			List<PhoneNumber> phoneNumbers = new ArrayList<PhoneNumber>(user.getPhoneNumbers().size());
+			for(PhoneNumber phoneNumber : user.getPhoneNumbers()) {
+				phoneNumbers.add(new PhoneNumber(phoneNumber.getValue(), phoneNumber.getType(), phoneNumber.isPrimary()));
+			}
+			copy.setPhoneNumbers(phoneNumbers);
+		}
+		if(user.getGroups() != null) copy.setGroups(copyMemberships(user.getGroups()));
+		copyCustom(user, copy);
+		return copy;
+	}
+
+	/**
+	 * Copies a cached group, with the display of every member that is a cached user set to its current userName.
+	 */
+	private SCIMGroup copyGroup(SCIMGroup group) {
+		SCIMGroup copy = new SCIMGroup();
+		copy.setId(group.getId());
+		copy.setDisplayName(group.getDisplayName());
+		if(group.getMembers() != null) {
+			List<Membership> members = copyMemberships(group.getMembers());
+			for(int i = 0; i < members.size(); i++) {
+				Membership member = members.get(i);
+				SCIMUser user = member.getId() == null ? null : users.getById(member.getId());
+				if(user != null && user.getUserName() != null) member.setDisplayName(user.getUserName());
+			}
+			copy.setMembers(members);
+		}
+		copyCustom(group, copy);
+		return copy;
+	}
+
+	private static List<Membership> copyMemberships(Collection<Membership> memberships) {
+		List<Membership> copies = new ArrayList<Membership>(memberships.size());
+		for(Membership membership : memberships) copies.add(new Membership(membership.getId(), membership.getDisplayName()));
+		return copies;
+	}
+
+	//the custom values are JsonNodes built by the conversion, nothing changes them in place
+	private static void copyCustom(SCIMResource resource, SCIMResource copy) {
+		Map<String, JsonNode> custom = resource.getCustomPropertiesMap();
+		if(custom != null) copy.setCustomPropertiesMap(new HashMap<String, JsonNode>(custom));
+	}
+
+	private static String valueOf(Attributes attrs, String attrName) throws NamingException {
+		Attribute attr = attrs.get(attrName);
+		return attr == null || attr.size() == 0 ? null : String.valueOf(attr.get());
+	}
+}
@@ -0,0 +1,368 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+/**
+ * On-disk copy of the directory cache, so a restarted connector serves from the cache within seconds and only asks
+ * LDAP for what changed while it was down instead of re-reading every user and group.
+ * <p/>
+ * The snapshot holds the attributes the mappings read for every cached entry, ids, userNames and group members
+ * included, in a compact binary encoding rather than the converted SCIM resources, so it stays valid when the
+ * mappings change. It is written to a temporary file of its own next to the snapshot, which replaces the previous
+ * snapshot once complete, so two writers never write into the same file. It is memory-mapped when it is read back.
+ * <p/>
+ * File layout: a header of [int magic][int version][long body length][long crc32 of the body][long saved at], then
+ * a body of [contextCSN] and sections of [byte 1][name][fingerprint][highest modifyTimestamp] followed by
+ * [dn][int length][entry] records ending with a null dn, then [byte 0]. Strings are [int length][UTF-8], -1 for
+ * null. A file whose crc doesn't match is ignored.
+ */
+public class DirectorySnapshot {
+	private static final Logger LOGGER = Logger.getLogger(DirectorySnapshot.class);
+	private static final int MAGIC = 0x4f44534e;
+	private static final int VERSION = 1;
+	//magic, version, body length, crc, saved at
+	private static final int HEADER_SIZE = 32;
+	private static final int CRC_CHUNK_SIZE = 64 * 1024;
+	private static final byte VALUE_STRING = 0;
+	private static final byte VALUE_BYTES = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final String contextCsnDn;
+	private final long saveIntervalMillis;
+
+	/**
+	 * Receives the content of a snapshot as it is read, users before groups.
+	 */
+	public interface Loader {
+		/**
+		 * @param contextCsn - contextCSN of the directory when the entries were last known to be current, or null
+		 * @param savedAt - when the snapshot was written
+		 */
+		void begin(String contextCsn, long savedAt);
+
+		/**
+		 * @param name - name of the section, users or groups
+		 * @param fingerprint - what the section was read with, see DirectoryCache
+		 * @param highestModifyTimestamp - newest modifyTimestamp of the section's entries, or null
+		 * @return false to skip the section's entries
+		 */
+		boolean section(String name, String fingerprint, String highestModifyTimestamp);
+
+		/**
+		 * @param dn - DN of the entry
+		 * @param entry - the entry's attributes, see decode()
+		 * @throws NamingException
+		 */
+		void entry(String dn, byte[] entry) throws NamingException;
+	}
+
+	/**
+	 * @param file - where the snapshot is kept
+	 * @param contextCsnDn - DN of the naming context holding contextCSN, null if the directory doesn't keep one
+	 * @param saveIntervalMillis - how often the cache writes the snapshot if something changed
+	 */
+	public DirectorySnapshot(File file, String contextCsnDn, long saveIntervalMillis) {
+		this.file = file;
+		this.contextCsnDn = contextCsnDn;
+		this.saveIntervalMillis = Math.max(60000L, saveIntervalMillis);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getContextCsnDn() {
+		return contextCsnDn;
+	}
+
+	public long getSaveIntervalMillis() {
+		return saveIntervalMillis;
+	}
+
+	/**
+	 * Maps the snapshot and hands its content to the loader.
+	 *
+	 * @param loader - receives the content
+	 * @return false if there is no snapshot, or it is unreadable and was ignored
+	 * @throws IOException if the file can't be read
+	 * @throws NamingException from the loader
+	 */
+	public boolean load(Loader loader) throws IOException, NamingException {
+		if(!file.isFile()) return false;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = raf.length();
+			if(size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+				LOGGER.warn("[load] Ignoring directory snapshot " + file + ", unexpected size " + size + ".");
+				return false;
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != size - HEADER_SIZE) {
+				LOGGER.warn("[load] Ignoring directory snapshot " + file + ", it was not written by this version or is incomplete.");
+				return false;
+			}
+			if(buffer.getLong(16) != crc(buffer)) {
+				LOGGER.warn("[load] Ignoring directory snapshot " + file + ", its checksum doesn't match.");
+				return false;
+			}
+			buffer.position(HEADER_SIZE);
+			loader.begin(readString(buffer), buffer.getLong(24));
+			while(buffer.get() == 1) {
+				boolean wanted = loader.section(readString(buffer), readString(buffer), readString(buffer));
+				for(String dn = readString(buffer); dn != null; dn = readString(buffer)) {
+					int length = buffer.getInt();
+					if(!wanted) {
+						buffer.position(buffer.position() + length);
+						continue;
+					}
+					byte[] entry = new byte[length];
+					buffer.get(entry);
+					loader.entry(dn, entry);
+				}
+			}
+			return true;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Starts writing a new snapshot. It replaces the current one when commit() is called.
+	 *
+	 * @param contextCsn - contextCSN of the directory when the entries were last known to be current, or null
+	 * @return the writer
+	 * @throws IOException if the temporary file can't be created
+	 */
+	public Writer writer(String contextCsn) throws IOException {
+		return new Writer(contextCsn);
+	}
+
+	/**
+	 * Encodes the attributes of an entry as [int attribute count] then per attribute [id][int value count] and
+	 * per value [byte 0][string] or [byte 1][int length][bytes].
+	 *
+	 * @param attrs - the attributes
+	 * @return the encoded entry
+	 * @throws NamingException
+	 */
+	public static byte[] encode(Attributes attrs) throws NamingException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(attrs.size());
+			NamingEnumeration<? extends Attribute> all = attrs.getAll();
+			try {
+				while(all.hasMore()) {
+					Attribute attr = all.next();
+					writeString(out, attr.getID());
+					out.writeInt(attr.size());
+					for(int i = 0; i < attr.size(); i++) {
+						Object value = attr.get(i);
+						if(value instanceof byte[]) {
+							out.writeByte(VALUE_BYTES);
+							out.writeInt(((byte[]) value).length);
+							out.write((byte[]) value);
+						} else {
+							out.writeByte(VALUE_STRING);
+							writeString(out, String.valueOf(value));
+						}
+					}
+				}
+			} finally {
+				all.close();
+			}
+		} catch (IOException e) {
+			//a ByteArrayOutputStream doesn't throw
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param entry - an entry from encode()
+	 * @return the attributes
+	 */
+	public static Attributes decode(byte[] entry) {
+		ByteBuffer buffer = ByteBuffer.wrap(entry);
+		int count = buffer.getInt();
+		Attributes attrs = new BasicAttributes(true);
+		for(int i = 0; i < count; i++) {
+			Attribute attr = new BasicAttribute(readString(buffer));
+			int values = buffer.getInt();
+			for(int v = 0; v < values; v++) {
+				if(buffer.get() == VALUE_BYTES) {
+					byte[] value = new byte[buffer.getInt()];
+					buffer.get(value);
+					attr.add(value);
+				} else {
+					attr.add(readString(buffer));
+				}
+			}
+			attrs.put(attr);
+		}
+		return attrs;
+	}
+
+	private static long crc(MappedByteBuffer buffer) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[CRC_CHUNK_SIZE];
+		ByteBuffer body = buffer.duplicate();
+		body.position(HEADER_SIZE);
+		while(body.hasRemaining()) {
+			int length = Math.min(chunk.length, body.remaining());
+			body.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		return crc.getValue();
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if(value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if(length < 0) return null;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Writes a snapshot section by section. Nothing replaces the current snapshot until commit(), abort() drops
+	 * what was written.
+	 */
+	public class Writer {
+		private final File tmp;
+		private final RandomAccessFile raf;
+		private final CRC32 crc = new CRC32();
+		private final DataOutputStream out;
+		private boolean inSection = false;
+
+		private Writer(String contextCsn) throws IOException {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if(dir != null) dir.mkdirs();
+			//a unique name in the same directory, so the move in commit() stays on one file system
+			tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+			try {
+				raf = new RandomAccessFile(tmp, "rw");
+			} catch (IOException e) {
+				tmp.delete();
+				throw e;
+			}
+			//it holds the same attributes as the directory, only the user running the connector reads it
+			tmp.setReadable(false, false);
+			tmp.setReadable(true, true);
+			tmp.setWritable(false, false);
+			tmp.setWritable(true, true);
+			raf.setLength(0);
+			raf.getChannel().position(HEADER_SIZE);
+			out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(Channels.newOutputStream(raf.getChannel()), crc), 64 * 1024));
+			writeString(out, contextCsn);
+		}
+
+		/**
+		 * Starts a section, ending the one before it.
+		 *
+		 * @param name - name of the section
+		 * @param fingerprint - what the section was read with
+		 * @param highestModifyTimestamp - newest modifyTimestamp of the section's entries, or null
+		 * @throws IOException
+		 */
+		public void section(String name, String fingerprint, String highestModifyTimestamp) throws IOException {
+			endSection();
+			out.writeByte(1);
+			writeString(out, name);
+			writeString(out, fingerprint);
+			writeString(out, highestModifyTimestamp);
+			inSection = true;
+		}
+
+		/**
+		 * @param dn - DN of the entry
+		 * @param entry - the entry from encode()
+		 * @throws IOException
+		 */
+		public void entry(String dn, byte[] entry) throws IOException {
+			writeString(out, dn);
+			out.writeInt(entry.length);
+			out.write(entry);
+		}
+
+		/**
+		 * Forces the snapshot to disk and puts it in place of the previous one.
+		 *
+		 * @throws IOException
+		 */
+		public void commit() throws IOException {
+			try {
+				endSection();
+				out.writeByte(0);
+				out.flush();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).putLong(raf.getChannel().position() - HEADER_SIZE).putLong(crc.getValue())
+						.putLong(System.currentTimeMillis());
+				header.flip();
+				raf.getChannel().write(header, 0);
+				raf.getChannel().force(true);
+				raf.close();
+				try {
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+		}
+
+		/**
+		 * Drops what was written, the previous snapshot stays in place.
+		 */
+		public void abort() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				LOGGER.debug("[abort] Error while closing " + tmp + ": " + e.getMessage());
+			}
+			if(tmp.exists() && !tmp.delete()) LOGGER.warn("[abort] Could not delete " + tmp);
+		}
+
+		private void endSection() throws IOException {
+			if(!inSection) return;
+			writeString(out, null);
+			inSection = false;
+		}
+	}
+}
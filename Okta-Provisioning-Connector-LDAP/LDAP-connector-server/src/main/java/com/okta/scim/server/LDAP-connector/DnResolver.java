@@ -0,0 +1,65 @@
+package com.okta.scim.server.LDAP.connector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the DN of the users and groups the connector has created, read or modified by id, so the next request
+ * for the same id can read that one entry with a base-object search instead of searching the whole OU for the id
+ * attribute, which directories rarely index.
+ * <p/>
+ * The DNs are hints: whoever reads one checks that the entry there still has the id and searches for it otherwise,
+ * so entries moved or deleted behind the connector's back only cost one extra read. At most maxSize ids are kept,
+ * the least recently used are forgotten first. Entities are named with the same "user:id" and "group:id" keys as in
+ * LdapTopology.
+ */
+public class DnResolver {
+	private final int maxSize;
+	//entity key -> DN, in access order
+	private final LinkedHashMap<String, String> dns;
+
+	/**
+	 * @param maxSize - most ids remembered, 0 remembers none
+	 */
+	public DnResolver(int maxSize) {
+		this.maxSize = Math.max(0, maxSize);
+		this.dns = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > DnResolver.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param entity - "user:id" or "group:id"
+	 * @return the DN the entity was last seen at, or null
+	 */
+	public synchronized String get(String entity) {
+		return dns.get(entity);
+	}
+
+	/**
+	 * @param entity - "user:id" or "group:id"
+	 * @param dn - DN the entity was created, read or renamed at
+	 */
+	public synchronized void put(String entity, String dn) {
+		if(maxSize == 0 || dn == null) return;
+		dns.put(entity, dn);
+	}
+
+	/**
+	 * @param entity - "user:id" or "group:id" of an entity that was deleted or not found
+	 */
+	public synchronized void forget(String entity) {
+		dns.remove(entity);
+	}
+
+	public synchronized int size() {
+		return dns.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+}
@@ -0,0 +1,561 @@
+package com.okta.scim.server.LDAP.connector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Index of directory entries by DN, id and name that costs a fixed number of bytes per entry and no objects per
+ * entry, for directories with millions of users where maps of strings, let alone SCIM resources, don't fit in the
+ * heap and keep the collector busy.
+ * <p/>
+ * Every entry is a record in a store of 1MB chunks, on the heap or off it in direct buffers (bounded by
+ * -XX:MaxDirectMemorySize): [int suffix][char length][rdn][char length][id][char length][name], in UTF-8. A DN is
+ * split into its first rdn and the rest, the suffix, which is interned so the users under ou=People,dc=example,dc=com
+ * all share one. Entries are numbered, and the DN, id and name tables are open addressing arrays of entry numbers
+ * probed linearly. The hashes of every entry are kept in int arrays so a probe only reads a record when the hash
+ * matches. Records of removed entries are reclaimed by copying the live ones to a new store once they are the
+ * bigger part of it.
+ * <p/>
+ * Keys are compared as given, callers normalize DNs and lower case names. An id or name held by two entries points
+ * at the one put last. Lookups run in parallel, changes one at a time.
+ */
+public class EntryIndex {
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int CHUNK_SHIFT = 20;
+	//table slots
+	private static final int EMPTY = -1;
+	private static final int DELETED = -2;
+	//record fields
+	private static final int RDN = 0;
+	private static final int ID = 1;
+	private static final int NAME = 2;
+	private static final int NULL_LENGTH = 0xFFFF;
+	private static final int MAX_LENGTH = 0xFFFE;
+	private static final int MIN_TABLE_SIZE = 16;
+	private static final int VISIT_BATCH_SIZE = 4096;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final boolean offHeap;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final List<String> suffixes = new ArrayList<String>();
+	private final Map<String, Integer> suffixIds = new HashMap<String, Integer>();
+	private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	//where the next record goes, chunk << CHUNK_SHIFT | position
+	private long storeEnd;
+	//bytes of removed records and of chunk ends too short for a record
+	private long garbage;
+	//per entry number: where its record is, -1 if the number is free, and the hashes of its keys
+	private long[] offsets = new long[0];
+	private int[] dnHashes = new int[0];
+	private int[] idHashes = new int[0];
+	private int[] nameHashes = new int[0];
+	private int entryCount;
+	private int[] freeEntries = new int[0];
+	private int freeCount;
+	private int size;
+	private final Table dns = new Table(RDN);
+	private final Table ids = new Table(ID);
+	private final Table names = new Table(NAME);
+
+	/**
+	 * Receives the entries of the index, see visit().
+	 */
+	public interface Visitor {
+		void visit(String dn, String id, String name) throws IOException;
+	}
+
+	/**
+	 * @param offHeap - keep the records in direct buffers outside the heap
+	 */
+	public EntryIndex(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+
+	/**
+	 * Adds an entry or replaces the one with the same DN.
+	 *
+	 * @param dn - normalized DN
+	 * @param id - SCIM id, null or empty if it has none
+	 * @param name - lower cased userName or displayName, or null
+	 */
+	public void put(String dn, String id, String name) {
+		int split = splitPoint(dn);
+		byte[] rdn = bytes(dn.substring(0, split));
+		byte[] idBytes = id == null || id.isEmpty() ? null : bytes(id);
+		byte[] nameBytes = bytes(name);
+		lock.writeLock().lock();
+		try {
+			String suffix = split < dn.length() ? dn.substring(split + 1) : "";
+			Integer suffixId = suffixIds.get(suffix);
+			if(suffixId == null) {
+				suffixId = suffixes.size();
+				suffixes.add(suffix);
+				suffixIds.put(suffix, suffixId);
+			}
+			int dnHash = dnHash(suffixId, rdn);
+			int existing = dns.find(dnHash, suffixId, rdn);
+			if(existing >= 0) removeEntry(dns.slots[existing]);
+			int entry = newEntry();
+			offsets[entry] = append(suffixId, rdn, idBytes, nameBytes);
+			dnHashes[entry] = dnHash;
+			idHashes[entry] = idBytes == null ? 0 : hash(idBytes);
+			nameHashes[entry] = nameBytes == null ? 0 : hash(nameBytes);
+			dns.add(entry, dnHash, suffixId, rdn);
+			if(idBytes != null) ids.add(entry, idHashes[entry], 0, idBytes);
+			if(nameBytes != null) names.add(entry, nameHashes[entry], 0, nameBytes);
+			size++;
+			if(existing >= 0) compactIfWasteful();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param dn - normalized DN
+	 * @return true if the entry was there
+	 */
+	public boolean remove(String dn) {
+		lock.writeLock().lock();
+		try {
+			int entry = entryByDn(dn);
+			if(entry < 0) return false;
+			removeEntry(entry);
+			compactIfWasteful();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes every entry whose DN is not in the set.
+	 *
+	 * @param keep - normalized DNs to keep
+	 * @return number of entries removed
+	 */
+	public int retainDns(Set<String> keep) {
+		lock.writeLock().lock();
+		try {
+			int removed = 0;
+			for(int entry = 0; entry < entryCount; entry++) {
+				if(offsets[entry] < 0 || keep.contains(dnOf(entry))) continue;
+				removeEntry(entry);
+				removed++;
+			}
+			compactIfWasteful();
+			return removed;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean containsDn(String dn) {
+		lock.readLock().lock();
+		try {
+			return entryByDn(dn) >= 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return id of the entry, null if it is not indexed or has none
+	 */
+	public String idByDn(String dn) {
+		lock.readLock().lock();
+		try {
+			int entry = entryByDn(dn);
+			return entry < 0 ? null : field(entry, ID);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return normalized DN of the entry with this id, or null
+	 */
+	public String dnById(String id) {
+		if(id == null || id.isEmpty()) return null;
+		byte[] key = bytes(id);
+		lock.readLock().lock();
+		try {
+			int slot = ids.find(hash(key), 0, key);
+			return slot < 0 ? null : dnOf(ids.slots[slot]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param name - lower cased userName or displayName
+	 * @return normalized DN of the entry with this name, or null
+	 */
+	public String dnByName(String name) {
+		if(name == null) return null;
+		byte[] key = bytes(name);
+		lock.readLock().lock();
+		try {
+			int slot = names.find(hash(key), 0, key);
+			return slot < 0 ? null : dnOf(names.slots[slot]);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return bytes held by the records, tables and per entry arrays
+	 */
+	public long bytes() {
+		lock.readLock().lock();
+		try {
+			return (long) chunks.size() * CHUNK_SIZE + offsets.length * 20L + freeEntries.length * 4L
+					+ (dns.slots.length + ids.slots.length + names.slots.length) * 4L;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Hands every entry to the visitor. The index is only locked while a batch of entries is copied out, so changes
+	 * made meanwhile may or may not be seen.
+	 *
+	 * @param visitor - receives the entries
+	 * @return number of entries visited
+	 * @throws IOException from the visitor
+	 */
+	public int visit(Visitor visitor) throws IOException {
+		String[] batch = new String[VISIT_BATCH_SIZE * 3];
+		int visited = 0;
+		int next = 0;
+		while(true) {
+			int count = 0;
+			lock.readLock().lock();
+			try {
+				for(; next < entryCount && count < VISIT_BATCH_SIZE; next++) {
+					if(offsets[next] < 0) continue;
+					batch[count * 3] = dnOf(next);
+					batch[count * 3 + 1] = field(next, ID);
+					batch[count * 3 + 2] = field(next, NAME);
+					count++;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if(count == 0) return visited;
+			for(int i = 0; i < count; i++) visitor.visit(batch[i * 3], batch[i * 3 + 1], batch[i * 3 + 2]);
+			visited += count;
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			suffixes.clear();
+			suffixIds.clear();
+			chunks = new ArrayList<ByteBuffer>();
+			storeEnd = 0;
+			garbage = 0;
+			offsets = new long[0];
+			dnHashes = new int[0];
+			idHashes = new int[0];
+			nameHashes = new int[0];
+			entryCount = 0;
+			freeEntries = new int[0];
+			freeCount = 0;
+			size = 0;
+			dns.reset();
+			ids.reset();
+			names.reset();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return position of the comma ending the first rdn, or the length of the DN if there is none
+	 */
+	static int splitPoint(String dn) {
+		for(int i = 0; i < dn.length(); i++) {
+			char c = dn.charAt(i);
+			if(c == '\\') i++;
+			else if(c == ',') return i;
+		}
+		return dn.length();
+	}
+
+	private int entryByDn(String dn) {
+		int split = splitPoint(dn);
+		Integer suffixId = suffixIds.get(split < dn.length() ? dn.substring(split + 1) : "");
+		if(suffixId == null) return -1;
+		byte[] rdn = bytes(dn.substring(0, split));
+		int slot = dns.find(dnHash(suffixId, rdn), suffixId, rdn);
+		return slot < 0 ? -1 : dns.slots[slot];
+	}
+
+	private void removeEntry(int entry) {
+		long offset = offsets[entry];
+		ByteBuffer chunk = chunk(offset);
+		int base = position(offset);
+		dns.remove(entry, dnHashes[entry], chunk.getInt(base), fieldBytes(entry, RDN));
+		byte[] id = fieldBytes(entry, ID);
+		if(id != null) ids.remove(entry, idHashes[entry], 0, id);
+		byte[] name = fieldBytes(entry, NAME);
+		if(name != null) names.remove(entry, nameHashes[entry], 0, name);
+		garbage += recordLength(entry);
+		offsets[entry] = -1;
+		if(freeCount == freeEntries.length) freeEntries = Arrays.copyOf(freeEntries, Math.max(16, freeEntries.length * 3 / 2));
+		freeEntries[freeCount++] = entry;
+		size--;
+	}
+
+	private int newEntry() {
+		if(freeCount > 0) return freeEntries[--freeCount];
+		if(entryCount == offsets.length) {
+			int capacity = Math.max(16, offsets.length * 3 / 2);
+			offsets = Arrays.copyOf(offsets, capacity);
+			dnHashes = Arrays.copyOf(dnHashes, capacity);
+			idHashes = Arrays.copyOf(idHashes, capacity);
+			nameHashes = Arrays.copyOf(nameHashes, capacity);
+		}
+		return entryCount++;
+	}
+
+	private long append(int suffixId, byte[] rdn, byte[] id, byte[] name) {
+		int length = 4 + 6 + rdn.length + (id == null ? 0 : id.length) + (name == null ? 0 : name.length);
+		int position = position(storeEnd);
+		//a record that filled the last chunk exactly leaves storeEnd at the start of a chunk not allocated yet
+		if((storeEnd >>> CHUNK_SHIFT) >= chunks.size() || position + length > CHUNK_SIZE) {
+			if((storeEnd >>> CHUNK_SHIFT) < chunks.size()) garbage += CHUNK_SIZE - position;
+			chunks.add(offHeap ? ByteBuffer.allocateDirect(CHUNK_SIZE) : ByteBuffer.allocate(CHUNK_SIZE));
+			storeEnd = (long) (chunks.size() - 1) << CHUNK_SHIFT;
+			position = 0;
+		}
+		long offset = storeEnd;
+		ByteBuffer chunk = chunks.get(chunks.size() - 1);
+		chunk.putInt(position, suffixId);
+		position = putField(chunk, position + 4, rdn);
+		position = putField(chunk, position, id);
+		putField(chunk, position, name);
+		storeEnd += length;
+		return offset;
+	}
+
+	private static int putField(ByteBuffer chunk, int position, byte[] value) {
+		if(value == null) {
+			chunk.putChar(position, (char) NULL_LENGTH);
+			return position + 2;
+		}
+		chunk.putChar(position, (char) value.length);
+		for(int i = 0; i < value.length; i++) chunk.put(position + 2 + i, value[i]);
+		return position + 2 + value.length;
+	}
+
+	/**
+	 * Copies the live records to a new store once removed records take more room than they do.
+	 */
+	private void compactIfWasteful() {
+		if(garbage < CHUNK_SIZE || garbage < storeEnd - garbage) return;
+		List<ByteBuffer> old = chunks;
+		long[] oldOffsets = offsets.clone();
+		chunks = new ArrayList<ByteBuffer>();
+		storeEnd = 0;
+		garbage = 0;
+		for(int entry = 0; entry < entryCount; entry++) {
+			if(oldOffsets[entry] < 0) continue;
+			ByteBuffer chunk = old.get((int) (oldOffsets[entry] >>> CHUNK_SHIFT));
+			int base = position(oldOffsets[entry]);
+			offsets[entry] = append(chunk.getInt(base), readField(chunk, base, RDN), readField(chunk, base, ID), readField(chunk, base, NAME));
+		}
+	}
+
+	private String dnOf(int entry) {
+		String rdn = field(entry, RDN);
+		String suffix = suffixes.get(chunk(offsets[entry]).getInt(position(offsets[entry])));
+		return suffix.isEmpty() ? rdn : rdn + "," + suffix;
+	}
+
+	private String field(int entry, int field) {
+		byte[] value = fieldBytes(entry, field);
+		return value == null ? null : new String(value, UTF8);
+	}
+
+	private byte[] fieldBytes(int entry, int field) {
+		return readField(chunk(offsets[entry]), position(offsets[entry]), field);
+	}
+
+	private int recordLength(int entry) {
+		ByteBuffer chunk = chunk(offsets[entry]);
+		int base = position(offsets[entry]);
+		int end = fieldPosition(chunk, base, NAME);
+		int length = chunk.getChar(end);
+		return end + 2 + (length == NULL_LENGTH ? 0 : length) - base;
+	}
+
+	private static byte[] readField(ByteBuffer chunk, int base, int field) {
+		int position = fieldPosition(chunk, base, field);
+		int length = chunk.getChar(position);
+		if(length == NULL_LENGTH) return null;
+		byte[] value = new byte[length];
+		for(int i = 0; i < length; i++) value[i] = chunk.get(position + 2 + i);
+		return value;
+	}
+
+	/**
+	 * @return position of the length of a field of the record at base
+	 */
+	private static int fieldPosition(ByteBuffer chunk, int base, int field) {
+		int position = base + 4;
+		for(int i = 0; i < field; i++) {
+			int length = chunk.getChar(position);
+			position += 2 + (length == NULL_LENGTH ? 0 : length);
+		}
+		return position;
+	}
+
+	private boolean matches(int entry, int field, int suffixId, byte[] key) {
+		ByteBuffer chunk = chunk(offsets[entry]);
+		int base = position(offsets[entry]);
+		if(field == RDN && chunk.getInt(base) != suffixId) return false;
+		int position = fieldPosition(chunk, base, field);
+		if(chunk.getChar(position) != key.length) return false;
+		for(int i = 0; i < key.length; i++) {
+			if(chunk.get(position + 2 + i) != key[i]) return false;
+		}
+		return true;
+	}
+
+	private ByteBuffer chunk(long offset) {
+		return chunks.get((int) (offset >>> CHUNK_SHIFT));
+	}
+
+	private static int position(long offset) {
+		return (int) (offset & (CHUNK_SIZE - 1));
+	}
+
+	private static byte[] bytes(String value) {
+		if(value == null) return null;
+		byte[] bytes = value.getBytes(UTF8);
+		if(bytes.length > MAX_LENGTH) throw new IllegalArgumentException("Value too long for the entry index: " + value.substring(0, 64) + "...");
+		return bytes;
+	}
+
+	private static int dnHash(int suffixId, byte[] rdn) {
+		return spread(suffixId * 31 + Arrays.hashCode(rdn));
+	}
+
+	private static int hash(byte[] key) {
+		return spread(Arrays.hashCode(key));
+	}
+
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * Open addressing table of entry numbers for one key, probed linearly. At most half the slots are taken,
+	 * removed entries included, so probes always end on an empty slot.
+	 */
+	private class Table {
+		private final int field;
+		private int[] slots;
+		//slots not EMPTY, DELETED ones included
+		private int used;
+
+		private Table(int field) {
+			this.field = field;
+			reset();
+		}
+
+		private void reset() {
+			slots = new int[MIN_TABLE_SIZE];
+			Arrays.fill(slots, EMPTY);
+			used = 0;
+		}
+
+		private int[] hashes() {
+			return field == RDN ? dnHashes : field == ID ? idHashes : nameHashes;
+		}
+
+		/**
+		 * @return the slot of the entry with this key, or -1
+		 */
+		private int find(int hash, int suffixId, byte[] key) {
+			int[] hashes = hashes();
+			int mask = slots.length - 1;
+			for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+				int entry = slots[slot];
+				if(entry == EMPTY) return -1;
+				if(entry != DELETED && hashes[entry] == hash && matches(entry, field, suffixId, key)) return slot;
+			}
+		}
+
+		/**
+		 * Points the key at the entry, taking it over from an entry that had it.
+		 */
+		private void add(int entry, int hash, int suffixId, byte[] key) {
+			int existing = find(hash, suffixId, key);
+			if(existing >= 0) {
+				slots[existing] = entry;
+				return;
+			}
+			if((used + 1) * 2 > slots.length) rehash();
+			int mask = slots.length - 1;
+			int slot = hash & mask;
+			while(slots[slot] != EMPTY && slots[slot] != DELETED) slot = (slot + 1) & mask;
+			if(slots[slot] == EMPTY) used++;
+			slots[slot] = entry;
+		}
+
+		/**
+		 * Drops the key if it still points at the entry, another entry may have taken it over.
+		 */
+		private void remove(int entry, int hash, int suffixId, byte[] key) {
+			int slot = find(hash, suffixId, key);
+			if(slot >= 0 && slots[slot] == entry) slots[slot] = DELETED;
+		}
+
+		/**
+		 * Sizes the table for the entries it holds, dropping the DELETED markers.
+		 */
+		private void rehash() {
+			int live = 0;
+			for(int i = 0; i < slots.length; i++) {
+				if(slots[i] >= 0) live++;
+			}
+			int capacity = MIN_TABLE_SIZE;
+			while(capacity < (live + 1) * 4) capacity <<= 1;
+			int[] old = slots;
+			int[] hashes = hashes();
+			slots = new int[capacity];
+			Arrays.fill(slots, EMPTY);
+			int mask = capacity - 1;
+			for(int i = 0; i < old.length; i++) {
+				if(old[i] < 0) continue;
+				int slot = hashes[old[i]] & mask;
+				while(slots[slot] != EMPTY) slot = (slot + 1) & mask;
+				slots[slot] = old[i];
+			}
+			used = live;
+		}
+	}
+}
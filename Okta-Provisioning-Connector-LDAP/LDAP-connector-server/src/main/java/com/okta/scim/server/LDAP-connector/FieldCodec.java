@@ -0,0 +1,73 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.util.exception.InvalidDataTypeException;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+
+/**
+ * Reads one mapped field from a directory entry into a SCIM resource and writes it back, with the LDAP attribute
+ * name and the type of the field resolved when the mappings are compiled.
+ *
+ * @param <T> - SCIMUser or SCIMGroup
+ */
+abstract class FieldCodec<T> {
+	protected final String ldapAttr;
+
+	FieldCodec(String ldapAttr) {
+		this.ldapAttr = ldapAttr;
+	}
+
+	/**
+	 * Copies the field from attrs into target.
+	 *
+	 * @param attrs - attributes of the directory entry
+	 * @param target - resource being built
+	 * @throws NamingException
+	 */
+	abstract void read(Attributes attrs, T target) throws NamingException;
+
+	/**
+	 * Copies the field from source into attrs.
+	 *
+	 * @param source - resource sent by Okta
+	 * @param attrs - attributes being built for the directory
+	 * @param update - if true, fields without a value are written empty so LDAP removes them
+	 * @throws InvalidDataTypeException
+	 */
+	abstract void write(T source, Attributes attrs, boolean update) throws InvalidDataTypeException;
+
+	/**
+	 * @return the LDAP attribute this field maps to
+	 */
+	String getLdapAttr() {
+		return ldapAttr;
+	}
+
+	/**
+	 * First value of the mapped attribute as a string.
+	 *
+	 * @param attrs - attributes of the directory entry
+	 * @return the value, or null if the entry does not have the attribute
+	 * @throws NamingException
+	 */
+	protected String firstValue(Attributes attrs) throws NamingException {
+		Attribute attr = attrs.get(ldapAttr);
+		if(attr == null) return null;
+		Object value = attr.get();
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * Puts a single valued attribute, or an empty one on update when there is no value.
+	 */
+	protected void putValue(Attributes attrs, Object value, boolean update) {
+		if(value != null && !value.equals("")) {
+			attrs.put(new BasicAttribute(ldapAttr, value.toString()));
+		} else if(update) {
+			attrs.put(new BasicAttribute(ldapAttr));
+		}
+	}
+}
@@ -0,0 +1,258 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Turns a SCIMFilter tree into a single LDAP filter (RFC 4515) over the mapped user attributes, so a SCIM query is
+ * one search and the matching is done by the directory and its indexes.
+ * <p/>
+ * Operators are matched on the name of the filter type, so EQUALS and OR from the current SDK work, as well as
+ * AND, STARTS_WITH, CONTAINS, PRESENT and GT/GE/LT/LE from SDKs that send them.
+ * <p/>
+ * The structure of a filter (operators and attributes, not values) is compiled once into a template with a slot
+ * for each value, and templates are cached, so repeated lookups like "userName eq ..." only escape and splice in
+ * the new value.
+ */
+public class FilterCompiler {
+	private static final Logger LOGGER = Logger.getLogger(FilterCompiler.class);
+	//one template per distinct filter shape, Okta only sends a handful
+	private static final int MAX_TEMPLATES = 1000;
+	private static final Map<String, String> OPERATORS = new HashMap<String, String>();
+	static {
+		alias("EQUALS", "EQUALS", "EQ");
+		alias("OR", "OR");
+		alias("AND", "AND");
+		alias("STARTS_WITH", "STARTS_WITH", "SW");
+		alias("CONTAINS", "CONTAINS", "CO");
+		alias("PRESENT", "PRESENT", "PR");
+		alias("GT", "GREATER_THAN", "GT");
+		alias("GE", "GREATER_THAN_OR_EQUAL", "GREATER_THAN_OR_EQUALS", "GE");
+		alias("LT", "LESS_THAN", "LT");
+		alias("LE", "LESS_THAN_OR_EQUAL", "LESS_THAN_OR_EQUALS", "LE");
+	}
+
+	private final String baseFilter;
+	private final String customUrn;
+	//lower cased SCIM attribute path (userName, name.familyName, or the custom field name) -> LDAP attrs to match
+	private final Map<String, List<String>> coreAttrs = new HashMap<String, List<String>>();
+	private final Map<String, List<String>> customAttrs = new HashMap<String, List<String>>();
+	private final Map<String, Template> templates = new ConcurrentHashMap<String, Template>();
+
+	/**
+	 * @param userCore - Okta attr -> LDAP attr, from OPP.userCoreMap
+	 * @param userCustom - LDAP attr -> [type, schema, field name, parent names...], from OPP.userCustomMap
+	 * @param customUrn - schema urn of the custom attributes
+	 * @param baseFilter - filter every user matches, ANDed with the compiled filter. May be null
+	 */
+	public FilterCompiler(Map<String, String> userCore, Map<String, String[]> userCustom, String customUrn, String baseFilter) {
+		if(baseFilter == null || baseFilter.trim().isEmpty()) this.baseFilter = null;
+		else if(baseFilter.trim().startsWith("(")) this.baseFilter = baseFilter.trim();
+		else this.baseFilter = "(" + baseFilter.trim() + ")";
+		this.customUrn = customUrn;
+		mapCore(userCore, "userName", "userName");
+		mapCore(userCore, "id", "id");
+		mapCore(userCore, "name.familyName", "familyName");
+		mapCore(userCore, "name.givenName", "givenName");
+		mapCore(userCore, "name.formatted", "formatted");
+		mapCore(userCore, "phoneNumbers", "phoneNumbers");
+		mapCore(userCore, "phoneNumbers.value", "phoneNumbers");
+		//an email filter matches either of the mapped emails
+		for(String path : new String[]{"email", "emails", "emails.value"}) {
+			mapCore(userCore, path, "primaryEmail");
+			mapCore(userCore, path, "secondaryEmail");
+		}
+		for(Map.Entry<String, String[]> entry : userCustom.entrySet()) {
+			if(entry.getValue().length < 3) continue;
+			String field = entry.getValue()[2].trim().toLowerCase();
+			if(!customAttrs.containsKey(field)) customAttrs.put(field, new ArrayList<String>(1));
+			customAttrs.get(field).add(entry.getKey());
+		}
+	}
+
+	/**
+	 * Compiles a SCIM filter.
+	 *
+	 * @param filter - the SCIM filter
+	 * @return the LDAP filter, or null if the filter uses an operator or attribute that is not supported
+	 */
+	public String compile(SCIMFilter filter) {
+		StringBuilder shape = new StringBuilder();
+		List<String> values = new ArrayList<String>();
+		if(!describe(filter, shape, values)) return null;
+		String key = shape.toString();
+		Template template = templates.get(key);
+		if(template == null) {
+			template = buildTemplate(filter);
+			if(template == null) return null;
+			if(templates.size() >= MAX_TEMPLATES) templates.clear();
+			templates.put(key, template);
+			LogSF.debug(LOGGER, "[compile] Compiled filter shape {}", key);
+		}
+		return template.fill(values);
+	}
+
+	/**
+	 * Helper function that escapes a value for use in an LDAP filter as per RFC 4515.
+	 *
+	 * @param value - the raw value
+	 * @return the escaped value
+	 */
+	public static String escape(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch(c) {
+				case '*': escaped.append("\\2a"); break;
+				case '(': escaped.append("\\28"); break;
+				case ')': escaped.append("\\29"); break;
+				case '\\': escaped.append("\\5c"); break;
+				case '\u0000': escaped.append("\\00"); break;
+				default: escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * Walks the filter, writing its shape (operators and attributes) into shape and collecting its values in order.
+	 *
+	 * @return false if part of the filter is not supported
+	 */
+	private boolean describe(SCIMFilter filter, StringBuilder shape, List<String> values) {
+		String op = operator(filter);
+		if(op == null) return false;
+		shape.append(op).append('(');
+		if(op.equals("AND") || op.equals("OR")) {
+			List<SCIMFilter> subFilters = filter.getFilterExpressions();
+			if(subFilters == null || subFilters.isEmpty()) return false;
+			for(int i = 0; i < subFilters.size(); i++) {
+				if(!describe(subFilters.get(i), shape, values)) return false;
+				shape.append(',');
+			}
+		} else {
+			List<String> attrs = ldapAttrs(filter.getFilterAttribute());
+			if(attrs == null) return false;
+			shape.append(attrs);
+			if(!op.equals("PRESENT")) {
+				if(filter.getFilterValue() == null) return false;
+				values.add(escape(filter.getFilterValue()));
+			}
+		}
+		shape.append(')');
+		return true;
+	}
+
+	private Template buildTemplate(SCIMFilter filter) {
+		List<String> parts = new ArrayList<String>();
+		List<Integer> slots = new ArrayList<Integer>();
+		StringBuilder current = new StringBuilder();
+		if(baseFilter != null) current.append("(&").append(baseFilter);
+		emit(filter, parts, slots, current, new int[1]);
+		if(baseFilter != null) current.append(')');
+		parts.add(current.toString());
+		int[] slotIndexes = new int[slots.size()];
+		for(int i = 0; i < slotIndexes.length; i++) slotIndexes[i] = slots.get(i);
+		return new Template(parts.toArray(new String[parts.size()]), slotIndexes);
+	}
+
+	/**
+	 * Writes the LDAP filter for a SCIM filter that describe() accepted, closing off a part wherever a value goes.
+	 *
+	 * @param nextValue - index of the next value in the order describe() collects them
+	 */
+	private void emit(SCIMFilter filter, List<String> parts, List<Integer> slots, StringBuilder current, int[] nextValue) {
+		String op = operator(filter);
+		if(op.equals("AND") || op.equals("OR")) {
+			List<SCIMFilter> subFilters = filter.getFilterExpressions();
+			current.append(op.equals("AND") ? "(&" : "(|");
+			for(int i = 0; i < subFilters.size(); i++) {
+				emit(subFilters.get(i), parts, slots, current, nextValue);
+			}
+			current.append(')');
+			return;
+		}
+		List<String> attrs = ldapAttrs(filter.getFilterAttribute());
+		int value = op.equals("PRESENT") ? -1 : nextValue[0]++;
+		if(attrs.size() > 1) current.append("(|");
+		//every attr the SCIM attribute maps to is compared against the same value
+		for(int i = 0; i < attrs.size(); i++) {
+			String attr = attrs.get(i);
+			if(op.equals("PRESENT")) {
+				current.append('(').append(attr).append("=*)");
+				continue;
+			}
+			if(op.equals("GT")) current.append("(!(").append(attr).append("<=");
+			else if(op.equals("LT")) current.append("(!(").append(attr).append(">=");
+			else if(op.equals("GE")) current.append('(').append(attr).append(">=");
+			else if(op.equals("LE")) current.append('(').append(attr).append("<=");
+			else if(op.equals("CONTAINS")) current.append('(').append(attr).append("=*");
+			else current.append('(').append(attr).append('=');
+			parts.add(current.toString());
+			slots.add(value);
+			current.setLength(0);
+			if(op.equals("GT") || op.equals("LT")) current.append("))");
+			else if(op.equals("STARTS_WITH") || op.equals("CONTAINS")) current.append("*)");
+			else current.append(')');
+		}
+		if(attrs.size() > 1) current.append(')');
+	}
+
+	private String operator(SCIMFilter filter) {
+		if(filter == null || filter.getFilterType() == null) return null;
+		return OPERATORS.get(filter.getFilterType().name());
+	}
+
+	private List<String> ldapAttrs(SCIMFilterAttribute attribute) {
+		if(attribute == null || attribute.getAttributeName() == null) return null;
+		String name = attribute.getAttributeName().toLowerCase();
+		if(customUrn != null && customUrn.equalsIgnoreCase(attribute.getSchema())) {
+			return customAttrs.get(name);
+		}
+		if(attribute.getSubAttributeName() != null) name = name + "." + attribute.getSubAttributeName().toLowerCase();
+		return coreAttrs.get(name);
+	}
+
+	private void mapCore(Map<String, String> userCore, String path, String oktaAttr) {
+		String ldapAttr = userCore.get(oktaAttr);
+		if(ldapAttr == null) return;
+		String key = path.toLowerCase();
+		if(!coreAttrs.containsKey(key)) coreAttrs.put(key, new ArrayList<String>(2));
+		if(!coreAttrs.get(key).contains(ldapAttr)) coreAttrs.get(key).add(ldapAttr);
+	}
+
+	private static void alias(String op, String... names) {
+		for(int i = 0; i < names.length; i++) OPERATORS.put(names[i], op);
+	}
+
+	/**
+	 * A compiled filter: constant parts with a value slot between each pair.
+	 */
+	private static class Template {
+		private final String[] parts;
+		//which of the filter's values goes into each slot, a value can fill several slots
+		private final int[] slots;
+
+		private Template(String[] parts, int[] slots) {
+			this.parts = parts;
+			this.slots = slots;
+		}
+
+		private String fill(List<String> values) {
+			StringBuilder filter = new StringBuilder(parts[0]);
+			for(int i = 0; i < slots.length; i++) {
+				filter.append(values.get(slots[i])).append(parts[i + 1]);
+			}
+			return filter.toString();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.util.model.SCIMGroup;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.log4j.Logger;
+import org.springframework.ldap.core.DistinguishedName;
+import org.springframework.ldap.core.LdapRdn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+/**
+ * The OPP.groupCoreMap mappings compiled into field codecs when the connector starts.
+ * <p/>
+ * Members are not a codec field: reading them needs batched user lookups and writing them needs the members
+ * checked in LDAP, both done by SCIMServiceImpl with the attribute from getMemberAttr().
+ */
+public class GroupCodec {
+	private static final Logger LOGGER = Logger.getLogger(GroupCodec.class);
+	private static final String DISPLAY_NAME_ATTR = "cn";
+
+	private final GroupField[] fields;
+	private final String[] objectClasses;
+	private final String memberAttr;
+
+	private GroupCodec(List<GroupField> fields, String[] objectClasses, String memberAttr) {
+		this.fields = fields.toArray(new GroupField[fields.size()]);
+		this.objectClasses = objectClasses.clone();
+		this.memberAttr = memberAttr;
+	}
+
+	/**
+	 * Compiles the group mappings.
+	 *
+	 * @param core - Okta attr -> LDAP attr, from OPP.groupCoreMap
+	 * @param objectClasses - objectClass values of new groups, from ldap.groupClass
+	 * @return the compiled codec
+	 * @throws ConfigurationException if a mapping cannot be understood
+	 */
+	public static GroupCodec compile(Map<String, String> core, String[] objectClasses) throws ConfigurationException {
+		List<GroupField> fields = new ArrayList<GroupField>();
+		String memberAttr = null;
+		for(Map.Entry<String, String> entry : core.entrySet()) {
+			if(entry.getKey().equals("id")) {
+				fields.add(new GroupField(entry.getValue()) {
+					void read(Attributes attrs, SCIMGroup group) throws NamingException {
+						String value = firstValue(attrs);
+						if(value != null) group.setId(value);
+					}
+
+					void write(SCIMGroup group, Attributes attrs, boolean update) {
+						putValue(attrs, group.getId(), update);
+					}
+				});
+			} else if(entry.getKey().equals("members")) {
+				memberAttr = entry.getValue();
+			} else {
+				throw new ConfigurationException("Unknown Okta attribute " + entry.getKey() + " in OPP.groupCoreMap, expected id or members.");
+			}
+		}
+		if(!core.containsKey("id")) LOGGER.warn("[compile] Connector.properties did not have id entry for groupCoreMap.");
+		if(memberAttr == null) LOGGER.warn("[compile] Connector.properties did not have members entry for groupCoreMap.");
+		return new GroupCodec(fields, objectClasses, memberAttr);
+	}
+
+	/**
+	 * Builds the Attributes to write to LDAP for a group, without the members.
+	 *
+	 * @param group - SCIMGroup sent by Okta
+	 * @return the attributes, including objectClass
+	 */
+	public Attributes toAttrs(SCIMGroup group) {
+		Attributes attrs = new BasicAttributes(true);
+		for(int i = 0; i < fields.length; i++) {
+			fields[i].write(group, attrs, false);
+		}
+		Attribute objclass = new BasicAttribute("objectClass");
+		for(int i = 0; i < objectClasses.length; i++) objclass.add(objectClasses[i]);
+		attrs.put(objclass);
+		return attrs;
+	}
+
+	/**
+	 * Builds a SCIMGroup from the attributes of a directory entry, without the members.
+	 *
+	 * @param attrs - attributes of the entry
+	 * @return the group
+	 * @throws NamingException
+	 */
+	public SCIMGroup toGroup(Attributes attrs) throws NamingException {
+		SCIMGroup group = new SCIMGroup();
+		Attribute cn = attrs.get(DISPLAY_NAME_ATTR);
+		group.setDisplayName(cn == null ? "" : cn.get().toString());
+		group.setId("");
+		for(int i = 0; i < fields.length; i++) {
+			fields[i].read(attrs, group);
+		}
+		return group;
+	}
+
+	/**
+	 * Groups have no custom schema, so writing a field cannot fail on a data type.
+	 */
+	private static abstract class GroupField extends FieldCodec<SCIMGroup> {
+		private GroupField(String ldapAttr) {
+			super(ldapAttr);
+		}
+
+		abstract void write(SCIMGroup group, Attributes attrs, boolean update);
+	}
+
+	/**
+	 * @return the LDAP attribute holding member DNs, null if members are not mapped
+	 */
+	public String getMemberAttr() {
+		return memberAttr;
+	}
+
+	/**
+	 * Builds the DN a member value points at, in the encoding the directory stores.
+	 *
+	 * @param userPre - rdn prefix of user entries, e.g. "uid=", from ldap.userPre
+	 * @param rdnValue - the user's rdn value
+	 * @param usersDn - DN of the users container, ldap.userDn + ldap.baseDn
+	 * @return the encoded member DN
+	 */
+	public static String memberDn(String userPre, String rdnValue, String usersDn) {
+		return memberDn(userPre + rdnValue + "," + usersDn);
+	}
+
+	/**
+	 * Builds the member value pointing at a user, in the encoding the directory stores.
+	 *
+	 * @param userDn - DN of the user
+	 * @return the encoded member DN
+	 */
+	public static String memberDn(String userDn) {
+		return new DistinguishedName(userDn).encode();
+	}
+
+	/**
+	 * Reads the rdn value of a member DN, which is what members are looked up by.
+	 *
+	 * @param memberDn - a value of the member attribute
+	 * @param rdnAttr - naming attribute of user entries, e.g. uid
+	 * @return the value of rdnAttr in the DN, null if the DN does not have one
+	 */
+	public static String memberRdnValue(String memberDn, String rdnAttr) {
+		try {
+			LdapRdn rdn = new DistinguishedName(memberDn).getLdapRdn(rdnAttr);
+			return rdn.getValue();
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+}
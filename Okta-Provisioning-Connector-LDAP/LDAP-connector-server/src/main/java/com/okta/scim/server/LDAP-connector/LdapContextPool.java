@@ -0,0 +1,315 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.NamingException;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Pool of bound LdapContexts so that every connector operation does not pay for a TCP connect and a bind.
+ * Contexts are created from the env Hashtable built by ConnectorConfig.ldapEnv() and stay bound
+ * as the configured principal for as long as they live in the pool.
+ * <p/>
+ * Callers must hand every borrowed context back with release(), or with invalidate() if the connection is
+ * known to be broken. release(ctx, failure) does either depending on what the operation threw, so a connection lost
+ * in the middle of an operation is never handed to the next borrower, even with validateOnBorrow off. Search
+ * enumerations have to be closed before the context is released.
+ */
+public class LdapContextPool {
+	private static final Logger LOGGER = Logger.getLogger(LdapContextPool.class);
+	//attribute that does not exist, so validating a context only costs a root DSE read with an empty result
+	private static final String[] NO_ATTRS = {"1.1"};
+
+	private final Hashtable env;
+	private final int minSize;
+	private final int maxSize;
+	private final long maxIdleMillis;
+	private final long borrowTimeoutMillis;
+	private final boolean validateOnBorrow;
+	private final ConnectorMetrics metrics;
+	//most recently used contexts are at the head, so the tail is where idle contexts age out
+	private final LinkedBlockingDeque<PooledContext> idle = new LinkedBlockingDeque<PooledContext>();
+	private final Semaphore permits;
+	private final ScheduledExecutorService evictor;
+	private volatile boolean closed = false;
+	//stats
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong destroyedCount = new AtomicLong();
+	private final AtomicLong borrowedCount = new AtomicLong();
+	private final AtomicLong validationFailureCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+	private final AtomicLong borrowTimeoutCount = new AtomicLong();
+
+	/**
+	 * Creates the pool, opens minSize connections and starts the idle evictor.
+	 *
+	 * @param env - JNDI environment used for every new context
+	 * @param minSize - number of bound contexts to keep around even when idle
+	 * @param maxSize - maximum number of contexts, idle and borrowed
+	 * @param maxIdleMillis - idle contexts older than this are closed, down to minSize
+	 * @param borrowTimeoutMillis - how long borrow() waits for a free context before failing
+	 * @param validateOnBorrow - if true, idle contexts are checked with a root DSE read before being handed out
+	 * @param evictionIntervalMillis - how often the evictor looks for idle contexts
+	 * @param metrics - where binds and the LDAP operations made through the contexts are timed
+	 */
+	public LdapContextPool(Hashtable env, int minSize, int maxSize, long maxIdleMillis, long borrowTimeoutMillis,
+						   boolean validateOnBorrow, long evictionIntervalMillis, ConnectorMetrics metrics) {
+		this.env = env;
+		this.metrics = metrics;
+		this.maxSize = Math.max(1, maxSize);
+		this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+		this.maxIdleMillis = maxIdleMillis;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.validateOnBorrow = validateOnBorrow;
+		this.permits = new Semaphore(this.maxSize, true);
+		for(int i = 0; i < this.minSize; i++) {
+			try {
+				idle.offerFirst(new PooledContext(createContext()));
+			} catch (NamingException e) {
+				LOGGER.warn("[LdapContextPool] Could not pre-open connection to LDAP: " + e.getMessage());
+				break;
+			}
+		}
+		evictor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("ldap-pool-evictor"));
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, evictionIntervalMillis, evictionIntervalMillis, TimeUnit.MILLISECONDS);
+		LOGGER.info("[LdapContextPool] Pool started: " + toString());
+	}
+
+	/**
+	 * Hands out a bound context, reusing an idle one if possible.
+	 *
+	 * @return a bound LdapContext, must be given back with release() or invalidate()
+	 * @throws NamingException if no context frees up within the borrow timeout or a new one cannot be opened
+	 */
+	public LdapContext borrow() throws NamingException {
+		if(closed) {
+			throw new NamingException("LDAP connection pool is closed.");
+		}
+		try {
+			if(!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				borrowTimeoutCount.incrementAndGet();
+				throw new NamingException("Timed out after " + borrowTimeoutMillis + "ms waiting for an LDAP connection. " + toString());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new NamingException("Interrupted while waiting for an LDAP connection.");
+		}
+		try {
+			PooledContext pooled;
+			while((pooled = idle.pollFirst()) != null) {
+				if(pooled.idleMillis() > maxIdleMillis) {
+					evictedCount.incrementAndGet();
+					destroy(pooled.ctx);
+					continue;
+				}
+				if(validateOnBorrow && !isValid(pooled.ctx)) {
+					validationFailureCount.incrementAndGet();
+					destroy(pooled.ctx);
+					continue;
+				}
+				borrowedCount.incrementAndGet();
+				return pooled.ctx;
+			}
+			LdapContext ctx = createContext();
+			borrowedCount.incrementAndGet();
+			return ctx;
+		} catch (NamingException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives a borrowed context back to the pool. Request controls are cleared so the next borrower starts clean.
+	 *
+	 * @param ctx - context obtained from borrow(), null is ignored
+	 */
+	public void release(LdapContext ctx) {
+		if(ctx == null) return;
+		try {
+			if(closed) {
+				destroy(ctx);
+				return;
+			}
+			try {
+				ctx.setRequestControls(null);
+			} catch (NamingException e) {
+				destroy(ctx);
+				return;
+			}
+			idle.offerFirst(new PooledContext(ctx));
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Gives a borrowed context back after an operation on it, or closes it if the operation failed because the
+	 * connection to LDAP was lost.
+	 *
+	 * @param ctx - context obtained from borrow(), null is ignored
+	 * @param failure - what the operation threw, null if it succeeded
+	 */
+	public void release(LdapContext ctx, NamingException failure) {
+		if(failure != null && WriteJournal.isOutage(failure)) {
+			LogSF.debug(LOGGER, "[release] Dropping LDAP connection after: {}", failure.getMessage());
+			invalidate(ctx);
+		} else {
+			release(ctx);
+		}
+	}
+
+	/**
+	 * Closes a borrowed context instead of returning it, for connections that are known to be broken.
+	 *
+	 * @param ctx - context obtained from borrow(), null is ignored
+	 */
+	public void invalidate(LdapContext ctx) {
+		if(ctx == null) return;
+		try {
+			destroy(ctx);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Stops the evictor and closes every idle context. Borrowed contexts are closed as they are released.
+	 */
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+		PooledContext pooled;
+		while((pooled = idle.pollFirst()) != null) {
+			destroy(pooled.ctx);
+		}
+		LOGGER.info("[close] Pool closed: " + toString());
+	}
+
+	/**
+	 * Closes idle contexts that have been unused for longer than maxIdleMillis, keeping at least minSize open.
+	 */
+	void evictIdle() {
+		Iterator<PooledContext> it = idle.descendingIterator();
+		while(it.hasNext() && (idle.size() + getActiveCount()) > minSize) {
+			PooledContext pooled = it.next();
+			if(pooled.idleMillis() > maxIdleMillis && idle.removeFirstOccurrence(pooled)) {
+				evictedCount.incrementAndGet();
+				destroy(pooled.ctx);
+			}
+		}
+		if(LOGGER.isDebugEnabled()) {
+			LogSF.debug(LOGGER, "[evictIdle] {}", this);
+		}
+	}
+
+	private LdapContext createContext() throws NamingException {
+		LdapContext ctx;
+		ConnectorMetrics.Timer timer = metrics.time("ldap.bind");
+		try {
+			ctx = new InitialLdapContext(env, null);
+		} catch (NamingException e) {
+			throw timer.fail(e);
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			timer.stop();
+		}
+		createdCount.incrementAndGet();
+		return TimedLdapContext.wrap(ctx, metrics);
+	}
+
+	private boolean isValid(LdapContext ctx) {
+		try {
+			ctx.getAttributes("", NO_ATTRS);
+			return true;
+		} catch (NamingException e) {
+			LogSF.debug(LOGGER, "[isValid] Dropping pooled LDAP connection: {}", e.getMessage());
+			return false;
+		}
+	}
+
+	private void destroy(LdapContext ctx) {
+		destroyedCount.incrementAndGet();
+		try {
+			ctx.close();
+		} catch (NamingException e) {
+			LOGGER.debug("[destroy] Error while closing LDAP connection: " + e.getMessage());
+		}
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public int getActiveCount() {
+		return maxSize - permits.availablePermits();
+	}
+
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	public long getDestroyedCount() {
+		return destroyedCount.get();
+	}
+
+	public long getBorrowedCount() {
+		return borrowedCount.get();
+	}
+
+	public long getValidationFailureCount() {
+		return validationFailureCount.get();
+	}
+
+	public long getEvictedCount() {
+		return evictedCount.get();
+	}
+
+	public long getBorrowTimeoutCount() {
+		return borrowTimeoutCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "LdapContextPool[active=" + getActiveCount() + ", idle=" + getIdleCount() + ", min=" + minSize + ", max=" + maxSize
+				+ ", created=" + getCreatedCount() + ", destroyed=" + getDestroyedCount() + ", borrowed=" + getBorrowedCount()
+				+ ", validationFailures=" + getValidationFailureCount() + ", evicted=" + getEvictedCount()
+				+ ", borrowTimeouts=" + getBorrowTimeoutCount() + "]";
+	}
+
+	private static class PooledContext {
+		private final LdapContext ctx;
+		private final long idleSince = System.currentTimeMillis();
+
+		private PooledContext(LdapContext ctx) {
+			this.ctx = ctx;
+		}
+
+		private long idleMillis() {
+			return System.currentTimeMillis() - idleSince;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.naming.NamingException;
+
+/**
+ * The LDAP servers the connector talks to, each with its own LdapContextPool: one primary that takes every write,
+ * and any number of replicas that take the searches.
+ * <p/>
+ * Searches go to the healthy replica with the fewest connections in use, then fall back to the other replicas and
+ * finally the primary if a server cannot be reached. A replica that could not be reached is skipped for
+ * retryMillis. With no replicas everything goes to the primary, as with a single ldap.url.
+ * <p/>
+ * Replicas lag behind the primary, so a user or group the connector has just written is read from the primary for
+ * readYourWritesMillis afterwards. Callers name what they write and read with the same entity keys.
+ */
+public class LdapTopology {
+	private static final Logger LOGGER = Logger.getLogger(LdapTopology.class);
+	//forget about writes once this many are remembered, expired ones first
+	private static final int MAX_RECENT_WRITES = 10000;
+
+	private final LdapContextPool primary;
+	private final List<LdapContextPool> replicas;
+	private final long readYourWritesMillis;
+	private final long retryMillis;
+	//entity key -> when reads for it may go back to the replicas
+	private final Map<String, Long> recentWrites = new ConcurrentHashMap<String, Long>();
+	//replica -> when it may be tried again
+	private final Map<LdapContextPool, Long> downUntil = new ConcurrentHashMap<LdapContextPool, Long>();
+
+	/**
+	 * A search to run against whichever server is picked.
+	 */
+	public interface Read<T> {
+		T run(LdapContextPool pool) throws NamingException;
+	}
+
+	/**
+	 * @param primary - pool for the server that takes writes
+	 * @param replicas - pools for the servers that take searches, may be empty
+	 * @param readYourWritesMillis - how long reads of a just written entity stay on the primary
+	 * @param retryMillis - how long a replica that could not be reached is left alone
+	 */
+	public LdapTopology(LdapContextPool primary, List<LdapContextPool> replicas, long readYourWritesMillis, long retryMillis) {
+		this.primary = primary;
+		this.replicas = new ArrayList<LdapContextPool>(replicas);
+		this.readYourWritesMillis = readYourWritesMillis;
+		this.retryMillis = retryMillis;
+		LOGGER.info("[LdapTopology] 1 primary and " + replicas.size() + " replicas.");
+	}
+
+	/**
+	 * @return pool for the server that takes writes
+	 */
+	public LdapContextPool getPrimary() {
+		return primary;
+	}
+
+	/**
+	 * @return pools for the servers that take searches
+	 */
+	public List<LdapContextPool> getReplicas() {
+		return Collections.unmodifiableList(replicas);
+	}
+
+	/**
+	 * Picks the server a search should go to.
+	 *
+	 * @param entity - entity key of what is being read, null for searches over many entries
+	 * @return the least loaded healthy replica, or the primary
+	 */
+	public LdapContextPool readPool(String entity) {
+		return readPools(entity).get(0);
+	}
+
+	/**
+	 * Runs a search, moving on to the next server if one cannot be reached.
+	 *
+	 * @param entity - entity key of what is being read, null for searches over many entries
+	 * @param read - the search
+	 * @return what the search returned
+	 * @throws NamingException the error from the last server tried, or any error that is not about reaching it
+	 */
+	public <T> T read(String entity, Read<T> read) throws NamingException {
+		List<LdapContextPool> candidates = readPools(entity);
+		NamingException failure = null;
+		for(int i = 0; i < candidates.size(); i++) {
+			try {
+				return read.run(candidates.get(i));
+			} catch (NamingException e) {
+				if(!WriteJournal.isOutage(e)) throw e;
+				markDown(candidates.get(i), e);
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Records that the connector wrote an entity, so reads of it go to the primary until the replicas have caught up.
+	 *
+	 * @param entity - entity key of what was written
+	 */
+	public void noteWrite(String entity) {
+		if(replicas.isEmpty() || entity == null) return;
+		long now = System.currentTimeMillis();
+		if(recentWrites.size() >= MAX_RECENT_WRITES) {
+			Iterator<Map.Entry<String, Long>> it = recentWrites.entrySet().iterator();
+			while(it.hasNext()) {
+				if(it.next().getValue() < now) it.remove();
+			}
+			if(recentWrites.size() >= MAX_RECENT_WRITES) recentWrites.clear();
+		}
+		recentWrites.put(entity, now + readYourWritesMillis);
+	}
+
+	/**
+	 * Takes a replica out of rotation for retryMillis after it could not be reached. The primary is never taken out,
+	 * it is the last resort for every search.
+	 *
+	 * @param pool - the server that failed
+	 * @param e - why
+	 */
+	public void markDown(LdapContextPool pool, NamingException e) {
+		if(pool == primary) return;
+		if(downUntil.put(pool, System.currentTimeMillis() + retryMillis) == null) {
+			LOGGER.warn("[markDown] LDAP replica " + replicas.indexOf(pool) + " unreachable, sending its searches elsewhere for "
+					+ retryMillis + "ms: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Closes every pool.
+	 */
+	public void close() {
+		for(int i = 0; i < replicas.size(); i++) replicas.get(i).close();
+		primary.close();
+	}
+
+	/**
+	 * Servers to try for a search, in order.
+	 */
+	private List<LdapContextPool> readPools(String entity) {
+		List<LdapContextPool> candidates = new ArrayList<LdapContextPool>(replicas.size() + 1);
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < replicas.size(); i++) {
+			LdapContextPool replica = replicas.get(i);
+			Long until = downUntil.get(replica);
+			if(until != null) {
+				if(until > now) continue;
+				downUntil.remove(replica);
+				LogSF.info(LOGGER, "[readPools] Trying LDAP replica {} again.", i);
+			}
+			candidates.add(replica);
+		}
+		//least outstanding requests first
+		Collections.sort(candidates, new Comparator<LdapContextPool>() {
+			public int compare(LdapContextPool a, LdapContextPool b) {
+				return a.getActiveCount() - b.getActiveCount();
+			}
+		});
+		Long writtenUntil = entity == null ? null : recentWrites.get(entity);
+		if(writtenUntil != null && writtenUntil > now) candidates.add(0, primary);
+		else candidates.add(primary);
+		return candidates;
+	}
+}
@@ -0,0 +1,299 @@
+package com.okta.scim.server.LDAP.connector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The groups every user is a member of, the reverse of the member values of the groups, so finding a user's groups
+ * is a lookup instead of a read of every group and a scan of its members. Users and groups are keyed by normalized
+ * DN, see DirectoryCache.normalizeDn.
+ * <p/>
+ * The index is fed by the connector's own group reads and writes, each of which replaces what is known of that
+ * group's members, and with ldap.memberOfAttr by the memberOf values of the users it reads, each of which replaces
+ * what is known of that user's groups. Without memberOf, a user missing from the index may still be a member of a
+ * group the connector hasn't read, so the index only answers for every user once every group has been read, see
+ * markComplete(). Groups can change without the connector seeing it, so that only holds for a while after the read.
+ */
+public class MembershipIndex {
+	//normalized group DN -> what is known of the group
+	private final Map<String, Group> groups = new HashMap<String, Group>();
+	//group id -> normalized group DN
+	private final Map<String, String> dnById = new HashMap<String, String>();
+	//normalized user DN -> normalized DNs of the groups it is a member of
+	private final Map<String, Set<String>> groupsByMember = new HashMap<String, Set<String>>();
+	//when every group was last read, 0 if they haven't been
+	private volatile long completeAt = 0;
+	private final long completeTtlMillis;
+
+	private static class Group {
+		private String id;
+		private String displayName;
+		private final Set<String> members = new HashSet<String>();
+		//true once the members were read from the group entry, not pieced together from memberOf values
+		private boolean membersRead = false;
+	}
+
+	/**
+	 * A group a user is a member of.
+	 */
+	public static class GroupRef {
+		private final String dn;
+		private final String id;
+		private final String displayName;
+
+		private GroupRef(String dn, String id, String displayName) {
+			this.dn = dn;
+			this.id = id;
+			this.displayName = displayName;
+		}
+
+		/**
+		 * @return normalized DN of the group
+		 */
+		public String getDn() {
+			return dn;
+		}
+
+		/**
+		 * @return id of the group, null if the group was only seen in memberOf values
+		 */
+		public String getId() {
+			return id;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+	}
+
+	/**
+	 * @param completeTtlMillis - how long after a read of every group the index is trusted for every user, 0 never
+	 */
+	public MembershipIndex(long completeTtlMillis) {
+		this.completeTtlMillis = Math.max(0L, completeTtlMillis);
+	}
+
+	/**
+	 * Records the members of a group, as read from or written to its entry. Replaces what was known of its members.
+	 *
+	 * @param groupDn - DN of the group
+	 * @param id - id of the group
+	 * @param displayName - display name of the group
+	 * @param memberDns - DNs of all its members
+	 */
+	public synchronized void putGroup(String groupDn, String id, String displayName, Collection<String> memberDns) {
+		String groupKey = DirectoryCache.normalizeDn(groupDn);
+		Group group = nameGroup(groupKey, id, displayName);
+		Set<String> memberKeys = new HashSet<String>(memberDns.size() * 2);
+		for(String memberDn : memberDns) memberKeys.add(DirectoryCache.normalizeDn(memberDn));
+		Iterator<String> it = group.members.iterator();
+		while(it.hasNext()) {
+			String memberKey = it.next();
+			if(!memberKeys.contains(memberKey)) {
+				it.remove();
+				unlink(memberKey, groupKey);
+			}
+		}
+		for(String memberKey : memberKeys) {
+			if(group.members.add(memberKey)) link(memberKey, groupKey);
+		}
+		group.membersRead = true;
+	}
+
+	/**
+	 * Records the id and display name of a group without touching its members, for groups found through memberOf.
+	 *
+	 * @param groupDn - DN of the group
+	 * @param id - id of the group
+	 * @param displayName - display name of the group
+	 */
+	public synchronized void putGroupName(String groupDn, String id, String displayName) {
+		nameGroup(DirectoryCache.normalizeDn(groupDn), id, displayName);
+	}
+
+	/**
+	 * Forgets a group that was deleted or renamed.
+	 *
+	 * @param groupDn - DN the group had
+	 */
+	public synchronized void removeGroup(String groupDn) {
+		String groupKey = DirectoryCache.normalizeDn(groupDn);
+		Group group = groups.remove(groupKey);
+		if(group == null) return;
+		if(group.id != null && groupKey.equals(dnById.get(group.id))) dnById.remove(group.id);
+		for(String memberKey : group.members) unlink(memberKey, groupKey);
+	}
+
+	/**
+	 * Forgets the groups that were not seen by a read of every group.
+	 *
+	 * @param groupDns - DNs of every group that was read
+	 * @return number of groups forgotten
+	 */
+	public synchronized int retainGroups(Collection<String> groupDns) {
+		Set<String> keep = new HashSet<String>(groupDns.size() * 2);
+		for(String groupDn : groupDns) keep.add(DirectoryCache.normalizeDn(groupDn));
+		List<String> gone = new ArrayList<String>();
+		for(String groupKey : groups.keySet()) {
+			if(!keep.contains(groupKey)) gone.add(groupKey);
+		}
+		for(int i = 0; i < gone.size(); i++) removeGroup(gone.get(i));
+		return gone.size();
+	}
+
+	/**
+	 * Records the groups of a user, as read from its memberOf values. Replaces what was known of its groups.
+	 *
+	 * @param userDn - DN of the user
+	 * @param groupDns - DNs of all the groups it is a member of
+	 */
+	public synchronized void putMemberships(String userDn, Collection<String> groupDns) {
+		String memberKey = DirectoryCache.normalizeDn(userDn);
+		Set<String> groupKeys = new HashSet<String>(groupDns.size() * 2);
+		for(String groupDn : groupDns) groupKeys.add(DirectoryCache.normalizeDn(groupDn));
+		Set<String> current = groupsByMember.get(memberKey);
+		if(current != null) {
+			for(String groupKey : new ArrayList<String>(current)) {
+				if(groupKeys.contains(groupKey)) continue;
+				Group group = groups.get(groupKey);
+				if(group != null) group.members.remove(memberKey);
+				unlink(memberKey, groupKey);
+			}
+		}
+		for(String groupKey : groupKeys) {
+			Group group = groups.get(groupKey);
+			if(group == null) {
+				group = new Group();
+				groups.put(groupKey, group);
+			}
+			if(group.members.add(memberKey)) link(memberKey, groupKey);
+		}
+	}
+
+	/**
+	 * Forgets a user that was deleted, and its memberships.
+	 *
+	 * @param userDn - DN the user had
+	 */
+	public synchronized void removeMember(String userDn) {
+		String memberKey = DirectoryCache.normalizeDn(userDn);
+		Set<String> groupKeys = groupsByMember.remove(memberKey);
+		if(groupKeys == null) return;
+		for(String groupKey : groupKeys) {
+			Group group = groups.get(groupKey);
+			if(group != null) group.members.remove(memberKey);
+		}
+	}
+
+	/**
+	 * Moves the memberships of a user that was renamed to its new DN.
+	 *
+	 * @param oldDn - DN the user had
+	 * @param newDn - DN the user has now
+	 */
+	public synchronized void renameMember(String oldDn, String newDn) {
+		String oldKey = DirectoryCache.normalizeDn(oldDn);
+		String newKey = DirectoryCache.normalizeDn(newDn);
+		if(oldKey.equals(newKey)) return;
+		Set<String> groupKeys = groupsByMember.remove(oldKey);
+		if(groupKeys == null) return;
+		for(String groupKey : groupKeys) {
+			Group group = groups.get(groupKey);
+			if(group == null) continue;
+			group.members.remove(oldKey);
+			if(group.members.add(newKey)) link(newKey, groupKey);
+		}
+	}
+
+	/**
+	 * @param userDn - DN of the user
+	 * @return the groups the user is known to be a member of, empty if none
+	 */
+	public synchronized List<GroupRef> groupsOf(String userDn) {
+		Set<String> groupKeys = groupsByMember.get(DirectoryCache.normalizeDn(userDn));
+		if(groupKeys == null) return Collections.emptyList();
+		List<GroupRef> refs = new ArrayList<GroupRef>(groupKeys.size());
+		for(String groupKey : groupKeys) {
+			Group group = groups.get(groupKey);
+			refs.add(new GroupRef(groupKey, group == null ? null : group.id, group == null ? null : group.displayName));
+		}
+		return refs;
+	}
+
+	/**
+	 * @param id - id of a group
+	 * @return normalized DNs of its members, null unless the group's members were read from its entry
+	 */
+	public synchronized List<String> membersOf(String id) {
+		String groupKey = dnById.get(id);
+		Group group = groupKey == null ? null : groups.get(groupKey);
+		if(group == null || !group.membersRead) return null;
+		return new ArrayList<String>(group.members);
+	}
+
+	/**
+	 * Records that every group has just been read, so a user missing from the index is a member of no group until
+	 * the TTL runs out or invalidate() is called.
+	 */
+	public void markComplete() {
+		completeAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Stops trusting the index for every user until every group has been read again.
+	 */
+	public void invalidate() {
+		completeAt = 0;
+	}
+
+	/**
+	 * @return true if every group has been read within the TTL
+	 */
+	public boolean isComplete() {
+		long at = completeAt;
+		return at > 0 && System.currentTimeMillis() - at < completeTtlMillis;
+	}
+
+	/**
+	 * @return number of users with at least one membership
+	 */
+	public synchronized int memberCount() {
+		return groupsByMember.size();
+	}
+
+	private Group nameGroup(String groupKey, String id, String displayName) {
+		Group group = groups.get(groupKey);
+		if(group == null) {
+			group = new Group();
+			groups.put(groupKey, group);
+		}
+		if(group.id != null && !group.id.equals(id) && groupKey.equals(dnById.get(group.id))) dnById.remove(group.id);
+		group.id = id;
+		group.displayName = displayName;
+		if(id != null) dnById.put(id, groupKey);
+		return group;
+	}
+
+	private void link(String memberKey, String groupKey) {
+		Set<String> groupKeys = groupsByMember.get(memberKey);
+		if(groupKeys == null) {
+			groupKeys = new HashSet<String>(4);
+			groupsByMember.put(memberKey, groupKeys);
+		}
+		groupKeys.add(groupKey);
+	}
+
+	private void unlink(String memberKey, String groupKey) {
+		Set<String> groupKeys = groupsByMember.get(memberKey);
+		if(groupKeys == null) return;
+		groupKeys.remove(groupKey);
+		if(groupKeys.isEmpty()) groupsByMember.remove(memberKey);
+	}
+}
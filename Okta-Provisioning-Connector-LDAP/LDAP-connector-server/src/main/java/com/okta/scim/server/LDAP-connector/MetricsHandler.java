@@ -0,0 +1,80 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.springframework.web.HttpRequestHandler;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves GET /metrics: every statistic in ConnectorMetrics as JSON, the same numbers the MXBeans publish.
+ * <pre>
+ * {"uptimeMillis":..., "metrics":{"scim.getUsers":{"unit":"ms","count":..,"errors":..,"mean":..,"p50":..,"p99":..,"max":..,"ratePerSecond":..}, ...}}
+ * </pre>
+ * Served by the dispatcher through the metricsHandler bean in dispatcher-servlet.xml, named /metrics. Only answers
+ * requests from this machine unless OPP.metrics.localOnly is false.
+ */
+public class MetricsHandler implements HttpRequestHandler {
+	private final JsonFactory jsonFactory = new JsonFactory();
+	private SCIMServiceImpl service;
+
+	public void setService(SCIMServiceImpl service) {
+		this.service = service;
+	}
+
+	@Override
+	public void handleRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if(service.isMetricsLocalOnly() && !isLoopback(request.getRemoteAddr())) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		if(!"GET".equals(request.getMethod())) {
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		ConnectorMetrics metrics = service.getMetrics();
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		JsonGenerator gen = jsonFactory.createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+		try {
+			gen.writeStartObject();
+			gen.writeNumberField("uptimeMillis", metrics.getUptimeMillis());
+			gen.writeObjectFieldStart("metrics");
+			List<ConnectorMetrics.StatMXBean> stats = metrics.getStats();
+			for(int i = 0; i < stats.size(); i++) {
+				ConnectorMetrics.StatMXBean stat = stats.get(i);
+				gen.writeObjectFieldStart(stat.getName());
+				gen.writeStringField("unit", stat.getUnit());
+				gen.writeNumberField("count", stat.getCount());
+				gen.writeNumberField("errors", stat.getErrorCount());
+				gen.writeNumberField("mean", stat.getMean());
+				gen.writeNumberField("p50", stat.getP50());
+				gen.writeNumberField("p99", stat.getP99());
+				gen.writeNumberField("max", stat.getMax());
+				gen.writeNumberField("ratePerSecond", stat.getRatePerSecond());
+				gen.writeEndObject();
+			}
+			gen.writeEndObject();
+			gen.writeEndObject();
+		} finally {
+			gen.close();
+		}
+	}
+
+	private static boolean isLoopback(String address) {
+		if(address == null) return false;
+		try {
+			//the remote address is numeric, so this does not go to DNS
+			return InetAddress.getByName(address).isLoopbackAddress();
+		} catch (UnknownHostException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,395 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * Server-side paged searches (RFC 2696) that line up with SCIM startIndex/count paging.
+ * <p/>
+ * Okta imports walk /Users and /Groups one page at a time with increasing startIndex. For each base/filter
+ * a cursor is kept between SCIM requests, holding the pooled connection and the paged results cookie, so
+ * every SCIM page only fetches startIndex..startIndex+count from the directory. A request that does not
+ * continue where the cursor stopped starts a fresh search and skips ahead to startIndex.
+ * <p/>
+ * Paged results cookies are only good on the server that issued them, so a cursor stays on the replica it
+ * started on.
+ * <p/>
+ * An idle cursor holds a pooled connection, so at most maxCursors are kept, fewer than the pool has connections,
+ * and the least recently used one is closed to make room. Cursors unused for cursorTimeoutMillis are closed in the
+ * background. A cursor closed before its search is done abandons the search on the server with a size 0 request.
+ */
+public class PagedSearchCursors {
+	private static final Logger LOGGER = Logger.getLogger(PagedSearchCursors.class);
+	//only the DN comes back when counting entries
+	private static final String[] NO_ATTRS = {"1.1"};
+	private static final int COUNT_PAGE_SIZE = 1000;
+
+	private final LdapTopology topology;
+	private final long cursorTimeoutMillis;
+	private final int maxCursors;
+	private final boolean countTotal;
+	//cursors that are not in use by a request right now, keyed by base and filter
+	private final Map<String, Cursor> cursors = new HashMap<String, Cursor>();
+	//closes cursors whose import stopped asking for pages
+	private final ScheduledExecutorService expirer;
+
+	/**
+	 * @param topology - servers the cursors borrow their connections from, the least busy replica is picked per cursor
+	 * @param cursorTimeoutMillis - cursors unused for longer than this are closed and their connection released
+	 * @param maxCursors - most idle cursors kept, each holds a pooled connection; 0 keeps none
+	 * @param countTotal - if true, a DN-only paged search counts the entries when a cursor starts so totalResults
+	 *                   is exact; otherwise the server's estimate is used, or a lower bound if there is none
+	 */
+	public PagedSearchCursors(LdapTopology topology, long cursorTimeoutMillis, int maxCursors, boolean countTotal) {
+		this.topology = topology;
+		this.cursorTimeoutMillis = cursorTimeoutMillis;
+		this.maxCursors = Math.max(0, maxCursors);
+		this.countTotal = countTotal;
+		long interval = Math.max(1000L, cursorTimeoutMillis / 2);
+		expirer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("paged-cursor-expirer"));
+		expirer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expireIdleCursors();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Fetches one SCIM page of entries.
+	 *
+	 * @param base - DN to search under
+	 * @param filter - LDAP filter
+	 * @param returningAttrs - attributes to fetch for each entry, null fetches all of them
+	 * @param startIndex - 1-based SCIM start index
+	 * @param count - maximum number of entries to return
+	 * @return the entries of the page and the total number of results
+	 * @throws NamingException
+	 */
+	public Page fetch(String base, String filter, String[] returningAttrs, long startIndex, int count) throws NamingException {
+		expireIdleCursors();
+		String key = base + "|" + filter;
+		Cursor cursor;
+		//take the cursor out of the map so only this request uses it
+		synchronized (cursors) {
+			cursor = cursors.remove(key);
+		}
+		if(cursor != null && cursor.nextIndex != startIndex) {
+			LogSF.debug(LOGGER, "[fetch] Cursor for {} is at {} but {} was requested, restarting search.", key, cursor.nextIndex, startIndex);
+			cursor.close();
+			cursor = null;
+		}
+		if(cursor == null) {
+			cursor = new Cursor(base, filter, returningAttrs);
+		}
+		boolean keep = false;
+		try {
+			if(startIndex > cursor.nextIndex) {
+				cursor.skip(startIndex - cursor.nextIndex, count);
+			}
+			List<Attributes> entries = cursor.read(count);
+			keep = !cursor.exhausted;
+			return new Page(entries, cursor.totalResults());
+		} catch (NamingException | RuntimeException e) {
+			cursor.broken = true;
+			throw e;
+		} finally {
+			if(keep) {
+				keep(key, cursor);
+			} else {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Puts a cursor back for the next page, closing the least recently used one if maxCursors are already kept.
+	 */
+	private void keep(String key, Cursor cursor) {
+		Cursor previous;
+		Cursor evicted = null;
+		synchronized (cursors) {
+			previous = cursors.remove(key);
+			if(cursors.size() >= maxCursors) {
+				for(Cursor idle : cursors.values()) {
+					if(evicted == null || idle.lastAccess < evicted.lastAccess) evicted = idle;
+				}
+				if(evicted != null) cursors.remove(evicted.key);
+			}
+			if(cursors.size() < maxCursors) cursors.put(key, cursor);
+			else evicted = cursor;
+		}
+		if(previous != null) previous.close();
+		if(evicted != null) {
+			LogSF.debug(LOGGER, "[keep] {} cursors open, closing the one for {} {}", maxCursors, evicted.base, evicted.filter);
+			evicted.close();
+		}
+	}
+
+	/**
+	 * Closes all idle cursors, releasing their connections.
+	 */
+	public void close() {
+		expirer.shutdownNow();
+		List<Cursor> open;
+		synchronized (cursors) {
+			open = new ArrayList<Cursor>(cursors.values());
+			cursors.clear();
+		}
+		for(Cursor cursor : open) cursor.close();
+	}
+
+	/**
+	 * Walks every entry under base that matches filter with a paged search on a pooled connection,
+	 * one page at a time, handing each entry to the handler as it arrives. Used when the whole result set
+	 * is needed but should not be held in memory at once.
+	 *
+	 * @param contextPool - pool to borrow the connection from
+	 * @param base - DN to search under
+	 * @param filter - LDAP filter
+	 * @param returningAttrs - attributes to fetch for each entry, null fetches all of them
+	 * @param pageSize - entries per LDAP page
+	 * @param handler - called for every entry, in the order the directory returns them
+	 * @return the number of entries handled
+	 * @throws NamingException
+	 */
+	public static long scan(LdapContextPool contextPool, String base, String filter, String[] returningAttrs, int pageSize,
+							EntryHandler handler) throws NamingException {
+		SearchControls controls = new SearchControls();
+		controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		controls.setReturningAttributes(returningAttrs);
+		byte[] cookie = null;
+		long total = 0;
+		LdapContext ctx = contextPool.borrow();
+		boolean broken = true;
+		try {
+			do {
+				ctx.setRequestControls(pagedControl(pageSize, cookie));
+				NamingEnumeration<SearchResult> results = ctx.search(base, filter, controls);
+				try {
+					while(results.hasMore()) {
+						handler.handle(results.next());
+						total++;
+					}
+				} finally {
+					results.close();
+				}
+				cookie = responseCookie(ctx, null);
+			} while(cookie != null && cookie.length > 0);
+			broken = false;
+		} finally {
+			if(broken) contextPool.invalidate(ctx);
+			else contextPool.release(ctx);
+		}
+		return total;
+	}
+
+	/**
+	 * Receives the entries of a scan.
+	 */
+	public interface EntryHandler {
+		void handle(SearchResult entry) throws NamingException;
+	}
+
+	private void expireIdleCursors() {
+		List<Cursor> expired = new ArrayList<Cursor>();
+		long now = System.currentTimeMillis();
+		synchronized (cursors) {
+			Iterator<Cursor> it = cursors.values().iterator();
+			while(it.hasNext()) {
+				Cursor cursor = it.next();
+				if(now - cursor.lastAccess > cursorTimeoutMillis) {
+					it.remove();
+					expired.add(cursor);
+				}
+			}
+		}
+		for(Cursor cursor : expired) {
+			LogSF.debug(LOGGER, "[expireIdleCursors] Closing idle cursor for {} {}", cursor.base, cursor.filter);
+			cursor.close();
+		}
+	}
+
+	private static byte[] responseCookie(LdapContext ctx, long[] resultSize) throws NamingException {
+		Control[] controls = ctx.getResponseControls();
+		if(controls != null) {
+			for(int i = 0; i < controls.length; i++) {
+				if(controls[i] instanceof PagedResultsResponseControl) {
+					PagedResultsResponseControl prrc = (PagedResultsResponseControl) controls[i];
+					if(resultSize != null) resultSize[0] = prrc.getResultSize();
+					return prrc.getCookie();
+				}
+			}
+		}
+		return null;
+	}
+
+	private static Control[] pagedControl(int pageSize, byte[] cookie) throws NamingException {
+		try {
+			return new Control[]{new PagedResultsControl(pageSize, cookie, Control.CRITICAL)};
+		} catch (IOException e) {
+			NamingException ne = new NamingException("Could not encode paged results control: " + e.getMessage());
+			ne.setRootCause(e);
+			throw ne;
+		}
+	}
+
+	/**
+	 * One SCIM page worth of directory entries.
+	 */
+	public static class Page {
+		private final List<Attributes> entries;
+		private final long totalResults;
+
+		private Page(List<Attributes> entries, long totalResults) {
+			this.entries = entries;
+			this.totalResults = totalResults;
+		}
+
+		public List<Attributes> getEntries() {
+			return entries;
+		}
+
+		public long getTotalResults() {
+			return totalResults;
+		}
+	}
+
+	private class Cursor {
+		private final String key;
+		private final String base;
+		private final String filter;
+		private final LdapContextPool pool;
+		private final LdapContext ctx;
+		private final SearchControls controls = new SearchControls();
+		private byte[] cookie;
+		//1-based SCIM index of the next entry the directory will return
+		private long nextIndex = 1;
+		private long counted = -1;
+		private long serverEstimate = 0;
+		private boolean exhausted = false;
+		private boolean broken = false;
+		private long lastAccess = System.currentTimeMillis();
+
+		private Cursor(String base, String filter, String[] returningAttrs) throws NamingException {
+			this.key = base + "|" + filter;
+			this.base = base;
+			this.filter = filter;
+			controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			controls.setReturningAttributes(returningAttrs);
+			final LdapContextPool[] picked = new LdapContextPool[1];
+			ctx = topology.read(null, new LdapTopology.Read<LdapContext>() {
+				public LdapContext run(LdapContextPool candidate) throws NamingException {
+					picked[0] = candidate;
+					return candidate.borrow();
+				}
+			});
+			pool = picked[0];
+			if(countTotal) {
+				try {
+					counted = count();
+				} catch (NamingException | RuntimeException e) {
+					pool.invalidate(ctx);
+					throw e;
+				}
+			}
+		}
+
+		private long count() throws NamingException {
+			SearchControls countControls = new SearchControls();
+			countControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+			countControls.setReturningAttributes(NO_ATTRS);
+			byte[] countCookie = null;
+			long total = 0;
+			do {
+				ctx.setRequestControls(pagedControl(COUNT_PAGE_SIZE, countCookie));
+				NamingEnumeration<SearchResult> results = ctx.search(base, filter, countControls);
+				try {
+					while(results.hasMore()) {
+						results.next();
+						total++;
+					}
+				} finally {
+					results.close();
+				}
+				countCookie = responseCookie(ctx, null);
+			} while(countCookie != null && countCookie.length > 0);
+			return total;
+		}
+
+		private List<Attributes> read(int count) throws NamingException {
+			List<Attributes> entries = new ArrayList<Attributes>(count);
+			//the server may hand back short pages, keep asking until the SCIM page is full
+			while(entries.size() < count && !exhausted) {
+				ctx.setRequestControls(pagedControl(count - entries.size(), cookie));
+				NamingEnumeration<SearchResult> results = ctx.search(base, filter, controls);
+				try {
+					while(results.hasMore()) {
+						entries.add(results.next().getAttributes());
+					}
+				} finally {
+					results.close();
+				}
+				long[] resultSize = new long[1];
+				cookie = responseCookie(ctx, resultSize);
+				if(resultSize[0] > 0) serverEstimate = resultSize[0];
+				exhausted = cookie == null || cookie.length == 0;
+			}
+			nextIndex += entries.size();
+			lastAccess = System.currentTimeMillis();
+			return entries;
+		}
+
+		private void skip(long entriesToSkip, int pageSize) throws NamingException {
+			LogSF.debug(LOGGER, "[skip] Skipping {} entries of {} {}", entriesToSkip, base, filter);
+			while(entriesToSkip > 0 && !exhausted) {
+				int size = (int) Math.min(entriesToSkip, (long) Math.max(pageSize, 1));
+				entriesToSkip -= read(size).size();
+			}
+		}
+
+		private long totalResults() {
+			if(counted >= 0) return counted;
+			if(serverEstimate > 0) return serverEstimate;
+			//no count available: report one more entry than read so far until the search is exhausted
+			return exhausted ? nextIndex - 1 : nextIndex;
+		}
+
+		private void close() {
+			if(!broken && !exhausted && cookie != null && cookie.length > 0) abandon();
+			if(broken) pool.invalidate(ctx);
+			else pool.release(ctx);
+		}
+
+		/**
+		 * Tells the server to drop the rest of the search, a size 0 request with the last cookie (RFC 2696 section 3).
+		 */
+		private void abandon() {
+			try {
+				ctx.setRequestControls(pagedControl(0, cookie));
+				ctx.search(base, filter, controls).close();
+			} catch (NamingException | RuntimeException e) {
+				LogSF.debug(LOGGER, "[abandon] Could not abandon paged search of {} {}: {}", base, filter, e.getMessage());
+				broken = true;
+			}
+		}
+	}
+}
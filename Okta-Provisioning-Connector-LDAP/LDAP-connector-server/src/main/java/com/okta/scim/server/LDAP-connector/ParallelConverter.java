@@ -0,0 +1,121 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+
+/**
+ * Converts a list of directory entries into SCIM resources on a dedicated, fixed size pool of threads.
+ * <p/>
+ * The entries are split into contiguous chunks, one task per chunk, and the results are put back together in the
+ * order of the entries so paging stays stable. Lists smaller than two chunks are converted on the calling thread.
+ * <p/>
+ * Every call is timed as "convert" in ConnectorMetrics, and its throughput recorded as "convert.entriesPerSecond".
+ */
+public class ParallelConverter {
+	private static final Logger LOGGER = Logger.getLogger(ParallelConverter.class);
+
+	private final ExecutorService executor;
+	private final int parallelism;
+	private final int minChunkSize;
+	private final ConnectorMetrics metrics;
+
+	/**
+	 * Turns one entry into a SCIM resource.
+	 */
+	public interface Converter<T> {
+		T convert(Attributes attrs) throws NamingException;
+	}
+
+	/**
+	 * @param parallelism - number of conversion threads
+	 * @param minChunkSize - smallest number of entries handed to one task
+	 * @param metrics - where conversions are timed
+	 */
+	public ParallelConverter(int parallelism, int minChunkSize, ConnectorMetrics metrics) {
+		this.metrics = metrics;
+		this.parallelism = Math.max(1, parallelism);
+		this.minChunkSize = Math.max(1, minChunkSize);
+		this.executor = Executors.newFixedThreadPool(this.parallelism, new DaemonThreadFactory("entry-conversion"));
+	}
+
+	/**
+	 * Converts every entry, keeping their order.
+	 *
+	 * @param entries - the entries to convert
+	 * @param converter - converts a single entry, called from several threads at once
+	 * @return the converted resources, in the order of entries
+	 * @throws NamingException if a conversion failed
+	 */
+	public <T> List<T> convertAll(List<Attributes> entries, Converter<T> converter) throws NamingException {
+		long start = System.nanoTime();
+		ConnectorMetrics.Timer timer = metrics.time("convert");
+		try {
+			List<T> results = convert(entries, converter);
+			long nanos = Math.max(1L, System.nanoTime() - start);
+			if(!entries.isEmpty()) metrics.record("convert.entriesPerSecond", "entries/s", entries.size() * 1000000000L / nanos);
+			return results;
+		} catch (NamingException e) {
+			throw timer.fail(e);
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Stops the conversion threads.
+	 */
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private <T> List<T> convert(final List<Attributes> entries, final Converter<T> converter) throws NamingException {
+		int chunkSize = Math.max(minChunkSize, (entries.size() + parallelism - 1) / parallelism);
+		if(parallelism == 1 || entries.size() < 2 * chunkSize) {
+			List<T> results = new ArrayList<T>(entries.size());
+			for(int i = 0; i < entries.size(); i++) results.add(converter.convert(entries.get(i)));
+			return results;
+		}
+		List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>();
+		for(int start = 0; start < entries.size(); start += chunkSize) {
+			final List<Attributes> chunk = entries.subList(start, Math.min(start + chunkSize, entries.size()));
+			futures.add(executor.submit(new Callable<List<T>>() {
+				public List<T> call() throws NamingException {
+					List<T> converted = new ArrayList<T>(chunk.size());
+					for(int i = 0; i < chunk.size(); i++) converted.add(converter.convert(chunk.get(i)));
+					return converted;
+				}
+			}));
+		}
+		LogSF.debug(LOGGER, "[convertAll] Converting {} entries in {} chunks.", entries.size(), futures.size());
+		List<T> results = new ArrayList<T>(entries.size());
+		try {
+			for(int i = 0; i < futures.size(); i++) {
+				results.addAll(futures.get(i).get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OnPremUserManagementException("o01234", "Interrupted while converting LDAP entries.", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof NamingException) throw (NamingException) e.getCause();
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new OnPremUserManagementException("o01234", e.getCause().getMessage(), e.getCause());
+		} finally {
+			for(int i = 0; i < futures.size(); i++) futures.get(i).cancel(true);
+		}
+		return results;
+	}
+}
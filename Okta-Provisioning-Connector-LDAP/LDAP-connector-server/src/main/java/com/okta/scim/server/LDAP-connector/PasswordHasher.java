@@ -0,0 +1,230 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.server.exception.OnPremUserManagementException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Hashes user passwords before they are written to userPassword, on a dedicated, fixed size pool of threads so a
+ * burst of password pushes only competes with other password pushes for CPU, not with the threads serving reads.
+ * <p/>
+ * The scheme is picked with ldap.password.scheme: plain (the password is written as sent, for directories that
+ * hash it themselves or need it in clear, like Active Directory), SSHA, SSHA512, PBKDF2, or the class name of a
+ * Scheme implementation. Every hashing thread keeps its own Scheme instance, and with it its own MessageDigest or
+ * SecretKeyFactory and SecureRandom. At most hashThreads + queueSize passwords are in the pool at once, callers past
+ * that wait for a slot.
+ * <p/>
+ * Every hash is timed as "password.hash" in ConnectorMetrics.
+ */
+public class PasswordHasher {
+	private static final Logger LOGGER = Logger.getLogger(PasswordHasher.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String scheme;
+	private final int saltBytes;
+	private final int iterations;
+	private final ConnectorMetrics metrics;
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final ThreadLocal<Scheme> schemes = new ThreadLocal<Scheme>() {
+		@Override
+		protected Scheme initialValue() {
+			try {
+				return newScheme();
+			} catch (Exception e) {
+				//the constructor already created one, so this doesn't happen
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * Turns a password into the value stored in userPassword. Instances are only used by one thread at a time, so
+	 * they can hold on to their digests. Custom schemes need a public no-arg constructor.
+	 */
+	public interface Scheme {
+		String hash(String password) throws GeneralSecurityException;
+	}
+
+	/**
+	 * @param scheme - plain, SSHA, SSHA512, PBKDF2 or the class name of a Scheme, from ldap.password.scheme
+	 * @param saltBytes - length of the random salt
+	 * @param iterations - PBKDF2 iterations
+	 * @param hashThreads - number of hashing threads
+	 * @param queueSize - passwords that may wait for a hashing thread before callers are held back
+	 * @param metrics - where hashes are timed
+	 * @throws ConfigurationException if the scheme is unknown or not supported by this JVM
+	 */
+	public PasswordHasher(String scheme, int saltBytes, int iterations, int hashThreads, int queueSize, ConnectorMetrics metrics) throws ConfigurationException {
+		this.scheme = scheme == null ? "plain" : scheme.trim();
+		this.saltBytes = Math.max(4, saltBytes);
+		this.iterations = Math.max(1, iterations);
+		this.metrics = metrics;
+		if(isPlain()) {
+			executor = null;
+			permits = null;
+			return;
+		}
+		try {
+			newScheme().hash("");
+		} catch (Exception e) {
+			throw new ConfigurationException("ldap.password.scheme " + this.scheme + " can't be used: " + e.getMessage(), e);
+		}
+		int threads = Math.max(1, hashThreads);
+		executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("password-hash"));
+		permits = new Semaphore(threads + Math.max(0, queueSize), true);
+		LogSF.info(LOGGER, "[PasswordHasher] Hashing passwords with {} on {} threads.", this.scheme, threads);
+	}
+
+	/**
+	 * Hashes a password on the hashing threads, waiting for the result.
+	 *
+	 * @param password - the password sent by Okta
+	 * @return the value for userPassword, the password itself with the plain scheme or if it is empty
+	 */
+	public String hash(final String password) {
+		if(executor == null || password == null || password.isEmpty()) return password;
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OnPremUserManagementException("o01234", "Interrupted while waiting to hash a password.", e);
+		}
+		try {
+			return executor.submit(new Callable<String>() {
+				public String call() throws GeneralSecurityException {
+					return hashNow(password);
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OnPremUserManagementException("o01234", "Interrupted while hashing a password.", e);
+		} catch (ExecutionException e) {
+			throw new OnPremUserManagementException("o01234", "Could not hash password: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Hashes a password on the calling thread.
+	 *
+	 * @param password - the password sent by Okta
+	 * @return the value for userPassword
+	 * @throws GeneralSecurityException
+	 */
+	public String hashNow(String password) throws GeneralSecurityException {
+		if(isPlain()) return password;
+		ConnectorMetrics.Timer timer = metrics.time("password.hash");
+		try {
+			return schemes.get().hash(password);
+		} catch (GeneralSecurityException e) {
+			throw timer.fail(e);
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			timer.stop();
+		}
+	}
+
+	/**
+	 * @return true if passwords are written as sent
+	 */
+	public boolean isPlain() {
+		return scheme.equalsIgnoreCase("plain");
+	}
+
+	/**
+	 * Stops the hashing threads.
+	 */
+	public void close() {
+		if(executor != null) executor.shutdownNow();
+	}
+
+	private Scheme newScheme() throws GeneralSecurityException, ReflectiveOperationException {
+		if(scheme.equalsIgnoreCase("SSHA")) return new SaltedDigest("{SSHA}", "SHA-1", saltBytes);
+		if(scheme.equalsIgnoreCase("SSHA512")) return new SaltedDigest("{SSHA512}", "SHA-512", saltBytes);
+		if(scheme.equalsIgnoreCase("PBKDF2")) return new Pbkdf2(iterations, saltBytes);
+		return Class.forName(scheme).asSubclass(Scheme.class).newInstance();
+	}
+
+	/**
+	 * {SSHA} and {SSHA512}: base 64 of digest(password + salt) followed by the salt.
+	 */
+	private static class SaltedDigest implements Scheme {
+		private final String prefix;
+		private final MessageDigest digest;
+		private final SecureRandom random = new SecureRandom();
+		private final byte[] salt;
+
+		SaltedDigest(String prefix, String algorithm, int saltBytes) throws GeneralSecurityException {
+			this.prefix = prefix;
+			this.digest = MessageDigest.getInstance(algorithm);
+			this.salt = new byte[saltBytes];
+		}
+
+		public String hash(String password) {
+			random.nextBytes(salt);
+			digest.reset();
+			digest.update(password.getBytes(UTF8));
+			digest.update(salt);
+			byte[] hash = digest.digest();
+			byte[] value = new byte[hash.length + salt.length];
+			System.arraycopy(hash, 0, value, 0, hash.length);
+			System.arraycopy(salt, 0, value, hash.length, salt.length);
+			return prefix + new String(Base64.encodeBase64(value), UTF8);
+		}
+	}
+
+	/**
+	 * {PBKDF2-SHA1}iterations$salt$hash with the adapted base 64 of OpenLDAP's pw-pbkdf2 module: '.' instead of '+'
+	 * and no padding. Java 7 only ships the SHA-1 variant of PBKDF2.
+	 */
+	private static class Pbkdf2 implements Scheme {
+		private static final int KEY_BITS = 160;
+		private final SecretKeyFactory factory;
+		private final SecureRandom random = new SecureRandom();
+		private final int iterations;
+		private final int saltBytes;
+
+		Pbkdf2(int iterations, int saltBytes) throws GeneralSecurityException {
+			this.factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+			this.iterations = iterations;
+			this.saltBytes = saltBytes;
+		}
+
+		public String hash(String password) throws GeneralSecurityException {
+			byte[] salt = new byte[saltBytes];
+			random.nextBytes(salt);
+			PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BITS);
+			try {
+				byte[] key = factory.generateSecret(spec).getEncoded();
+				return "{PBKDF2-SHA1}" + iterations + "$" + adaptedBase64(salt) + "$" + adaptedBase64(key);
+			} finally {
+				spec.clearPassword();
+			}
+		}
+
+		private static String adaptedBase64(byte[] bytes) {
+			String encoded = new String(Base64.encodeBase64(bytes), UTF8).replace('+', '.');
+			int end = encoded.length();
+			while(end > 0 && encoded.charAt(end - 1) == '=') end--;
+			return encoded.substring(0, end);
+		}
+	}
+}
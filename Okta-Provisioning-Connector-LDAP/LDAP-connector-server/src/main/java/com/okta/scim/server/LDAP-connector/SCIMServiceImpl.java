@@ -6,11 +6,8 @@ import com.okta.scim.server.exception.DuplicateGroupException;
 import com.okta.scim.server.exception.EntityNotFoundException;
 import com.okta.scim.server.exception.OnPremUserManagementException;
 import com.okta.scim.util.exception.InvalidDataTypeException;
-import com.okta.scim.server.service.SCIMOktaConstants;
 import com.okta.scim.server.service.SCIMService;
-import com.okta.scim.util.model.Email;
 import com.okta.scim.util.model.Membership;
-import com.okta.scim.util.model.Name;
 import com.okta.scim.util.model.PaginationProperties;
 import com.okta.scim.util.model.SCIMFilter;
 import com.okta.scim.util.model.SCIMFilterAttribute;
@@ -20,16 +17,12 @@ import com.okta.scim.util.model.SCIMResource;
 import com.okta.scim.util.model.SCIMGroupQueryResponse;
 import com.okta.scim.util.model.SCIMUser;
 import com.okta.scim.util.model.SCIMUserQueryResponse;
-import com.okta.scim.util.model.PhoneNumber;
 
+import org.apache.log4j.LogSF;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.JsonNode;
 import org.springframework.util.StringUtils;
-import org.springframework.ldap.core.DistinguishedName;
-import org.springframework.ldap.core.LdapRdn;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.PropertiesConfiguration;
 import org.apache.commons.configuration.ConfigurationException;
 
@@ -38,43 +31,50 @@ import java.lang.Thread;
 import java.lang.Object;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.io.PrintWriter;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.InputStream;
 import java.util.Properties;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Iterator;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
-import java.util.NoSuchElementException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.io.UnsupportedEncodingException;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.Attribute;
-import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchResult;
 import javax.naming.directory.InvalidAttributeValueException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
-import javax.naming.Context;
+import javax.naming.directory.NoSuchAttributeException;
+import javax.naming.directory.SchemaViolationException;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
 import javax.naming.ldap.Rdn;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.NamingException;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.xml.parsers.SAXParser;
 
 public class SCIMServiceImpl implements SCIMService {
@@ -82,31 +82,9 @@ public class SCIMServiceImpl implements SCIMService {
 	private String usersFilePath;
 	//Absolute path for groups.json set in the dispatcher-servlet.xml
 	private String groupsFilePath;
-	//Ldap settings
-	private String ldapBaseDn;
-	private String ldapGroupDn;
-	private String ldapUserDn;
-	private String ldapUserPre;
-	private String ldapGroupPre;
-	private String ldapUserFilter;
-	private String ldapGroupFilter;
-	private String ldapInitialContextFactory;
-	private String ldapUrl;
-	private String ldapSecurityAuthentication;
-	private String ldapSecurityPrincipal;
-	private String ldapSecurityCredentials;
-	private String[] ldapUserClass;
-	private String[] ldapGroupClass;
-	private List<String> usernameWhitelist;
-	private boolean useWhitelist;
-	private boolean useEntireUsername;
-	private Map<String, String> ldapUserCore = new HashMap<String, String>();
-	private Map<String, String[]> ldapUserCustom = new HashMap<String, String[]>();
-	private Map<String, String> ldapGroupCore = new HashMap<String, String>();
+	private final AtomicLong payloadSamples = new AtomicLong();
 	private String USER_RESOURCE = "user";
 	private String GROUP_RESOURCE = "group";
-	//This should be the name of the App you created. On the Okta URL for the App, you can find this name
-	private String appName;
 	//Field names for the custom properties
 	private static final String CUSTOM_SCHEMA_PROPERTY_IS_ADMIN = "isAdmin";
 	private static final String CUSTOM_SCHEMA_PROPERTY_IS_OKTA = "isOkta";
@@ -116,94 +94,451 @@ public class SCIMServiceImpl implements SCIMService {
 	private static final Logger LOGGER = Logger.getLogger(SCIMServiceImpl.class);
 	//properties file stored in /Okta-Provisioning-Connector-SDK/example-server/src/main/resources
 	private static final String CONF_FILENAME = "connector.properties";
+	//objectClass is only written when an entry is created
+	private static final List<String> OBJECT_CLASS_ATTR = Collections.singletonList("objectClass");
+	//asks for no attributes, only the DNs
+	private static final String[] NO_ATTRS = {"1.1"};
+	//members remembered while streaming groups, bounded so memory does not grow with the directory
+	private static final int STREAMING_MEMBER_CACHE_SIZE = 10000;
 
-	private Map<String, SCIMUser> userMap = new HashMap<String, SCIMUser>();
-	private Map<String, SCIMGroup> groupMap = new HashMap<String, SCIMGroup>();
+	//Latency and size statistics, see MetricsHandler
+	private ConnectorMetrics metrics;
+	//Writes waiting for LDAP to come back, null unless ldap.journal.enabled
+	private WriteJournal writeJournal;
 	private int nextUserId;
 	private int nextGroupId;
-	private String userCustomUrn;
 	private boolean useFilePersistence = true;
-	private Hashtable env = new Hashtable(11);
+	private ExecutorService memberValidationExecutor;
+	//runs the operations of /Bulk requests, see BulkHandler
+	private ExecutorService bulkExecutor;
+	private ParallelConverter parallelConverter;
+	//bounds the member lookup searches running at once across all conversion threads
+	private Semaphore memberLookupPermits;
+	//hashes passwords off the request threads, see ldap.password.scheme
+	private PasswordHasher passwordHasher;
+	//the settings and LDAP resources new requests use, replaced as a whole when connector.properties changes
+	private volatile Snapshot current;
+	//the snapshot the request running on this thread started with
+	private final ThreadLocal<Snapshot> pinnedSnapshot = new ThreadLocal<Snapshot>();
+	//connector.properties on disk, null if it was loaded from somewhere that can't be watched
+	private File configFile;
+	private long configLastModified;
+	private long configLength;
+	//checks connector.properties for changes and closes what replaced snapshots no longer use
+	private ScheduledExecutorService configWatcher;
+
+	/**
+	 * Settings read from connector.properties together with the LDAP resources built for them. A request pins the
+	 * snapshot it starts with and uses it until it is done, even if a reload has swapped in another one meanwhile.
+	 * The resources a replaced snapshot doesn't share with its successor are closed once its last request is done.
+	 */
+	private static class Snapshot {
+		final ConnectorConfig config;
+		final LdapTopology topology;
+		//the primary's pool, every write goes through it
+		final LdapContextPool contextPool;
+		final PagedSearchCursors pagedSearches;
+		//DNs of users and groups by id, used when the directory cache index isn't loaded
+		final DnResolver dnResolver;
+		//groups of every user, fed by the group reads and writes made with this snapshot's mappings
+		final MembershipIndex membershipIndex;
+		//In-memory mirror of the directory, null unless ldap.cache.enabled. Set once, before the snapshot is in use
+		DirectoryCache directoryCache;
+		//requests that pinned this snapshot and are not done yet
+		final AtomicInteger inFlight = new AtomicInteger();
+
+		Snapshot(ConnectorConfig config, LdapTopology topology, PagedSearchCursors pagedSearches, DnResolver dnResolver,
+				MembershipIndex membershipIndex) {
+			this.config = config;
+			this.topology = topology;
+			this.contextPool = topology.getPrimary();
+			this.pagedSearches = pagedSearches;
+			this.dnResolver = dnResolver;
+			this.membershipIndex = membershipIndex;
+		}
+	}
 
 	@PostConstruct
 	public void afterCreation() throws Exception {
 		LOGGER.info("[afterCreation] Initializing connector...");
-		initLdapVars();
+		ConnectorConfig config = loadConfig();
 		LOGGER.info("[afterCreation] Imported config from connector.properties.");
-		userCustomUrn = SCIMOktaConstants.CUSTOM_URN_PREFIX + appName + SCIMOktaConstants.CUSTOM_URN_SUFFIX + UD_SCHEMA_NAME;
-		env.put(Context.INITIAL_CONTEXT_FACTORY, ldapInitialContextFactory);
-		env.put(Context.PROVIDER_URL, ldapUrl);
-		env.put(Context.SECURITY_AUTHENTICATION, ldapSecurityAuthentication);
-		env.put(Context.SECURITY_PRINCIPAL, ldapSecurityPrincipal);
-		env.put(Context.SECURITY_CREDENTIALS, ldapSecurityCredentials);
+		metrics = new ConnectorMetrics(config.metricsJmx);
+		passwordHasher = new PasswordHasher(config.ldapPasswordScheme, config.ldapPasswordSaltBytes, config.ldapPasswordPbkdf2Iterations,
+				config.ldapPasswordHashThreads, config.ldapPasswordHashQueueSize, metrics);
+		memberValidationExecutor = Executors.newFixedThreadPool(config.ldapMemberValidationThreads, new DaemonThreadFactory("member-validation"));
+		bulkExecutor = Executors.newFixedThreadPool(config.bulkThreads, new DaemonThreadFactory("bulk"));
+		parallelConverter = new ParallelConverter(config.ldapConversionThreads, config.ldapConversionMinChunkSize, metrics);
+		memberLookupPermits = new Semaphore(config.ldapMemberLookupConcurrency, true);
+		current = buildSnapshot(config, null);
+		if(config.ldapJournalEnabled) {
+			writeJournal = new WriteJournal(new File(config.ldapJournalPath), config.ldapJournalSizeMB * 1024 * 1024,
+					config.ldapJournalReplayIntervalSeconds * 1000L, new WriteJournal.Applier() {
+						public void apply(WriteJournal.Entry entry) throws NamingException {
+							Snapshot pinned = pin();
+							try {
+								applyJournalEntry(entry);
+							} finally {
+								unpin(pinned);
+							}
+						}
+					});
+			writeJournal.open();
+		}
+		configWatcher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("config-reload"));
+		if(configFile != null && config.configReloadIntervalSeconds > 0) {
+			configWatcher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					if(configFile.lastModified() != configLastModified || configFile.length() != configLength) reloadConfig();
+				}
+			}, config.configReloadIntervalSeconds, config.configReloadIntervalSeconds, TimeUnit.SECONDS);
+			LogSF.info(LOGGER, "[afterCreation] Watching {} for changes every {}s.", configFile, config.configReloadIntervalSeconds);
+		}
 		nextUserId = 100;
 		nextGroupId = 1000;
 		LOGGER.info("Connector initialized and waiting for tasks.");
 	}
 
+	@PreDestroy
+	public void beforeDestruction() {
+		LOGGER.info("[beforeDestruction] Shutting down connector...");
+		if(configWatcher != null) configWatcher.shutdownNow();
+		if(writeJournal != null) writeJournal.close();
+		if(memberValidationExecutor != null) memberValidationExecutor.shutdownNow();
+		if(bulkExecutor != null) bulkExecutor.shutdownNow();
+		if(parallelConverter != null) parallelConverter.close();
+		if(passwordHasher != null) passwordHasher.close();
+		if(current != null) closeSnapshot(current, null);
+		if(metrics != null) metrics.close();
+	}
+
+	/**
+	 * Reads connector.properties again and swaps in the new settings. Nothing changes if the file doesn't validate,
+	 * the running settings stay in use. Requests already running finish with the settings they started with.
+	 * Connection pools are kept if the LDAP connection settings didn't change, and the directory cache if nothing
+	 * it depends on did. Thread pool sizes, the journal, JMX and password hashing settings need a restart.
+	 * <p/>
+	 * Called when the file changes, every OPP.config.reloadIntervalSeconds at most.
+	 *
+	 * @return true if the new settings are in use
+	 */
+	public synchronized boolean reloadConfig() {
+		ConnectorMetrics.Timer timer = metrics.time("config.reload");
+		try {
+			Snapshot previous = current;
+			ConnectorConfig config;
+			try {
+				config = loadConfig();
+			} catch (ConfigurationException e) {
+				LOGGER.error("[reloadConfig] connector.properties is not valid, keeping the running configuration: " + e.getMessage());
+				timer.fail(e);
+				return false;
+			}
+			List<String> restartOnly = config.changedRestartSettings(previous.config);
+			if(!restartOnly.isEmpty()) {
+				LOGGER.warn("[reloadConfig] " + restartOnly + " changed, these only take effect when the connector is restarted.");
+			}
+			Snapshot next = buildSnapshot(config, previous);
+			current = next;
+			LogSF.info(LOGGER, "[reloadConfig] Reloaded connector.properties, {} connection pools, {} directory cache.",
+					next.topology == previous.topology ? "kept" : "new", next.directoryCache == previous.directoryCache ? "kept" : "new");
+			retire(previous, next);
+			return true;
+		} catch (RuntimeException e) {
+			//not rethrown, it would stop the watcher
+			LOGGER.error("[reloadConfig] Could not apply connector.properties, keeping the running configuration: " + e.getMessage(), e);
+			timer.fail(e);
+			return false;
+		} finally {
+			timer.stop();
+		}
+	}
+
 	/**
-	 * Helper function that pulls data from properties file.
+	 * Helper function that reads and validates connector.properties, remembering where it is so it can be watched.
 	 *
+	 * @return the settings
 	 * @throws ConfigurationException
 	 */
-	private void initLdapVars() throws ConfigurationException {
-		Configuration config;
-		String[] userCoreMapHolder;
-		String[] userCustomMapHolder;
-		String[] groupCoreMapHolder;
-		Iterator<String> userCustomIt;
-		Iterator<String> userCoreIt;
-		Iterator<String> groupCoreIt;
-		String customKey;
-		String coreKey;
-		String groupCoreKey;
-		//TODO: Better way to do this mapping would be unidirectional mappings vs bidirectional
-		//Connector -> LDAP and LDAP -> Connector would solve problem of changing mappings while
-		//entries still exist in LDAP
+	private ConnectorConfig loadConfig() throws ConfigurationException {
+		PropertiesConfiguration properties = configFile != null ? new PropertiesConfiguration(configFile) : new PropertiesConfiguration(CONF_FILENAME);
+		if(configFile == null) configFile = properties.getFile();
+		if(configFile != null) {
+			//remembered even if the file doesn't validate, so a broken file is reported once rather than on every check
+			configLastModified = configFile.lastModified();
+			configLength = configFile.length();
+		}
+		return new ConnectorConfig(properties, UD_SCHEMA_NAME);
+	}
+
+	/**
+	 * Helper function that builds the LDAP resources for a configuration, reusing those of the previous snapshot
+	 * that don't depend on what changed.
+	 *
+	 * @param config - the settings
+	 * @param previous - the snapshot in use, null when the connector starts
+	 * @return the new snapshot, with its directory cache loading in the background
+	 */
+	private Snapshot buildSnapshot(ConnectorConfig config, Snapshot previous) {
+		boolean sameConnection = previous != null && config.changedConnectionSettings(previous.config).isEmpty();
+		//remembered DNs are checked before they are used, they stay valid whatever else changed
+		DnResolver dnResolver = previous != null && previous.dnResolver.getMaxSize() == config.ldapDnCacheSize ? previous.dnResolver
+				: new DnResolver(config.ldapDnCacheSize);
+		//memberships are keyed by the DNs the mappings build, they only carry over if those didn't change
+		MembershipIndex membershipIndex = previous != null && config.changedCacheSettings(previous.config).isEmpty() ? previous.membershipIndex
+				: new MembershipIndex(config.ldapMembershipIndexTtlMinutes * 60000L);
+		Snapshot snapshot;
+		if(sameConnection) {
+			snapshot = new Snapshot(config, previous.topology, previous.pagedSearches, dnResolver, membershipIndex);
+		} else {
+			LdapTopology topology = initTopology(config);
+			snapshot = new Snapshot(config, topology, new PagedSearchCursors(topology, config.ldapPagedResultsCursorTimeoutMillis,
+					config.ldapPagedResultsMaxCursors, config.ldapPagedResultsCountTotal), dnResolver, membershipIndex);
+		}
+		if(!config.ldapCacheEnabled) return snapshot;
+		if(sameConnection && previous.directoryCache != null && config.changedCacheSettings(previous.config).isEmpty()) {
+			snapshot.directoryCache = previous.directoryCache;
+			return snapshot;
+		}
+		final Snapshot owner = snapshot;
+		DirectoryCache.Mode cacheMode = DirectoryCache.Mode.fromConfig(config.ldapCacheMode);
+		//the index only needs the id and name, the member lookups read the same attributes
+		final boolean indexOnly = cacheMode == DirectoryCache.Mode.INDEX;
+		snapshot.directoryCache = new DirectoryCache(config.ldapEnv(config.primaryUrl), snapshot.contextPool, new DirectoryCache.EntryConverter() {
+			//the cache converts with the settings it was built for, whatever the current snapshot is
+			public SCIMUser toUser(Attributes attrs) throws NamingException {
+				Snapshot outer = pinTo(owner);
+				try {
+					//in index mode the entries don't have the memberOf values
+					return constructUserFromAttrs(attrs, !indexOnly);
+				} finally {
+					pinnedSnapshot.set(outer);
+				}
+			}
+
+			public SCIMGroup toGroup(Attributes attrs) throws NamingException {
+				Snapshot outer = pinTo(owner);
+				try {
+					SCIMGroup group = constructGroupFromAttrs(attrs);
+					//in index mode the entries don't have the member values
+					if(!indexOnly) indexGroup(group, attrs);
+					return group;
+				} finally {
+					pinnedSnapshot.set(outer);
+				}
+			}
+		}, config.ldapUserDn + config.ldapBaseDn, config.ldapUserFilter, indexOnly ? config.memberReturningAttrs : config.userReturningAttrs,
+				config.ldapGroupDn + config.ldapBaseDn, config.ldapGroupFilter, indexOnly ? config.groupIndexAttrs : config.groupReturningAttrs,
+				DirectoryCache.SyncMode.fromConfig(config.ldapCacheSync), config.ldapCachePollIntervalSeconds * 1000L,
+				config.ldapCacheFullResyncMinutes * 60000L, cacheMode, config.ldapCacheOffHeap, initDirectorySnapshot(config));
 		try {
-			config = new PropertiesConfiguration(CONF_FILENAME);
-			appName = config.getString("OPP.appName");
-			ldapBaseDn = config.getString("ldap.baseDn");
-			ldapGroupDn = config.getString("ldap.groupDn");
-			ldapUserDn = config.getString("ldap.userDn");
-			ldapGroupPre = config.getString("ldap.groupPre");
-			ldapUserPre = config.getString("ldap.userPre");
-			ldapUserFilter = config.getString("ldap.userFilter");
-			ldapGroupFilter = config.getString("ldap.groupFilter");
-			ldapInitialContextFactory = config.getString("ldap.initialContextFactory");
-			ldapUrl = config.getString("ldap.url");
-			ldapSecurityAuthentication = config.getString("ldap.securityAuthentication");
-			ldapSecurityPrincipal = config.getString("ldap.securityPrincipal");
-			ldapSecurityCredentials = config.getString("ldap.securityCredentials");
-			ldapUserClass = config.getStringArray("ldap.userClass");
-			ldapGroupClass = config.getStringArray("ldap.groupClass");
-			userCustomIt = config.getKeys("OPP.userCustomMap");
-			userCoreIt = config.getKeys("OPP.userCoreMap");
-			groupCoreIt = config.getKeys("OPP.groupCoreMap");
-			String[] whitelist = {"okta.com"};
-			usernameWhitelist = Arrays.asList(config.getStringArray("OPP.whitelistForUsernames"));//Arrays.asList(whitelist);
-			useWhitelist = Boolean.parseBoolean(config.getString("OPP.whitelist"));//false
-			useEntireUsername = Boolean.parseBoolean(config.getString("ldap.useEntireUsername"));//true
-			//TODO: can put this in a function or something, maybe
-			while(userCustomIt.hasNext()) {
-				customKey = userCustomIt.next();
-				userCustomMapHolder = config.getStringArray(customKey);
-				ldapUserCustom.put(userCustomMapHolder[0].trim(), Arrays.copyOfRange(userCustomMapHolder, 1, userCustomMapHolder.length));
-			}
-			while(userCoreIt.hasNext()) {
-				coreKey = userCoreIt.next();
-				userCoreMapHolder = config.getStringArray(coreKey);
-				ldapUserCore.put(userCoreMapHolder[0].trim(), userCoreMapHolder[1].trim());
-			}
-			while(groupCoreIt.hasNext()) {
-				groupCoreKey = groupCoreIt.next();
-				groupCoreMapHolder = config.getStringArray(groupCoreKey);
-				ldapGroupCore.put(groupCoreMapHolder[0].trim(), groupCoreMapHolder[1].trim());
-			}
-		} catch (ConfigurationException | NoSuchElementException e) {
-			handleGeneralException(e);
+			snapshot.directoryCache.start();
+		} catch (RuntimeException e) {
+			snapshot.directoryCache.stop(false);
+			snapshot.directoryCache = null;
+			if(!sameConnection) closeSnapshot(snapshot, null);
 			throw e;
 		}
+		LOGGER.info("[buildSnapshot] Loading directory cache in the background.");
+		return snapshot;
+	}
+
+	/**
+	 * @param config - the settings
+	 * @return where the directory cache is saved between restarts, null if ldap.cache.snapshotPath is not set
+	 */
+	private DirectorySnapshot initDirectorySnapshot(ConnectorConfig config) {
+		if(config.ldapCacheSnapshotPath == null || config.ldapCacheSnapshotPath.trim().isEmpty()) return null;
+		//ldap.baseDn starts with the comma it is appended with
+		String namingContext = config.ldapBaseDn.startsWith(",") ? config.ldapBaseDn.substring(1) : config.ldapBaseDn;
+		return new DirectorySnapshot(new File(config.ldapCacheSnapshotPath.trim()), namingContext.isEmpty() ? null : namingContext,
+				config.ldapCacheSnapshotIntervalMinutes * 60000L);
+	}
+
+	/**
+	 * Helper function that opens a connection pool for every server in ldap.servers, or for ldap.url alone if
+	 * there are none.
+	 *
+	 * @param config - the settings
+	 * @return the topology
+	 */
+	private LdapTopology initTopology(ConnectorConfig config) {
+		LdapContextPool primary = new LdapContextPool(config.ldapEnv(config.primaryUrl), config.ldapPoolMinSize, config.ldapPoolMaxSize,
+				config.ldapPoolMaxIdleMillis, config.ldapPoolBorrowTimeoutMillis, config.ldapPoolValidateOnBorrow,
+				config.ldapPoolEvictionIntervalMillis, metrics);
+		List<LdapContextPool> replicas = new ArrayList<LdapContextPool>(config.replicaUrls.size());
+		for(int i = 0; i < config.replicaUrls.size(); i++) {
+			replicas.add(new LdapContextPool(config.ldapEnv(config.replicaUrls.get(i)), config.ldapPoolMinSize, config.ldapPoolMaxSize,
+					config.ldapPoolMaxIdleMillis, config.ldapPoolBorrowTimeoutMillis, config.ldapPoolValidateOnBorrow,
+					config.ldapPoolEvictionIntervalMillis, metrics));
+		}
+		LogSF.info(LOGGER, "[initTopology] Primary {}, replicas {}", config.primaryUrl, config.replicaUrls);
+		return new LdapTopology(primary, replicas, config.ldapReadYourWritesMillis, config.ldapReplicaRetryMillis);
+	}
+
+	/**
+	 * Helper function that closes what a replaced snapshot doesn't share with its successor, once the requests
+	 * that pinned it are done. Checks again every second until then.
+	 *
+	 * @param previous - the replaced snapshot
+	 * @param next - the snapshot that replaced it
+	 */
+	private void retire(final Snapshot previous, final Snapshot next) {
+		if(previous.inFlight.get() > 0) {
+			configWatcher.schedule(new Runnable() {
+				public void run() {
+					retire(previous, next);
+				}
+			}, 1, TimeUnit.SECONDS);
+			return;
+		}
+		closeSnapshot(previous, next);
+	}
+
+	/**
+	 * @param snapshot - snapshot to close
+	 * @param next - its successor, whose resources are left open, null to close everything
+	 */
+	private void closeSnapshot(Snapshot snapshot, Snapshot next) {
+		//a replaced cache doesn't save, the snapshot belongs to the one replacing it
+		if(snapshot.directoryCache != null && (next == null || snapshot.directoryCache != next.directoryCache)) snapshot.directoryCache.stop(next == null);
+		if(next == null || snapshot.topology != next.topology) {
+			snapshot.pagedSearches.close();
+			snapshot.topology.close();
+		}
+	}
+
+	/**
+	 * Helper function that pins the current snapshot to the calling thread for the request it is starting. Calls
+	 * made while a snapshot is already pinned, like a request calling another public method, keep that one.
+	 *
+	 * @return what to hand to unpin when the request is done, null if the thread already had a snapshot
+	 */
+	private Snapshot pin() {
+		if(pinnedSnapshot.get() != null) return null;
+		while(true) {
+			Snapshot snapshot = current;
+			snapshot.inFlight.incrementAndGet();
+			//a reload may have swapped it out and started closing it before it was counted
+			if(snapshot == current) {
+				pinnedSnapshot.set(snapshot);
+				return snapshot;
+			}
+			snapshot.inFlight.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @param pinned - what pin returned
+	 */
+	private void unpin(Snapshot pinned) {
+		if(pinned == null) return;
+		pinnedSnapshot.remove();
+		pinned.inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Helper function that pins a snapshot to a pool thread doing work for a request that pinned it.
+	 *
+	 * @param snapshot - the request's snapshot
+	 * @return what was pinned before, to put back with pinnedSnapshot.set
+	 */
+	private Snapshot pinTo(Snapshot snapshot) {
+		Snapshot outer = pinnedSnapshot.get();
+		pinnedSnapshot.set(snapshot);
+		return outer;
+	}
+
+	/**
+	 * Helper function that makes a converter run with the calling request's snapshot on the conversion threads.
+	 *
+	 * @param converter - the converter
+	 * @return the converter, pinned to the request's snapshot
+	 */
+	private <T> ParallelConverter.Converter<T> pinned(final ParallelConverter.Converter<T> converter) {
+		final Snapshot snapshot = snapshot();
+		return new ParallelConverter.Converter<T>() {
+			public T convert(Attributes attrs) throws NamingException {
+				Snapshot outer = pinTo(snapshot);
+				try {
+					return converter.convert(attrs);
+				} finally {
+					pinnedSnapshot.set(outer);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the snapshot of the request running on this thread, or the current one outside of requests
+	 */
+	private Snapshot snapshot() {
+		Snapshot pinned = pinnedSnapshot.get();
+		return pinned != null ? pinned : current;
+	}
+
+	private ConnectorConfig config() {
+		return snapshot().config;
+	}
+
+	private DirectoryCache directoryCache() {
+		return snapshot().directoryCache;
+	}
+
+	private LdapTopology topology() {
+		return snapshot().topology;
+	}
+
+	private LdapContextPool contextPool() {
+		return snapshot().contextPool;
+	}
+
+	private PagedSearchCursors pagedSearches() {
+		return snapshot().pagedSearches;
+	}
+
+	private DnResolver dnResolver() {
+		return snapshot().dnResolver;
+	}
+
+	private MembershipIndex membershipIndex() {
+		return snapshot().membershipIndex;
+	}
+
+	/**
+	 * Pool that hands out the bound connections to the primary, exposed so its stats can be inspected.
+	 *
+	 * @return the primary's connection pool
+	 */
+	public LdapContextPool getContextPool() {
+		return current.contextPool;
+	}
+
+	/**
+	 * The servers the connector talks to, exposed so the replicas' pool stats can be inspected.
+	 *
+	 * @return the topology
+	 */
+	public LdapTopology getTopology() {
+		return current.topology;
+	}
+
+	/**
+	 * Latency and size statistics of the connector, served by MetricsHandler.
+	 *
+	 * @return the metrics
+	 */
+	public ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Whether MetricsHandler only answers requests from this machine, OPP.metrics.localOnly.
+	 *
+	 * @return true if remote requests are refused
+	 */
+	public boolean isMetricsLocalOnly() {
+		return config().metricsLocalOnly;
 	}
 
 	/**
@@ -251,42 +586,74 @@ public class SCIMServiceImpl implements SCIMService {
 	 */
 	@Override
 	public SCIMUser createUser(SCIMUser user) throws OnPremUserManagementException {
-		String id = generateNextId(USER_RESOURCE);
-		String dnUsername;
-		String[] usernameSplit = user.getUserName().split("@");
-		user.setId(id);
-		LOGGER.info("[createUser] Creating User: " + user.getName().getFormattedName());
-		if (userMap == null) {
-			//TODO: error code
-			throw new OnPremUserManagementException("o01234", "Cannot create the user. The userMap is null", "http://some-help-url", null);
-		}
-		//TODO: throw in helper
-		if(usernameSplit.length != 2) {
-			//TODO: error code
-			LOGGER.warn("[createUser] Username: " +user.getUserName() + " can only contain one @.");
-			throw new OnPremUserManagementException("o01234", "Username can only contain one @.");
-		}
-		if(useWhitelist && (!usernameWhitelist.contains(usernameSplit[1]))) {
-			//TODO: error code
-			LOGGER.warn("[createUser] Username: " +user.getUserName() + " is not in the whitelist.");
-			throw new OnPremUserManagementException("o01234", "Username domain is not in whitelist.");
+		ConnectorMetrics.Timer timer = metrics.time("scim.createUser");
+		Snapshot pinned = pin();
+		ConnectorConfig config = config();
+		try {
+			String id = generateNextId(USER_RESOURCE);
+			String dnUsername;
+			String[] usernameSplit = user.getUserName().split("@");
+			user.setId(id);
+			LogSF.info(LOGGER, "[createUser] Creating User: {}", user.getUserName());
+			//TODO: throw in helper
+			if(usernameSplit.length != 2) {
+				//TODO: error code
+				LOGGER.warn("[createUser] Username: " +user.getUserName() + " can only contain one @.");
+				throw new OnPremUserManagementException("o01234", "Username can only contain one @.");
+			}
+			if(config.useWhitelist && (!config.usernameWhitelist.contains(usernameSplit[1]))) {
+				//TODO: error code
+				LOGGER.warn("[createUser] Username: " +user.getUserName() + " is not in the whitelist.");
+				throw new OnPremUserManagementException("o01234", "Username domain is not in whitelist.");
+			}
+			dnUsername = getUserDnName(user.getUserName());
+			WriteJournal.Entry journalEntry = null;
+			try {
+				Attributes attrs = constructAttrsFromUser(user, false);
+				String dn = config.ldapUserPre + dnUsername + "," + config.ldapUserDn + config.ldapBaseDn;
+				journalEntry = WriteJournal.Entry.createUser(id, dn, attrs);
+				applyCreateUser(id, dn, attrs);
+				LogSF.debug(LOGGER, "[createUser] User {} successfully inserted into Directory Service.", user.getUserName());
+			} catch (NamingException | InvalidDataTypeException e) {
+				if(e instanceof NamingException && journalOnOutage(journalEntry, (NamingException) e)) return user;
+				handleGeneralException(e);
+				LOGGER.error(e.getMessage());
+				//TODO: error code
+				throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			}
+			return user;
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			unpin(pinned);
+			timer.stop();
 		}
-		dnUsername = getUserDnName(user.getUserName());
+	}
+
+	/**
+	 * Helper function that adds a new user entry to LDAP.
+	 *
+	 * @param id - id of the new user
+	 * @param dn - DN of the new user
+	 * @param attrs - attributes of the new user
+	 * @throws NamingException
+	 */
+	private void applyCreateUser(String id, String dn, Attributes attrs) throws NamingException {
+		DirectoryCache directoryCache = directoryCache();
+		LdapContextPool contextPool = contextPool();
+		LdapContext ctx = contextPool.borrow();
+		NamingException failure = null;
 		try {
-			LdapContext ctx = new InitialLdapContext(env, null);
-			Attributes attrs = constructAttrsFromUser(user, false);
-			Name fullName = user.getName();
-			String dn = ldapUserPre + dnUsername + "," + ldapUserDn + ldapBaseDn;
 			ctx.createSubcontext(dn, attrs);
-			ctx.close();
-			LOGGER.debug("[createUser] User " + user.getName().getFormattedName() + " successfully inserted into Directory Service.");
-		} catch (NamingException | InvalidDataTypeException e) {
-			handleGeneralException(e);
-			LOGGER.error(e.getMessage());
-			//TODO: error code
-			throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+		} catch (NamingException e) {
+			failure = e;
+			throw e;
+		} finally {
+			contextPool.release(ctx, failure);
 		}
-		return user;
+		noteUserWrite(id, attrs);
+		dnResolver().put("user:" + id, dn);
+		if(directoryCache != null) directoryCache.refreshUser(dn);
 	}
 
 	/**
@@ -305,68 +672,115 @@ public class SCIMServiceImpl implements SCIMService {
 	 * @throws OnPremUserManagementException
 	 */
 	public SCIMUser updateUser(String id, SCIMUser user) throws OnPremUserManagementException, EntityNotFoundException {
-		LOGGER.debug("[updateUser] Updating user: " + user.getName().getFormattedName());
-		LOGGER.debug(user.toString());
-		String dnUsername, oldDNUsername, oldDN = "";
-		String[] usernameSplit = user.getUserName().split("@");
-		SCIMUser oldUser;
-		//TODO: throw this in a helper
-		if(usernameSplit.length != 2) {
-			//TODO: error code
-			LOGGER.warn("[updateUser] Username: " +user.getUserName() + " can only contain one @.");
-			throw new OnPremUserManagementException("o01234", "Username can only contain one @.");
+		ConnectorMetrics.Timer timer = metrics.time("scim.updateUser");
+		Snapshot pinned = pin();
+		ConnectorConfig config = config();
+		try {
+			LogSF.debug(LOGGER, "[updateUser] Updating user: {}", user.getUserName());
+			if(samplePayload()) LOGGER.debug("[updateUser] Payload: " + user);
+			String dnUsername;
+			String[] usernameSplit = user.getUserName().split("@");
+			//TODO: throw this in a helper
+			if(usernameSplit.length != 2) {
+				//TODO: error code
+				LOGGER.warn("[updateUser] Username: " +user.getUserName() + " can only contain one @.");
+				throw new OnPremUserManagementException("o01234", "Username can only contain one @.");
+			}
+			if(config.useWhitelist && (!config.usernameWhitelist.contains(usernameSplit[1]))) {
+				//TODO: error code
+				LOGGER.warn("[updateUser] Username: " +user.getUserName() + " is not in the whitelist.");
+				throw new OnPremUserManagementException("o01234", "Username domain is not in whitelist.");
+			}
+			dnUsername = getUserDnName(user.getUserName());
+			String dn = config.ldapUserPre + dnUsername + "," + config.ldapUserDn + config.ldapBaseDn;
+			WriteJournal.Entry journalEntry = null;
+			try {
+				Attributes attrs = user.isActive() ? constructAttrsFromUser(user, true) : null;
+				journalEntry = WriteJournal.Entry.updateUser(id, dn, attrs, user.isActive());
+				if(journalBehindPending(journalEntry)) return user;
+				applyUpdateUser(id, dn, attrs, user.isActive());
+			} catch (InvalidDataTypeException | NamingException e) {
+				if(e instanceof NamingException && journalOnOutage(journalEntry, (NamingException) e)) return user;
+				handleGeneralException(e);
+				throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			}
+			return user;
+		} catch (EntityNotFoundException e) {
+			//not found is an answer, it is timed but not counted as an error
+			throw e;
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			unpin(pinned);
+			timer.stop();
 		}
-		if(useWhitelist && (!usernameWhitelist.contains(usernameSplit[1]))) {
-			//TODO: error code
-			LOGGER.warn("[updateUser] Username: " +user.getUserName() + " is not in the whitelist.");
-			throw new OnPremUserManagementException("o01234", "Username domain is not in whitelist.");
+	}
+
+	/**
+	 * Helper function that brings the LDAP entry of a user in line with what Okta sent: renames it if the userName
+	 * changed and modifies only the attributes that differ, or deletes it if the user is no longer active.
+	 *
+	 * @param id - id of the user
+	 * @param dn - DN the user should have
+	 * @param attrs - attributes the user should have, unused when deleting
+	 * @param active - false deletes the user
+	 * @throws NamingException
+	 */
+	private void applyUpdateUser(String id, String dn, Attributes attrs, boolean active) throws NamingException {
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		LdapContextPool contextPool = contextPool();
+		//query before borrowing, findById uses its own connection
+		SearchResult entry = findById(USER_RESOURCE, id, true, config.userReturningAttrs);
+		if(entry == null) {
+			//should probably throw an error. TODO
+			LOGGER.warn("[applyUpdateUser] Connector did not find a user with id: " + id + ". Don't know what to do.");
+			return;
 		}
+		Attributes oldAttrs = entry.getAttributes();
+		SCIMUser oldUser = constructUserFromAttrs(oldAttrs);
+		String oldDN = config.ldapUserPre + getUserDnName(oldUser.getUserName()) + "," + config.ldapUserDn + config.ldapBaseDn;
+		//also found before borrowing, the groups may have to be searched for
+		List<String> oldGroupDns = active || !config.ldapRemoveMembershipsOnDelete ? null : groupDnsOf(oldDN, oldAttrs);
+		LdapContext ctx = contextPool.borrow();
+		NamingException failure = null;
 		try {
-			LdapContext ctx = new InitialLdapContext(env, null);
-			String searchDN = ldapUserDn + ldapBaseDn;
-			dnUsername = getUserDnName(user.getUserName());
-			String idLookup = ldapUserCore.get("id");
-			String ldapFilter = "(" + idLookup + "=" + id +")";
-			ArrayList<Attributes> queryResults = queryLDAP(searchDN, ldapFilter);
-			String dn = ldapUserPre + dnUsername + "," + ldapUserDn + ldapBaseDn;
-			//TODO refactor this, also make var names consistent
-			if(queryResults.size() == 1) {
-				oldUser = constructUserFromAttrs(queryResults.get(0));
-				oldDNUsername = getUserDnName(oldUser.getUserName());
-				oldDN = ldapUserPre + oldDNUsername + "," + ldapUserDn + ldapBaseDn;
-				if(user.isActive()) {
-					//TODO: detecting uname change and renaming context
-					if(!dnUsername.equals(oldDNUsername)) {
-						LOGGER.info("[updateUser] User's DN in LDAP has changed from previous value, renaming...");
-						ctx.rename(oldDN, dn);
-					}
-					LOGGER.info("[updateUser] User is still active, modifying user.");
-					Attributes attrs = constructAttrsFromUser(user, true);
-					String debugKeys = "";
-					NamingEnumeration<String> namingEnum = attrs.getIDs();
-					while(namingEnum.hasMore()) {
-						String key = namingEnum.next();
-						debugKeys += key + ", ";
-						Attribute attr = attrs.get(key);
-						//if(attr.size() > 0) LOGGER.debug(key + " " + attr.get());
-						ctx.modifyAttributes(dn, LdapContext.REPLACE_ATTRIBUTE, attrs);
-					}
-					LOGGER.debug("[updateUser] User " + user.getName().getFormattedName() + " successfully modified in Directory Service with attributes: [" + debugKeys + "]");
-					namingEnum.close();
-				} else {
-					ctx.destroySubcontext(oldDN);
-					LOGGER.info("[updateUser] User " + user.getName().getFormattedName() + " successfully deleted from Directory Service.");
+			if(active) {
+				if(!dn.equals(oldDN)) {
+					LOGGER.info("[applyUpdateUser] User's DN in LDAP has changed from previous value, renaming...");
+					ctx.rename(oldDN, dn);
+					membershipIndex().renameMember(oldDN, dn);
 				}
+				LOGGER.info("[applyUpdateUser] User is still active, modifying user.");
+				//only send what differs from the entry we just read, in a single modify
+				List<ModificationItem> mods = AttributeDiff.diff(oldAttrs, attrs, OBJECT_CLASS_ATTR, passwordAttr(), config.userKeyAttrs);
+				if(!mods.isEmpty()) {
+					ctx.modifyAttributes(dn, mods.toArray(new ModificationItem[mods.size()]));
+				}
+				if(LOGGER.isDebugEnabled()) {
+					LogSF.debug(LOGGER, "[applyUpdateUser] User {} successfully modified in Directory Service with: [{}]", dn, AttributeDiff.describe(mods));
+				}
+				if(directoryCache != null) {
+					if(!dn.equals(oldDN)) directoryCache.removeUser(oldDN);
+					directoryCache.refreshUser(dn);
+				}
+				dnResolver().put("user:" + id, dn);
 			} else {
-				//should probably throw an error. TODO
-				LOGGER.warn("[updateUser] Connector did not find 1 user with id: " + id + ". Don't know what to do.");
+				//before the user goes, a journal replay after an outage in between finds it and does both again
+				if(oldGroupDns != null) removeMemberships(ctx, oldDN, oldGroupDns);
+				ctx.destroySubcontext(oldDN);
+				LogSF.info(LOGGER, "[applyUpdateUser] User {} successfully deleted from Directory Service.", oldDN);
+				if(directoryCache != null) directoryCache.removeUser(oldDN);
+				dnResolver().forget("user:" + id);
+				membershipIndex().removeMember(oldDN);
 			}
-			ctx.close();
-		} catch (InvalidDataTypeException | NamingException e) {
-			handleGeneralException(e);
-			throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			noteUserWrite(id, attrs);
+		} catch (NamingException e) {
+			failure = e;
+			throw e;
+		} finally {
+			contextPool.release(ctx, failure);
 		}
-		return user;
 	}
 
 	/**
@@ -383,59 +797,88 @@ public class SCIMServiceImpl implements SCIMService {
 	 *
 	 */
 	public SCIMUserQueryResponse getUsers(PaginationProperties pageProperties, SCIMFilter filter) throws OnPremUserManagementException {
-		List<SCIMUser> users = new ArrayList<SCIMUser>();
-		LOGGER.debug("[getUsers(PaginationProperties, SCIMFilter)]");
+		ConnectorMetrics.Timer timer = metrics.time("scim.getUsers");
+		Snapshot pinned = pin();
 		try {
-			if (filter != null) {
-				//Get users based on a filter
-				users = getUserByFilter(filter);
-				//Example to show how to construct a SCIMUserQueryResponse and how to set stuff.
-				SCIMUserQueryResponse response = new SCIMUserQueryResponse();
-				//The total results in this case is set to the number of users. But it may be possible that
-				//there are more results than what is being returned => totalResults > users.size();
-				response.setTotalResults(users.size());
-				//Actual results which need to be returned
-				response.setScimUsers(users);
-				//The input has some page properties => Set the start index.
-				if (pageProperties != null) {
-					response.setStartIndex(pageProperties.getStartIndex());
+			List<SCIMUser> users = new ArrayList<SCIMUser>();
+			LOGGER.debug("[getUsers(PaginationProperties, SCIMFilter)]");
+			try {
+				if (filter != null) {
+					//Get users based on a filter
+					users = getUserByFilter(filter);
+					fillGroups(users);
+					//Example to show how to construct a SCIMUserQueryResponse and how to set stuff.
+					SCIMUserQueryResponse response = new SCIMUserQueryResponse();
+					//The total results in this case is set to the number of users. But it may be possible that
+					//there are more results than what is being returned => totalResults > users.size();
+					response.setTotalResults(users.size());
+					//Actual results which need to be returned
+					response.setScimUsers(users);
+					//The input has some page properties => Set the start index.
+					if (pageProperties != null) {
+						response.setStartIndex(pageProperties.getStartIndex());
+					}
+					if(samplePayload()) LOGGER.debug("[getUser] Filtered results Returned: " + response);
+					return response;
+				} else {
+					return getUsers(pageProperties);
 				}
-				LOGGER.debug("[getUser] Filtered results Returned: " + response.toString());
-				return response;
-			} else {
-				return getUsers(pageProperties);
+			} catch (NamingException e) {
+				handleGeneralException(e);
+				LOGGER.error(e.getMessage());
+				//TODO: error code
+				throw new OnPremUserManagementException("o01234", e.getMessage(), e);
 			}
-		} catch (NamingException e) {
-			handleGeneralException(e);
-			LOGGER.error(e.getMessage());
-			//TODO: error code
-			throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			unpin(pinned);
+			timer.stop();
 		}
 	}
 
 	private SCIMUserQueryResponse getUsers(PaginationProperties pageProperties) throws NamingException {
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		PagedSearchCursors pagedSearches = pagedSearches();
 		SCIMUserQueryResponse response = new SCIMUserQueryResponse();
-		LOGGER.debug("[getUsers(PaginationProperties)] UserMap size: " + userMap.size());
-//		if (userMap == null) {
-//			//Note that the Error Code "o34567" is arbitrary - You can use any code that you want to.
-//			//TODO: error code
-//			throw new OnPremUserManagementException("o34567", "Cannot get the users. The userMap is null");
-//		}
-		ArrayList<Attributes> unprocessedUsers = queryLDAP(ldapUserDn + ldapBaseDn, ldapUserFilter);
-		List<SCIMUser> processedUsers = new ArrayList<SCIMUser>();
-		for(int i = 0; i < unprocessedUsers.size(); i++) {
-			SCIMUser user = constructUserFromAttrs(unprocessedUsers.get(i));
-			processedUsers.add(user);
-		}
-		int totalResults = processedUsers.size();
+		if(directoryCache != null && directoryCache.usersReady()) {
+			LogSF.debug(LOGGER, "[getUsers(PaginationProperties)] Serving from cache, size: {}", directoryCache.getUserCount());
+			if (pageProperties != null) {
+				response.setStartIndex(pageProperties.getStartIndex());
+				response.setScimUsers(directoryCache.getUsers(pageProperties.getStartIndex(), pageProperties.getCount()));
+			} else {
+				response.setScimUsers(directoryCache.getUsers(1, 0));
+			}
+			fillGroups(response.getScimUsers());
+			response.setTotalResults(directoryCache.getUserCount());
+			return response;
+		}
+		List<Attributes> unprocessedUsers;
+		long totalResults;
+		if(usePagedResults(pageProperties)) {
+			//only fetch this page from LDAP, the cursor remembers where the last page stopped
+			PagedSearchCursors.Page page = pagedSearches.fetch(config.ldapUserDn + config.ldapBaseDn, config.ldapUserFilter, config.userReturningAttrs,
+					pageProperties.getStartIndex(), pageProperties.getCount());
+			unprocessedUsers = page.getEntries();
+			totalResults = page.getTotalResults();
+		} else {
+			unprocessedUsers = queryLDAP(config.ldapUserDn + config.ldapBaseDn, config.ldapUserFilter, config.userReturningAttrs);
+			totalResults = unprocessedUsers.size();
+		}
+		List<SCIMUser> processedUsers = parallelConverter.convertAll(unprocessedUsers, pinned(new ParallelConverter.Converter<SCIMUser>() {
+			public SCIMUser convert(Attributes attrs) throws NamingException {
+				return constructUserFromAttrs(attrs);
+			}
+		}));
 		if (pageProperties != null) {
 			//Set the start index to the response.
 			response.setStartIndex(pageProperties.getStartIndex());
 		}
-		//In this example we are setting the total results to the number of results in this page. If there are more
-		//results than the number the client asked for (pageProperties.getCount()), then you need to set the total results correctly
+		//With paged results this is the size of the whole result set, not just this page.
 		response.setTotalResults(totalResults);
 		//Set the actual results
+		fillGroups(processedUsers);
 		response.setScimUsers(processedUsers);
 		return response;
 	}
@@ -462,151 +905,40 @@ public class SCIMServiceImpl implements SCIMService {
 	 * @return list of users that match the filter
 	 */
 	private List<SCIMUser> getUserByFilter(SCIMFilter filter) throws NamingException {
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
 		List<SCIMUser> users = new ArrayList<SCIMUser>();
-
-		LOGGER.debug("[getUserByFilter]");
-		SCIMFilterType filterType = filter.getFilterType();
-		if (filterType.equals(SCIMFilterType.EQUALS)) {
-			//Example to show how to deal with an Equality filter
-			LOGGER.debug("Equality Filter");
-			users = getUsersByEqualityFilter(filter);
-		} else if (filterType.equals(SCIMFilterType.OR)) {
-			//Example to show how to deal with an OR filter containing multiple sub-filters.
-			LOGGER.debug("OR Filter");
-			users = getUsersByOrFilter(filter);
-		} else {
-			LOGGER.error("The Filter " + filter + " contains a condition that is not supported");
-		}
-		return users;
-	}
-
-	/**
-	 * This is an example for how to deal with an OR filter. An OR filter consists of multiple sub equality filters.
-	 *
-	 * @param filter the OR filter with a set of sub filters expressions
-	 * @return list of users that match any of the filters
-	 */
-	private List<SCIMUser> getUsersByOrFilter(SCIMFilter filter) throws NamingException {
-		//An OR filter would contain a list of filter expression. Each expression is a SCIMFilter by itself.
-		//Ex : "email eq "abc@def.com" OR email eq "def@abc.com""
-		List<SCIMFilter> subFilters = filter.getFilterExpressions();
-		LOGGER.info("[getUsersByOrFilter] Searching on OR Filter : " + subFilters);
-		List<SCIMUser> users = new ArrayList<SCIMUser>();
-		LdapContext ctx = new InitialLdapContext(env, null);
-		String dn = ldapUserDn + ldapBaseDn;
-		ctx.setRequestControls(null);
-		SearchControls controls = new SearchControls();
-		controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-		String ldapFilter = "";
-		String primaryEmailLookup = ldapUserCore.get("primaryEmail");
-		String secondaryEmailLookup = ldapUserCore.get("secondaryEmail");
-		//Loop through the sub filters to evaluate each of them.
-		//Ex : "email eq "abc@def.com""
-		for (SCIMFilter subFilter : subFilters) {
-			//Name of the sub filter (email)
-			String fieldName = subFilter.getFilterAttribute().getAttributeName();
-			//Value (abc@def.com)
-			String value = subFilter.getFilterValue();
-			//For all the users, check if any of them have this email
-			//TODO: change the filter to pull values from connector.properties
-			if (fieldName.equalsIgnoreCase("email")) {
-				ldapFilter = "(|(" + primaryEmailLookup + "=" + value + ")(" + secondaryEmailLookup + "=" + value + "))";
-				NamingEnumeration<?> namingEnum = ctx.search(dn, ldapFilter, controls);
-				while (namingEnum.hasMore()) {
-					SearchResult result = (SearchResult) namingEnum.next();
-					Attributes attrs = result.getAttributes();
-					SCIMUser user = constructUserFromAttrs(attrs);
-					users.add(user);
-				}
-				ctx.close();
-				namingEnum.close();
+		LogSF.debug(LOGGER, "[getUserByFilter] Filter: {}", filter);
+		if(directoryCache != null && directoryCache.usersReady() && filter.getFilterType() == SCIMFilterType.EQUALS) {
+			String fieldName = filter.getFilterAttribute().getAttributeName();
+			if(fieldName.equalsIgnoreCase("userName") || fieldName.equalsIgnoreCase("id")) {
+				String value = filter.getFilterValue();
+				SCIMUser cached = fieldName.equalsIgnoreCase("id") ? directoryCache.getUserById(value) : directoryCache.getUserByUserName(value);
+				if(cached != null) users.add(cached);
+				LogSF.debug(LOGGER, "[getUserByFilter] Served from cache, users found: {}", users.size());
+				return users;
 			}
 		}
-		LOGGER.info("[getUsersByOrFilter] Users found: " + users.size());
-		return users;
-	}
-
-	/**
-	 * This is an example of how to deal with an equality filter.<p>
-	 * If you choose a custom field/complex field (name.familyName) or any other singular field (userName/externalId), you should get an equality filter here.
-	 *
-	 * @param filter the EQUALS filter
-	 * @return list of users that match the filter
-	 */
-	private List<SCIMUser> getUsersByEqualityFilter(SCIMFilter filter) throws NamingException {
-		String fieldName = filter.getFilterAttribute().getAttributeName();
-		String value = filter.getFilterValue();
-		LdapContext ctx = new InitialLdapContext(env, null);
-		String dn = ldapUserDn + ldapBaseDn;
-		ctx.setRequestControls(null);
-		SearchControls controls = new SearchControls();
-		controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-		String ldapFilter = "";
-		LOGGER.info("Equality Filter : Field Name [ " + fieldName + " ]. Value [ " + value + " ]");
-		List<SCIMUser> users = new ArrayList<SCIMUser>();
-		if (fieldName.equalsIgnoreCase("userName")) {
-			LOGGER.debug("Username");
-			String usernameLookup = ldapUserCore.get("userName");
-			if(usernameLookup != null) {
-				ldapFilter = "(" + usernameLookup + "=" + value + ")";
-			}
-			else {
-				LOGGER.warn("[getUsersByEqualityFilter] Connector.properties did not have a userName entry for userCoreMap.");
-			}
-		} else if (fieldName.equalsIgnoreCase("id")) {
-			LOGGER.debug("ID");
-			String idLookup = ldapUserCore.get("id");
-			if(idLookup != null) {
-				ldapFilter = "(" + idLookup + "=" + value + ")";
-			}
-			else {
-				LOGGER.warn("[getUsersByEqualityFilter] Connector.properties did not have a id entry for userCoreMap.");
-			}
-		} else if (fieldName.equalsIgnoreCase("name")) {
-			LOGGER.debug("name");
-			String subFieldName = filter.getFilterAttribute().getSubAttributeName();
-			if (subFieldName != null) {
-				if (subFieldName.equalsIgnoreCase("familyName")) {
-					//"name.familyName eq "someFamilyName""
-					String familyNameLookup = ldapUserCore.get("familyName");
-					if(familyNameLookup != null) {
-						ldapFilter = "(" + familyNameLookup + "=" + value + ")";
-					}
-					else {
-						LOGGER.warn("[getUsersByEqualityFilter] Connector.properties did not have a familyName entry for userCoreMap.");
-					}
-				} else if (subFieldName.equalsIgnoreCase("givenName")) {
-					//"name.givenName eq "someGivenName""
-					String givenNameLookup = ldapUserCore.get("givenName");
-					if(givenNameLookup != null) {
-						ldapFilter = "(" + givenNameLookup + "=" + value + ")";
-					}
-					else {
-						LOGGER.warn("[getUsersByEqualityFilter] Connector.properties did not have a givenName entry for userCoreMap.");
-					}
-				}
-			}
-		} else if (filter.getFilterAttribute().getSchema().equalsIgnoreCase(userCustomUrn)) { //Check that the Schema name is the Custom Schema name to process the filter for custom fields
-			LOGGER.debug("Custom");
-			String[] keys = ldapUserCustom.keySet().toArray(new String[ldapUserCustom.size()]);
-			String[] configLine;
-			//"urn:okta:onprem_app:1.0:user:custom:departmentName eq "someValue""
-			//Get the custom properties map (SchemaName -> JsonNode)
-			for(int i = 0; i < keys.length; i++) {
-				configLine = ldapUserCustom.get(keys[i]);
-				if(configLine[2].equalsIgnoreCase(fieldName)) {
-					ldapFilter = "(" + keys[i] + "=" + value + ")";
-					break;
-				}
-			}
+		List<String> groupIds = groupFilterIds(filter);
+		if(groupIds != null) {
+			users = getUsersInGroups(groupIds);
+			LogSF.info(LOGGER, "[getUserByFilter] Members found: {}", users.size());
+			return users;
 		}
-		if(!ldapFilter.isEmpty()) {
-			ArrayList<Attributes> queryResults = queryLDAP(dn, ldapFilter);
-			for(int i = 0; i < queryResults.size(); i++) {
-				SCIMUser user = constructUserFromAttrs(queryResults.get(i));
-				users.add(user);
-			}
+		//The whole filter goes to LDAP as one search, the directory does the matching
+		String ldapFilter = config.filterCompiler.compile(filter);
+		if(ldapFilter == null) {
+			LOGGER.error("[getUserByFilter] The Filter " + filter + " contains a condition that is not supported");
+			return users;
 		}
+		LogSF.debug(LOGGER, "[getUserByFilter] LDAP filter: {}", ldapFilter);
+		ArrayList<Attributes> queryResults = queryLDAP(filterEntity(filter), config.ldapUserDn + config.ldapBaseDn, ldapFilter, config.userReturningAttrs);
+		users = parallelConverter.convertAll(queryResults, pinned(new ParallelConverter.Converter<SCIMUser>() {
+			public SCIMUser convert(Attributes attrs) throws NamingException {
+				return constructUserFromAttrs(attrs);
+			}
+		}));
+		LogSF.info(LOGGER, "[getUserByFilter] Users found: {}", users.size());
 		return users;
 	}
 
@@ -622,23 +954,40 @@ public class SCIMServiceImpl implements SCIMService {
 	 */
 	@Override
 	public SCIMUser getUser(String id) throws OnPremUserManagementException, EntityNotFoundException {
-		LOGGER.info("[getUser] Id: " + id);
-		String searchDN = ldapUserDn + ldapBaseDn;
-		String idLookup = ldapUserCore.get("id");
-		String ldapFilter = "(" + idLookup + "=" + id +")";
-		SCIMUser user;
+		ConnectorMetrics.Timer timer = metrics.time("scim.getUser");
+		Snapshot pinned = pin();
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
 		try {
-			ArrayList<Attributes> queryResults = queryLDAP(searchDN, ldapFilter);
-			if(queryResults.size() >= 1) {
-				user = constructUserFromAttrs(queryResults.get(0));
-				LOGGER.info("[getUser] User found with id: " + id);
-				return user;
-			} else {
-				throw new EntityNotFoundException();
+			LogSF.info(LOGGER, "[getUser] Id: {}", id);
+			SCIMUser user;
+			try {
+				if(directoryCache != null && directoryCache.usersReady()) {
+					user = directoryCache.getUserById(id);
+					if(user == null) throw new EntityNotFoundException();
+					fillGroups(Collections.singletonList(user));
+					return user;
+				}
+				SearchResult entry = findById(USER_RESOURCE, id, false, config.userReturningAttrs);
+				if(entry != null) {
+					user = constructUserFromAttrs(entry.getAttributes());
+					fillGroups(Collections.singletonList(user));
+					LogSF.info(LOGGER, "[getUser] User found with id: {}", id);
+					return user;
+				} else {
+					throw new EntityNotFoundException();
+				}
+			} catch (NamingException e) {
+				handleGeneralException(e);
+				throw new OnPremUserManagementException("o01234", e.getMessage(), e);
 			}
-		} catch (NamingException e) {
-			handleGeneralException(e);
-			throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+		} catch (EntityNotFoundException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			unpin(pinned);
+			timer.stop();
 		}
 	}
 
@@ -659,24 +1008,60 @@ public class SCIMServiceImpl implements SCIMService {
 	 */
 	@Override
 	public SCIMGroup createGroup(SCIMGroup group) throws OnPremUserManagementException, DuplicateGroupException {
-		String displayName = group.getDisplayName();
-		LOGGER.debug("[createGroup] Creating group: " + group.getDisplayName());
-		LOGGER.debug(group.toString());
-		boolean duplicate = false;
-		String id = generateNextId(GROUP_RESOURCE);
-		group.setId(id);
+		ConnectorMetrics.Timer timer = metrics.time("scim.createGroup");
+		Snapshot pinned = pin();
+		try {
+			String displayName = group.getDisplayName();
+			LogSF.debug(LOGGER, "[createGroup] Creating group: {}", group.getDisplayName());
+			if(samplePayload()) LOGGER.debug("[createGroup] Payload: " + group);
+			boolean duplicate = false;
+			String id = generateNextId(GROUP_RESOURCE);
+			group.setId(id);
+			try {
+				applyCreateGroup(group);
+				LogSF.info(LOGGER, "[createGroup] Group {} successfully created.", group.getDisplayName());
+			} catch (NamingException e) {
+				if(journalOnOutage(WriteJournal.Entry.createGroup(id, group.getDisplayName(), memberUserNames(group)), e)) return group;
+				handleGeneralException(e);
+				//TODO: error code
+				throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			}
+			return group;
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			unpin(pinned);
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Helper function that adds a new group entry to LDAP, with the members that exist in LDAP.
+	 *
+	 * @param group - the group to create
+	 * @throws NamingException
+	 */
+	private void applyCreateGroup(SCIMGroup group) throws NamingException {
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		LdapTopology topology = topology();
+		LdapContextPool contextPool = contextPool();
+		Attributes attrs = constructAttrsFromGroup(group);
+		String dn = config.ldapGroupPre + group.getDisplayName() + "," + config.ldapGroupDn + config.ldapBaseDn;
+		LdapContext ctx = contextPool.borrow();
+		NamingException failure = null;
 		try {
-			LdapContext ctx = new InitialLdapContext(env, null);
-			Attributes attrs = constructAttrsFromGroup(group);
-			ctx.createSubcontext(ldapGroupPre + group.getDisplayName() + "," + ldapGroupDn + ldapBaseDn, attrs);
-			ctx.close();
-			LOGGER.info("[createGroup] Group " + group.getDisplayName() + " successfully created.");
+			ctx.createSubcontext(dn, attrs);
 		} catch (NamingException e) {
-			handleGeneralException(e);
-			//TODO: error code
-			throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			failure = e;
+			throw e;
+		} finally {
+			contextPool.release(ctx, failure);
 		}
-		return group;
+		topology.noteWrite("group:" + group.getId());
+		dnResolver().put("group:" + group.getId(), dn);
+		indexGroup(group, attrs);
+		if(directoryCache != null) directoryCache.refreshGroup(dn);
 	}
 
 	/**
@@ -692,32 +1077,94 @@ public class SCIMServiceImpl implements SCIMService {
 	 *
 	 */
 	public SCIMGroup updateGroup(String id, SCIMGroup group) throws OnPremUserManagementException {
-		LOGGER.info("[updateGroup] Updating Group: " + group.getDisplayName());
-		LOGGER.debug(group.toString());
-		String searchDN = ldapGroupDn + ldapBaseDn;
+		ConnectorMetrics.Timer timer = metrics.time("scim.updateGroup");
+		Snapshot pinned = pin();
+		try {
+			LogSF.info(LOGGER, "[updateGroup] Updating Group: {}", group.getDisplayName());
+			if(samplePayload()) LOGGER.debug("[updateGroup] Payload: " + group);
+			WriteJournal.Entry journalEntry = WriteJournal.Entry.updateGroup(id, group.getDisplayName(), memberUserNames(group));
+			if(journalBehindPending(journalEntry)) return group;
+			try {
+				applyUpdateGroup(id, group);
+				return group;
+			} catch (NamingException e) {
+				if(journalOnOutage(journalEntry, e)) return group;
+				handleGeneralException(e);
+				throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			}
+		} catch (EntityNotFoundException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			unpin(pinned);
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Helper function that brings the LDAP entry of a group in line with what Okta sent: renames it if the
+	 * displayName changed, then adds and removes only the attribute values and members that differ.
+	 *
+	 * @param id - id of the group
+	 * @param group - the group as it should be
+	 * @throws NamingException
+	 * @throws EntityNotFoundException if there is no group with that id
+	 */
+	private void applyUpdateGroup(String id, SCIMGroup group) throws NamingException {
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		LdapTopology topology = topology();
+		LdapContextPool contextPool = contextPool();
 		String oldDN = "";
-		String idLookup = ldapGroupCore.get("id");
-		String ldapFilter = "(" + idLookup + "=" + id +")";
 		SCIMGroup oldGroup;
+		LdapContext ctx = null;
+		NamingException failure = null;
 		try {
-			LdapContext ctx = new InitialLdapContext(env, null);
-			ArrayList<Attributes> queryResults = queryLDAP(searchDN, ldapFilter);
-			if(queryResults.size() >= 1) {
-				oldGroup = constructGroupFromAttrs(queryResults.get(0));
-				oldDN = ldapGroupPre + oldGroup.getDisplayName() + "," + ldapGroupDn + ldapBaseDn;
-				ctx.destroySubcontext(oldDN);
-				LOGGER.info("[updateGroup] Group " + oldGroup.getDisplayName() + " successfully deleted from Directory Service.");
+			SearchResult entry = findById(GROUP_RESOURCE, id, true, config.groupReturningAttrs);
+			Attributes oldAttrs;
+			if(entry != null) {
+				oldAttrs = entry.getAttributes();
+				//members are diffed as DNs below, no need to resolve them
+				oldGroup = config.groupCodec.toGroup(oldAttrs);
+				oldDN = config.ldapGroupPre + oldGroup.getDisplayName() + "," + config.ldapGroupDn + config.ldapBaseDn;
 			} else {
 				throw new EntityNotFoundException();
 			}
-			Attributes attrs = constructAttrsFromGroup(group);
-			ctx.createSubcontext(ldapGroupPre + group.getDisplayName() + "," + ldapGroupDn + ldapBaseDn, attrs);
-			ctx.close();
-			LOGGER.info("[updateGroup] Group " + group.getDisplayName() + " successfully re-created.");
-			return group;
+			String dn = config.ldapGroupPre + group.getDisplayName() + "," + config.ldapGroupDn + config.ldapBaseDn;
+			List<ModificationItem> mods = AttributeDiff.diff(oldAttrs, config.groupCodec.toAttrs(group), OBJECT_CLASS_ATTR, null, config.groupKeyAttrs);
+			List<ModificationItem> memberMods = diffMembers(group, oldAttrs);
+			mods.addAll(memberMods);
+			ctx = contextPool.borrow();
+			if(!oldGroup.getDisplayName().equals(group.getDisplayName())) {
+				ctx.rename(oldDN, dn);
+				LogSF.info(LOGGER, "[applyUpdateGroup] Group {} renamed to {}.", oldGroup.getDisplayName(), group.getDisplayName());
+			}
+			//adds come before removes so a group that must have a member is never left empty in between
+			List<List<ModificationItem>> batches = AttributeDiff.batch(mods, config.ldapMemberModifyChunkSize);
+			for(int i = 0; i < batches.size(); i++) {
+				List<ModificationItem> batch = batches.get(i);
+				ctx.modifyAttributes(dn, batch.toArray(new ModificationItem[batch.size()]));
+			}
+			if(LOGGER.isInfoEnabled()) {
+				LogSF.info(LOGGER, "[applyUpdateGroup] Group {} successfully modified in {} modify operations: [{}]", group.getDisplayName(),
+						batches.size(), AttributeDiff.describe(mods));
+			}
+			topology.noteWrite("group:" + id);
+			dnResolver().put("group:" + id, dn);
+			if(config.groupCodec.getMemberAttr() != null) {
+				if(!dn.equals(oldDN)) membershipIndex().removeGroup(oldDN);
+				membershipIndex().putGroup(dn, id, group.getDisplayName(), membersAfter(oldAttrs, memberMods));
+			}
+			if(directoryCache != null) {
+				if(!dn.equals(oldDN)) directoryCache.removeGroup(oldDN);
+				directoryCache.refreshGroup(dn);
+			}
 		} catch (NamingException e) {
-			handleGeneralException(e);
-			throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			failure = e;
+			throw e;
+		} finally {
+			contextPool.release(ctx, failure);
 		}
 	}
 
@@ -735,32 +1182,75 @@ public class SCIMServiceImpl implements SCIMService {
 	 */
 	@Override
 	public SCIMGroupQueryResponse getGroups(PaginationProperties pageProperties) throws OnPremUserManagementException {
-		SCIMGroupQueryResponse response = new SCIMGroupQueryResponse();
-		LOGGER.info("[getGroups]");
+		ConnectorMetrics.Timer timer = metrics.time("scim.getGroups");
+		Snapshot pinned = pin();
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		PagedSearchCursors pagedSearches = pagedSearches();
 		try {
-			ArrayList<Attributes> unprocessedGroups = queryLDAP(ldapGroupDn + ldapBaseDn, ldapGroupFilter);
-			List<SCIMGroup> processedGroups = new ArrayList<SCIMGroup>();
-			for(int i = 0; i < unprocessedGroups.size(); i++) {
-				SCIMGroup group = constructGroupFromAttrs(unprocessedGroups.get(i));
-				processedGroups.add(group);
-			}
-			int totalResults = processedGroups.size();
-			if (pageProperties != null) {
-				//Set the start index
-				response.setStartIndex(pageProperties.getStartIndex());
+			SCIMGroupQueryResponse response = new SCIMGroupQueryResponse();
+			LOGGER.info("[getGroups]");
+			if(directoryCache != null && directoryCache.groupsReady()) {
+				LogSF.debug(LOGGER, "[getGroups] Serving from cache, size: {}", directoryCache.getGroupCount());
+				if (pageProperties != null) {
+					response.setStartIndex(pageProperties.getStartIndex());
+					response.setScimGroups(directoryCache.getGroups(pageProperties.getStartIndex(), pageProperties.getCount()));
+				} else {
+					response.setScimGroups(directoryCache.getGroups(1, 0));
+				}
+				response.setTotalResults(directoryCache.getGroupCount());
+				return response;
 			}
-			//In this example we are setting the total results to the number of results in this page. If there are more
-			//results than the number the client asked for (pageProperties.getCount()), then you need to set the total results correctly
-			response.setTotalResults(totalResults);
-			//Set the actual results
-			response.setScimGroups(processedGroups);
-		} catch(NamingException e) {
-			handleGeneralException(e);
-			LOGGER.error(e.getMessage());
-			//TODO: error code
-			throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			try {
+				List<Attributes> unprocessedGroups;
+				long totalResults;
+				boolean everyGroup = false;
+				if(usePagedResults(pageProperties)) {
+					PagedSearchCursors.Page page = pagedSearches.fetch(config.ldapGroupDn + config.ldapBaseDn, config.ldapGroupFilter, config.groupReturningAttrs,
+							pageProperties.getStartIndex(), pageProperties.getCount());
+					unprocessedGroups = page.getEntries();
+					totalResults = page.getTotalResults();
+				} else {
+					unprocessedGroups = queryLDAP(config.ldapGroupDn + config.ldapBaseDn, config.ldapGroupFilter, config.groupReturningAttrs);
+					totalResults = unprocessedGroups.size();
+					everyGroup = true;
+				}
+				//members are shared between groups, only look each one up once per request. Missing members are
+				//cached as null, so this can't be a ConcurrentHashMap.
+				final Map<String, Membership> memberCache = Collections.synchronizedMap(new HashMap<String, Membership>());
+				List<SCIMGroup> processedGroups = parallelConverter.convertAll(unprocessedGroups, pinned(new ParallelConverter.Converter<SCIMGroup>() {
+					public SCIMGroup convert(Attributes attrs) throws NamingException {
+						SCIMGroup group = constructGroupFromAttrs(attrs, memberCache);
+						indexGroup(group, attrs);
+						return group;
+					}
+				}));
+				if(everyGroup) {
+					List<String> groupDns = new ArrayList<String>(processedGroups.size());
+					for(int i = 0; i < processedGroups.size(); i++) groupDns.add(groupDn(processedGroups.get(i).getDisplayName()));
+					indexedEveryGroup(groupDns);
+				}
+				if (pageProperties != null) {
+					//Set the start index
+					response.setStartIndex(pageProperties.getStartIndex());
+				}
+				//With paged results this is the size of the whole result set, not just this page.
+				response.setTotalResults(totalResults);
+				//Set the actual results
+				response.setScimGroups(processedGroups);
+			} catch(NamingException e) {
+				handleGeneralException(e);
+				LOGGER.error(e.getMessage());
+				//TODO: error code
+				throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			}
+			return response;
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			unpin(pinned);
+			timer.stop();
 		}
-		return response;
 	}
 
 	/**
@@ -774,23 +1264,38 @@ public class SCIMServiceImpl implements SCIMService {
 	 *
 	 */
 	public SCIMGroup getGroup(String id) throws OnPremUserManagementException {
-		String searchDN = ldapGroupDn + ldapBaseDn;
-		String idLookup = ldapGroupCore.get("id");
-		String ldapFilter = "(" + idLookup + "=" + id +")";
-		SCIMGroup group;
-		try{
-			ArrayList<Attributes> queryResults = queryLDAP(searchDN, ldapFilter);
-			//should never be more than 1 entry
-			if(queryResults.size() >= 1) {
-				group = constructGroupFromAttrs(queryResults.get(0));
-				LOGGER.info("[getGroup] Group found with id: " + id);
-			} else {
-				throw new EntityNotFoundException();
+		ConnectorMetrics.Timer timer = metrics.time("scim.getGroup");
+		Snapshot pinned = pin();
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		try {
+			SCIMGroup group;
+			if(directoryCache != null && directoryCache.groupsReady()) {
+				group = directoryCache.getGroupById(id);
+				if(group == null) throw new EntityNotFoundException();
+				return group;
 			}
-			return group;
-		} catch (NamingException e) {
-			handleGeneralException(e);
-			throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			try{
+				SearchResult entry = findById(GROUP_RESOURCE, id, false, config.groupReturningAttrs);
+				if(entry != null) {
+					group = constructGroupFromAttrs(entry.getAttributes());
+					indexGroup(group, entry.getAttributes());
+					LogSF.info(LOGGER, "[getGroup] Group found with id: {}", id);
+				} else {
+					throw new EntityNotFoundException();
+				}
+				return group;
+			} catch (NamingException e) {
+				handleGeneralException(e);
+				throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			}
+		} catch (EntityNotFoundException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			unpin(pinned);
+			timer.stop();
 		}
 	}
 
@@ -803,26 +1308,47 @@ public class SCIMServiceImpl implements SCIMService {
 	 * @throws OnPremUserManagementException
 	 */
 	public void deleteGroup(String id) throws OnPremUserManagementException, EntityNotFoundException {
-		LOGGER.debug("[deleteGroup] Id: " + id);
-		String searchDN = ldapGroupDn + ldapBaseDn;
-		String idLookup = ldapGroupCore.get("id");
-		String ldapFilter = "(" + idLookup + "=" + id +")";
-		SCIMGroup oldGroup;
-		try{
-			ArrayList<Attributes> queryResults = queryLDAP(searchDN, ldapFilter);
-			LdapContext ctx = new InitialLdapContext(env, null);
-			//should never be more than 1 entry
-			if(queryResults.size() >= 1) {
-				oldGroup = constructGroupFromAttrs(queryResults.get(0));
-				ctx.destroySubcontext(ldapGroupPre + oldGroup.getDisplayName() + "," + ldapGroupDn + ldapBaseDn);
-				LOGGER.info("[deleteGroup] Group found with id: " + id);
-				ctx.close();
-			} else {
-				LOGGER.info("[deleteGroup] No Group found with id: " + id + ". I need an adult.");
+		ConnectorMetrics.Timer timer = metrics.time("scim.deleteGroup");
+		Snapshot pinned = pin();
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		LdapTopology topology = topology();
+		LdapContextPool contextPool = contextPool();
+		try {
+			LogSF.debug(LOGGER, "[deleteGroup] Id: {}", id);
+			SCIMGroup oldGroup;
+			LdapContext ctx = null;
+			NamingException failure = null;
+			try{
+				//the display name is all that is needed from the entry, members are not resolved
+				SearchResult entry = findById(GROUP_RESOURCE, id, true, config.groupIndexAttrs);
+				if(entry != null) {
+					oldGroup = config.groupCodec.toGroup(entry.getAttributes());
+					ctx = contextPool.borrow();
+					String dn = config.ldapGroupPre + oldGroup.getDisplayName() + "," + config.ldapGroupDn + config.ldapBaseDn;
+					ctx.destroySubcontext(dn);
+					LogSF.info(LOGGER, "[deleteGroup] Group found with id: {}", id);
+					topology.noteWrite("group:" + id);
+					dnResolver().forget("group:" + id);
+					membershipIndex().removeGroup(dn);
+					if(directoryCache != null) directoryCache.removeGroup(dn);
+				} else {
+					LogSF.info(LOGGER, "[deleteGroup] No Group found with id: {}. I need an adult.", id);
+				}
+			} catch (NamingException e) {
+				failure = e;
+				handleGeneralException(e);
+				throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+			} finally {
+				contextPool.release(ctx, failure);
 			}
-		} catch (NamingException e) {
-			handleGeneralException(e);
-			throw new OnPremUserManagementException("o01234", e.getMessage(), e);
+		} catch (EntityNotFoundException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			unpin(pinned);
+			timer.stop();
 		}
 	}
 
@@ -839,7 +1365,16 @@ public class SCIMServiceImpl implements SCIMService {
 	 * @return all the implemented User Management capabilities.
 	 */
 	public UserManagementCapabilities[] getImplementedUserManagementCapabilities() {
-		return UserManagementCapabilities.values();
+		ConnectorMetrics.Timer timer = metrics.time("scim.getImplementedUserManagementCapabilities");
+		Snapshot pinned = pin();
+		try {
+			return UserManagementCapabilities.values();
+		} catch (RuntimeException e) {
+			throw timer.fail(e);
+		} finally {
+			unpin(pinned);
+			timer.stop();
+		}
 	}
 
 	/**
@@ -861,244 +1396,184 @@ public class SCIMServiceImpl implements SCIMService {
 		return null;
 	}
 
-/********************************************************************
- ******************** Private helpers not in skeleton ***************
- *********************************************************************
- **/
 	/**
-	 * Constructs Attributes from a SCIMUser object. Only deals with base attributes,
-	 * calls constructCustomAttrsFromUser to add custom values to Attributes.
-	 * Uses mappings for custom attributes from properties file.
+	 * Receives resources one at a time from streamUsers/streamGroups.
+	 */
+	public interface ResourceHandler<T> {
+		void handle(T resource) throws NamingException;
+	}
+
+	/**
+	 * Whether the streaming endpoints are turned on with OPP.streaming.enabled.
 	 *
-	 * @param user - SCIMUser object to pull values from
-	 * @param update - is this getting called by update or create
-	 * @return fully built Attributes Object
-	 * @throws InvalidDataTypeException
+	 * @return true if streaming is enabled
 	 */
-	private Attributes constructAttrsFromUser(SCIMUser user, boolean update) throws InvalidDataTypeException {
-		String[] keys = ldapUserCore.keySet().toArray(new String[ldapUserCore.size()]);
-		String active = user.isActive() ? "active" : "inactive";
-		Attributes attrs = new BasicAttributes(true);
-		Attribute objclass = new BasicAttribute("objectClass");
-		Object value;
-		Attribute attr;
-		for(int i = 0; i < ldapUserClass.length; i++) objclass.add(ldapUserClass[i]);
-		//TODO: fix this, this is ugly
-		//For each of the base attribute mappings in properties file, pull the value from user and
-		//add it to the attribute object.
-		//for any attrs that are not mapped/missing in Okta profile, and are required like uid, want to defer to LDAP exception
-		//rather than throwing one here
-		for(int i = 0; i < keys.length; i++) {
-			String attrType = ldapUserCore.get(keys[i]);
-			attr = new BasicAttribute(attrType);
-			if(keys[i].equals("userName")) {
-				value = user.getUserName();
-			} else if(keys[i].equals("familyName")) {
-				value = user.getName().getLastName();
-			} else if(keys[i].equals("givenName")) {
-				value = user.getName().getFirstName();
-			} else if(keys[i].equals("formatted")) {
-				value = user.getName().getFormattedName();
-			} else if(keys[i].equals("id")) {
-				value = user.getId();
-			} else if(keys[i].equals("password") && (user.getPassword() != null)) {
-				attrs.put(attr);
-				continue;
-			} else if(keys[i].equals("phoneNumbers") && (user.getPhoneNumbers() != null || update)) {
-				//if we're doing an update, we always want the attr in place, either it will have a value or if it doesn't
-				//then having a no value attr will remove it from the ldap entry
-				attrs.put(attr);
-				continue;
-			} else if(keys[i].equals("emails") && (user.getEmails() != null || update)) {
-				attrs.put(attr);
-				continue;
-			} else {
-				continue;
-			}
-			attr.add(value.toString());
-			attrs.put(attr);
-		}
-		//Special cases for attributes that are not simple values
-		//TODO: make this better
-		if(user.getPassword() != null && ldapUserCore.get("password") != null) {
-			Attribute passwd = attrs.get(ldapUserCore.get("password"));
-			passwd.add(user.getPassword());
-		}
-		user.setPassword("");
-		if(user.getPhoneNumbers() != null && ldapUserCore.get("phoneNumbers") != null) {
-			Object[] phoneNums = user.getPhoneNumbers().toArray();
-			Attribute phoneNumsAttr = attrs.get(ldapUserCore.get("phoneNumbers"));
-			for(int i = 0; i < phoneNums.length; i++) {
-				PhoneNumber num = (PhoneNumber) phoneNums[i];
-				phoneNumsAttr.add(num.getValue());
-			}
-			attrs.put(phoneNumsAttr);
-		}
-		if(user.getEmails() != null && ldapUserCore.get("primaryEmail") != null) {
-			Attribute primaryEmailAttr = new BasicAttribute(ldapUserCore.get("primaryEmail"));
-			Attribute secondaryEmailAttr = new BasicAttribute(ldapUserCore.get("secondaryEmail"));
-			Object[] emails = user.getEmails().toArray();
-			for(int i = 0; i < emails.length; i++) {
-				Email email = (Email) emails[i];//Yo,dawg I hurd you like emails...
-				if(email.isPrimary()) {
-					primaryEmailAttr.add(email.getValue());
-					attrs.put(primaryEmailAttr);
-				}
-				else if(!email.isPrimary() && ldapUserCore.get("secondaryEmail") != null) {
-					secondaryEmailAttr.add(email.getValue());
-					attrs.put(secondaryEmailAttr);
+	public boolean isStreamingEnabled() {
+		return config().streamingEnabled;
+	}
+
+	/**
+	 * Whether the bulk endpoint is turned on with OPP.bulk.enabled.
+	 *
+	 * @return true if bulk requests are accepted
+	 */
+	public boolean isBulkEnabled() {
+		return config().bulkEnabled;
+	}
+
+	/**
+	 * @return most operations accepted in one bulk request, OPP.bulk.maxOperations
+	 */
+	public int getBulkMaxOperations() {
+		return config().bulkMaxOperations;
+	}
+
+	/**
+	 * @return most bytes accepted in one bulk request, OPP.bulk.maxPayloadBytes
+	 */
+	public int getBulkMaxPayloadBytes() {
+		return config().bulkMaxPayloadBytes;
+	}
+
+	/**
+	 * The threads bulk operations run on, shared by all bulk requests so OPP.bulk.threads bounds the LDAP writes
+	 * they have in flight.
+	 *
+	 * @return the bulk executor
+	 */
+	public ExecutorService getBulkExecutor() {
+		return bulkExecutor;
+	}
+
+	/**
+	 * @return the custom schema urn users are written with
+	 */
+	public String getUserCustomUrn() {
+		return config().userCustomUrn;
+	}
+
+	/**
+	 * Hands every user to the handler as it is read from LDAP, without holding the whole result set.
+	 * Used by StreamingListHandler for full exports.
+	 *
+	 * @param handler - called for every user, in directory order
+	 * @return the number of users handled
+	 * @throws NamingException
+	 */
+	public long streamUsers(final ResourceHandler<SCIMUser> handler) throws NamingException {
+		Snapshot pinned = pin();
+		try {
+			ConnectorConfig config = config();
+			DirectoryCache directoryCache = directoryCache();
+			if(directoryCache != null && directoryCache.usersReady()) {
+				return directoryCache.forEachUser(new ResourceHandler<SCIMUser>() {
+					public void handle(SCIMUser user) throws NamingException {
+						fillGroups(Collections.singletonList(user));
+						handler.handle(user);
+					}
+				});
+			}
+			return scanLDAP(config.ldapUserDn + config.ldapBaseDn, config.ldapUserFilter, config.userReturningAttrs, new PagedSearchCursors.EntryHandler() {
+				public void handle(SearchResult entry) throws NamingException {
+					SCIMUser user = constructUserFromAttrs(entry.getAttributes());
+					fillGroups(Collections.singletonList(user));
+					handler.handle(user);
 				}
+			});
+		} finally {
+			unpin(pinned);
+		}
+	}
+
+	/**
+	 * Hands every group to the handler as it is read from LDAP, without holding the whole result set.
+	 * Members are resolved with a bounded cache shared by the groups of the stream.
+	 *
+	 * @param handler - called for every group, in directory order
+	 * @return the number of groups handled
+	 * @throws NamingException
+	 */
+	public long streamGroups(final ResourceHandler<SCIMGroup> handler) throws NamingException {
+		Snapshot pinned = pin();
+		try {
+			ConnectorConfig config = config();
+			DirectoryCache directoryCache = directoryCache();
+			if(directoryCache != null && directoryCache.groupsReady()) {
+				return directoryCache.forEachGroup(handler);
 			}
+			final Map<String, Membership> memberCache = new LinkedHashMap<String, Membership>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Membership> eldest) {
+					return size() > STREAMING_MEMBER_CACHE_SIZE;
+				}
+			};
+			//only the DNs are kept, for the membership index, not the groups
+			final List<String> seen = new ArrayList<String>();
+			long total = scanLDAP(config.ldapGroupDn + config.ldapBaseDn, config.ldapGroupFilter, config.groupReturningAttrs, new PagedSearchCursors.EntryHandler() {
+				public void handle(SearchResult entry) throws NamingException {
+					SCIMGroup group = constructGroupFromAttrs(entry.getAttributes(), memberCache);
+					indexGroup(group, entry.getAttributes());
+					seen.add(groupDn(group.getDisplayName()));
+					handler.handle(group);
+				}
+			});
+			indexedEveryGroup(seen);
+			return total;
+		} finally {
+			unpin(pinned);
 		}
-		attrs.put(objclass);
-		return constructCustomAttrsFromUser(user, attrs, update);
 	}
 
+/********************************************************************
+ ******************** Private helpers not in skeleton ***************
+ *********************************************************************
+ **/
 	/**
-	 * Adds Attribute objs to supplied attrs made from SCIMUser object.
-	 * Uses mappings for custom attributes from properties file.
+	 * Constructs Attributes from a SCIMUser object with the compiled user mappings. The password is hashed with
+	 * ldap.password.scheme here, so it is never journaled in clear either.
 	 *
 	 * @param user - SCIMUser object to pull values from
-	 * @param attrs - Attributes to add to SCIMUser object
-	 * @param update - 
+	 * @param update - is this getting called by update or create
 	 * @return fully built Attributes Object
 	 * @throws InvalidDataTypeException
+	 * @throws NamingException
 	 */
-	private Attributes constructCustomAttrsFromUser(SCIMUser user, Attributes attrs, boolean update) throws InvalidDataTypeException {
-		String[] keys = ldapUserCustom.keySet().toArray(new String[ldapUserCustom.size()]);
-		String[] configLine;
-		String[] emptyArr = new String[0];
-		String[] parentNames = emptyArr;
-		Attribute customAttr;
-		Object value;
-		//For each custom attribute mapping in properties, get the appropriate custom value and put it in an Attribute obj
-		for(int i = 0; i < keys.length; i++) {
-			configLine = ldapUserCustom.get(keys[i]);
-			parentNames = emptyArr;
-			if(configLine.length > 3) parentNames = Arrays.copyOfRange(configLine, 3, configLine.length);
-			if(attrs.get(keys[i]) != null) customAttr = attrs.get(keys[i]);
-			else customAttr = new BasicAttribute(keys[i]);
-			if(configLine[0].equals("int"))
-				value = user.getCustomIntValue(configLine[1], configLine[2], parentNames);
-			else if(configLine[0].equals("boolean"))
-				value = user.getCustomBooleanValue(configLine[1], configLine[2], parentNames);
-			else if(configLine[0].equals("string"))
-				value = user.getCustomStringValue(configLine[1], configLine[2], parentNames);
-			else if(configLine[0].equals("double"))
-				value = user.getCustomDoubleValue(configLine[1], configLine[2], parentNames);
-			else
-				throw new OnPremUserManagementException("o12345", "Unexpected type for Custom attrs in config: " + Arrays.toString(configLine));
-			if(value != null && !value.equals("")) {
-				customAttr.add(value.toString());
-				attrs.put(customAttr);
-			} else if(update) {
-				attrs.put(customAttr);
-			}
+	private Attributes constructAttrsFromUser(SCIMUser user, boolean update) throws InvalidDataTypeException, NamingException {
+		ConnectorConfig config = config();
+		Attributes attrs = config.userCodec.toAttrs(user, update);
+		String passwordLookup = config.ldapUserCore.get("password");
+		Attribute password = passwordLookup == null || passwordHasher.isPlain() ? null : attrs.get(passwordLookup);
+		if(password != null && password.get() != null) {
+			attrs.put(new BasicAttribute(passwordLookup, passwordHasher.hash(password.get().toString())));
 		}
 		return attrs;
 	}
 
 	/**
-	 * Pulls values for base user attributes from Attributes obj and sets it in SCIMUser obj.
-	 * Calls constructUserFromCustomAttrs to handle custom attributes.
-	 * Mappings obtained from properties file.
+	 * Builds a SCIMUser from Attributes fetched from Ldap with the compiled user mappings.
 	 *
 	 * @param attrs - Attributes to add to SCIMUser object
 	 * @return fully built SCIMUser object
 	 * @throws NamingException
 	 */
 	private SCIMUser constructUserFromAttrs(Attributes attrs) throws NamingException {
-		//create objects, pull in values from attrs using mapping from properties file.
-		//TODO: split this into other functions or clean this up
-		SCIMUser user = new SCIMUser();
-		String formattedNameLookup = ldapUserCore.get("formatted");
-		String formattedName = getValueFromAttrs("formatted", formattedNameLookup, attrs);
-		String snLookup = ldapUserCore.get("familyName");
-		String sn = getValueFromAttrs("familyName", snLookup, attrs);
-		String givenNameLookup = ldapUserCore.get("givenName");
-		String givenName = getValueFromAttrs("givenName", givenNameLookup, attrs);
-		Name fullName = new Name(formattedName, sn, givenName);
-		user.setName(fullName);
-		String idLookup = ldapUserCore.get("id");
-		String id = getValueFromAttrs("id", idLookup, attrs);
-		user.setId(id);
-		String userNameLookup = ldapUserCore.get("userName");
-		String userName = getValueFromAttrs("userName", userNameLookup, attrs);
-		user.setUserName(userName);
-		ArrayList<PhoneNumber> phoneNums = new ArrayList<PhoneNumber>();
-		String phoneNumsAttrLookup = ldapUserCore.get("phoneNumbers");
-		Attribute phoneNumsAttr = null;
-		if(phoneNumsAttrLookup != null) phoneNumsAttr = attrs.get(phoneNumsAttrLookup);
-		else LOGGER.warn("[constructUserFromAttrs] Connector.properties did not have phoneNumbers entry for userCoreMap.");
-		//set their password to empty string
-		user.setPassword("");
-		//for each phone number, parse line from attrs and build PhoneNumber obj
-		if(phoneNumsAttr != null) {
-			for(int i = 0; i < phoneNumsAttr.size(); i++) {
-				String phoneNum = phoneNumsAttr.get(i).toString();
-				if(phoneNum != null) {
-					PhoneNumber.PhoneNumberType type = PhoneNumber.PhoneNumberType.valueOf("MOBILE");
-					PhoneNumber numEntry = new PhoneNumber(phoneNum, type, true);
-					phoneNums.add(numEntry);
-				}
-			}
-			user.setPhoneNumbers(phoneNums);
-		}
-		ArrayList<Email> emails = new ArrayList<Email>();
-		String primaryEmailLookup = ldapUserCore.get("primaryEmail");
-		String primaryEmail = getValueFromAttrs("primaryEmail", primaryEmailLookup, attrs);;
-		Email primaryEmailEntry = new Email(primaryEmail, "primary", true);
-		emails.add(primaryEmailEntry);
-		String secondaryEmailLookup = ldapUserCore.get("secondaryEmail");
-		String secondaryEmail = getValueFromAttrs("secondaryEmail", secondaryEmailLookup, attrs);
-		Email secondaryEmailEntry = new Email(secondaryEmail, "secondary", false);
-		emails.add(secondaryEmailEntry);
-		user.setEmails(emails);
-		user.setActive(true);
-		return constructUserFromCustomAttrs(user, attrs);
+		return constructUserFromAttrs(attrs, true);
 	}
 
 	/**
-	 * Adds custom Attributes to given SCIMUser object. Pulls mapping for custom attrs from
-	 * properties file.
+	 * Builds a SCIMUser from Attributes fetched from Ldap with the compiled user mappings. With ldap.memberOfAttr
+	 * the groups listed in the entry replace what the membership index knew of the user's groups.
 	 *
-	 * @param user - SCIMUser object to add custom attributes to.
 	 * @param attrs - Attributes to add to SCIMUser object
+	 * @param readMemberOf - false if attrs were not read with userReturningAttrs, so they can't have memberOf values
 	 * @return fully built SCIMUser object
 	 * @throws NamingException
 	 */
-	private SCIMUser constructUserFromCustomAttrs(SCIMUser user, Attributes attrs) throws NamingException {
-		String[] keys = ldapUserCustom.keySet().toArray(new String[ldapUserCustom.size()]);
-		String[] configLine;
-		String[] emptyArr = new String[0];
-		String[] parentNames = emptyArr;
-		Attribute customAttr;
-		Object value = "";
-		//Iterates through all mapped custom attrs from properties file and sets value in user obj.
-		for(int i = 0; i < keys.length; i++) {
-			configLine = ldapUserCustom.get(keys[i]);
-			parentNames = emptyArr;
-			//LOGGER.debug(Arrays.toString(configLine));
-			if(configLine.length > 3) parentNames = Arrays.copyOfRange(configLine, 3, configLine.length);
-			customAttr = attrs.get(keys[i]);
-			if(customAttr != null) {
-				value = customAttr.get();
-				//TODO: make this better
-				//set type for value pulled from Attributes
-				if(configLine[0].equals("int"))
-					user.setCustomIntValue(configLine[1], configLine[2], Integer.parseInt(value.toString()), parentNames);
-				else if(configLine[0].equals("boolean"))
-					user.setCustomBooleanValue(configLine[1], configLine[2], Boolean.valueOf(value.toString()), parentNames);
-				else if(configLine[0].equals("string"))
-					user.setCustomStringValue(configLine[1], configLine[2], (String) value, parentNames);
-				else if(configLine[0].equals("double"))
-					user.setCustomDoubleValue(configLine[1], configLine[2], Double.parseDouble(value.toString()), parentNames);
-				else
-					throw new OnPremUserManagementException("o12345", "Unexpected type for Custom attrs in config: " + Arrays.toString(configLine));
-			} else {
-				LOGGER.warn("[constructUserFromCustomAttrs] LDAP did not have value for " + keys[i] + ".");
-			}
-			//TODO: error code
+	private SCIMUser constructUserFromAttrs(Attributes attrs, boolean readMemberOf) throws NamingException {
+		ConnectorConfig config = config();
+		SCIMUser user = config.userCodec.toUser(attrs);
+		if(readMemberOf && config.ldapMemberOfAttr != null && user.getUserName() != null) {
+			membershipIndex().putMemberships(userDn(user.getUserName()), attrValues(attrs.get(config.ldapMemberOfAttr)));
 		}
 		return user;
 	}
@@ -1111,61 +1586,210 @@ public class SCIMServiceImpl implements SCIMService {
 	 * @return Attributes object that resulted from SCIMGroup object
 	 */
 	private Attributes constructAttrsFromGroup(SCIMGroup group) throws NamingException {
-		Attributes attrs = new BasicAttributes(true);
+		ConnectorConfig config = config();
 		ArrayList<Membership> memberList = new ArrayList<Membership>();
-		String[] keys = ldapGroupCore.keySet().toArray(new String[ldapGroupCore.size()]);
-		Attribute attr;
-		Object value;
-		LOGGER.info("[constructAttrsFromGroup] constructing Attrs from group " + group.getDisplayName());
-		Attribute objclass = new BasicAttribute("objectClass");
-		SCIMFilter filter = new SCIMFilter();
-		SCIMFilterAttribute filterAttr = new SCIMFilterAttribute();
-		SCIMFilterType filterType = SCIMFilterType.EQUALS;
-		filter.setFilterType(filterType);
-		filterAttr.setAttributeName("userName");
-		filter.setFilterAttribute(filterAttr);
-		for(int i = 0; i < ldapGroupClass.length; i++) objclass.add(ldapGroupClass[i]);
-		for(int i = 0; i < keys.length; i++) {
-			String attrType = ldapGroupCore.get(keys[i]);
-			attr = new BasicAttribute(attrType);
-			if(keys[i].equals("id")) {
-				value = group.getId();
-			} else if(keys[i].equals("members") && (group.getMembers() != null)) {
-				attrs.put(attr);
-				continue;
-			} else {
-				continue;
-			}
-			attr.add(value.toString());
-			attrs.put(attr);
-		}
-		Attribute member = attrs.get(ldapGroupCore.get("members"));
-		attrs.put(objclass);
+		LogSF.info(LOGGER, "[constructAttrsFromGroup] constructing Attrs from group {}", group.getDisplayName());
+		Attributes attrs = config.groupCodec.toAttrs(group);
+		String memberAttrLookup = config.groupCodec.getMemberAttr();
 		//builds dn from all members, assumes the members are located in the same area as users.
 		//TODO: trim down the dups comming from Okta, happens when group push is enabled for a group, assign app to one group, unassign, then assign to another group with same users, their external IDS will be different
-		if(group.getMembers() != null && ldapGroupCore.get("members") != null) {
+		if(group.getMembers() != null && memberAttrLookup != null) {
+			Attribute member = new BasicAttribute(memberAttrLookup);
+			attrs.put(member);
 			Object[] members = group.getMembers().toArray();
+			List<String> userNames = new ArrayList<String>(members.length);
+			for(int i = 0; i < members.length; i++) {
+				userNames.add(((Membership) members[i]).getDisplayName());
+			}
+			//check that the members exist in ldap before making them members of the group
+			Map<String, Integer> userNameCounts = countUsersByUserName(userNames);
+			List<String> dropped = new ArrayList<String>();
 			for(int i = 0; i < members.length; i++) {
 				Membership mem = (Membership) members[i];
-				String dnUsername = getUserDnName(mem.getDisplayName());
-				filter.setFilterValue(mem.getDisplayName());
-				List<SCIMUser> result = getUsersByEqualityFilter(filter);
-				String name = ldapUserPre + dnUsername + "," + ldapUserDn + ldapBaseDn;
-				DistinguishedName dn = new DistinguishedName(name);
-				//check that the member exists in the cache/ldap before making them a member of a group
-				if(result.size() == 1) {
-					member.add(dn.encode());
+				Integer count = userNameCounts.get(mem.getDisplayName().toLowerCase());
+				if(count != null && count == 1) {
+					member.add(GroupCodec.memberDn(config.ldapUserPre, getUserDnName(mem.getDisplayName()), config.ldapUserDn + config.ldapBaseDn));
 					memberList.add(mem);
+				} else {
+					dropped.add(mem.getDisplayName());
 				}
 			}
+			if(!dropped.isEmpty()) {
+				LOGGER.warn("[constructAttrsFromGroup] Dropped " + dropped.size() + " of " + members.length + " members from group "
+						+ group.getDisplayName() + " that were not found exactly once in LDAP: " + dropped);
+			}
 			//Remove the member attr from the ldap query obj if there are no members to insert
 			if(memberList.size() == 0) {
-				attrs.remove(ldapGroupCore.get("members"));
+				attrs.remove(memberAttrLookup);
 			}
 		}
 		return attrs;
 	}
 
+	/**
+	 * Works out the member values to add and remove to take a group from the members it has in LDAP to the
+	 * members sent by Okta. Only the members being added are checked in LDAP, so the cost depends on the size of
+	 * the change rather than the size of the group.
+	 *
+	 * @param group - SCIMGroup sent by Okta, no members means the group should end up empty
+	 * @param oldAttrs - attributes of the group entry, including its member values
+	 * @return ADD modifications followed by REMOVE modifications, ldapMemberModifyChunkSize values at most in each
+	 * @throws NamingException
+	 */
+	private List<ModificationItem> diffMembers(SCIMGroup group, Attributes oldAttrs) throws NamingException {
+		ConnectorConfig config = config();
+		String memberAttrLookup = config.groupCodec.getMemberAttr();
+		List<ModificationItem> mods = new ArrayList<ModificationItem>();
+		if(memberAttrLookup == null) return mods;
+		//normalized DN -> DN as written in the entry
+		Map<String, String> current = new LinkedHashMap<String, String>();
+		Attribute oldMembers = oldAttrs.get(memberAttrLookup);
+		if(oldMembers != null) {
+			for(int i = 0; i < oldMembers.size(); i++) {
+				String memberDn = oldMembers.get(i).toString();
+				current.put(DirectoryCache.normalizeDn(memberDn), memberDn);
+			}
+		}
+		//normalized DN -> userName, for the members Okta sent that are not in the group yet
+		Map<String, String> added = new LinkedHashMap<String, String>();
+		Set<String> wanted = new HashSet<String>();
+		if(group.getMembers() != null) {
+			for(Membership mem : group.getMembers()) {
+				String name = config.ldapUserPre + getUserDnName(mem.getDisplayName()) + "," + config.ldapUserDn + config.ldapBaseDn;
+				String normalized = DirectoryCache.normalizeDn(name);
+				wanted.add(normalized);
+				if(!current.containsKey(normalized)) added.put(normalized, mem.getDisplayName());
+			}
+		}
+		List<String> addValues = new ArrayList<String>();
+		if(!added.isEmpty()) {
+			//check that the new members exist in ldap before making them members of the group
+			Map<String, Integer> userNameCounts = countUsersByUserName(new ArrayList<String>(added.values()));
+			List<String> dropped = new ArrayList<String>();
+			for(String userName : added.values()) {
+				Integer count = userNameCounts.get(userName.toLowerCase());
+				if(count != null && count == 1) {
+					addValues.add(GroupCodec.memberDn(config.ldapUserPre, getUserDnName(userName), config.ldapUserDn + config.ldapBaseDn));
+				} else {
+					dropped.add(userName);
+				}
+			}
+			if(!dropped.isEmpty()) {
+				LOGGER.warn("[diffMembers] Dropped " + dropped.size() + " of " + added.size() + " new members of group "
+						+ group.getDisplayName() + " that were not found exactly once in LDAP: " + dropped);
+			}
+		}
+		List<String> removeValues = new ArrayList<String>();
+		for(Map.Entry<String, String> entry : current.entrySet()) {
+			if(!wanted.contains(entry.getKey())) removeValues.add(entry.getValue());
+		}
+		mods.addAll(AttributeDiff.chunk(DirContext.ADD_ATTRIBUTE, memberAttrLookup, addValues, config.ldapMemberModifyChunkSize));
+		mods.addAll(AttributeDiff.chunk(DirContext.REMOVE_ATTRIBUTE, memberAttrLookup, removeValues, config.ldapMemberModifyChunkSize));
+		return mods;
+	}
+
+	/**
+	 * Counts how many LDAP users there are for each of the given userNames, used to check group members
+	 * before writing them. The userNames are searched ldapMemberLookupBatchSize at a time with
+	 * (|(uid=a)(uid=b)...) filters, and up to ldapMemberValidationThreads batches run at once.
+	 *
+	 * @param userNames - the userNames to look up
+	 * @return number of matching users keyed by lower cased userName, userNames with no match are absent
+	 * @throws NamingException
+	 */
+	private Map<String, Integer> countUsersByUserName(List<String> userNames) throws NamingException {
+		ConnectorConfig config = config();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		final String userNameLookup = config.ldapUserCore.get("userName");
+		if(userNameLookup == null) {
+			LOGGER.warn("[countUsersByUserName] Connector.properties did not have a userName entry for userCoreMap.");
+			return counts;
+		}
+		final String[] returningAttrs = {userNameLookup};
+		final String userBase = config.ldapUserDn + config.ldapBaseDn;
+		//the batches run on the validation threads with the request's connections
+		final Snapshot snapshot = snapshot();
+		//userNames are compared without case, every one goes to exactly one batch so the batch counts add up
+		Set<String> keys = new LinkedHashSet<String>();
+		for(int i = 0; i < userNames.size(); i++) keys.add(userNames.get(i).toLowerCase());
+		List<String> distinct = new ArrayList<String>(keys);
+		List<Callable<Map<String, Integer>>> batches = new ArrayList<Callable<Map<String, Integer>>>();
+		for(int start = 0; start < distinct.size(); start += config.ldapMemberLookupBatchSize) {
+			final List<String> batch = distinct.subList(start, Math.min(start + config.ldapMemberLookupBatchSize, distinct.size()));
+			batches.add(new Callable<Map<String, Integer>>() {
+				public Map<String, Integer> call() throws NamingException {
+					Snapshot outer = pinTo(snapshot);
+					try {
+						return countBatch(userBase, userNameLookup, returningAttrs, batch);
+					} finally {
+						pinnedSnapshot.set(outer);
+					}
+				}
+			});
+		}
+		if(batches.size() == 1) return countBatch(userBase, userNameLookup, returningAttrs, distinct);
+		List<Future<Map<String, Integer>>> futures = new ArrayList<Future<Map<String, Integer>>>(batches.size());
+		try {
+			for(int i = 0; i < batches.size(); i++) {
+				futures.add(memberValidationExecutor.submit(batches.get(i)));
+			}
+			for(int i = 0; i < futures.size(); i++) {
+				for(Map.Entry<String, Integer> entry : futures.get(i).get().entrySet()) {
+					Integer count = counts.get(entry.getKey());
+					counts.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OnPremUserManagementException("o01234", "Interrupted while validating group members.", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof NamingException) throw (NamingException) e.getCause();
+			throw new OnPremUserManagementException("o01234", e.getCause().getMessage(), e.getCause());
+		} finally {
+			for(int i = 0; i < futures.size(); i++) futures.get(i).cancel(true);
+		}
+		return counts;
+	}
+
+	/**
+	 * Counts the users matching one batch of userNames with a single (|(uid=a)(uid=b)...) search. Every value of
+	 * the userName attribute is looked at, an entry with several values counts once for each of them that is in the
+	 * batch.
+	 *
+	 * @param userBase - DN the users are under
+	 * @param userNameLookup - LDAP attribute of the userName
+	 * @param returningAttrs - just userNameLookup
+	 * @param batch - lower cased userNames
+	 * @return number of matching users keyed by lower cased userName, userNames with no match are absent
+	 * @throws NamingException
+	 */
+	private Map<String, Integer> countBatch(String userBase, String userNameLookup, String[] returningAttrs, List<String> batch)
+			throws NamingException {
+		StringBuilder filter = new StringBuilder("(|");
+		for(int i = 0; i < batch.size(); i++) {
+			filter.append("(").append(userNameLookup).append("=").append(FilterCompiler.escape(batch.get(i))).append(")");
+		}
+		filter.append(")");
+		Set<String> wanted = new HashSet<String>(batch);
+		Map<String, Integer> batchCounts = new HashMap<String, Integer>();
+		ArrayList<Attributes> results = queryPrimary(userBase, filter.toString(), returningAttrs);
+		for(int i = 0; i < results.size(); i++) {
+			Attribute userNameAttr = results.get(i).get(userNameLookup);
+			if(userNameAttr == null) continue;
+			//an entry listing the same userName twice, in different case, is still one user
+			Set<String> entryKeys = new HashSet<String>();
+			for(int j = 0; j < userNameAttr.size(); j++) {
+				String key = String.valueOf(userNameAttr.get(j)).toLowerCase();
+				if(wanted.contains(key)) entryKeys.add(key);
+			}
+			for(String key : entryKeys) {
+				Integer count = batchCounts.get(key);
+				batchCounts.put(key, count == null ? 1 : count + 1);
+			}
+		}
+		return batchCounts;
+	}
+
 	/**
 	 * Helper function that constructs a SCIMGroup object from Attributes
 	 * fetched from Ldap. Uses mappings from properties file to set fields in SCIMGroup obj.
@@ -1175,40 +1799,53 @@ public class SCIMServiceImpl implements SCIMService {
 	 * @throws NamingException
 	 */
 	private SCIMGroup constructGroupFromAttrs(Attributes attrs) throws NamingException {
-		//create objs/get mappings from config file.
-		String ldapFilter = "";
-		String searchDN = ldapUserDn + ldapBaseDn;
-		SCIMGroup group = new SCIMGroup();
-		String cn = attrs.get("cn").get().toString();
-		LOGGER.debug("[constructGroupFromAttrs] Constructing Group " + cn + " from Attrs.");
+		return constructGroupFromAttrs(attrs, new HashMap<String, Membership>());
+	}
+
+	/**
+	 * Helper function that constructs a SCIMGroup object from Attributes
+	 * fetched from Ldap. Members are resolved in batches through resolveMembers.
+	 *
+	 * @param attrs - attributes to build SCIMGroup
+	 * @param memberCache - members already resolved during this request, keyed by lower cased rdn value
+	 * @return the SCIMGroup object that the attrs created
+	 * @throws NamingException
+	 */
+	private SCIMGroup constructGroupFromAttrs(Attributes attrs, Map<String, Membership> memberCache) throws NamingException {
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		SCIMGroup group = config.groupCodec.toGroup(attrs);
+		String cn = group.getDisplayName();
+		LogSF.debug(LOGGER, "[constructGroupFromAttrs] Constructing Group {} from Attrs.", cn);
 		ArrayList<Membership> memberList = new ArrayList<Membership>();
-		String memberAttrLookup = ldapGroupCore.get("members");
+		String memberAttrLookup = config.groupCodec.getMemberAttr();
 		Attribute memberAttr = null;
-		ArrayList<Attributes> queryResult;
 		if(memberAttrLookup != null) memberAttr = attrs.get(memberAttrLookup);
-		else LOGGER.warn("[constructGroupFromAttrs] Connector.properties did not have members entry for groupCoreMap.");
-		String idLookup = ldapGroupCore.get("id");
-		String id = "";
-		if(idLookup != null) id = attrs.get(idLookup).get().toString();
-		else LOGGER.warn("[constructGroupFromAttrs] Connector.properties did not have id entry for groupCoreMap.");
-		group.setDisplayName(cn);
-		group.setId(id);
 		if(memberAttr != null) {
+			String rdnAttr = config.ldapUserPre.split("=")[0];
+			boolean useCache = directoryCache != null && directoryCache.usersReady();
+			List<String> memberCns = new ArrayList<String>(memberAttr.size());
 			for(int i = 0; i < memberAttr.size(); i++) {
 				String memberDn = memberAttr.get(i).toString();
-				DistinguishedName dn = new DistinguishedName(memberDn);
-				LdapRdn memberCn = dn.getLdapRdn(ldapUserPre.split("=")[0]);
-				ldapFilter = "(" + ldapUserPre + memberCn.getValue() + ")";
-				queryResult = queryLDAP(searchDN ,ldapFilter);
-				//should only return one result
-				//TODO: check this before using data
-				if(queryResult.size() == 1) {
-					SCIMUser result = constructUserFromAttrs(queryResult.get(0));
-					//searches through cache to retrieve ids for group memebers,used in SCIMGroup
-					if(result != null) {
-						Membership memHolder = new Membership(result.getId(), result.getUserName());
-						memberList.add(memHolder);
-					}
+				String memberCn = GroupCodec.memberRdnValue(memberDn, rdnAttr);
+				if(memberCn == null) {
+					LOGGER.warn("[constructGroupFromAttrs] Skipping member " + memberDn + " of group " + cn + ", no " + rdnAttr + " in DN.");
+					continue;
+				}
+				memberCns.add(memberCn);
+				//members the cache knows by DN do not need a search
+				SCIMUser cached = useCache ? directoryCache.getUserByDn(memberDn) : null;
+				if(cached != null) {
+					memberCache.put(memberCn.toLowerCase(), new Membership(cached.getId(), cached.getUserName()));
+				}
+			}
+			metrics.record("group.members", "members", memberCns.size());
+			resolveMembers(memberCns, memberCache);
+			for(int i = 0; i < memberCns.size(); i++) {
+				//null means the member was not found, or was not unique
+				Membership memHolder = memberCache.get(memberCns.get(i).toLowerCase());
+				if(memHolder != null) {
+					memberList.add(memHolder);
 				}
 			}
 			group.setMembers(memberList);
@@ -1217,19 +1854,377 @@ public class SCIMServiceImpl implements SCIMService {
 	}
 
 	/**
-	 * Helper function, uses MessageDigest to hash with SHA, not actually used for us.
+	 * Looks up group members that are not in memberCache yet, ldapMemberLookupBatchSize at a time with
+	 * (|(cn=a)(cn=b)...) searches, and adds them to memberCache. Only the id and userName are read from the
+	 * results since that is all a Membership needs. Members that are missing or not unique are cached as null.
 	 *
-	 * @param password - the password to hash
-	 * @return the result of the hash base 64 encoded
-	 * @throws NoSuchAlgorithmException
-	 * @throws UnsupportedEncodingException
+	 * @param memberCns - rdn values of the member DNs
+	 * @param memberCache - resolved members keyed by lower cased rdn value, updated in place
+	 * @throws NamingException
 	 */
-	private String hashPassword(String password) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-		MessageDigest digest = MessageDigest.getInstance("SHA");
-		digest.update(password.getBytes("UTF8"));
-		byte[] encodedBytes = Base64.encodeBase64(digest.digest());
-		String shaPassword = new String(encodedBytes);
-		return "{SHA}" + shaPassword;
+	private void resolveMembers(List<String> memberCns, Map<String, Membership> memberCache) throws NamingException {
+		ConnectorConfig config = config();
+		String searchDN = config.ldapUserDn + config.ldapBaseDn;
+		String rdnAttr = config.ldapUserPre.split("=")[0];
+		//lower cased key -> value as it appears in the DN
+		Map<String, String> missing = new LinkedHashMap<String, String>();
+		for(int i = 0; i < memberCns.size(); i++) {
+			String key = memberCns.get(i).toLowerCase();
+			if(!memberCache.containsKey(key)) missing.put(key, memberCns.get(i));
+		}
+		//members of this group that had to be looked up in LDAP
+		metrics.record("group.memberLookups", "members", missing.size());
+		if(missing.isEmpty()) return;
+		List<String> keys = new ArrayList<String>(missing.keySet());
+		for(int start = 0; start < keys.size(); start += config.ldapMemberLookupBatchSize) {
+			List<String> batch = keys.subList(start, Math.min(start + config.ldapMemberLookupBatchSize, keys.size()));
+			StringBuilder ldapFilter = new StringBuilder("(|");
+			for(int i = 0; i < batch.size(); i++) {
+				ldapFilter.append("(").append(rdnAttr).append("=").append(FilterCompiler.escape(missing.get(batch.get(i)))).append(")");
+			}
+			ldapFilter.append(")");
+			ArrayList<Attributes> queryResult;
+			try {
+				memberLookupPermits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new OnPremUserManagementException("o01234", "Interrupted while looking up group members.", e);
+			}
+			try {
+				queryResult = queryLDAP(searchDN, ldapFilter.toString(), config.memberReturningAttrs);
+			} finally {
+				memberLookupPermits.release();
+			}
+			Map<String, Membership> found = new HashMap<String, Membership>();
+			Set<String> duplicates = new HashSet<String>();
+			for(int i = 0; i < queryResult.size(); i++) {
+				Attributes userAttrs = queryResult.get(i);
+				Attribute rdnValues = userAttrs.get(rdnAttr);
+				if(rdnValues == null) continue;
+				Membership memHolder = new Membership(getValueFromAttrs("id", config.ldapUserCore.get("id"), userAttrs),
+						getValueFromAttrs("userName", config.ldapUserCore.get("userName"), userAttrs));
+				for(int j = 0; j < rdnValues.size(); j++) {
+					String key = rdnValues.get(j).toString().toLowerCase();
+					if(!missing.containsKey(key)) continue;
+					Membership previous = found.put(key, memHolder);
+					if(previous != null && previous != memHolder) duplicates.add(key);
+				}
+			}
+			for(int i = 0; i < batch.size(); i++) {
+				String key = batch.get(i);
+				//should only be one user per member, same as the single lookups did
+				if(duplicates.contains(key)) {
+					LOGGER.warn("[resolveMembers] More than one user found for member " + missing.get(key) + ", skipping.");
+					memberCache.put(key, null);
+				} else {
+					memberCache.put(key, found.get(key));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param userName - userName of a user
+	 * @return the DN the user has in LDAP
+	 */
+	private String userDn(String userName) {
+		ConnectorConfig config = config();
+		return config.ldapUserPre + getUserDnName(userName) + "," + config.ldapUserDn + config.ldapBaseDn;
+	}
+
+	/**
+	 * @param displayName - display name of a group
+	 * @return the DN the group has in LDAP
+	 */
+	private String groupDn(String displayName) {
+		ConnectorConfig config = config();
+		return config.ldapGroupPre + displayName + "," + config.ldapGroupDn + config.ldapBaseDn;
+	}
+
+	/**
+	 * @param attr - an attribute, may be null
+	 * @return its values as strings, empty if there is no attribute
+	 * @throws NamingException
+	 */
+	private static List<String> attrValues(Attribute attr) throws NamingException {
+		if(attr == null) return Collections.emptyList();
+		List<String> values = new ArrayList<String>(attr.size());
+		for(int i = 0; i < attr.size(); i++) values.add(attr.get(i).toString());
+		return values;
+	}
+
+	/**
+	 * Helper function that records the members of a group read or written with its member values in the
+	 * membership index.
+	 *
+	 * @param group - the group, with its id and display name
+	 * @param attrs - attributes of the group entry, including all its member values
+	 * @throws NamingException
+	 */
+	private void indexGroup(SCIMGroup group, Attributes attrs) throws NamingException {
+		ConnectorConfig config = config();
+		String memberAttrLookup = config.groupCodec.getMemberAttr();
+		if(memberAttrLookup == null) return;
+		membershipIndex().putGroup(groupDn(group.getDisplayName()), group.getId(), group.getDisplayName(), attrValues(attrs.get(memberAttrLookup)));
+	}
+
+	/**
+	 * Helper function called once every group has been read from LDAP and indexed: groups that are gone are
+	 * forgotten, and from then on a user the membership index doesn't know is a member of no group.
+	 *
+	 * @param groupDns - DNs of every group read
+	 */
+	private void indexedEveryGroup(List<String> groupDns) {
+		ConnectorConfig config = config();
+		if(config.groupCodec.getMemberAttr() == null) return;
+		MembershipIndex membershipIndex = membershipIndex();
+		int removed = membershipIndex.retainGroups(groupDns);
+		if(!membershipIndex.isComplete()) {
+			LogSF.info(LOGGER, "[indexedEveryGroup] Memberships of {} users indexed from {} groups.", membershipIndex.memberCount(), groupDns.size());
+		}
+		if(removed > 0) LogSF.debug(LOGGER, "[indexedEveryGroup] Forgot {} groups that no longer exist.", removed);
+		membershipIndex.markComplete();
+	}
+
+	/**
+	 * Works out the member values a group has after applying the member modifications from diffMembers.
+	 *
+	 * @param oldAttrs - attributes of the group entry before the modifications
+	 * @param memberMods - ADD and REMOVE modifications of the member attribute
+	 * @return the member values after the modifications
+	 * @throws NamingException
+	 */
+	private List<String> membersAfter(Attributes oldAttrs, List<ModificationItem> memberMods) throws NamingException {
+		ConnectorConfig config = config();
+		//normalized DN -> DN
+		Map<String, String> members = new LinkedHashMap<String, String>();
+		for(String memberDn : attrValues(oldAttrs.get(config.groupCodec.getMemberAttr()))) {
+			members.put(DirectoryCache.normalizeDn(memberDn), memberDn);
+		}
+		for(int i = 0; i < memberMods.size(); i++) {
+			ModificationItem mod = memberMods.get(i);
+			for(String memberDn : attrValues(mod.getAttribute())) {
+				if(mod.getModificationOp() == DirContext.ADD_ATTRIBUTE) {
+					members.put(DirectoryCache.normalizeDn(memberDn), memberDn);
+				} else {
+					members.remove(DirectoryCache.normalizeDn(memberDn));
+				}
+			}
+		}
+		return new ArrayList<String>(members.values());
+	}
+
+	/**
+	 * @return true if the membership index can tell the groups of any user: the users carry memberOf values, or every
+	 * group has been read, by a full /Groups read or by the directory cache
+	 */
+	private boolean membershipsKnown() {
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		if(config.groupCodec.getMemberAttr() == null && config.ldapMemberOfAttr == null) return false;
+		return config.ldapMemberOfAttr != null || membershipIndex().isComplete() || (directoryCache != null && directoryCache.groupsReady());
+	}
+
+	/**
+	 * Helper function that sets the groups of users from the membership index, if it knows them. Groups only known
+	 * by DN from memberOf values are read once, by DN, for their id and display name.
+	 *
+	 * @param users - users to fill in, in place
+	 * @throws NamingException
+	 */
+	private void fillGroups(List<SCIMUser> users) throws NamingException {
+		if(users == null || users.isEmpty() || !membershipsKnown()) return;
+		DirectoryCache directoryCache = directoryCache();
+		MembershipIndex membershipIndex = membershipIndex();
+		//groups deleted behind the connector's back are still in the index until the next full read, not in the cache
+		boolean checkCache = directoryCache != null && directoryCache.groupIndexReady();
+		for(int i = 0; i < users.size(); i++) {
+			SCIMUser user = users.get(i);
+			if(user.getUserName() == null) continue;
+			List<MembershipIndex.GroupRef> refs = membershipIndex.groupsOf(userDn(user.getUserName()));
+			List<Membership> groups = new ArrayList<Membership>(refs.size());
+			for(int j = 0; j < refs.size(); j++) {
+				MembershipIndex.GroupRef ref = refs.get(j);
+				if(checkCache && directoryCache.getGroupIdByDn(ref.getDn()) == null) continue;
+				if(ref.getId() != null && ref.getDisplayName() != null) {
+					groups.add(new Membership(ref.getId(), ref.getDisplayName()));
+					continue;
+				}
+				SCIMGroup group = readGroupName(ref.getDn());
+				if(group != null) groups.add(new Membership(group.getId(), group.getDisplayName()));
+			}
+			user.setGroups(groups);
+		}
+	}
+
+	/**
+	 * Helper function that reads the id and display name of a group by DN, and records them in the membership index.
+	 *
+	 * @param dn - DN of the group
+	 * @return the group without members, or null if there is no group at that DN
+	 * @throws NamingException
+	 */
+	private SCIMGroup readGroupName(final String dn) throws NamingException {
+		final ConnectorConfig config = config();
+		SearchResult entry = topology().read(null, new LdapTopology.Read<SearchResult>() {
+			public SearchResult run(LdapContextPool pool) throws NamingException {
+				try {
+					ArrayList<SearchResult> found = searchEntries(pool, dn, SearchControls.OBJECT_SCOPE, config.ldapGroupFilter, config.groupIndexAttrs);
+					return found.isEmpty() ? null : found.get(0);
+				} catch (NameNotFoundException e) {
+					return null;
+				}
+			}
+		});
+		if(entry == null) {
+			membershipIndex().removeGroup(dn);
+			return null;
+		}
+		SCIMGroup group = config.groupCodec.toGroup(entry.getAttributes());
+		membershipIndex().putGroupName(dn, group.getId(), group.getDisplayName());
+		return group;
+	}
+
+	/**
+	 * Finds the groups a user is a member of, to remove it from them when it is deleted. Its memberOf values are
+	 * used if the server keeps them, they come from the entry just read. Otherwise the groups are searched on the
+	 * member attribute, which directories index for equality. The membership index isn't used, a group changed
+	 * behind the connector's back would keep the deleted user as a member.
+	 *
+	 * @param userDn - DN of the user
+	 * @param userAttrs - attributes of the user's entry, read with userReturningAttrs
+	 * @return DNs of the groups the user is a member of
+	 * @throws NamingException
+	 */
+	private List<String> groupDnsOf(String userDn, Attributes userAttrs) throws NamingException {
+		ConnectorConfig config = config();
+		List<String> groupDns = new ArrayList<String>();
+		String memberAttrLookup = config.groupCodec.getMemberAttr();
+		if(memberAttrLookup == null) return groupDns;
+		if(config.ldapMemberOfAttr != null) {
+			groupDns.addAll(attrValues(userAttrs.get(config.ldapMemberOfAttr)));
+			return groupDns;
+		}
+		String memberValue = GroupCodec.memberDn(userDn);
+		ArrayList<SearchResult> found = searchEntries(contextPool(), config.ldapGroupDn + config.ldapBaseDn, SearchControls.SUBTREE_SCOPE,
+				"(&" + config.ldapGroupFilter + "(" + memberAttrLookup + "=" + FilterCompiler.escape(memberValue) + "))", NO_ATTRS);
+		for(int i = 0; i < found.size(); i++) groupDns.add(found.get(i).getNameInNamespace());
+		return groupDns;
+	}
+
+	/**
+	 * Helper function that removes a user from groups, one modify per group. Values that are already gone, as
+	 * with servers that clean up references themselves, are skipped, and so are groups that can't be left without
+	 * members.
+	 *
+	 * @param ctx - connection to the primary
+	 * @param userDn - DN of the user
+	 * @param groupDns - DNs of the groups it is a member of
+	 * @throws NamingException if the primary can't be reached
+	 */
+	private void removeMemberships(LdapContext ctx, String userDn, List<String> groupDns) throws NamingException {
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		LdapTopology topology = topology();
+		String memberAttrLookup = config.groupCodec.getMemberAttr();
+		if(memberAttrLookup == null || groupDns.isEmpty()) return;
+		ModificationItem[] mods = {new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(memberAttrLookup,
+				GroupCodec.memberDn(userDn)))};
+		int removed = 0;
+		for(int i = 0; i < groupDns.size(); i++) {
+			String groupDn = groupDns.get(i);
+			try {
+				ctx.modifyAttributes(groupDn, mods);
+				removed++;
+			} catch (NoSuchAttributeException | NameNotFoundException e) {
+				LogSF.debug(LOGGER, "[removeMemberships] {} was no longer a member of {}.", userDn, groupDn);
+			} catch (SchemaViolationException e) {
+				LOGGER.warn("[removeMemberships] Could not remove " + userDn + " from " + groupDn + ", it is probably its last member: " + e.getMessage());
+			}
+			String groupId = directoryCache != null ? directoryCache.getGroupIdByDn(groupDn) : null;
+			if(groupId != null) topology.noteWrite("group:" + groupId);
+			if(directoryCache != null) directoryCache.refreshGroup(groupDn);
+		}
+		LogSF.info(LOGGER, "[removeMemberships] Removed {} from {} of {} groups.", userDn, removed, groupDns.size());
+	}
+
+	/**
+	 * @param filter - a user filter
+	 * @return the group ids of a "groups eq <id>" filter, or of an OR of them, null for any other filter
+	 */
+	private static List<String> groupFilterIds(SCIMFilter filter) {
+		if(filter.getFilterType() == SCIMFilterType.OR && filter.getFilterExpressions() != null) {
+			List<String> ids = new ArrayList<String>();
+			for(SCIMFilter expression : filter.getFilterExpressions()) {
+				List<String> expressionIds = groupFilterIds(expression);
+				if(expressionIds == null) return null;
+				ids.addAll(expressionIds);
+			}
+			return ids.isEmpty() ? null : ids;
+		}
+		SCIMFilterAttribute attribute = filter.getFilterAttribute();
+		if(filter.getFilterType() != SCIMFilterType.EQUALS || attribute == null || !"groups".equalsIgnoreCase(attribute.getAttributeName())) return null;
+		String sub = attribute.getSubAttributeName();
+		if(sub != null && !sub.equalsIgnoreCase("value")) return null;
+		return Collections.singletonList(filter.getFilterValue());
+	}
+
+	/**
+	 * Finds the members of groups: from the membership index while the directory cache keeps it current, otherwise
+	 * with a base-object read of each group, then the member entries themselves, ldapMemberLookupBatchSize at a time.
+	 *
+	 * @param groupIds - ids of the groups
+	 * @return the users that are a member of any of them
+	 * @throws NamingException
+	 */
+	private List<SCIMUser> getUsersInGroups(List<String> groupIds) throws NamingException {
+		ConnectorConfig config = config();
+		DirectoryCache directoryCache = directoryCache();
+		MembershipIndex membershipIndex = membershipIndex();
+		String memberAttrLookup = config.groupCodec.getMemberAttr();
+		List<SCIMUser> users = new ArrayList<SCIMUser>();
+		if(memberAttrLookup == null) return users;
+		boolean indexCurrent = directoryCache != null && directoryCache.groupsReady();
+		//normalized DN -> DN
+		Map<String, String> memberDns = new LinkedHashMap<String, String>();
+		for(int i = 0; i < groupIds.size(); i++) {
+			List<String> members = indexCurrent ? membershipIndex.membersOf(groupIds.get(i)) : null;
+			if(members == null) {
+				SearchResult entry = findById(GROUP_RESOURCE, groupIds.get(i), false, config.groupReturningAttrs);
+				if(entry == null) continue;
+				indexGroup(config.groupCodec.toGroup(entry.getAttributes()), entry.getAttributes());
+				members = attrValues(entry.getAttributes().get(memberAttrLookup));
+			}
+			for(int j = 0; j < members.size(); j++) memberDns.put(DirectoryCache.normalizeDn(members.get(j)), members.get(j));
+		}
+		if(directoryCache != null && directoryCache.usersReady()) {
+			for(String memberDn : memberDns.values()) {
+				SCIMUser user = directoryCache.getUserByDn(memberDn);
+				if(user != null) users.add(user);
+			}
+			return users;
+		}
+		String rdnAttr = config.ldapUserPre.split("=")[0];
+		List<String> rdnValues = new ArrayList<String>(memberDns.size());
+		for(String memberDn : memberDns.values()) {
+			String rdnValue = GroupCodec.memberRdnValue(memberDn, rdnAttr);
+			if(rdnValue != null) rdnValues.add(rdnValue);
+		}
+		for(int start = 0; start < rdnValues.size(); start += config.ldapMemberLookupBatchSize) {
+			List<String> batch = rdnValues.subList(start, Math.min(start + config.ldapMemberLookupBatchSize, rdnValues.size()));
+			StringBuilder ldapFilter = new StringBuilder("(|");
+			for(int i = 0; i < batch.size(); i++) {
+				ldapFilter.append("(").append(rdnAttr).append("=").append(FilterCompiler.escape(batch.get(i))).append(")");
+			}
+			ldapFilter.append(")");
+			ArrayList<Attributes> queryResult = queryLDAP(config.ldapUserDn + config.ldapBaseDn, ldapFilter.toString(), config.userReturningAttrs);
+			for(int i = 0; i < queryResult.size(); i++) {
+				SCIMUser user = constructUserFromAttrs(queryResult.get(i));
+				//an entry with the same rdn value elsewhere under the users DN is not the member
+				if(user.getUserName() != null && memberDns.containsKey(DirectoryCache.normalizeDn(userDn(user.getUserName())))) users.add(user);
+			}
+		}
+		return users;
 	}
 
 	/**
@@ -1251,6 +2246,125 @@ public class SCIMServiceImpl implements SCIMService {
 		}
 	}
 
+	/**
+	 * Helper function that records a user write so reads of it by id or userName stay on the primary for a while.
+	 *
+	 * @param id - id of the user
+	 * @param attrs - attributes written, null if the user was deleted
+	 */
+	private void noteUserWrite(String id, Attributes attrs) throws NamingException {
+		ConnectorConfig config = config();
+		LdapTopology topology = topology();
+		topology.noteWrite("user:" + id);
+		String userNameLookup = config.ldapUserCore.get("userName");
+		if(attrs != null && userNameLookup != null && attrs.get(userNameLookup) != null && attrs.get(userNameLookup).size() > 0) {
+			topology.noteWrite("userName:" + attrs.get(userNameLookup).get().toString().toLowerCase());
+		}
+	}
+
+	/**
+	 * Helper function that names the user an equality filter on id or userName looks for, so the search can honour
+	 * read-your-writes.
+	 *
+	 * @param filter - the SCIM filter
+	 * @return "user:id", "userName:name", or null for any other filter
+	 */
+	private String filterEntity(SCIMFilter filter) {
+		if(filter.getFilterType() != SCIMFilterType.EQUALS || filter.getFilterValue() == null) return null;
+		String fieldName = filter.getFilterAttribute().getAttributeName();
+		if(fieldName.equalsIgnoreCase("id")) return "user:" + filter.getFilterValue();
+		if(fieldName.equalsIgnoreCase("userName")) return "userName:" + filter.getFilterValue().toLowerCase();
+		return null;
+	}
+
+	/**
+	 * Helper function that journals a write for a user or group that already has writes waiting in the journal, so
+	 * it is not sent to LDAP ahead of them.
+	 *
+	 * @param entry - the write
+	 * @return true if the write was journaled and must not be sent to LDAP now
+	 */
+	private boolean journalBehindPending(WriteJournal.Entry entry) {
+		if(writeJournal == null || !writeJournal.hasPending(entry.getEntity())) return false;
+		try {
+			writeJournal.append(entry);
+			LogSF.info(LOGGER, "[journalBehindPending] {} queued behind writes waiting for LDAP.", entry);
+			return true;
+		} catch (IOException e) {
+			LOGGER.error("[journalBehindPending] Could not journal " + entry + ": " + e.getMessage());
+			throw new OnPremUserManagementException("o01234", "Earlier writes are waiting for LDAP and this one could not be queued behind them.", e);
+		}
+	}
+
+	/**
+	 * Helper function that journals a write that failed because LDAP could not be reached, so it can be
+	 * acknowledged now and applied when LDAP is back.
+	 *
+	 * @param entry - the write, null if it failed before it could be built
+	 * @param e - why it failed
+	 * @return true if the write was journaled, false if it should fail as usual
+	 */
+	private boolean journalOnOutage(WriteJournal.Entry entry, NamingException e) {
+		if(writeJournal == null || entry == null || !WriteJournal.isOutage(e)) return false;
+		try {
+			writeJournal.append(entry);
+			LOGGER.warn("[journalOnOutage] LDAP unreachable (" + e.getMessage() + "), " + entry + " will be applied when it is back.");
+			return true;
+		} catch (IOException ioe) {
+			LOGGER.error("[journalOnOutage] Could not journal " + entry + ": " + ioe.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Helper function that applies a journaled write once LDAP is back. Runs the same code as the live write, so
+	 * the entry is looked up again and group members are checked at that point.
+	 *
+	 * @param entry - the journaled write
+	 * @throws NamingException
+	 */
+	private void applyJournalEntry(WriteJournal.Entry entry) throws NamingException {
+		switch(entry.getKind()) {
+			case CREATE_USER:
+				applyCreateUser(entry.getId(), entry.getDn(), entry.getAttrs());
+				break;
+			case UPDATE_USER:
+				applyUpdateUser(entry.getId(), entry.getDn(), entry.getAttrs(), entry.isActive());
+				break;
+			case CREATE_GROUP:
+				applyCreateGroup(groupFromJournal(entry));
+				break;
+			case UPDATE_GROUP:
+				applyUpdateGroup(entry.getId(), groupFromJournal(entry));
+				break;
+		}
+	}
+
+	/**
+	 * @return userNames of the members Okta sent, null if it sent none
+	 */
+	private List<String> memberUserNames(SCIMGroup group) {
+		if(group.getMembers() == null) return null;
+		List<String> userNames = new ArrayList<String>(group.getMembers().size());
+		for(Membership mem : group.getMembers()) userNames.add(mem.getDisplayName());
+		return userNames;
+	}
+
+	/**
+	 * @return a SCIMGroup holding what a journaled group write needs: id, displayName and member userNames
+	 */
+	private SCIMGroup groupFromJournal(WriteJournal.Entry entry) {
+		SCIMGroup group = new SCIMGroup();
+		group.setId(entry.getId());
+		group.setDisplayName(entry.getDisplayName());
+		if(entry.getMemberUserNames() != null) {
+			List<Membership> members = new ArrayList<Membership>(entry.getMemberUserNames().size());
+			for(String userName : entry.getMemberUserNames()) members.add(new Membership(null, userName));
+			group.setMembers(members);
+		}
+		return group;
+	}
+
 	/**
 	 * Helper function to print stack trace to logger.
 	 *
@@ -1258,10 +2372,20 @@ public class SCIMServiceImpl implements SCIMService {
 	 * @return
 	 */
 	private void handleGeneralException(Exception e) {
-		StringWriter errors = new StringWriter();
-		e.printStackTrace(new PrintWriter(errors));
 		LOGGER.error(e.getMessage());
-		LOGGER.debug(errors.toString());
+		//log4j only renders the stack trace when DEBUG is on
+		LOGGER.debug("[handleGeneralException] Stack trace:", e);
+	}
+
+	/**
+	 * Helper function that decides once per request whether its payload is dumped at DEBUG. Only one request in
+	 * OPP.logging.payloadSampleRate is, so turning DEBUG on doesn't serialize every user, group and result page.
+	 *
+	 * @return true if the payload of this request should be logged
+	 */
+	private boolean samplePayload() {
+		ConnectorConfig config = config();
+		return config.payloadSampleRate > 0 && LOGGER.isDebugEnabled() && payloadSamples.getAndIncrement() % config.payloadSampleRate == 0;
 	}
 
 	/**
@@ -1271,7 +2395,8 @@ public class SCIMServiceImpl implements SCIMService {
 	 * @return returns the appropriate dn to use for LDAP
 	 */
 	private String getUserDnName(String name) {
-		if(useEntireUsername) {
+		ConnectorConfig config = config();
+		if(config.useEntireUsername) {
 			return name;
 		}
 		else {
@@ -1280,17 +2405,26 @@ public class SCIMServiceImpl implements SCIMService {
 	}
 
 	/**
-	 * Helper function to get appropriate LDAP dn name as per the configs
+	 * Helper function for the password attribute, which is never read back from LDAP so it can't be diffed.
 	 *
-	 * @param name - the name to process
-	 * @return returns the appropriate dn to use for LDAP
+	 * @return the mapped password attribute, or an empty list if passwords are not mapped
 	 */
-	private SCIMUser searchUserUsernames(String name) {
-		for(Map.Entry<String, SCIMUser> entry : userMap.entrySet()) {
-			SCIMUser user = entry.getValue();
-			if(user.getUserName().contains(name)) return user;
-		}
-		return null;
+	private List<String> passwordAttr() {
+		ConnectorConfig config = config();
+		String passwordLookup = config.ldapUserCore.get("password");
+		if(passwordLookup == null) return Collections.emptyList();
+		return Collections.singletonList(passwordLookup);
+	}
+
+	/**
+	 * Helper function that decides whether a listing should go through a paged results cursor.
+	 *
+	 * @param pageProperties - paging requested by Okta, may be null
+	 * @return true if paged results are enabled and the request asked for a bounded page
+	 */
+	private boolean usePagedResults(PaginationProperties pageProperties) {
+		ConnectorConfig config = config();
+		return config.ldapPagedResults && pageProperties != null && pageProperties.getCount() > 0 && pageProperties.getStartIndex() >= 1;
 	}
 
 	private String getValueFromAttrs(String map, String lookup, Attributes attrs) throws NamingException {
@@ -1306,20 +2440,204 @@ public class SCIMServiceImpl implements SCIMService {
 		return value;
 	}
 
-	private ArrayList<Attributes> queryLDAP(String dn, String filter) throws NamingException {
-		ArrayList<Attributes> results = new ArrayList<Attributes>();
-		LdapContext ctx = new InitialLdapContext(env, null);
-		ctx.setRequestControls(null);
+	/**
+	 * Runs a subtree search with a pooled connection, handing each entry to the handler as it arrives. Uses
+	 * paged results when they are enabled, otherwise reads the plain search enumeration one entry at a time.
+	 *
+	 * @param dn - DN to search under
+	 * @param filter - LDAP filter
+	 * @param returningAttrs - attributes to fetch, null fetches all of them
+	 * @param handler - called for every entry
+	 * @return the number of entries handled
+	 * @throws NamingException
+	 */
+	private long scanLDAP(String dn, String filter, String[] returningAttrs, PagedSearchCursors.EntryHandler handler) throws NamingException {
+		ConnectorConfig config = config();
+		LdapTopology topology = topology();
+		//a scan cannot move to another server halfway through, the replica is picked once
+		LdapContextPool pool = topology.readPool(null);
+		if(config.ldapPagedResults) {
+			long total = PagedSearchCursors.scan(pool, dn, filter, returningAttrs, config.ldapStreamingPageSize, handler);
+			metrics.record("ldap.search.entries", "entries", total);
+			return total;
+		}
 		SearchControls controls = new SearchControls();
 		controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-		NamingEnumeration<?> namingEnum = ctx.search(dn, filter, controls);
-		while (namingEnum.hasMore()) {
-			SearchResult result = (SearchResult) namingEnum.next();
-			Attributes attrs = result.getAttributes();
-			results.add(attrs);
-		}
-		ctx.close();
-		namingEnum.close();
+		controls.setReturningAttributes(returningAttrs);
+		long total = 0;
+		LdapContext ctx = pool.borrow();
+		boolean broken = true;
+		try {
+			NamingEnumeration<SearchResult> namingEnum = ctx.search(dn, filter, controls);
+			try {
+				while(namingEnum.hasMore()) {
+					handler.handle(namingEnum.next());
+					total++;
+				}
+			} finally {
+				namingEnum.close();
+			}
+			broken = false;
+		} finally {
+			//a search abandoned halfway may leave results on the connection
+			if(broken) pool.invalidate(ctx);
+			else pool.release(ctx);
+		}
+		metrics.record("ldap.search.entries", "entries", total);
+		return total;
+	}
+
+	/**
+	 * Runs a subtree search on a replica, see queryLDAP(String, String, String, String[]).
+	 */
+	private ArrayList<Attributes> queryLDAP(String dn, String filter, String[] returningAttrs) throws NamingException {
+		return queryLDAP(null, dn, filter, returningAttrs);
+	}
+
+	/**
+	 * Runs a subtree search on the least busy replica, moving on to the other servers if it cannot be reached.
+	 * Goes to the primary if entity was written by the connector moments ago.
+	 *
+	 * @param entity - "user:id", "userName:name" or "group:id" of what is being read, null for searches over many entries
+	 * @param dn - DN to search under
+	 * @param filter - LDAP filter
+	 * @param returningAttrs - attributes to fetch, null fetches all of them
+	 * @return the attributes of every matching entry
+	 * @throws NamingException
+	 */
+	private ArrayList<Attributes> queryLDAP(String entity, final String dn, final String filter, final String[] returningAttrs) throws NamingException {
+		LdapTopology topology = topology();
+		return topology.read(entity, new LdapTopology.Read<ArrayList<Attributes>>() {
+			public ArrayList<Attributes> run(LdapContextPool pool) throws NamingException {
+				return searchLDAP(pool, dn, filter, returningAttrs);
+			}
+		});
+	}
+
+	/**
+	 * Runs a subtree search on the primary, for the reads a write is based on.
+	 *
+	 * @param dn - DN to search under
+	 * @param filter - LDAP filter
+	 * @param returningAttrs - attributes to fetch, null fetches all of them
+	 * @return the attributes of every matching entry
+	 * @throws NamingException
+	 */
+	private ArrayList<Attributes> queryPrimary(String dn, String filter, String[] returningAttrs) throws NamingException {
+		LdapContextPool contextPool = contextPool();
+		return searchLDAP(contextPool, dn, filter, returningAttrs);
+	}
+
+	/**
+	 * Runs a subtree search with a connection from the given pool.
+	 *
+	 * @param pool - pool of the server to search
+	 * @param dn - DN to search under
+	 * @param filter - LDAP filter
+	 * @param returningAttrs - attributes to fetch, null fetches all of them
+	 * @return the attributes of every matching entry
+	 * @throws NamingException
+	 */
+	private ArrayList<Attributes> searchLDAP(LdapContextPool pool, String dn, String filter, String[] returningAttrs) throws NamingException {
+		ArrayList<SearchResult> entries = searchEntries(pool, dn, SearchControls.SUBTREE_SCOPE, filter, returningAttrs);
+		ArrayList<Attributes> results = new ArrayList<Attributes>(entries.size());
+		for(int i = 0; i < entries.size(); i++) {
+			results.add(entries.get(i).getAttributes());
+		}
 		return results;
 	}
+
+	/**
+	 * Runs a search with a connection from the given pool.
+	 *
+	 * @param pool - pool of the server to search
+	 * @param dn - DN to search under, or of the entry to read with OBJECT_SCOPE
+	 * @param scope - SearchControls.SUBTREE_SCOPE or SearchControls.OBJECT_SCOPE
+	 * @param filter - LDAP filter
+	 * @param returningAttrs - attributes to fetch, null fetches all of them
+	 * @return every matching entry with its DN
+	 * @throws NamingException
+	 */
+	private ArrayList<SearchResult> searchEntries(LdapContextPool pool, String dn, int scope, String filter, String[] returningAttrs) throws NamingException {
+		ArrayList<SearchResult> results = new ArrayList<SearchResult>();
+		SearchControls controls = new SearchControls();
+		controls.setSearchScope(scope);
+		controls.setReturningAttributes(returningAttrs);
+		LdapContext ctx = pool.borrow();
+		NamingException failure = null;
+		try {
+			NamingEnumeration<?> namingEnum = ctx.search(dn, filter, controls);
+			while (namingEnum.hasMore()) {
+				results.add((SearchResult) namingEnum.next());
+			}
+			namingEnum.close();
+		} catch (NamingException e) {
+			failure = e;
+			throw e;
+		} finally {
+			pool.release(ctx, failure);
+		}
+		metrics.record("ldap.search.entries", "entries", results.size());
+		return results;
+	}
+
+	/**
+	 * Helper function that finds the entry of a user or group by id. If the DN of the id is known, from the directory
+	 * cache index or the DnResolver, that entry alone is read with a base-object search on the same filter, which
+	 * also checks it still has the id. The subtree search on the id attribute, a scan of the OU on directories that
+	 * don't index it, only runs when the DN is unknown or stale. Whatever is found is remembered for next time.
+	 *
+	 * @param resource - USER_RESOURCE or GROUP_RESOURCE
+	 * @param id - id of the user or group
+	 * @param primary - true reads from the primary, for the reads a write is based on
+	 * @param returningAttrs - attributes to fetch
+	 * @return the entry with its DN, or null if there is no entry with that id
+	 * @throws NamingException
+	 */
+	private SearchResult findById(String resource, String id, boolean primary, final String[] returningAttrs) throws NamingException {
+		ConnectorConfig config = config();
+		boolean user = USER_RESOURCE.equals(resource);
+		final String entity = (user ? "user:" : "group:") + id;
+		final String searchDN = user ? config.ldapUserDn + config.ldapBaseDn : config.ldapGroupDn + config.ldapBaseDn;
+		String idLookup = user ? config.ldapUserCore.get("id") : config.ldapGroupCore.get("id");
+		final String ldapFilter = "(" + idLookup + "=" + FilterCompiler.escape(id) + ")";
+		final String knownDn = knownDn(user, id, entity);
+		LdapTopology.Read<SearchResult> read = new LdapTopology.Read<SearchResult>() {
+			public SearchResult run(LdapContextPool pool) throws NamingException {
+				if(knownDn != null) {
+					try {
+						ArrayList<SearchResult> found = searchEntries(pool, knownDn, SearchControls.OBJECT_SCOPE, ldapFilter, returningAttrs);
+						if(!found.isEmpty()) return found.get(0);
+					} catch (NameNotFoundException e) {
+						//moved or deleted, look for it below
+					}
+					LogSF.debug(LOGGER, "[findById] {} is no longer at {}, searching for it.", entity, knownDn);
+				}
+				ArrayList<SearchResult> found = searchEntries(pool, searchDN, SearchControls.SUBTREE_SCOPE, ldapFilter, returningAttrs);
+				return found.isEmpty() ? null : found.get(0);
+			}
+		};
+		SearchResult result = primary ? read.run(contextPool()) : topology().read(entity, read);
+		if(result == null) {
+			dnResolver().forget(entity);
+		} else {
+			dnResolver().put(entity, result.getNameInNamespace());
+		}
+		return result;
+	}
+
+	/**
+	 * @param user - true for a user id, false for a group id
+	 * @param id - id of the user or group
+	 * @param entity - "user:id" or "group:id"
+	 * @return the DN the id was last seen at, or null if it isn't known
+	 */
+	private String knownDn(boolean user, String id, String entity) {
+		DirectoryCache directoryCache = directoryCache();
+		String dn = null;
+		if(directoryCache != null && (user ? directoryCache.userIndexReady() : directoryCache.groupIndexReady())) {
+			dn = user ? directoryCache.getUserDnById(id) : directoryCache.getGroupDnById(id);
+		}
+		return dn != null ? dn : dnResolver().get(entity);
+	}
 }
@@ -0,0 +1,217 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.util.model.Email;
+import com.okta.scim.util.model.Membership;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.PhoneNumber;
+import com.okta.scim.util.model.SCIMGroup;
+import com.okta.scim.util.model.SCIMResource;
+import com.okta.scim.util.model.SCIMUser;
+
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.springframework.web.HttpRequestHandler;
+
+import java.io.IOException;
+import java.util.Map;
+import javax.naming.NamingException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves GET /stream/Users and GET /stream/Groups as SCIM list responses that are written while the entries are
+ * still coming back from LDAP, so a full export never holds the whole directory, the converted resources or the
+ * JSON in memory at once.
+ * <p/>
+ * Served by the dispatcher through the streamingListHandler bean in dispatcher-servlet.xml, named /stream/*, next to
+ * the SDK's /Users and /Groups. Always returns every resource, startIndex and
+ * count are not supported. Off unless OPP.streaming.enabled is true.
+ * <p/>
+ * The status line is sent before the first resource, so an LDAP error halfway through cannot become an error
+ * status. The response is cut off instead, which leaves invalid JSON that the client will reject.
+ */
+public class StreamingListHandler implements HttpRequestHandler {
+	private static final Logger LOGGER = Logger.getLogger(StreamingListHandler.class);
+	private static final String CORE_SCHEMA = "urn:scim:schemas:core:1.0";
+	//push what has been written to the client every this many resources
+	private static final int FLUSH_INTERVAL = 1000;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final JsonFactory jsonFactory = mapper.getJsonFactory();
+	private SCIMServiceImpl service;
+
+	public void setService(SCIMServiceImpl service) {
+		this.service = service;
+	}
+
+	@Override
+	public void handleRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if(!service.isStreamingEnabled()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if(!"GET".equals(request.getMethod())) {
+			response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		//the dispatcher is mapped to /, the whole path is the servlet path
+		String path = request.getServletPath() + (request.getPathInfo() == null ? "" : request.getPathInfo());
+		boolean users = "/stream/Users".equals(path);
+		if(!users && !"/stream/Groups".equals(path)) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		LogSF.info(LOGGER, "[handleRequest] Streaming {}", path);
+		long start = System.currentTimeMillis();
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		final JsonGenerator gen = jsonFactory.createJsonGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+		gen.setCodec(mapper);
+		try {
+			gen.writeStartObject();
+			gen.writeArrayFieldStart("schemas");
+			gen.writeString(CORE_SCHEMA);
+			if(users) gen.writeString(service.getUserCustomUrn());
+			gen.writeEndArray();
+			gen.writeNumberField("startIndex", 1);
+			gen.writeArrayFieldStart("Resources");
+			long total;
+			if(users) {
+				total = service.streamUsers(new SCIMServiceImpl.ResourceHandler<SCIMUser>() {
+					private long written = 0;
+
+					public void handle(SCIMUser user) {
+						writeUser(gen, user);
+						flushEvery(gen, ++written);
+					}
+				});
+			} else {
+				total = service.streamGroups(new SCIMServiceImpl.ResourceHandler<SCIMGroup>() {
+					private long written = 0;
+
+					public void handle(SCIMGroup group) {
+						writeGroup(gen, group);
+						flushEvery(gen, ++written);
+					}
+				});
+			}
+			gen.writeEndArray();
+			//totalResults comes last, it is only known once the search is done
+			gen.writeNumberField("totalResults", total);
+			gen.writeNumberField("itemsPerPage", total);
+			gen.writeEndObject();
+			gen.close();
+			LogSF.info(LOGGER, "[handleRequest] Streamed {} resources for {} in {}ms.", total, path, System.currentTimeMillis() - start);
+		} catch (WriteFailedException e) {
+			//the client went away, nothing left to tell it
+			LOGGER.warn("[handleRequest] Client stopped reading " + path + ": " + e.getCause().getMessage());
+		} catch (NamingException | RuntimeException e) {
+			LOGGER.error("[handleRequest] Streaming " + path + " failed, response cut off: " + e.getMessage());
+			if(!response.isCommitted()) {
+				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+			}
+		}
+	}
+
+	private void flushEvery(JsonGenerator gen, long written) {
+		if(written % FLUSH_INTERVAL != 0) return;
+		try {
+			gen.flush();
+		} catch (IOException e) {
+			throw new WriteFailedException(e);
+		}
+	}
+
+	private void writeUser(JsonGenerator gen, SCIMUser user) {
+		try {
+			gen.writeStartObject();
+			writeString(gen, "id", user.getId());
+			writeString(gen, "userName", user.getUserName());
+			Name name = user.getName();
+			if(name != null) {
+				gen.writeObjectFieldStart("name");
+				writeString(gen, "formatted", name.getFormattedName());
+				writeString(gen, "familyName", name.getLastName());
+				writeString(gen, "givenName", name.getFirstName());
+				gen.writeEndObject();
+			}
+			if(user.isActive() != null) gen.writeBooleanField("active", user.isActive());
+			if(user.getEmails() != null) {
+				gen.writeArrayFieldStart("emails");
+				for(Email email : user.getEmails()) {
+					gen.writeStartObject();
+					writeString(gen, "value", email.getValue());
+					writeString(gen, "type", email.getType());
+					gen.writeBooleanField("primary", email.isPrimary());
+					gen.writeEndObject();
+				}
+				gen.writeEndArray();
+			}
+			if(user.getPhoneNumbers() != null) {
+				gen.writeArrayFieldStart("phoneNumbers");
+				for(PhoneNumber phoneNumber : user.getPhoneNumbers()) {
+					gen.writeStartObject();
+					writeString(gen, "value", phoneNumber.getValue());
+					if(phoneNumber.getType() != null) writeString(gen, "type", phoneNumber.getType().name().toLowerCase());
+					gen.writeBooleanField("primary", phoneNumber.isPrimary());
+					gen.writeEndObject();
+				}
+				gen.writeEndArray();
+			}
+			writeCustom(gen, user);
+			gen.writeEndObject();
+		} catch (IOException e) {
+			throw new WriteFailedException(e);
+		}
+	}
+
+	private void writeGroup(JsonGenerator gen, SCIMGroup group) {
+		try {
+			gen.writeStartObject();
+			writeString(gen, "id", group.getId());
+			writeString(gen, "displayName", group.getDisplayName());
+			if(group.getMembers() != null) {
+				gen.writeArrayFieldStart("members");
+				for(Membership member : group.getMembers()) {
+					gen.writeStartObject();
+					writeString(gen, "value", member.getId());
+					writeString(gen, "display", member.getDisplayName());
+					gen.writeEndObject();
+				}
+				gen.writeEndArray();
+			}
+			writeCustom(gen, group);
+			gen.writeEndObject();
+		} catch (IOException e) {
+			throw new WriteFailedException(e);
+		}
+	}
+
+	private void writeCustom(JsonGenerator gen, SCIMResource resource) throws IOException {
+		Map<String, JsonNode> custom = resource.getCustomPropertiesMap();
+		if(custom == null) return;
+		for(Map.Entry<String, JsonNode> entry : custom.entrySet()) {
+			gen.writeFieldName(entry.getKey());
+			gen.writeTree(entry.getValue());
+		}
+	}
+
+	private void writeString(JsonGenerator gen, String field, String value) throws IOException {
+		if(value != null) gen.writeStringField(field, value);
+	}
+
+	/**
+	 * Carries an IOException from the response out through the LDAP search, which only lets NamingExceptions through.
+	 */
+	private static class WriteFailedException extends RuntimeException {
+		private WriteFailedException(IOException cause) {
+			super(cause);
+		}
+	}
+}
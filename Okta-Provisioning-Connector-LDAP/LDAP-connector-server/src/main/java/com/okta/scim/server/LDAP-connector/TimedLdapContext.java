@@ -0,0 +1,160 @@
+package com.okta.scim.server.LDAP.connector;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Wraps an LdapContext so every LDAP operation made through it is timed in ConnectorMetrics, under the name of the
+ * LDAP operation rather than the JNDI method: ldap.search, ldap.read, ldap.add, ldap.modify, ldap.delete and
+ * ldap.rename. JNDI's bind() and unbind() of objects are ldap.bindObject and ldap.unbindObject, ldap.bind is the
+ * authentication LdapContextPool times when it opens a connection. Other methods are passed through.
+ * <p/>
+ * A search is timed until its results have all been read or the enumeration is closed, so the time includes
+ * waiting for the directory to send every entry, and whatever the caller does between entries.
+ */
+public class TimedLdapContext implements InvocationHandler {
+	private static final Map<String, String> OPERATIONS = new HashMap<String, String>();
+	static {
+		OPERATIONS.put("search", "ldap.search");
+		OPERATIONS.put("getAttributes", "ldap.read");
+		OPERATIONS.put("createSubcontext", "ldap.add");
+		OPERATIONS.put("bind", "ldap.bindObject");
+		OPERATIONS.put("modifyAttributes", "ldap.modify");
+		OPERATIONS.put("destroySubcontext", "ldap.delete");
+		OPERATIONS.put("unbind", "ldap.unbindObject");
+		OPERATIONS.put("rename", "ldap.rename");
+	}
+
+	private final LdapContext ctx;
+	private final ConnectorMetrics metrics;
+
+	private TimedLdapContext(LdapContext ctx, ConnectorMetrics metrics) {
+		this.ctx = ctx;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param ctx - the context to time
+	 * @param metrics - where to record the timings
+	 * @return a context that behaves like ctx
+	 */
+	public static LdapContext wrap(LdapContext ctx, ConnectorMetrics metrics) {
+		return (LdapContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(), new Class[]{LdapContext.class},
+				new TimedLdapContext(ctx, metrics));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String operation = OPERATIONS.get(method.getName());
+		if(operation == null) return call(method, args);
+		ConnectorMetrics.Timer timer = metrics.time(operation);
+		boolean handedOff = false;
+		try {
+			Object result = call(method, args);
+			if(result instanceof NamingEnumeration) {
+				handedOff = true;
+				return new TimedEnumeration<Object>((NamingEnumeration<Object>) result, timer);
+			}
+			return result;
+		} catch (Throwable e) {
+			throw timer.fail(e);
+		} finally {
+			if(!handedOff) timer.stop();
+		}
+	}
+
+	private Object call(Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(ctx, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Search results that stop the search's timer once they are all read, closed or fail.
+	 */
+	private static class TimedEnumeration<T> implements NamingEnumeration<T> {
+		private final NamingEnumeration<T> results;
+		private final ConnectorMetrics.Timer timer;
+		private boolean stopped = false;
+
+		private TimedEnumeration(NamingEnumeration<T> results, ConnectorMetrics.Timer timer) {
+			this.results = results;
+			this.timer = timer;
+		}
+
+		public boolean hasMore() throws NamingException {
+			try {
+				boolean more = results.hasMore();
+				if(!more) stop();
+				return more;
+			} catch (NamingException e) {
+				throw fail(e);
+			} catch (RuntimeException e) {
+				throw fail(e);
+			}
+		}
+
+		public T next() throws NamingException {
+			try {
+				return results.next();
+			} catch (NamingException e) {
+				throw fail(e);
+			} catch (RuntimeException e) {
+				throw fail(e);
+			}
+		}
+
+		public boolean hasMoreElements() {
+			try {
+				boolean more = results.hasMoreElements();
+				if(!more) stop();
+				return more;
+			} catch (RuntimeException e) {
+				throw fail(e);
+			}
+		}
+
+		public T nextElement() {
+			try {
+				return results.nextElement();
+			} catch (NoSuchElementException e) {
+				//running past the end is the caller's mistake, not a failed search
+				stop();
+				throw e;
+			} catch (RuntimeException e) {
+				throw fail(e);
+			}
+		}
+
+		public void close() throws NamingException {
+			try {
+				results.close();
+			} finally {
+				stop();
+			}
+		}
+
+		private <E extends Exception> E fail(E e) {
+			if(!stopped) timer.fail(e);
+			stop();
+			return e;
+		}
+
+		private void stop() {
+			if(stopped) return;
+			stopped = true;
+			timer.stop();
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.util.exception.InvalidDataTypeException;
+import com.okta.scim.util.model.Email;
+import com.okta.scim.util.model.Name;
+import com.okta.scim.util.model.PhoneNumber;
+import com.okta.scim.util.model.SCIMUser;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+/**
+ * The OPP.userCoreMap and OPP.userCustomMap mappings compiled into an array of field codecs when the connector starts.
+ * <p/>
+ * Converting a user is a single pass over the codecs, with the LDAP attribute names, custom types and parent names
+ * worked out up front instead of on every entry. Unknown Okta attribute names, unknown custom types and short
+ * custom lines are reported as a ConfigurationException at startup.
+ */
+public class UserCodec {
+	private static final Logger LOGGER = Logger.getLogger(UserCodec.class);
+	private static final String[] NO_PARENTS = new String[0];
+
+	private final FieldCodec<SCIMUser>[] fields;
+	private final String[] objectClasses;
+
+	@SuppressWarnings("unchecked")
+	private UserCodec(List<FieldCodec<SCIMUser>> fields, String[] objectClasses) {
+		this.fields = fields.toArray(new FieldCodec[fields.size()]);
+		this.objectClasses = objectClasses.clone();
+	}
+
+	/**
+	 * Compiles the user mappings.
+	 *
+	 * @param core - Okta attr -> LDAP attr, from OPP.userCoreMap
+	 * @param custom - LDAP attr -> [type, schema, field name, parent names...], from OPP.userCustomMap
+	 * @param objectClasses - objectClass values of new users, from ldap.userClass
+	 * @return the compiled codec
+	 * @throws ConfigurationException if a mapping cannot be understood
+	 */
+	public static UserCodec compile(Map<String, String> core, Map<String, String[]> custom, String[] objectClasses) throws ConfigurationException {
+		List<FieldCodec<SCIMUser>> fields = new ArrayList<FieldCodec<SCIMUser>>();
+		for(Map.Entry<String, String> entry : core.entrySet()) {
+			fields.add(compileCore(entry.getKey(), entry.getValue()));
+		}
+		for(Map.Entry<String, String[]> entry : custom.entrySet()) {
+			fields.add(compileCustom(entry.getKey(), entry.getValue()));
+		}
+		String[] required = {"id", "userName"};
+		for(int i = 0; i < required.length; i++) {
+			if(!core.containsKey(required[i])) {
+				LOGGER.warn("[compile] Connector.properties did not have a " + required[i] + " entry for userCoreMap.");
+			}
+		}
+		return new UserCodec(fields, objectClasses);
+	}
+
+	/**
+	 * Builds the Attributes to write to LDAP for a user. The password is cleared from the user afterwards.
+	 *
+	 * @param user - SCIMUser sent by Okta
+	 * @param update - if true, fields the user has no value for are written empty so they are removed from the entry
+	 * @return the attributes, including objectClass
+	 * @throws InvalidDataTypeException
+	 */
+	public Attributes toAttrs(SCIMUser user, boolean update) throws InvalidDataTypeException {
+		Attributes attrs = new BasicAttributes(true);
+		for(int i = 0; i < fields.length; i++) {
+			fields[i].write(user, attrs, update);
+		}
+		user.setPassword("");
+		Attribute objclass = new BasicAttribute("objectClass");
+		for(int i = 0; i < objectClasses.length; i++) objclass.add(objectClasses[i]);
+		attrs.put(objclass);
+		return attrs;
+	}
+
+	/**
+	 * Builds a SCIMUser from the attributes of a directory entry.
+	 *
+	 * @param attrs - attributes of the entry
+	 * @return the user, active and without a password
+	 * @throws NamingException
+	 */
+	public SCIMUser toUser(Attributes attrs) throws NamingException {
+		SCIMUser user = new SCIMUser();
+		user.setName(new Name("", "", ""));
+		user.setId("");
+		user.setUserName("");
+		user.setPassword("");
+		List<Email> emails = new ArrayList<Email>(2);
+		emails.add(new Email("", "primary", true));
+		emails.add(new Email("", "secondary", false));
+		user.setEmails(emails);
+		user.setActive(true);
+		for(int i = 0; i < fields.length; i++) {
+			fields[i].read(attrs, user);
+		}
+		return user;
+	}
+
+	private static FieldCodec<SCIMUser> compileCore(String oktaAttr, String ldapAttr) throws ConfigurationException {
+		switch(oktaAttr) {
+			case "userName":
+				return new FieldCodec<SCIMUser>(ldapAttr) {
+					void read(Attributes attrs, SCIMUser user) throws NamingException {
+						String value = firstValue(attrs);
+						if(value != null) user.setUserName(value);
+					}
+
+					void write(SCIMUser user, Attributes attrs, boolean update) {
+						putValue(attrs, user.getUserName(), update);
+					}
+				};
+			case "id":
+				return new FieldCodec<SCIMUser>(ldapAttr) {
+					void read(Attributes attrs, SCIMUser user) throws NamingException {
+						String value = firstValue(attrs);
+						if(value != null) user.setId(value);
+					}
+
+					void write(SCIMUser user, Attributes attrs, boolean update) {
+						putValue(attrs, user.getId(), update);
+					}
+				};
+			case "familyName":
+				return new FieldCodec<SCIMUser>(ldapAttr) {
+					void read(Attributes attrs, SCIMUser user) throws NamingException {
+						String value = firstValue(attrs);
+						if(value != null) user.getName().setLastName(value);
+					}
+
+					void write(SCIMUser user, Attributes attrs, boolean update) {
+						putValue(attrs, user.getName() == null ? null : user.getName().getLastName(), update);
+					}
+				};
+			case "givenName":
+				return new FieldCodec<SCIMUser>(ldapAttr) {
+					void read(Attributes attrs, SCIMUser user) throws NamingException {
+						String value = firstValue(attrs);
+						if(value != null) user.getName().setFirstName(value);
+					}
+
+					void write(SCIMUser user, Attributes attrs, boolean update) {
+						putValue(attrs, user.getName() == null ? null : user.getName().getFirstName(), update);
+					}
+				};
+			case "formatted":
+				return new FieldCodec<SCIMUser>(ldapAttr) {
+					void read(Attributes attrs, SCIMUser user) throws NamingException {
+						String value = firstValue(attrs);
+						if(value != null) user.getName().setFormattedName(value);
+					}
+
+					void write(SCIMUser user, Attributes attrs, boolean update) {
+						putValue(attrs, user.getName() == null ? null : user.getName().getFormattedName(), update);
+					}
+				};
+			case "password":
+				//passwords are write only, they are never read back from LDAP
+				return new FieldCodec<SCIMUser>(ldapAttr) {
+					void read(Attributes attrs, SCIMUser user) {
+					}
+
+					void write(SCIMUser user, Attributes attrs, boolean update) {
+						if(user.getPassword() != null) attrs.put(new BasicAttribute(ldapAttr, user.getPassword()));
+					}
+				};
+			case "phoneNumbers":
+				return new FieldCodec<SCIMUser>(ldapAttr) {
+					void read(Attributes attrs, SCIMUser user) throws NamingException {
+						Attribute attr = attrs.get(ldapAttr);
+						if(attr == null) return;
+						List<PhoneNumber> phoneNums = new ArrayList<PhoneNumber>(attr.size());
+						for(int i = 0; i < attr.size(); i++) {
+							Object phoneNum = attr.get(i);
+							if(phoneNum != null) phoneNums.add(new PhoneNumber(phoneNum.toString(), PhoneNumber.PhoneNumberType.MOBILE, true));
+						}
+						user.setPhoneNumbers(phoneNums);
+					}
+
+					void write(SCIMUser user, Attributes attrs, boolean update) {
+						//on update the attr is always written, an empty one removes the numbers from the entry
+						if(user.getPhoneNumbers() == null && !update) return;
+						Attribute attr = new BasicAttribute(ldapAttr);
+						if(user.getPhoneNumbers() != null) {
+							for(PhoneNumber num : user.getPhoneNumbers()) attr.add(num.getValue());
+						}
+						attrs.put(attr);
+					}
+				};
+			case "primaryEmail":
+				return new EmailCodec(ldapAttr, true);
+			case "secondaryEmail":
+				return new EmailCodec(ldapAttr, false);
+			case "emails":
+				//clears the attr on update, emails are written through primaryEmail/secondaryEmail
+				return new FieldCodec<SCIMUser>(ldapAttr) {
+					void read(Attributes attrs, SCIMUser user) {
+					}
+
+					void write(SCIMUser user, Attributes attrs, boolean update) {
+						if(user.getEmails() != null || update) attrs.put(new BasicAttribute(ldapAttr));
+					}
+				};
+			default:
+				throw new ConfigurationException("Unknown Okta attribute " + oktaAttr + " in OPP.userCoreMap, expected one of "
+						+ "userName, id, familyName, givenName, formatted, password, phoneNumbers, primaryEmail, secondaryEmail, emails.");
+		}
+	}
+
+	private static FieldCodec<SCIMUser> compileCustom(String ldapAttr, String[] configLine) throws ConfigurationException {
+		if(configLine.length < 3) {
+			throw new ConfigurationException("OPP.userCustomMap entry for " + ldapAttr + " needs a type, schema and field name: " + Arrays.toString(configLine));
+		}
+		String type = configLine[0].trim();
+		String schema = configLine[1].trim();
+		String name = configLine[2].trim();
+		String[] parentNames = NO_PARENTS;
+		if(configLine.length > 3) {
+			parentNames = new String[configLine.length - 3];
+			for(int i = 0; i < parentNames.length; i++) parentNames[i] = configLine[i + 3].trim();
+		}
+		switch(type) {
+			case "string":
+				return new CustomCodec(ldapAttr, schema, name, parentNames) {
+					Object get(SCIMUser user) throws InvalidDataTypeException {
+						return user.getCustomStringValue(schema, name, parentNames);
+					}
+
+					void set(SCIMUser user, String value) {
+						user.setCustomStringValue(schema, name, value, parentNames);
+					}
+				};
+			case "int":
+				return new CustomCodec(ldapAttr, schema, name, parentNames) {
+					Object get(SCIMUser user) throws InvalidDataTypeException {
+						return user.getCustomIntValue(schema, name, parentNames);
+					}
+
+					void set(SCIMUser user, String value) {
+						user.setCustomIntValue(schema, name, Integer.parseInt(value), parentNames);
+					}
+				};
+			case "boolean":
+				return new CustomCodec(ldapAttr, schema, name, parentNames) {
+					Object get(SCIMUser user) throws InvalidDataTypeException {
+						return user.getCustomBooleanValue(schema, name, parentNames);
+					}
+
+					void set(SCIMUser user, String value) {
+						user.setCustomBooleanValue(schema, name, Boolean.valueOf(value), parentNames);
+					}
+				};
+			case "double":
+				return new CustomCodec(ldapAttr, schema, name, parentNames) {
+					Object get(SCIMUser user) throws InvalidDataTypeException {
+						return user.getCustomDoubleValue(schema, name, parentNames);
+					}
+
+					void set(SCIMUser user, String value) {
+						user.setCustomDoubleValue(schema, name, Double.parseDouble(value), parentNames);
+					}
+				};
+			default:
+				throw new ConfigurationException("Unexpected type for Custom attrs in config: " + Arrays.toString(configLine));
+		}
+	}
+
+	/**
+	 * The primary or the secondary email. toUser() always adds both emails, these fill in their values.
+	 */
+	private static class EmailCodec extends FieldCodec<SCIMUser> {
+		private final boolean primary;
+
+		private EmailCodec(String ldapAttr, boolean primary) {
+			super(ldapAttr);
+			this.primary = primary;
+		}
+
+		void read(Attributes attrs, SCIMUser user) throws NamingException {
+			String value = firstValue(attrs);
+			if(value == null) return;
+			for(Email email : user.getEmails()) {
+				if(email.isPrimary() == primary) email.setValue(value);
+			}
+		}
+
+		void write(SCIMUser user, Attributes attrs, boolean update) {
+			if(user.getEmails() == null) return;
+			Attribute attr = new BasicAttribute(ldapAttr);
+			for(Email email : user.getEmails()) {
+				if(email.isPrimary() == primary) attr.add(email.getValue());
+			}
+			if(attr.size() > 0) attrs.put(attr);
+		}
+	}
+
+	/**
+	 * A field of the custom schema, the subclass for each type does the typed get/set on the user.
+	 */
+	private static abstract class CustomCodec extends FieldCodec<SCIMUser> {
+		protected final String schema;
+		protected final String name;
+		protected final String[] parentNames;
+
+		private CustomCodec(String ldapAttr, String schema, String name, String[] parentNames) {
+			super(ldapAttr);
+			this.schema = schema;
+			this.name = name;
+			this.parentNames = parentNames;
+		}
+
+		abstract Object get(SCIMUser user) throws InvalidDataTypeException;
+
+		abstract void set(SCIMUser user, String value);
+
+		void read(Attributes attrs, SCIMUser user) throws NamingException {
+			String value = firstValue(attrs);
+			if(value != null) {
+				set(user, value);
+			} else {
+				LOGGER.warn("[toUser] LDAP did not have value for " + ldapAttr + ".");
+			}
+		}
+
+		void write(SCIMUser user, Attributes attrs, boolean update) throws InvalidDataTypeException {
+			Object value = get(user);
+			//a custom attr may share its LDAP attr with a core one, add to it rather than replacing it
+			Attribute attr = attrs.get(ldapAttr);
+			if(attr == null) attr = new BasicAttribute(ldapAttr);
+			if(value != null && !value.equals("")) {
+				attr.add(value.toString());
+				attrs.put(attr);
+			} else if(update) {
+				attrs.put(attr);
+			}
+		}
+	}
+}
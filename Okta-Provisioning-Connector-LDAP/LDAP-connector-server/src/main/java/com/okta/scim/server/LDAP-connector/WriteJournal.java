@@ -0,0 +1,484 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.apache.log4j.LogSF;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.Attributes;
+
+/**
+ * Append-only journal of user and group writes that could not be sent to LDAP because it was unreachable.
+ * <p/>
+ * The journal is a fixed size file mapped into memory. append() returns once the entry has been forced to disk,
+ * so the write can be acknowledged to Okta and is not lost if the connector restarts. A background thread replays
+ * the entries in the order they were appended once LDAP answers again, and a write for a user or group that still
+ * has entries waiting is journaled behind them rather than sent ahead of them.
+ * <p/>
+ * File layout: a header holding the offset of the first entry not yet applied, then records of
+ * [int length][long sequence][int crc32][serialized Entry]. A record is only read back if its crc matches and its
+ * sequence follows the one before it, so a record torn by a crash or left over from before a compaction ends the
+ * journal. Applied records are dropped by moving the head, and the live records are moved back to the start of
+ * the file once the head is past the middle.
+ * <p/>
+ * The entries hold the attributes as they will be written, passwords included, so the file is only readable by
+ * the user running the connector.
+ * <p/>
+ * A journal is held with an exclusive lock on its file while it is open, a second connector pointed at the same
+ * file fails to open it instead of replaying the same entries.
+ */
+public class WriteJournal {
+	private static final Logger LOGGER = Logger.getLogger(WriteJournal.class);
+	private static final int MAGIC = 0x4f4a524e;
+	private static final int VERSION = 1;
+	//magic, version, head offset
+	private static final int HEADER_SIZE = 16;
+	private static final int HEAD_OFFSET_POS = 8;
+	//length, sequence, crc
+	private static final int RECORD_HEADER_SIZE = 16;
+
+	private final File file;
+	private final int capacity;
+	private final long replayIntervalMillis;
+	private final Applier applier;
+	private final Object lock = new Object();
+	private final ScheduledExecutorService replayer;
+	private RandomAccessFile raf;
+	private FileLock fileLock;
+	private MappedByteBuffer buffer;
+	private final List<Record> pending = new ArrayList<Record>();
+	//users and groups with entries waiting -> number of entries
+	private final Map<String, Integer> pendingEntities = new HashMap<String, Integer>();
+	private int head;
+	private int tail;
+	private long nextSequence;
+
+	/**
+	 * Applies a journaled write to LDAP during replay.
+	 */
+	public interface Applier {
+		void apply(Entry entry) throws NamingException;
+	}
+
+	/**
+	 * @param file - the journal file, created if it does not exist
+	 * @param capacity - size of the file in bytes, appends fail once the entries waiting fill it
+	 * @param replayIntervalMillis - how often to try to replay waiting entries
+	 * @param applier - applies entries to LDAP
+	 */
+	public WriteJournal(File file, int capacity, long replayIntervalMillis, Applier applier) {
+		this.file = file;
+		this.capacity = Math.max(HEADER_SIZE + 4096, capacity);
+		this.replayIntervalMillis = Math.max(1000L, replayIntervalMillis);
+		this.applier = applier;
+		this.replayer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("write-journal"));
+	}
+
+	/**
+	 * Maps the file, reads back the entries still waiting from a previous run and starts replaying them.
+	 *
+	 * @throws IOException if the file cannot be created or mapped, or another process or journal has it open
+	 */
+	public void open() throws IOException {
+		synchronized(lock) {
+			boolean created = !file.exists();
+			if(file.getParentFile() != null) file.getParentFile().mkdirs();
+			raf = new RandomAccessFile(file, "rw");
+			try {
+				fileLock = raf.getChannel().tryLock();
+			} catch (OverlappingFileLockException e) {
+				//held by another journal in this JVM
+				fileLock = null;
+			}
+			if(fileLock == null) {
+				raf.close();
+				raf = null;
+				throw new IOException("Write journal " + file + " is already in use by another connector.");
+			}
+			file.setReadable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(false, false);
+			file.setWritable(true, true);
+			if(raf.length() < capacity) raf.setLength(capacity);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			if(created || buffer.getInt(0) != MAGIC) {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, VERSION);
+				buffer.putInt(HEADER_SIZE, 0);
+				buffer.force();
+				setHead(HEADER_SIZE);
+			} else if(buffer.getInt(4) != VERSION) {
+				throw new IOException("Unsupported write journal version " + buffer.getInt(4) + " in " + file);
+			}
+			head = (int) buffer.getLong(HEAD_OFFSET_POS);
+			if(head < HEADER_SIZE || head >= capacity) throw new IOException("Corrupt write journal header in " + file);
+			recover();
+		}
+		replayer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				replay();
+			}
+		}, 0, replayIntervalMillis, TimeUnit.MILLISECONDS);
+		LOGGER.info("[open] Write journal " + file + " opened with " + pending.size() + " entries waiting.");
+	}
+
+	/**
+	 * Appends an entry and forces it to disk.
+	 *
+	 * @param entry - the write to queue
+	 * @throws IOException if the entry cannot be written or the journal is full
+	 */
+	public void append(Entry entry) throws IOException {
+		byte[] payload = serialize(entry);
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		synchronized(lock) {
+			if(buffer == null) throw new IOException("Write journal " + file + " is closed.");
+			int size = RECORD_HEADER_SIZE + payload.length;
+			//room for the record and the zero length that ends the journal after it
+			if(tail + size + 4 > capacity) compact(true);
+			if(tail + size + 4 > capacity) {
+				throw new IOException("Write journal " + file + " is full, " + pending.size() + " entries are waiting for LDAP.");
+			}
+			long sequence = nextSequence++;
+			buffer.putLong(tail + 4, sequence);
+			buffer.putInt(tail + 12, (int) crc.getValue());
+			for(int i = 0; i < payload.length; i++) buffer.put(tail + RECORD_HEADER_SIZE + i, payload[i]);
+			buffer.putInt(tail + size, 0);
+			//the length goes in last, a record without it is not there
+			buffer.putInt(tail, payload.length);
+			buffer.force();
+			pending.add(new Record(tail, entry));
+			addPending(entry.getEntity(), 1);
+			tail += size;
+		}
+		LogSF.info(LOGGER, "[append] Journaled {}, {} entries waiting for LDAP.", entry, pendingCount());
+	}
+
+	/**
+	 * Whether a user or group has writes waiting, in which case new writes for it must be journaled too.
+	 *
+	 * @param entity - from Entry.getEntity()
+	 * @return true if it has entries waiting
+	 */
+	public boolean hasPending(String entity) {
+		synchronized(lock) {
+			return pendingEntities.containsKey(entity);
+		}
+	}
+
+	/**
+	 * @return number of entries waiting to be applied
+	 */
+	public int pendingCount() {
+		synchronized(lock) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Stops replaying and unmaps the file. Entries still waiting are replayed on the next start.
+	 */
+	public void close() {
+		replayer.shutdownNow();
+		synchronized(lock) {
+			if(buffer == null) return;
+			buffer.force();
+			buffer = null;
+			try {
+				//closing the file releases the lock
+				raf.close();
+			} catch (IOException e) {
+				LOGGER.warn("[close] Could not close write journal " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Whether a failure means LDAP could not be reached, as opposed to LDAP refusing the write.
+	 *
+	 * @param e - the failure
+	 * @return true if the write should be journaled and retried later
+	 */
+	public static boolean isOutage(NamingException e) {
+		return e instanceof CommunicationException || e instanceof ServiceUnavailableException;
+	}
+
+	/**
+	 * Applies the waiting entries one at a time, in order. Stops at the first entry LDAP cannot be reached for and
+	 * tries again on the next run. An entry LDAP refuses is logged and dropped, as it would have been had it not
+	 * been journaled.
+	 */
+	private void replay() {
+		while(true) {
+			Record record;
+			synchronized(lock) {
+				if(pending.isEmpty() || buffer == null) return;
+				record = pending.get(0);
+			}
+			try {
+				applier.apply(record.entry);
+				LogSF.info(LOGGER, "[replay] Applied journaled {}.", record.entry);
+			} catch (NamingException e) {
+				if(isOutage(e)) {
+					LogSF.debug(LOGGER, "[replay] LDAP still unreachable, {} entries waiting: {}", pendingCount(), e.getMessage());
+					return;
+				}
+				LOGGER.error("[replay] LDAP refused journaled " + record.entry + ", dropping it: " + e.getMessage());
+			} catch (RuntimeException e) {
+				LOGGER.error("[replay] Journaled " + record.entry + " failed, dropping it: " + e.getMessage(), e);
+			}
+			synchronized(lock) {
+				if(buffer == null) return;
+				pending.remove(0);
+				addPending(record.entry.getEntity(), -1);
+				if(pending.isEmpty()) {
+					reset();
+				} else {
+					setHead(pending.get(0).offset);
+					if(head > capacity / 2) compact(false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the records from the head up to the first missing, torn or stale one.
+	 */
+	private void recover() throws IOException {
+		int offset = head;
+		long expected = -1;
+		while(offset + RECORD_HEADER_SIZE <= capacity) {
+			int length = buffer.getInt(offset);
+			if(length <= 0 || offset + RECORD_HEADER_SIZE + length > capacity) break;
+			long sequence = buffer.getLong(offset + 4);
+			if(expected >= 0 && sequence != expected) break;
+			byte[] payload = new byte[length];
+			for(int i = 0; i < length; i++) payload[i] = buffer.get(offset + RECORD_HEADER_SIZE + i);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if(buffer.getInt(offset + 12) != (int) crc.getValue()) {
+				LOGGER.warn("[recover] Write journal " + file + " ends with a torn record at offset " + offset + ", ignoring it.");
+				break;
+			}
+			Entry entry;
+			try {
+				entry = deserialize(payload);
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Unreadable entry in write journal " + file, e);
+			}
+			pending.add(new Record(offset, entry));
+			addPending(entry.getEntity(), 1);
+			expected = sequence + 1;
+			offset += RECORD_HEADER_SIZE + length;
+		}
+		tail = offset;
+		nextSequence = expected >= 0 ? expected : 0;
+		//whatever follows the last good record is garbage, end the journal there
+		if(tail + 4 <= capacity) {
+			buffer.putInt(tail, 0);
+			buffer.force();
+		}
+	}
+
+	/**
+	 * Moves the head back to the start of the file once every entry has been applied.
+	 */
+	private void reset() {
+		buffer.putInt(HEADER_SIZE, 0);
+		buffer.force();
+		setHead(HEADER_SIZE);
+		tail = HEADER_SIZE;
+	}
+
+	/**
+	 * Moves the waiting records back to the start of the file. The records, and the zero length that ends them,
+	 * are only copied over space that is no longer in use, so a crash before the new head is written leaves the old
+	 * copies in place.
+	 *
+	 * @param force - compact whenever there is room to, not just when the head is past the middle
+	 */
+	private void compact(boolean force) {
+		int live = tail - head;
+		//the end marker must not land on the length of the record at the old head
+		if(head == HEADER_SIZE || live + 4 > head - HEADER_SIZE) return;
+		if(!force && head <= capacity / 2) return;
+		for(int i = 0; i < live; i++) buffer.put(HEADER_SIZE + i, buffer.get(head + i));
+		buffer.putInt(HEADER_SIZE + live, 0);
+		buffer.force();
+		int shift = head - HEADER_SIZE;
+		setHead(HEADER_SIZE);
+		tail -= shift;
+		for(int i = 0; i < pending.size(); i++) pending.get(i).offset -= shift;
+		LogSF.debug(LOGGER, "[compact] Moved {} waiting entries to the start of {}.", pending.size(), file);
+	}
+
+	private void setHead(int offset) {
+		buffer.putLong(HEAD_OFFSET_POS, offset);
+		buffer.force();
+		head = offset;
+	}
+
+	private void addPending(String entity, int delta) {
+		Integer count = pendingEntities.get(entity);
+		int updated = (count == null ? 0 : count) + delta;
+		if(updated > 0) pendingEntities.put(entity, updated);
+		else pendingEntities.remove(entity);
+	}
+
+	private static byte[] serialize(Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(entry);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Entry deserialize(byte[] payload) throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload));
+		try {
+			return (Entry) in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * A journaled write. Holds what the LDAP write needs rather than the SCIM resource, the entry it applies to is
+	 * looked up again when it is replayed.
+	 */
+	public static class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		public enum Kind {CREATE_USER, UPDATE_USER, CREATE_GROUP, UPDATE_GROUP}
+
+		private final Kind kind;
+		private final String id;
+		private final String dn;
+		private final Attributes attrs;
+		private final boolean active;
+		private final String displayName;
+		private final ArrayList<String> memberUserNames;
+
+		private Entry(Kind kind, String id, String dn, Attributes attrs, boolean active, String displayName, List<String> memberUserNames) {
+			this.kind = kind;
+			this.id = id;
+			this.dn = dn;
+			this.attrs = attrs;
+			this.active = active;
+			this.displayName = displayName;
+			this.memberUserNames = memberUserNames == null ? null : new ArrayList<String>(memberUserNames);
+		}
+
+		/**
+		 * @param id - id of the new user
+		 * @param dn - DN of the new user
+		 * @param attrs - attributes to create the user with
+		 */
+		public static Entry createUser(String id, String dn, Attributes attrs) {
+			return new Entry(Kind.CREATE_USER, id, dn, attrs, true, null, null);
+		}
+
+		/**
+		 * @param id - id of the user
+		 * @param dn - DN the user should have, it is renamed if its userName changed
+		 * @param attrs - attributes the user should have
+		 * @param active - false deletes the user
+		 */
+		public static Entry updateUser(String id, String dn, Attributes attrs, boolean active) {
+			return new Entry(Kind.UPDATE_USER, id, dn, attrs, active, null, null);
+		}
+
+		/**
+		 * @param id - id of the new group
+		 * @param displayName - name of the new group
+		 * @param memberUserNames - userNames of the members, checked in LDAP when the entry is applied. May be null
+		 */
+		public static Entry createGroup(String id, String displayName, List<String> memberUserNames) {
+			return new Entry(Kind.CREATE_GROUP, id, null, null, true, displayName, memberUserNames);
+		}
+
+		/**
+		 * @param id - id of the group
+		 * @param displayName - name the group should have
+		 * @param memberUserNames - userNames of the members the group should have. May be null
+		 */
+		public static Entry updateGroup(String id, String displayName, List<String> memberUserNames) {
+			return new Entry(Kind.UPDATE_GROUP, id, null, null, true, displayName, memberUserNames);
+		}
+
+		/**
+		 * @return the user or group the entry writes, entries for the same one are applied in order
+		 */
+		public String getEntity() {
+			return (kind == Kind.CREATE_USER || kind == Kind.UPDATE_USER ? "user:" : "group:") + id;
+		}
+
+		public Kind getKind() {
+			return kind;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getDn() {
+			return dn;
+		}
+
+		public Attributes getAttrs() {
+			return attrs;
+		}
+
+		public boolean isActive() {
+			return active;
+		}
+
+		public String getDisplayName() {
+			return displayName;
+		}
+
+		public List<String> getMemberUserNames() {
+			return memberUserNames;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + id;
+		}
+	}
+
+	/**
+	 * Where an entry is in the file.
+	 */
+	private static class Record {
+		private int offset;
+		private final Entry entry;
+
+		private Record(int offset, Entry entry) {
+			this.offset = offset;
+			this.entry = entry;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class AttributeDiffTest {
+	private static final List<String> NONE = Collections.emptyList();
+
+	@Test
+	public void diffAddsReplacesAndRemoves() throws NamingException {
+		Attributes current = new BasicAttributes(true);
+		current.put(new BasicAttribute("sn", "Smith"));
+		current.put(new BasicAttribute("mobile", "555"));
+		current.put(new BasicAttribute("description", "left alone"));
+		Attributes desired = new BasicAttributes(true);
+		desired.put(new BasicAttribute("sn", "Jones"));
+		desired.put(new BasicAttribute("mobile"));
+		desired.put(new BasicAttribute("givenName", "Ann"));
+		List<ModificationItem> mods = AttributeDiff.diff(current, desired, NONE, NONE, NONE);
+		assertEquals(mods.size(), 3);
+		assertEquals(opOf(mods, "sn"), DirContext.REPLACE_ATTRIBUTE);
+		assertEquals(opOf(mods, "mobile"), DirContext.REMOVE_ATTRIBUTE);
+		assertEquals(opOf(mods, "givenName"), DirContext.ADD_ATTRIBUTE);
+		assertEquals(opOf(mods, "description"), -1);
+	}
+
+	@Test
+	public void diffIgnoresValueOrder() throws NamingException {
+		Attributes current = new BasicAttributes(true);
+		BasicAttribute have = new BasicAttribute("telephoneNumber");
+		have.add("1");
+		have.add("2");
+		current.put(have);
+		Attributes desired = new BasicAttributes(true);
+		BasicAttribute want = new BasicAttribute("telephoneNumber");
+		want.add("2");
+		want.add("1");
+		desired.put(want);
+		assertTrue(AttributeDiff.diff(current, desired, NONE, NONE, NONE).isEmpty());
+	}
+
+	@Test
+	public void diffNeverRemovesKeptAttributes() throws NamingException {
+		Attributes current = new BasicAttributes(true);
+		current.put(new BasicAttribute("uid", "ann"));
+		current.put(new BasicAttribute("employeeNumber", "100"));
+		Attributes desired = new BasicAttributes(true);
+		desired.put(new BasicAttribute("uid"));
+		desired.put(new BasicAttribute("employeeNumber"));
+		List<ModificationItem> mods = AttributeDiff.diff(current, desired, NONE, NONE, Arrays.asList("UID", "employeeNumber"));
+		assertTrue(mods.isEmpty());
+	}
+
+	@Test
+	public void diffSkipsIgnoredAndAlwaysReplaces() throws NamingException {
+		Attributes current = new BasicAttributes(true);
+		current.put(new BasicAttribute("objectClass", "top"));
+		Attributes desired = new BasicAttributes(true);
+		desired.put(new BasicAttribute("objectClass", "person"));
+		desired.put(new BasicAttribute("userPassword", "secret"));
+		List<ModificationItem> mods = AttributeDiff.diff(current, desired, Collections.singletonList("objectClass"),
+				Collections.singletonList("userPassword"), NONE);
+		assertEquals(mods.size(), 1);
+		assertEquals(opOf(mods, "userPassword"), DirContext.REPLACE_ATTRIBUTE);
+	}
+
+	@Test
+	public void chunkSplitsValuesInOrder() throws NamingException {
+		List<String> values = new ArrayList<String>();
+		for(int i = 0; i < 7; i++) values.add("uid=" + i);
+		List<ModificationItem> mods = AttributeDiff.chunk(DirContext.ADD_ATTRIBUTE, "uniqueMember", values, 3);
+		assertEquals(mods.size(), 3);
+		assertEquals(mods.get(0).getAttribute().size(), 3);
+		assertEquals(mods.get(1).getAttribute().size(), 3);
+		assertEquals(mods.get(2).getAttribute().size(), 1);
+		int next = 0;
+		for(ModificationItem mod : mods) {
+			assertEquals(mod.getModificationOp(), DirContext.ADD_ATTRIBUTE);
+			assertEquals(mod.getAttribute().getID(), "uniqueMember");
+			for(int i = 0; i < mod.getAttribute().size(); i++) assertEquals(mod.getAttribute().get(i), "uid=" + next++);
+		}
+	}
+
+	@Test
+	public void chunkOfNothingIsEmpty() {
+		assertTrue(AttributeDiff.chunk(DirContext.REMOVE_ATTRIBUTE, "member", new ArrayList<String>(), 10).isEmpty());
+	}
+
+	@Test
+	public void batchKeepsOrderAndLimitsValues() {
+		List<ModificationItem> mods = new ArrayList<ModificationItem>();
+		mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("cn", "staff")));
+		mods.addAll(AttributeDiff.chunk(DirContext.ADD_ATTRIBUTE, "member", Arrays.asList("a", "b", "c", "d"), 2));
+		mods.addAll(AttributeDiff.chunk(DirContext.REMOVE_ATTRIBUTE, "member", Arrays.asList("e", "f", "g"), 2));
+		List<List<ModificationItem>> batches = AttributeDiff.batch(mods, 3);
+		//values per modification are 1 2 2 2 1, so the operations are 1+2 | 2 | 2+1
+		assertEquals(batches.size(), 3);
+		List<ModificationItem> flattened = new ArrayList<ModificationItem>();
+		for(List<ModificationItem> batch : batches) {
+			int values = 0;
+			for(ModificationItem mod : batch) values += mod.getAttribute().size();
+			assertTrue(values <= 3 || batch.size() == 1);
+			flattened.addAll(batch);
+		}
+		assertEquals(flattened, mods);
+	}
+
+	@Test
+	public void batchGivesAnOversizedModificationItsOwnOperation() {
+		List<ModificationItem> mods = new ArrayList<ModificationItem>();
+		mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("cn", "staff")));
+		mods.addAll(AttributeDiff.chunk(DirContext.ADD_ATTRIBUTE, "member", Arrays.asList("a", "b", "c", "d", "e"), 5));
+		List<List<ModificationItem>> batches = AttributeDiff.batch(mods, 2);
+		assertEquals(batches.size(), 2);
+		assertEquals(batches.get(1).size(), 1);
+		assertEquals(batches.get(1).get(0).getAttribute().size(), 5);
+	}
+
+	@Test
+	public void describeNamesEachModification() {
+		List<ModificationItem> mods = new ArrayList<ModificationItem>();
+		mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute("sn", "x")));
+		mods.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute("mobile", "1")));
+		mods.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute("title")));
+		assertEquals(AttributeDiff.describe(mods), "REPLACE sn, ADD mobile, REMOVE title");
+	}
+
+	private static int opOf(List<ModificationItem> mods, String id) {
+		for(ModificationItem mod : mods) {
+			if(mod.getAttribute().getID().equals(id)) return mod.getModificationOp();
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,156 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class BulkHandlerTest {
+	private static final String CREATE_ANN = "{'method':'POST','path':'/Users','bulkId':'ann','data':{'userName':'ann@example.com'}}";
+	private static final String CREATE_STAFF = "{'method':'POST','path':'/Groups','bulkId':'staff',"
+			+ "'data':{'displayName':'staff','members':[{'value':'bulkId:ann','display':'ann@example.com'}]}}";
+
+	private final BulkHandler handler = new BulkHandler();
+	private Map<String, BulkHandler.Operation> byBulkId;
+	private AtomicInteger errors;
+
+	@BeforeMethod
+	public void reset() {
+		byBulkId = new HashMap<String, BulkHandler.Operation>();
+		errors = new AtomicInteger();
+	}
+
+	@Test
+	public void referencesAreLinkedToThePostThatDefinesThem() throws IOException {
+		List<BulkHandler.Operation> operations = plan(CREATE_ANN, CREATE_STAFF);
+		assertEquals(byBulkId.keySet().size(), 2);
+		assertTrue(operations.get(1).dependsOn.contains(operations.get(0)));
+		assertTrue(operations.get(0).dependsOn.isEmpty());
+		assertEquals(errors.get(), 0);
+	}
+
+	@Test
+	public void pathReferencesAreLinked() throws IOException {
+		List<BulkHandler.Operation> operations = plan(CREATE_ANN,
+				"{'method':'PUT','path':'/Users/bulkId:ann','data':{'userName':'ann@example.com'}}");
+		assertEquals(operations.get(1).dependsOn.size(), 1);
+		assertTrue(operations.get(1).dependsOn.contains(operations.get(0)));
+	}
+
+	@Test
+	public void undefinedReferencesFailWith409() throws IOException {
+		List<BulkHandler.Operation> operations = plan(
+				"{'method':'PUT','path':'/Users/bulkId:nobody','data':{'userName':'ann@example.com'}}");
+		assertTrue(operations.get(0).processed);
+		assertEquals(operations.get(0).status, 409);
+		assertEquals(errors.get(), 1);
+	}
+
+	@Test
+	public void duplicateBulkIdsFailWith400() throws IOException {
+		List<BulkHandler.Operation> operations = plan(CREATE_ANN, CREATE_ANN);
+		assertFalse(operations.get(0).processed);
+		assertEquals(operations.get(1).status, 400);
+		assertEquals(errors.get(), 1);
+	}
+
+	@Test
+	public void invalidOperationsFailInPlan() throws IOException {
+		List<BulkHandler.Operation> operations = plan(
+				"{'method':'PATCH','path':'/Users/1','data':{}}",
+				"{'method':'POST','path':'/Things','data':{}}",
+				"{'method':'PUT','path':'/Users/1'}");
+		assertEquals(operations.get(0).status, 405);
+		assertEquals(operations.get(1).status, 404);
+		assertEquals(operations.get(2).status, 400);
+		assertEquals(errors.get(), 3);
+	}
+
+	@Test
+	public void operationsOnTheSameTargetRunInRequestOrder() throws IOException {
+		List<BulkHandler.Operation> operations = plan(
+				"{'method':'PUT','path':'/Users/1','data':{'userName':'ann@example.com'}}",
+				"{'method':'DELETE','path':'/Users/1'}",
+				"{'method':'DELETE','path':'/Groups/1'}");
+		assertTrue(operations.get(1).dependsOn.contains(operations.get(0)));
+		assertTrue(operations.get(2).dependsOn.isEmpty());
+	}
+
+	@Test
+	public void scheduleRunsReferencedOperationsFirst() throws IOException {
+		List<BulkHandler.Operation> operations = plan(CREATE_STAFF, CREATE_ANN);
+		List<BulkHandler.Operation> order = handler.schedule(operations, errors);
+		assertEquals(order.size(), 2);
+		assertTrue(order.get(0) == operations.get(1));
+		assertTrue(order.get(1) == operations.get(0));
+	}
+
+	@Test
+	public void circularReferencesFailWith409() throws IOException {
+		List<BulkHandler.Operation> operations = plan(
+				"{'method':'POST','path':'/Groups','bulkId':'a','data':{'displayName':'a','members':[{'value':'bulkId:b','display':'b'}]}}",
+				"{'method':'POST','path':'/Groups','bulkId':'b','data':{'displayName':'b','members':[{'value':'bulkId:a','display':'a'}]}}",
+				CREATE_ANN);
+		List<BulkHandler.Operation> order = handler.schedule(operations, errors);
+		assertEquals(order.size(), 1);
+		assertTrue(order.get(0) == operations.get(2));
+		assertEquals(operations.get(0).status, 409);
+		assertEquals(operations.get(1).status, 409);
+		assertEquals(errors.get(), 2);
+	}
+
+	@Test
+	public void referencesResolveToTheCreatedId() throws Exception {
+		List<BulkHandler.Operation> operations = plan(CREATE_ANN);
+		operations.get(0).id = "42";
+		operations.get(0).status = 201;
+		assertEquals(handler.resolve("bulkId:ann", byBulkId), "42");
+		assertEquals(handler.resolve("7", byBulkId), "7");
+	}
+
+	@Test
+	public void referencesToFailedOperationsFailWith409() throws IOException {
+		List<BulkHandler.Operation> operations = plan(CREATE_ANN);
+		operations.get(0).fail(409, "uniqueness", "exists");
+		try {
+			handler.resolve("bulkId:ann", byBulkId);
+			fail("resolved a reference to a failed operation");
+		} catch (BulkHandler.OperationException e) {
+			assertEquals(e.status, 409);
+		}
+	}
+
+	@Test
+	public void operationsAfterFailOnErrorsAreSkipped() throws IOException {
+		List<BulkHandler.Operation> operations = plan(CREATE_ANN);
+		errors.set(2);
+		//perform would need the service, it must not be reached
+		handler.execute(operations.get(0), byBulkId, errors, 2);
+		assertFalse(operations.get(0).processed);
+		assertEquals(operations.get(0).done.getCount(), 0);
+		assertEquals(errors.get(), 2);
+	}
+
+	private List<BulkHandler.Operation> plan(String... operations) throws IOException {
+		StringBuilder json = new StringBuilder("{'Operations':[");
+		for(int i = 0; i < operations.length; i++) {
+			if(i > 0) json.append(',');
+			json.append(operations[i]);
+		}
+		json.append("]}");
+		JsonNode root = new ObjectMapper().readTree(new ByteArrayInputStream(json.toString().replace('\'', '"').getBytes("UTF-8")));
+		return handler.plan(root.get("Operations"), byBulkId, errors);
+	}
+}
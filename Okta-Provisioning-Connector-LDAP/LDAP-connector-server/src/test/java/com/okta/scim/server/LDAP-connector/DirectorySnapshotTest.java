@@ -0,0 +1,180 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class DirectorySnapshotTest {
+	private File dir;
+	private File file;
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		dir = File.createTempFile("snapshot", "");
+		dir.delete();
+		dir.mkdirs();
+		file = new File(dir, "cache.snapshot");
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File leftover : files) leftover.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void encodeDecodeRoundTrip() throws NamingException {
+		Attributes attrs = new BasicAttributes(true);
+		attrs.put(new BasicAttribute("uid", "ann"));
+		Attribute phones = new BasicAttribute("telephoneNumber");
+		phones.add("555-0100");
+		phones.add("\u00fcml\u00e4ut \u2603");
+		attrs.put(phones);
+		attrs.put(new BasicAttribute("jpegPhoto", new byte[]{0, 1, (byte) 0xFF}));
+		attrs.put(new BasicAttribute("description"));
+
+		Attributes decoded = DirectorySnapshot.decode(DirectorySnapshot.encode(attrs));
+		assertEquals(decoded.size(), 4);
+		assertEquals(decoded.get("UID").get(), "ann");
+		assertEquals(decoded.get("telephoneNumber").size(), 2);
+		assertEquals(decoded.get("telephoneNumber").get(0), "555-0100");
+		assertEquals(decoded.get("telephoneNumber").get(1), "\u00fcml\u00e4ut \u2603");
+		assertTrue(Arrays.equals((byte[]) decoded.get("jpegPhoto").get(), new byte[]{0, 1, (byte) 0xFF}));
+		assertEquals(decoded.get("description").size(), 0);
+	}
+
+	@Test
+	public void loadsWhatWasCommitted() throws Exception {
+		DirectorySnapshot snapshot = new DirectorySnapshot(file, null, 0);
+		DirectorySnapshot.Writer writer = snapshot.writer("20240101000000.000000Z#000000#000#000000");
+		writer.section("users", "fp-users", "20240101000000Z");
+		writer.entry("uid=ann,ou=people", DirectorySnapshot.encode(new BasicAttributes("uid", "ann", true)));
+		writer.entry("uid=bob,ou=people", DirectorySnapshot.encode(new BasicAttributes("uid", "bob", true)));
+		writer.section("groups", "fp-groups", null);
+		writer.entry("cn=staff,ou=groups", DirectorySnapshot.encode(new BasicAttributes("cn", "staff", true)));
+		writer.commit();
+
+		RecordingLoader loader = new RecordingLoader(true);
+		assertTrue(snapshot.load(loader));
+		assertEquals(loader.contextCsn, "20240101000000.000000Z#000000#000#000000");
+		assertEquals(loader.events, Arrays.asList(
+				"section users fp-users 20240101000000Z", "uid=ann,ou=people uid=ann", "uid=bob,ou=people uid=bob",
+				"section groups fp-groups null", "cn=staff,ou=groups cn=staff"));
+		//nothing but the snapshot is left behind
+		assertEquals(dir.list().length, 1);
+	}
+
+	@Test
+	public void skipsSectionsTheLoaderDoesNotWant() throws Exception {
+		DirectorySnapshot snapshot = new DirectorySnapshot(file, null, 0);
+		DirectorySnapshot.Writer writer = snapshot.writer(null);
+		writer.section("users", "old", null);
+		writer.entry("uid=ann", DirectorySnapshot.encode(new BasicAttributes("uid", "ann", true)));
+		writer.commit();
+
+		RecordingLoader loader = new RecordingLoader(false);
+		assertTrue(snapshot.load(loader));
+		assertNull(loader.contextCsn);
+		assertEquals(loader.events, Arrays.asList("section users old null"));
+	}
+
+	@Test
+	public void ignoresACorruptSnapshot() throws Exception {
+		DirectorySnapshot snapshot = new DirectorySnapshot(file, null, 0);
+		DirectorySnapshot.Writer writer = snapshot.writer(null);
+		writer.section("users", "fp", null);
+		writer.entry("uid=ann", DirectorySnapshot.encode(new BasicAttributes("uid", "ann", true)));
+		writer.commit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(raf.length() - 3);
+			int b = raf.read();
+			raf.seek(raf.length() - 3);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+		assertFalse(snapshot.load(new RecordingLoader(true)));
+	}
+
+	@Test
+	public void abortKeepsThePreviousSnapshot() throws Exception {
+		DirectorySnapshot snapshot = new DirectorySnapshot(file, null, 0);
+		DirectorySnapshot.Writer first = snapshot.writer("first");
+		first.commit();
+		DirectorySnapshot.Writer second = snapshot.writer("second");
+		second.section("users", "fp", null);
+		second.abort();
+
+		RecordingLoader loader = new RecordingLoader(true);
+		assertTrue(snapshot.load(loader));
+		assertEquals(loader.contextCsn, "first");
+		assertEquals(dir.list().length, 1);
+	}
+
+	@Test
+	public void concurrentWritersUseTheirOwnFiles() throws Exception {
+		DirectorySnapshot snapshot = new DirectorySnapshot(file, null, 0);
+		DirectorySnapshot.Writer first = snapshot.writer("first");
+		DirectorySnapshot.Writer second = snapshot.writer("second");
+		first.section("users", "fp", null);
+		second.section("users", "fp", null);
+		first.entry("uid=ann", DirectorySnapshot.encode(new BasicAttributes("uid", "ann", true)));
+		second.commit();
+		first.commit();
+
+		RecordingLoader loader = new RecordingLoader(true);
+		assertTrue(snapshot.load(loader));
+		assertEquals(loader.contextCsn, "first");
+		assertEquals(loader.events, Arrays.asList("section users fp null", "uid=ann uid=ann"));
+	}
+
+	@Test
+	public void noSnapshotLoadsNothing() throws Exception {
+		assertFalse(new DirectorySnapshot(file, null, 0).load(new RecordingLoader(true)));
+	}
+
+	private static class RecordingLoader implements DirectorySnapshot.Loader {
+		private final boolean wanted;
+		private final List<String> events = new ArrayList<String>();
+		private String contextCsn;
+
+		private RecordingLoader(boolean wanted) {
+			this.wanted = wanted;
+		}
+
+		public void begin(String contextCsn, long savedAt) {
+			this.contextCsn = contextCsn;
+		}
+
+		public boolean section(String name, String fingerprint, String highestModifyTimestamp) {
+			events.add("section " + name + " " + fingerprint + " " + highestModifyTimestamp);
+			return wanted;
+		}
+
+		public void entry(String dn, byte[] entry) throws NamingException {
+			Attribute first = DirectorySnapshot.decode(entry).getAll().next();
+			events.add(dn + " " + first.getID() + "=" + first.get());
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class EntryIndexTest {
+	private static final String PEOPLE = ",ou=people,dc=example,dc=com";
+
+	@Test
+	public void looksUpByDnIdAndName() {
+		EntryIndex index = new EntryIndex(false);
+		index.put("uid=ann" + PEOPLE, "1", "ann@example.com");
+		index.put("uid=bob" + PEOPLE, "2", "bob@example.com");
+		assertEquals(index.size(), 2);
+		assertTrue(index.containsDn("uid=ann" + PEOPLE));
+		assertEquals(index.idByDn("uid=bob" + PEOPLE), "2");
+		assertEquals(index.dnById("1"), "uid=ann" + PEOPLE);
+		assertEquals(index.dnByName("bob@example.com"), "uid=bob" + PEOPLE);
+		assertNull(index.dnById("3"));
+		assertNull(index.dnByName("carol@example.com"));
+		assertFalse(index.containsDn("uid=ann,ou=other,dc=example,dc=com"));
+	}
+
+	@Test
+	public void putReplacesTheEntryWithTheSameDn() {
+		EntryIndex index = new EntryIndex(false);
+		index.put("uid=ann" + PEOPLE, "1", "ann@example.com");
+		index.put("uid=ann" + PEOPLE, "1", "ann.smith@example.com");
+		assertEquals(index.size(), 1);
+		assertNull(index.dnByName("ann@example.com"));
+		assertEquals(index.dnByName("ann.smith@example.com"), "uid=ann" + PEOPLE);
+	}
+
+	@Test
+	public void aKeyHeldByTwoEntriesPointsAtTheLastOne() {
+		EntryIndex index = new EntryIndex(false);
+		index.put("uid=ann" + PEOPLE, "1", "shared");
+		index.put("uid=ann2" + PEOPLE, "2", "shared");
+		assertEquals(index.dnByName("shared"), "uid=ann2" + PEOPLE);
+		//removing the entry that lost the name leaves it with the other one
+		index.remove("uid=ann" + PEOPLE);
+		assertEquals(index.dnByName("shared"), "uid=ann2" + PEOPLE);
+	}
+
+	@Test
+	public void removeDropsEveryKey() {
+		EntryIndex index = new EntryIndex(false);
+		index.put("uid=ann" + PEOPLE, "1", "ann");
+		assertTrue(index.remove("uid=ann" + PEOPLE));
+		assertFalse(index.remove("uid=ann" + PEOPLE));
+		assertEquals(index.size(), 0);
+		assertNull(index.dnById("1"));
+		assertNull(index.dnByName("ann"));
+		assertFalse(index.containsDn("uid=ann" + PEOPLE));
+	}
+
+	@Test
+	public void idAndNameAreOptional() {
+		EntryIndex index = new EntryIndex(false);
+		index.put("cn=staff,ou=groups", "", null);
+		assertTrue(index.containsDn("cn=staff,ou=groups"));
+		assertNull(index.idByDn("cn=staff,ou=groups"));
+		assertNull(index.dnById(""));
+		assertNull(index.dnByName(null));
+	}
+
+	@Test
+	public void splitsDnsOnTheFirstUnescapedComma() {
+		assertEquals(EntryIndex.splitPoint("cn=smith\\, ann,ou=people"), 14);
+		assertEquals(EntryIndex.splitPoint("dc=com"), 6);
+		EntryIndex index = new EntryIndex(false);
+		index.put("cn=smith\\, ann" + PEOPLE, "1", null);
+		index.put("dc=com", "2", null);
+		assertEquals(index.dnById("1"), "cn=smith\\, ann" + PEOPLE);
+		assertEquals(index.dnById("2"), "dc=com");
+	}
+
+	@Test
+	public void retainDnsRemovesTheRest() {
+		EntryIndex index = new EntryIndex(false);
+		for(int i = 0; i < 10; i++) index.put("uid=u" + i + PEOPLE, "" + i, "u" + i);
+		assertEquals(index.retainDns(new HashSet<String>(Arrays.asList("uid=u3" + PEOPLE, "uid=u7" + PEOPLE))), 8);
+		assertEquals(index.size(), 2);
+		assertEquals(index.dnById("7"), "uid=u7" + PEOPLE);
+		assertNull(index.dnById("4"));
+	}
+
+	@Test
+	public void visitSeesEveryEntry() throws IOException {
+		EntryIndex index = new EntryIndex(true);
+		for(int i = 0; i < 5000; i++) index.put("uid=u" + i + PEOPLE, "" + i, "u" + i);
+		index.remove("uid=u42" + PEOPLE);
+		final Map<String, String> seen = new HashMap<String, String>();
+		int visited = index.visit(new EntryIndex.Visitor() {
+			public void visit(String dn, String id, String name) {
+				seen.put(dn, id + "/" + name);
+			}
+		});
+		assertEquals(visited, 4999);
+		assertEquals(seen.size(), 4999);
+		assertEquals(seen.get("uid=u4999" + PEOPLE), "4999/u4999");
+		assertFalse(seen.containsKey("uid=u42" + PEOPLE));
+	}
+
+	@Test
+	public void survivesGrowthAndCompaction() {
+		for(boolean offHeap : new boolean[]{false, true}) {
+			EntryIndex index = new EntryIndex(offHeap);
+			StringBuilder padding = new StringBuilder();
+			for(int i = 0; i < 200; i++) padding.append('x');
+			//enough removed records to go over a chunk and compact
+			for(int i = 0; i < 20000; i++) index.put("uid=u" + i + PEOPLE, "" + i, "u" + i + padding);
+			long grown = index.bytes();
+			for(int i = 0; i < 20000; i++) {
+				if(i % 10 != 0) index.remove("uid=u" + i + PEOPLE);
+			}
+			assertEquals(index.size(), 2000);
+			//about 5 chunks of records, 9 in 10 removed, compacting leaves one or two
+			assertTrue(index.bytes() <= grown - (2L << 20), "store was not compacted: " + grown + " -> " + index.bytes());
+			for(int i = 0; i < 20000; i += 10) {
+				assertEquals(index.dnById("" + i), "uid=u" + i + PEOPLE);
+				assertEquals(index.dnByName("u" + i + padding), "uid=u" + i + PEOPLE);
+			}
+			assertNull(index.dnById("11"));
+		}
+	}
+
+	@Test
+	public void clearEmptiesTheIndex() {
+		EntryIndex index = new EntryIndex(false);
+		index.put("uid=ann" + PEOPLE, "1", "ann");
+		index.clear();
+		assertEquals(index.size(), 0);
+		assertNull(index.dnById("1"));
+		index.put("uid=ann" + PEOPLE, "1", "ann");
+		assertEquals(index.dnById("1"), "uid=ann" + PEOPLE);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void rejectsValuesTooLongToStore() {
+		char[] tooLong = new char[0x10000];
+		Arrays.fill(tooLong, 'a');
+		new EntryIndex(false).put("uid=ann" + PEOPLE, "1", new String(tooLong));
+	}
+}
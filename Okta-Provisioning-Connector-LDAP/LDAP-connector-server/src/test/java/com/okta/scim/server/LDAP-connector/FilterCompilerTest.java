@@ -0,0 +1,88 @@
+package com.okta.scim.server.LDAP.connector;
+
+import com.okta.scim.util.model.SCIMFilter;
+import com.okta.scim.util.model.SCIMFilterAttribute;
+import com.okta.scim.util.model.SCIMFilterType;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class FilterCompilerTest {
+	private static final String CUSTOM_URN = "urn:okta:onprem_app:1.0:user:custom";
+
+	private FilterCompiler compiler;
+
+	@BeforeMethod
+	public void setUp() {
+		Map<String, String> userCore = new HashMap<String, String>();
+		userCore.put("userName", "uid");
+		userCore.put("id", "employeeNumber");
+		userCore.put("primaryEmail", "mail");
+		userCore.put("secondaryEmail", "mailAlternateAddress");
+		Map<String, String[]> userCustom = new HashMap<String, String[]>();
+		userCustom.put("departmentNumber", new String[]{"string", CUSTOM_URN, "department"});
+		compiler = new FilterCompiler(userCore, userCustom, CUSTOM_URN, "objectClass=inetOrgPerson");
+	}
+
+	@Test
+	public void escapesFilterSpecialCharacters() {
+		assertEquals(FilterCompiler.escape("a*b(c)d\\e\u0000f"), "a\\2ab\\28c\\29d\\5ce\\00f");
+	}
+
+	@Test
+	public void leavesPlainValuesAlone() {
+		assertEquals(FilterCompiler.escape("ann.smith@example.com"), "ann.smith@example.com");
+		assertEquals(FilterCompiler.escape(""), "");
+	}
+
+	@Test
+	public void escapesTheValueOfACompiledFilter() {
+		assertEquals(compiler.compile(equalsFilter("userName", null, "*)(uid=*")),
+				"(&(objectClass=inetOrgPerson)(uid=\\2a\\29\\28uid=\\2a))");
+	}
+
+	@Test
+	public void reusesTheTemplateWithNewValues() {
+		assertEquals(compiler.compile(equalsFilter("userName", null, "ann")), "(&(objectClass=inetOrgPerson)(uid=ann))");
+		assertEquals(compiler.compile(equalsFilter("userName", null, "b(o)b")), "(&(objectClass=inetOrgPerson)(uid=b\\28o\\29b))");
+	}
+
+	@Test
+	public void matchesEveryMappedEmail() {
+		assertEquals(compiler.compile(equalsFilter("emails", "value", "a*@example.com")),
+				"(&(objectClass=inetOrgPerson)(|(mail=a\\2a@example.com)(mailAlternateAddress=a\\2a@example.com)))");
+	}
+
+	@Test
+	public void compilesOrOfCustomAndCore() {
+		SCIMFilter custom = equalsFilter("department", null, "R&D");
+		custom.getFilterAttribute().setSchema(CUSTOM_URN);
+		SCIMFilter or = new SCIMFilter();
+		or.setFilterType(SCIMFilterType.OR);
+		or.setFilterExpressions(Arrays.asList(equalsFilter("id", null, "42"), custom));
+		assertEquals(compiler.compile(or), "(&(objectClass=inetOrgPerson)(|(employeeNumber=42)(departmentNumber=R&D)))");
+	}
+
+	@Test
+	public void returnsNullForUnmappedAttributes() {
+		assertNull(compiler.compile(equalsFilter("nickName", null, "x")));
+	}
+
+	private static SCIMFilter equalsFilter(String name, String subName, String value) {
+		SCIMFilterAttribute attribute = new SCIMFilterAttribute();
+		attribute.setAttributeName(name);
+		attribute.setSubAttributeName(subName);
+		SCIMFilter filter = new SCIMFilter();
+		filter.setFilterType(SCIMFilterType.EQUALS);
+		filter.setFilterAttribute(attribute);
+		filter.setFilterValue(value);
+		return filter;
+	}
+}
@@ -0,0 +1,124 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class MembershipIndexTest {
+	private static final String ANN = "uid=ann,ou=people,dc=example,dc=com";
+	private static final String BOB = "uid=bob,ou=people,dc=example,dc=com";
+	private static final String STAFF = "cn=staff,ou=groups,dc=example,dc=com";
+	private static final String ADMINS = "cn=admins,ou=groups,dc=example,dc=com";
+	private static final long HOUR = 3600000L;
+
+	@Test
+	public void groupsOfComesFromTheGroupsMembers() {
+		MembershipIndex index = new MembershipIndex(HOUR);
+		index.putGroup(STAFF, "g1", "staff", Arrays.asList(ANN, BOB));
+		index.putGroup(ADMINS, "g2", "admins", Collections.singletonList(ANN));
+		assertEquals(groupNames(index.groupsOf(ANN)), set("staff", "admins"));
+		assertEquals(groupNames(index.groupsOf(BOB)), set("staff"));
+		assertEquals(index.memberCount(), 2);
+	}
+
+	@Test
+	public void dnsAreComparedNormalized() {
+		MembershipIndex index = new MembershipIndex(HOUR);
+		index.putGroup(STAFF, "g1", "staff", Collections.singletonList("UID=Ann, OU=People,DC=example,DC=com"));
+		assertEquals(index.groupsOf(ANN).size(), 1);
+		assertEquals(index.groupsOf(ANN).get(0).getDn(), DirectoryCache.normalizeDn(STAFF));
+	}
+
+	@Test
+	public void putGroupReplacesItsMembers() {
+		MembershipIndex index = new MembershipIndex(HOUR);
+		index.putGroup(STAFF, "g1", "staff", Arrays.asList(ANN, BOB));
+		index.putGroup(STAFF, "g1", "staff", Collections.singletonList(BOB));
+		assertTrue(index.groupsOf(ANN).isEmpty());
+		assertEquals(index.membersOf("g1"), Collections.singletonList(DirectoryCache.normalizeDn(BOB)));
+	}
+
+	@Test
+	public void putMembershipsReplacesTheUsersGroups() {
+		MembershipIndex index = new MembershipIndex(HOUR);
+		index.putMemberships(ANN, Arrays.asList(STAFF, ADMINS));
+		index.putGroupName(STAFF, "g1", "staff");
+		index.putMemberships(ANN, Collections.singletonList(STAFF));
+		List<MembershipIndex.GroupRef> refs = index.groupsOf(ANN);
+		assertEquals(refs.size(), 1);
+		assertEquals(refs.get(0).getId(), "g1");
+		//members pieced together from memberOf are not the group's member list
+		assertNull(index.membersOf("g1"));
+	}
+
+	@Test
+	public void removeAndRenameKeepBothSidesInStep() {
+		MembershipIndex index = new MembershipIndex(HOUR);
+		index.putGroup(STAFF, "g1", "staff", Arrays.asList(ANN, BOB));
+		index.renameMember(ANN, "uid=ann2,ou=people,dc=example,dc=com");
+		assertTrue(index.groupsOf(ANN).isEmpty());
+		assertEquals(index.groupsOf("uid=ann2,ou=people,dc=example,dc=com").size(), 1);
+		index.removeMember(BOB);
+		assertTrue(index.groupsOf(BOB).isEmpty());
+		assertEquals(index.membersOf("g1"), Collections.singletonList("uid=ann2,ou=people,dc=example,dc=com"));
+		index.removeGroup(STAFF);
+		assertTrue(index.groupsOf("uid=ann2,ou=people,dc=example,dc=com").isEmpty());
+		assertNull(index.membersOf("g1"));
+	}
+
+	@Test
+	public void retainGroupsForgetsTheRest() {
+		MembershipIndex index = new MembershipIndex(HOUR);
+		index.putGroup(STAFF, "g1", "staff", Collections.singletonList(ANN));
+		index.putGroup(ADMINS, "g2", "admins", Collections.singletonList(ANN));
+		assertEquals(index.retainGroups(Collections.singletonList(STAFF)), 1);
+		assertEquals(groupNames(index.groupsOf(ANN)), set("staff"));
+		assertNull(index.membersOf("g2"));
+	}
+
+	@Test
+	public void completenessLastsForTheTtl() throws InterruptedException {
+		MembershipIndex index = new MembershipIndex(200);
+		assertFalse(index.isComplete());
+		index.markComplete();
+		assertTrue(index.isComplete());
+		Thread.sleep(300);
+		assertFalse(index.isComplete());
+		index.markComplete();
+		assertTrue(index.isComplete());
+	}
+
+	@Test
+	public void invalidateEndsCompleteness() {
+		MembershipIndex index = new MembershipIndex(HOUR);
+		index.markComplete();
+		index.invalidate();
+		assertFalse(index.isComplete());
+	}
+
+	@Test
+	public void zeroTtlIsNeverComplete() {
+		MembershipIndex index = new MembershipIndex(0);
+		index.markComplete();
+		assertFalse(index.isComplete());
+	}
+
+	private static Set<String> groupNames(List<MembershipIndex.GroupRef> refs) {
+		Set<String> names = new HashSet<String>();
+		for(MembershipIndex.GroupRef ref : refs) names.add(ref.getDisplayName());
+		return names;
+	}
+
+	private static Set<String> set(String... values) {
+		return new HashSet<String>(Arrays.asList(values));
+	}
+}
@@ -0,0 +1,114 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.configuration.ConfigurationException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class PasswordHasherTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private PasswordHasher hasher;
+
+	@AfterMethod
+	public void tearDown() {
+		if(hasher != null) hasher.close();
+		hasher = null;
+	}
+
+	@Test
+	public void plainWritesThePasswordAsSent() throws Exception {
+		hasher = hasher("plain");
+		assertTrue(hasher.isPlain());
+		assertEquals(hasher.hash("s3cret!"), "s3cret!");
+		assertEquals(hasher.hashNow("s3cret!"), "s3cret!");
+	}
+
+	@Test
+	public void sshaIsSha1OfPasswordAndSaltFollowedByTheSalt() throws Exception {
+		hasher = hasher("SSHA");
+		assertSaltedDigest(hasher.hash("s3cret!"), "{SSHA}", "SHA-1", 20, "s3cret!");
+	}
+
+	@Test
+	public void ssha512IsSha512OfPasswordAndSaltFollowedByTheSalt() throws Exception {
+		hasher = hasher("ssha512");
+		assertSaltedDigest(hasher.hash("p\u00e4ssw\u00f6rd"), "{SSHA512}", "SHA-512", 64, "p\u00e4ssw\u00f6rd");
+	}
+
+	@Test
+	public void saltIsRandom() throws Exception {
+		hasher = hasher("SSHA");
+		assertFalse(hasher.hashNow("same").equals(hasher.hashNow("same")));
+	}
+
+	@Test
+	public void pbkdf2UsesTheAdaptedBase64OfOpenLdap() throws Exception {
+		hasher = new PasswordHasher("PBKDF2", 16, 1000, 1, 0, new ConnectorMetrics(false));
+		String hashed = hasher.hash("s3cret!");
+		assertTrue(hashed.matches("\\{PBKDF2-SHA1\\}1000\\$[A-Za-z0-9./]+\\$[A-Za-z0-9./]+"), hashed);
+		String[] parts = hashed.substring("{PBKDF2-SHA1}".length()).split("\\$");
+		byte[] salt = adaptedBase64(parts[1]);
+		assertEquals(salt.length, 16);
+		PBEKeySpec spec = new PBEKeySpec("s3cret!".toCharArray(), salt, 1000, 160);
+		byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded();
+		assertTrue(Arrays.equals(adaptedBase64(parts[2]), key));
+	}
+
+	@Test
+	public void emptyPasswordsAreNotHashed() throws Exception {
+		hasher = hasher("SSHA");
+		assertEquals(hasher.hash(""), "");
+	}
+
+	@Test
+	public void customSchemeIsLoadedByClassName() throws Exception {
+		hasher = hasher(Reversed.class.getName());
+		assertEquals(hasher.hash("abc"), "{REV}cba");
+	}
+
+	@Test(expectedExceptions = ConfigurationException.class)
+	public void unknownSchemeFailsAtStartup() throws Exception {
+		hasher = hasher("MD4-ish");
+	}
+
+	/**
+	 * A custom scheme, see ldap.password.scheme.
+	 */
+	public static class Reversed implements PasswordHasher.Scheme {
+		public String hash(String password) {
+			return "{REV}" + new StringBuilder(password).reverse();
+		}
+	}
+
+	private static PasswordHasher hasher(String scheme) throws ConfigurationException {
+		return new PasswordHasher(scheme, 8, 1, 2, 2, new ConnectorMetrics(false));
+	}
+
+	private static void assertSaltedDigest(String hashed, String prefix, String algorithm, int digestBytes, String password) throws Exception {
+		assertTrue(hashed.startsWith(prefix), hashed);
+		byte[] value = Base64.decodeBase64(hashed.substring(prefix.length()).getBytes(UTF8));
+		assertEquals(value.length, digestBytes + 8);
+		byte[] salt = Arrays.copyOfRange(value, digestBytes, value.length);
+		MessageDigest digest = MessageDigest.getInstance(algorithm);
+		digest.update(password.getBytes(UTF8));
+		digest.update(salt);
+		assertTrue(Arrays.equals(Arrays.copyOf(value, digestBytes), digest.digest()));
+	}
+
+	private static byte[] adaptedBase64(String encoded) {
+		StringBuilder standard = new StringBuilder(encoded.replace('.', '+'));
+		while(standard.length() % 4 != 0) standard.append('=');
+		return Base64.decodeBase64(standard.toString().getBytes(UTF8));
+	}
+}
@@ -0,0 +1,210 @@
+package com.okta.scim.server.LDAP.connector;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class WriteJournalTest {
+	private static final int CAPACITY = 16 + 4096;
+	private static final long WAIT_MILLIS = 10000;
+
+	private File file;
+	//entries the applier lets through before LDAP is "down" again
+	private final AtomicInteger allowed = new AtomicInteger();
+	private final List<String> applied = Collections.synchronizedList(new ArrayList<String>());
+	private final List<WriteJournal> opened = new ArrayList<WriteJournal>();
+
+	@BeforeMethod
+	public void setUp() throws IOException {
+		file = File.createTempFile("write-journal", ".dat");
+		file.delete();
+		allowed.set(0);
+		applied.clear();
+	}
+
+	@AfterMethod
+	public void tearDown() {
+		for(WriteJournal journal : opened) journal.close();
+		opened.clear();
+		file.delete();
+	}
+
+	@Test
+	public void recoversWaitingEntriesInOrder() throws Exception {
+		WriteJournal journal = open();
+		for(int i = 0; i < 5; i++) journal.append(WriteJournal.Entry.createGroup("g" + i, "group " + i, null));
+		assertTrue(journal.hasPending("group:g3"));
+		journal.close();
+
+		WriteJournal reopened = open();
+		assertEquals(reopened.pendingCount(), 5);
+		allowed.set(Integer.MAX_VALUE);
+		waitForPending(reopened, 0);
+		assertEquals(applied, ids(0, 5));
+		assertFalse(reopened.hasPending("group:g3"));
+	}
+
+	@Test
+	public void recoverStopsAtATornRecord() throws Exception {
+		WriteJournal journal = open();
+		for(int i = 0; i < 3; i++) journal.append(WriteJournal.Entry.createGroup("g" + i, "group " + i, null));
+		journal.close();
+		//flip a byte in the payload of the last record, its crc no longer matches
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			int offset = 16;
+			for(int i = 0; i < 2; i++) {
+				raf.seek(offset);
+				offset += 16 + raf.readInt();
+			}
+			raf.seek(offset + 16 + 10);
+			int b = raf.read();
+			raf.seek(offset + 16 + 10);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+
+		WriteJournal reopened = open();
+		assertEquals(reopened.pendingCount(), 2);
+		//the torn record is overwritten by the next append
+		reopened.append(WriteJournal.Entry.createGroup("g9", "group 9", null));
+		reopened.close();
+		assertEquals(open().pendingCount(), 3);
+	}
+
+	@Test
+	public void compactsToMakeRoom() throws Exception {
+		WriteJournal journal = open();
+		int appended = 0;
+		try {
+			while(true) {
+				journal.append(WriteJournal.Entry.createGroup("g" + appended, "group " + appended, null));
+				appended++;
+			}
+		} catch (IOException e) {
+			//full
+		}
+		assertTrue(appended > 3);
+		//records are only moved over space already applied, so more than half have to go first
+		int drained = appended - appended / 2;
+		allowed.set(drained);
+		waitForPending(journal, appended - drained);
+		//only fits once the waiting records are back at the start of the file, ids one digit longer take one less
+		int more = drained - 1;
+		for(int i = 0; i < more; i++) journal.append(WriteJournal.Entry.createGroup("g" + (appended + i), "group " + i, null));
+		assertEquals(journal.pendingCount(), appended - drained + more);
+		journal.close();
+
+		WriteJournal reopened = open();
+		assertEquals(reopened.pendingCount(), appended - drained + more);
+		allowed.set(Integer.MAX_VALUE);
+		waitForPending(reopened, 0);
+		assertEquals(applied, ids(0, appended + more));
+	}
+
+	@Test
+	public void doesNotCompactOntoTheFirstWaitingRecord() throws Exception {
+		//pad the group name so four records and the zero length after them fill the journal exactly, ids of the
+		//same length serialize to records of the same size
+		int record = (CAPACITY - 16 - 4) / 4;
+		WriteJournal probe = open();
+		probe.append(WriteJournal.Entry.createGroup("g10", "x", null));
+		probe.close();
+		String name = padding(1 + record - 16 - readInt(16));
+		file.delete();
+
+		WriteJournal journal = open();
+		for(int i = 10; i < 14; i++) journal.append(WriteJournal.Entry.createGroup("g" + i, name, null));
+		assertEquals(readInt(16 + 4 * record), 0);
+		allowed.set(2);
+		waitForPending(journal, 2);
+		//the waiting records fill exactly the space applied before them, moving them back would end the journal
+		//with a zero length written over the first of them at the old head
+		try {
+			journal.append(WriteJournal.Entry.createGroup("g14", name, null));
+			fail("appended to a full journal");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("is full"));
+		}
+		assertEquals(readInt(16 + 2 * record), record - 16);
+		journal.close();
+
+		WriteJournal reopened = open();
+		assertEquals(reopened.pendingCount(), 2);
+		allowed.set(Integer.MAX_VALUE);
+		waitForPending(reopened, 0);
+		assertEquals(applied, ids(10, 14));
+	}
+
+	@Test
+	public void refusesAFileAlreadyInUse() throws Exception {
+		open();
+		try {
+			open();
+			fail("second journal opened the same file");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("already in use"));
+		}
+	}
+
+	private WriteJournal open() throws IOException {
+		WriteJournal journal = new WriteJournal(file, CAPACITY, 1000, new WriteJournal.Applier() {
+			public void apply(WriteJournal.Entry entry) throws NamingException {
+				if(allowed.getAndDecrement() <= 0) {
+					allowed.incrementAndGet();
+					throw new CommunicationException("down");
+				}
+				applied.add(entry.getId());
+			}
+		});
+		opened.add(journal);
+		journal.open();
+		return journal;
+	}
+
+	private int readInt(int offset) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(offset);
+			return raf.readInt();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static String padding(int length) {
+		StringBuilder padding = new StringBuilder(length);
+		for(int i = 0; i < length; i++) padding.append('x');
+		return padding.toString();
+	}
+
+	private static void waitForPending(WriteJournal journal, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while(journal.pendingCount() != count) {
+			if(System.currentTimeMillis() > deadline) fail("still " + journal.pendingCount() + " entries waiting, expected " + count);
+			Thread.sleep(50);
+		}
+	}
+
+	private static List<String> ids(int from, int to) {
+		List<String> ids = new ArrayList<String>();
+		for(int i = from; i < to; i++) ids.add("g" + i);
+		return ids;
+	}
+}